@@ -1,6 +1,7 @@
 package edu.gatech.chai.fhironfhirbase.database;
 
 import java.sql.Connection;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -9,6 +10,42 @@ public interface DatabaseConfiguration {
 	public String getSqlRenderTargetDialect();
 	public DataSource getDataSource();
 	public void setDataSource(DataSource dataSource);
+
+	/**
+	 * The writer DataSource as it was handed in, without the pool. Used for
+	 * long-lived connections such as LISTEN that should not hold a pool slot.
+	 */
+	public DataSource getUnpooledDataSource();
+
+	/**
+	 * The next reader without its pool, in round-robin order, or the unpooled
+	 * writer if there are no readers. Used for long-lived read connections such
+	 * as search cursors.
+	 */
+	public DataSource getUnpooledReaderDataSource();
+
+	/**
+	 * Read-only replicas used for reads, searches and counts. When none are set,
+	 * the writer DataSource is used for everything.
+	 */
+	public List<DataSource> getReaderDataSources();
+	public void setReaderDataSources(List<DataSource> readerDataSources);
+
+	/**
+	 * Picks the next reader in round-robin order, or the writer if there are no readers.
+	 */
+	public DataSource getReaderDataSource();
+
+	/**
+	 * Borrows a connection from the pool. The caller must close it to return it.
+	 */
 	public Connection getConnection();
+
+	/**
+	 * @deprecated connections are no longer cached; this is ignored.
+	 */
+	@Deprecated
 	public void setConnection(Connection connection);
+
+	public PoolMetrics getPoolMetrics();
 }
@@ -2,17 +2,55 @@ package edu.gatech.chai.fhironfhirbase.database;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
+import jakarta.annotation.PreDestroy;
+
+import org.postgresql.ds.common.BaseDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.stereotype.Component;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
+
+/**
+ * Holds the writer DataSource and any reader (replica) DataSources used by the
+ * mapping layer. Each plain DataSource handed in is wrapped in a HikariCP pool
+ * unless FHIRBASE_POOL=false. Reader pools are marked read-only. Pool settings
+ * come from the environment:
+ * <ul>
+ * <li>FHIRBASE_POOL_MAX_SIZE (default 10)</li>
+ * <li>FHIRBASE_POOL_MIN_IDLE (default: same as max size)</li>
+ * <li>FHIRBASE_POOL_CONNECTION_TIMEOUT_MS (default 30000)</li>
+ * <li>FHIRBASE_POOL_LEAK_DETECTION_MS (default 60000, 0 disables)</li>
+ * <li>FHIRBASE_PREPARE_THRESHOLD and FHIRBASE_STATEMENT_CACHE_QUERIES, which set
+ * the driver's server-side prepared statement cache on pgjdbc DataSources</li>
+ * </ul>
+ */
 @Component
 public class DatabaseConfigurationImpl implements DatabaseConfiguration {
+	private static final Logger logger = LoggerFactory.getLogger(DatabaseConfigurationImpl.class);
 
 	private String targetDialect;
 	private DataSource dataSource;
-	private Connection connection;
+	private DataSource unpooledDataSource;
+	private HikariDataSource pool;
+	private final PoolMetrics poolMetrics = new PoolMetrics();
+
+	private volatile List<DataSource> readerDataSources = Collections.emptyList();
+	private volatile List<DataSource> unpooledReaderDataSources = Collections.emptyList();
+	private final List<HikariDataSource> readerPools = new ArrayList<HikariDataSource>();
+	private final AtomicInteger nextReader = new AtomicInteger();
 
 	@Override
 	public String getSqlRenderTargetDialect() {
@@ -29,29 +67,174 @@ public class DatabaseConfigurationImpl implements DatabaseConfiguration {
 		return this.dataSource;
 	}
 
+	@Override
+	public DataSource getUnpooledDataSource() {
+		return this.unpooledDataSource;
+	}
+
 	@Override
 	public void setDataSource(DataSource dataSource) {
-		this.dataSource = dataSource;
+		if (this.pool != null) {
+			this.pool.close();
+			this.pool = null;
+		}
+
+		this.unpooledDataSource = unpooled(dataSource);
+
+		if (dataSource == null || dataSource instanceof HikariDataSource || !poolEnabled()) {
+			this.dataSource = dataSource;
+			return;
+		}
+
+		this.pool = createPool(dataSource, "fhirbase", false, poolMetrics);
+		this.dataSource = this.pool;
 	}
 
 	@Override
-	public Connection getConnection() {
-		setConnection(this.connection);
+	public List<DataSource> getReaderDataSources() {
+		return this.readerDataSources;
+	}
+
+	@Override
+	public synchronized void setReaderDataSources(List<DataSource> readerDataSources) {
+		closeReaderPools();
 
-		return this.connection;
+		List<DataSource> readers = new ArrayList<DataSource>();
+		List<DataSource> unpooledReaders = new ArrayList<DataSource>();
+		if (readerDataSources != null) {
+			for (DataSource readerDataSource : readerDataSources) {
+				unpooledReaders.add(unpooled(readerDataSource));
+				if (readerDataSource instanceof HikariDataSource || !poolEnabled()) {
+					readers.add(readerDataSource);
+				} else {
+					HikariDataSource readerPool = createPool(readerDataSource, "fhirbase-reader-" + (readers.size() + 1), true, null);
+					readerPools.add(readerPool);
+					readers.add(readerPool);
+				}
+			}
+		}
+
+		this.readerDataSources = Collections.unmodifiableList(readers);
+		this.unpooledReaderDataSources = Collections.unmodifiableList(unpooledReaders);
 	}
 
 	@Override
-	public void setConnection(Connection connection) {
+	public DataSource getReaderDataSource() {
+		List<DataSource> readers = this.readerDataSources;
+		if (readers.isEmpty()) {
+			return this.dataSource;
+		}
+
+		return readers.get(Math.floorMod(nextReader.getAndIncrement(), readers.size()));
+	}
+
+	@Override
+	public DataSource getUnpooledReaderDataSource() {
+		List<DataSource> readers = this.unpooledReaderDataSources;
+		if (readers.isEmpty()) {
+			return this.unpooledDataSource;
+		}
+
+		return readers.get(Math.floorMod(nextReader.getAndIncrement(), readers.size()));
+	}
+
+	@Override
+	public Connection getConnection() {
 		try {
-			if (connection == null || connection.isClosed()) {
-				connection = dataSource.getConnection();
-			}
+			return dataSource.getConnection();
 		} catch (SQLException e) {
-			e.printStackTrace();
+			throw ThrowFHIRExceptions.internalErrorException("Failed to get a database connection: " + e.getMessage());
 		}
+	}
+
+	@Override
+	@Deprecated
+	public void setConnection(Connection connection) {
+		// Connections are borrowed per call from the pool, so there is nothing to cache.
+	}
+
+	@Override
+	public PoolMetrics getPoolMetrics() {
+		return this.poolMetrics;
+	}
 
-		this.connection = connection;
+	@PreDestroy
+	public void closePool() {
+		if (this.pool != null) {
+			this.pool.close();
+			this.pool = null;
+		}
+
+		closeReaderPools();
+	}
+
+	private synchronized void closeReaderPools() {
+		for (HikariDataSource readerPool : readerPools) {
+			readerPool.close();
+		}
+		readerPools.clear();
+		this.readerDataSources = Collections.emptyList();
+		this.unpooledReaderDataSources = Collections.emptyList();
 	}
 
+	/**
+	 * dataSource without a pool. A Hikari pool configured by jdbcUrl has no
+	 * DataSource inside, so connections are opened from its URL and credentials
+	 * instead, never borrowed from the pool.
+	 */
+	static DataSource unpooled(DataSource dataSource) {
+		if (!(dataSource instanceof HikariDataSource)) {
+			return dataSource;
+		}
+
+		HikariDataSource hikari = (HikariDataSource) dataSource;
+		if (hikari.getDataSource() != null) {
+			return hikari.getDataSource();
+		}
+		if (hikari.getJdbcUrl() == null) {
+			return null;
+		}
+
+		DriverManagerDataSource driverManager = new DriverManagerDataSource(hikari.getJdbcUrl(), hikari.getUsername(),
+				hikari.getPassword());
+		driverManager.setConnectionProperties(hikari.getDataSourceProperties());
+
+		return driverManager;
+	}
+
+	private HikariDataSource createPool(DataSource dataSource, String poolName, boolean readOnly, PoolMetrics metrics) {
+		configureStatementCache(dataSource);
+
+		HikariConfig config = new HikariConfig();
+		config.setPoolName(poolName);
+		config.setDataSource(dataSource);
+		config.setAutoCommit(false);
+		config.setReadOnly(readOnly);
+		config.setMaximumPoolSize(OperationUtil.getEnvInt("FHIRBASE_POOL_MAX_SIZE", 10));
+		config.setMinimumIdle(OperationUtil.getEnvInt("FHIRBASE_POOL_MIN_IDLE", config.getMaximumPoolSize()));
+		config.setConnectionTimeout(OperationUtil.getEnvInt("FHIRBASE_POOL_CONNECTION_TIMEOUT_MS", 30000));
+		config.setLeakDetectionThreshold(OperationUtil.getEnvInt("FHIRBASE_POOL_LEAK_DETECTION_MS", 60000));
+		// Don't fail startup if the database isn't reachable yet. Connections are retried on demand.
+		config.setInitializationFailTimeout(-1);
+		if (metrics != null) {
+			config.setMetricsTrackerFactory(metrics);
+		}
+
+		logger.debug("Connection pool " + poolName + " created with maximum size " + config.getMaximumPoolSize());
+
+		return new HikariDataSource(config);
+	}
+
+	private boolean poolEnabled() {
+		String pooled = System.getenv("FHIRBASE_POOL");
+		return pooled == null || !"false".equalsIgnoreCase(pooled.trim());
+	}
+
+	private void configureStatementCache(DataSource dataSource) {
+		if (dataSource instanceof BaseDataSource) {
+			BaseDataSource pgDataSource = (BaseDataSource) dataSource;
+			pgDataSource.setPrepareThreshold(OperationUtil.getEnvInt("FHIRBASE_PREPARE_THRESHOLD", pgDataSource.getPrepareThreshold()));
+			pgDataSource.setPreparedStatementCacheQueries(OperationUtil.getEnvInt("FHIRBASE_STATEMENT_CACHE_QUERIES", pgDataSource.getPreparedStatementCacheQueries()));
+		}
+	}
 }
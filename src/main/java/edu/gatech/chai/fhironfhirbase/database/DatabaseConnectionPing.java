@@ -4,46 +4,108 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.scheduling.config.ScheduledTask;
 import org.springframework.stereotype.Component;
 
-import edu.gatech.chai.fhironfhirbase.provider.PatientResourceProvider;
-import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+import edu.gatech.chai.fhironfhirbase.utilities.ResourceCountRegistry;
 
+/**
+ * Reconciles the in-memory resource counts with the database. Creates and
+ * deletes adjust the counts by one, which drifts when writes go around the
+ * providers (batch writes, other nodes, direct SQL).
+ *
+ * Each table's pg_class.reltuples estimate is read in a single query. Tables
+ * estimated below FHIRBASE_EXACT_COUNT_THRESHOLD rows, or never analyzed, are
+ * counted exactly, which is cheap at that size. Larger tables use the estimate.
+ * Counts are read on the writer, since a lagging replica would undo the
+ * adjustments of recent writes, and set with setCounted so creates and deletes
+ * made while the queries ran are kept.
+ */
 @Component
 public class DatabaseConnectionPing {
     private static final Logger logger = LoggerFactory.getLogger(ScheduledTask.class);
 
+	private static final String ESTIMATE_QUERY = "SELECT c.relname, c.reltuples::bigint AS estimate FROM pg_class c "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "WHERE c.relkind = 'r' AND n.nspname = current_schema() AND c.relname = ANY(?)";
+
 	@Autowired
 	DatabaseConfiguration databaseConfiguration;
 
-	@Scheduled(fixedDelay = 180000)
+	private long exactCountThreshold = OperationUtil.getEnvInt("FHIRBASE_EXACT_COUNT_THRESHOLD", 100000);
+
+	@Scheduled(fixedDelayString = "${FHIRBASE_COUNT_RECONCILE_MS:180000}")
     public void pingDatabase () throws SQLException {
-		Connection connection = null;
-		// try {
-		// 	connection = databaseConfiguration.getDataSource().getConnection();
+		List<String> resourceNames = new ArrayList<String>(ResourceCountRegistry.getInstance().getResourceNames());
+		if (resourceNames.isEmpty()) {
+			return;
+		}
+
+		ResourceCountRegistry registry = ResourceCountRegistry.getInstance();
+		Map<String, Long> adjustments = new HashMap<String, Long>();
+		for (String resourceName : resourceNames) {
+			adjustments.put(resourceName, registry.getAdjustments(resourceName));
+		}
 
-		// 	String query = "SELECT count(*) as count FROM " + PatientResourceProvider.getType().toLowerCase() + ";";
-		// 	logger.debug("Query to get size from ping: " + query);
-		// 	PreparedStatement stmt = connection.prepareStatement(query);
+		DataSource dataSource = databaseConfiguration.getDataSource();
+		Connection connection = DataSourceUtils.getConnection(dataSource);
+		try {
+			Map<String, Long> estimates = new HashMap<String, Long>();
+			String[] tableNames = resourceNames.stream().map(String::toLowerCase).toArray(String[]::new);
+			try (PreparedStatement stmt = connection.prepareStatement(ESTIMATE_QUERY)) {
+				stmt.setArray(1, connection.createArrayOf("text", tableNames));
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						estimates.put(rs.getString("relname"), rs.getLong("estimate"));
+					}
+				}
+			}
 
-		// 	ResultSet rs = stmt.executeQuery();
-		// 	if (rs.next()) {
-		// 		int count = rs.getInt("count");
-        // 		ExtensionUtil.addResourceCount(PatientResourceProvider.getType(), (long) count);
-		// 	}
+			for (String resourceName : resourceNames) {
+				String tableName = resourceName.toLowerCase();
+				Long estimate = estimates.get(tableName);
+				if (estimate == null) {
+					// No such table, e.g. a provider that is not backed by fhirbase.
+					continue;
+				}
 
-		// 	connection.close();
+				long count = estimate;
+				if (estimate < 0 || estimate < exactCountThreshold) {
+					String query = "SELECT count(*) AS count FROM " + tableName;
+					logger.debug("Query to reconcile count: " + query);
+					try (PreparedStatement stmt = connection.prepareStatement(query); ResultSet rs = stmt.executeQuery()) {
+						if (rs.next()) {
+							count = rs.getLong("count");
+						}
+					}
+				}
 
-		// } catch (SQLException e) {
-		// 	if (connection != null) connection.close();
-		// 	throw e;
-		// }
+				registry.setCounted(resourceName, count, adjustments.get(resourceName));
+			}
 
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+			throw e;
+		} finally {
+			DataSourceUtils.releaseConnection(connection, dataSource);
+		}
     }
 }
@@ -0,0 +1,90 @@
+package edu.gatech.chai.fhironfhirbase.database;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Connection pool metrics. Hikari reports each borrow wait, usage time and
+ * timeout through the tracker, and the pool's own stats give active, idle and
+ * waiting counts.
+ */
+public class PoolMetrics implements MetricsTrackerFactory {
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder acquireNanos = new LongAdder();
+	private final LongAdder usageMillis = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	private volatile PoolStats poolStats;
+
+	@Override
+	public IMetricsTracker create(String poolName, PoolStats poolStats) {
+		this.poolStats = poolStats;
+
+		return new IMetricsTracker() {
+			@Override
+			public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+				acquisitions.increment();
+				acquireNanos.add(elapsedAcquiredNanos);
+			}
+
+			@Override
+			public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+				usageMillis.add(elapsedBorrowedMillis);
+			}
+
+			@Override
+			public void recordConnectionTimeout() {
+				timeouts.increment();
+			}
+		};
+	}
+
+	public int getActiveConnections() {
+		PoolStats stats = poolStats;
+		return stats == null ? 0 : stats.getActiveConnections();
+	}
+
+	public int getIdleConnections() {
+		PoolStats stats = poolStats;
+		return stats == null ? 0 : stats.getIdleConnections();
+	}
+
+	public int getTotalConnections() {
+		PoolStats stats = poolStats;
+		return stats == null ? 0 : stats.getTotalConnections();
+	}
+
+	public int getPendingThreads() {
+		PoolStats stats = poolStats;
+		return stats == null ? 0 : stats.getPendingThreads();
+	}
+
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public double getMeanWaitMillis() {
+		long count = acquisitions.sum();
+		return count == 0 ? 0.0 : (double) TimeUnit.NANOSECONDS.toMicros(acquireNanos.sum()) / count / 1000.0;
+	}
+
+	public double getMeanUsageMillis() {
+		long count = acquisitions.sum();
+		return count == 0 ? 0.0 : (double) usageMillis.sum() / count;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolMetrics [active=" + getActiveConnections() + ", idle=" + getIdleConnections() + ", total="
+				+ getTotalConnections() + ", pending=" + getPendingThreads() + ", acquisitions=" + getAcquisitions()
+				+ ", meanWaitMillis=" + getMeanWaitMillis() + ", timeouts=" + getTimeouts() + "]";
+	}
+}
@@ -0,0 +1,15 @@
+package edu.gatech.chai.fhironfhirbase.database;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Turns on @Scheduled for the library's own jobs: count reconciliation
+ * (DatabaseConnectionPing), the idle search cursor sweep and the search shape
+ * report (FhirbaseMapping). They would otherwise only run if the application
+ * enabled scheduling itself. Enabling it twice is harmless.
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration {
+}
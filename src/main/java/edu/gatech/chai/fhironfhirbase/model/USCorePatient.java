@@ -16,6 +16,7 @@
 package edu.gatech.chai.fhironfhirbase.model;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.hl7.fhir.r4.model.BackboneElement;
@@ -38,6 +39,9 @@ public class USCorePatient extends Patient {
 	 */
 	private static final long serialVersionUID = 1L;
 
+	private static final String RACE_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+	private static final String ETHNICITY_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
+
 	@Description(shortDefinition = "Concepts classifying the person into a named category of humans sharing common history, traits, geographical origin or nationality")
 	@Extension(url = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race", isModifier = false, definedLocally = true)
 	@Child(name = "race", min = 0, max = 1)
@@ -78,6 +82,89 @@ public class USCorePatient extends Patient {
         return super.isEmpty() && ElementUtil.isEmpty(myRace, myEthnicity);
 	}
 
+	@Override
+	public USCorePatient copy() {
+		USCorePatient dst = new USCorePatient();
+		copyValues(dst);
+		dst.myRace = myRace == null ? null : myRace.copy();
+		dst.myEthnicity = myEthnicity == null ? null : myEthnicity.copy();
+
+		return dst;
+	}
+
+	/**
+	 * Copies a plain Patient into a USCorePatient model to model, without an
+	 * encode/parse round trip. The race and ethnicity extensions are moved into
+	 * their typed blocks, the same way the parser would bind them.
+	 */
+	public static USCorePatient fromPatient(Patient patient) {
+		if (patient instanceof USCorePatient) {
+			return ((USCorePatient) patient).copy();
+		}
+
+		USCorePatient dst = new USCorePatient();
+		patient.copyValues(dst);
+
+		Iterator<org.hl7.fhir.r4.model.Extension> iterator = dst.getExtension().iterator();
+		while (iterator.hasNext()) {
+			org.hl7.fhir.r4.model.Extension extension = iterator.next();
+			if (RACE_URL.equals(extension.getUrl())) {
+				Race race = new Race();
+				copySubExtensions(extension, race, race.getCategory(), race.getDetailed(), race.getText());
+				dst.setRace(race);
+				iterator.remove();
+			} else if (ETHNICITY_URL.equals(extension.getUrl())) {
+				Ethnicity ethnicity = new Ethnicity();
+				copySubExtensions(extension, ethnicity, ethnicity.getCategory(), ethnicity.getDetailed(), ethnicity.getText());
+				dst.setEthnicity(ethnicity);
+				iterator.remove();
+			}
+		}
+
+		return dst;
+	}
+
+	private static void copySubExtensions(org.hl7.fhir.r4.model.Extension extension, BackboneElement block,
+			List<Coding> category, List<Coding> detailed, List<StringType> text) {
+		for (org.hl7.fhir.r4.model.Extension sub : extension.getExtension()) {
+			if ("ombCategory".equals(sub.getUrl()) && sub.getValue() instanceof Coding) {
+				category.add((Coding) sub.getValue());
+			} else if ("detailed".equals(sub.getUrl()) && sub.getValue() instanceof Coding) {
+				detailed.add((Coding) sub.getValue());
+			} else if ("text".equals(sub.getUrl()) && sub.getValue() instanceof StringType) {
+				text.add((StringType) sub.getValue());
+			} else {
+				block.addExtension(sub);
+			}
+		}
+	}
+
+	private static List<Coding> copyCodings(List<Coding> codings) {
+		if (codings == null) {
+			return null;
+		}
+
+		List<Coding> copy = new ArrayList<Coding>(codings.size());
+		for (Coding coding : codings) {
+			copy.add(coding == null ? null : coding.copy());
+		}
+
+		return copy;
+	}
+
+	private static List<StringType> copyStrings(List<StringType> strings) {
+		if (strings == null) {
+			return null;
+		}
+
+		List<StringType> copy = new ArrayList<StringType>(strings.size());
+		for (StringType string : strings) {
+			copy.add(string == null ? null : string.copy());
+		}
+
+		return copy;
+	}
+
 	/**
 	 * This "block definition" defines an extension type with multiple child
 	 * extensions. It is referenced by the field myRace above.
@@ -169,10 +256,11 @@ public class USCorePatient extends Patient {
 		@Override
 		public Race copy() {
 			Race copy = new Race();
-			copy.myCategory = this.myCategory;
-			copy.myText = this.myText;
-			copy.myDetailed = this.myDetailed;
-			
+			copyValues(copy);
+			copy.myCategory = copyCodings(myCategory);
+			copy.myDetailed = copyCodings(myDetailed);
+			copy.myText = copyStrings(myText);
+
 			return copy;
 		}
 
@@ -269,10 +357,11 @@ public class USCorePatient extends Patient {
 		@Override
 		public Ethnicity copy() {
 			Ethnicity copy = new Ethnicity();
-			copy.myCategory = this.myCategory;
-			copy.myText = this.myText;
-			copy.myDetailed = this.myDetailed;
-			
+			copyValues(copy);
+			copy.myCategory = copyCodings(myCategory);
+			copy.myDetailed = copyCodings(myDetailed);
+			copy.myText = copyStrings(myText);
+
 			return copy;
 		}
 
@@ -0,0 +1,130 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * SQL text with its bind parameters, in placeholder order. Search values are
+ * always bound, never written into the text, so the same search with other
+ * values has the same text and the driver and PostgreSQL can reuse its
+ * prepared statement and plan.
+ * <p>
+ * String values are bound with an unspecified type, so PostgreSQL resolves them
+ * from the expression they are compared with, as it would a quoted literal. A
+ * value that must be jsonb is cast in the text ("codings @&gt; ?::jsonb").
+ */
+public final class BoundSql {
+	private static final BoundSql EMPTY = new BoundSql("", Collections.emptyList());
+
+	private final String sql;
+	private final List<Object> params;
+
+	public BoundSql(String sql, List<Object> params) {
+		this.sql = sql;
+		this.params = Collections.unmodifiableList(new ArrayList<Object>(params));
+	}
+
+	public static BoundSql of(String sql, Object... params) {
+		return new BoundSql(sql, Arrays.asList(params));
+	}
+
+	public static BoundSql empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * The non-empty parts joined with separator (" OR ", " AND "), each in
+	 * parentheses when there is more than one. Empty if no part has SQL.
+	 */
+	public static BoundSql join(String separator, List<BoundSql> parts) {
+		List<BoundSql> nonEmpty = new ArrayList<BoundSql>();
+		for (BoundSql part : parts) {
+			if (part != null && !part.isEmpty()) {
+				nonEmpty.add(part);
+			}
+		}
+
+		if (nonEmpty.isEmpty()) {
+			return EMPTY;
+		}
+		if (nonEmpty.size() == 1) {
+			return nonEmpty.get(0);
+		}
+
+		StringBuilder text = new StringBuilder();
+		List<Object> params = new ArrayList<Object>();
+		for (BoundSql part : nonEmpty) {
+			if (text.length() > 0) {
+				text.append(separator);
+			}
+			text.append('(').append(part.sql).append(')');
+			params.addAll(part.params);
+		}
+
+		return new BoundSql(text.toString(), params);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public List<Object> getParams() {
+		return params;
+	}
+
+	public boolean isEmpty() {
+		return sql == null || sql.isBlank();
+	}
+
+	/**
+	 * Binds the parameters to stmt, starting at index 1.
+	 */
+	public void bind(PreparedStatement stmt) throws SQLException {
+		bind(stmt, 1);
+	}
+
+	/**
+	 * Binds the parameters from firstIndex on. Returns the next free index.
+	 */
+	public int bind(PreparedStatement stmt, int firstIndex) throws SQLException {
+		int index = firstIndex;
+		for (Object param : params) {
+			if (param instanceof String) {
+				stmt.setObject(index++, param, Types.OTHER);
+			} else {
+				stmt.setObject(index++, param);
+			}
+		}
+
+		return index;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof BoundSql)) {
+			return false;
+		}
+
+		BoundSql that = (BoundSql) other;
+		return Objects.equals(sql, that.sql) && params.equals(that.params);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(sql, params);
+	}
+
+	@Override
+	public String toString() {
+		return params.isEmpty() ? sql : sql + " " + params;
+	}
+}
@@ -0,0 +1,174 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+
+/**
+ * Listens for change notifications from other nodes and evicts the matching
+ * entries from this node's resource cache. It only runs when notifications are
+ * on (FHIRBASE_NOTIFY=true) and FHIRBASE_CACHE_TYPES is set.
+ * <p>
+ * The listener holds one connection of its own from the unpooled DataSource. If
+ * that connection drops, it reconnects with exponential backoff (1s to 60s). On
+ * reconnect it clears the whole cache, because notifications sent while it was
+ * away are lost. Lag is measured against the sender's clock, so it includes any
+ * clock skew between nodes.
+ */
+@Component
+public class CacheInvalidationListener {
+	private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationListener.class);
+
+	private static final long POLL_MILLIS = 10000L;
+	private static final long MIN_BACKOFF_MILLIS = 1000L;
+	private static final long MAX_BACKOFF_MILLIS = 60000L;
+
+	@Autowired
+	DatabaseConfiguration databaseConfiguration;
+
+	@Autowired
+	FhirbaseMapping fhirbaseMapping;
+
+	private volatile boolean running = false;
+	private volatile boolean connected = false;
+	private Thread thread;
+
+	private final LongAdder notifications = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder totalLagMillis = new LongAdder();
+	private final AtomicLong maxLagMillis = new AtomicLong();
+	private volatile long lastLagMillis = 0L;
+
+	@PostConstruct
+	public void start() {
+		if (!ChangeNotifications.isEnabled() || System.getenv("FHIRBASE_CACHE_TYPES") == null) {
+			return;
+		}
+
+		running = true;
+		thread = new Thread(this::listen, "fhirbase-cache-listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void listen() {
+		long backoff = MIN_BACKOFF_MILLIS;
+		boolean firstConnect = true;
+
+		while (running) {
+			DataSource dataSource = databaseConfiguration.getUnpooledDataSource();
+			if (dataSource != null) {
+				try (Connection connection = dataSource.getConnection()) {
+					connection.setAutoCommit(true);
+					try (Statement stmt = connection.createStatement()) {
+						stmt.execute("LISTEN " + ChangeNotifications.CHANNEL);
+					}
+
+					if (!firstConnect) {
+						reconnects.increment();
+						fhirbaseMapping.invalidateAllRemoteChanges();
+					}
+					firstConnect = false;
+					connected = true;
+					backoff = MIN_BACKOFF_MILLIS;
+					logger.debug("Listening for cache invalidations on " + ChangeNotifications.CHANNEL);
+
+					PGConnection pgConnection = connection.unwrap(PGConnection.class);
+					while (running) {
+						PGNotification[] received = pgConnection.getNotifications((int) POLL_MILLIS);
+						if (received != null) {
+							for (PGNotification notification : received) {
+								handle(notification.getParameter());
+							}
+						}
+					}
+				} catch (SQLException e) {
+					logger.debug("Cache invalidation listener disconnected: " + e.getMessage());
+				} finally {
+					connected = false;
+				}
+			}
+
+			if (!running) {
+				break;
+			}
+
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	void handle(String payload) {
+		String[] parts = ChangeNotifications.parse(payload);
+		if (parts == null) {
+			logger.debug("Ignoring malformed change notification: " + payload);
+			return;
+		}
+
+		fhirbaseMapping.invalidateRemoteChange(parts[0], parts[1]);
+		notifications.increment();
+
+		try {
+			long lag = Math.max(0L, System.currentTimeMillis() - Long.parseLong(parts[3]));
+			lastLagMillis = lag;
+			totalLagMillis.add(lag);
+			maxLagMillis.accumulateAndGet(lag, Math::max);
+		} catch (NumberFormatException e) {
+			logger.debug("Change notification without a timestamp: " + payload);
+		}
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public long getNotifications() {
+		return notifications.sum();
+	}
+
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis.get();
+	}
+
+	public double getMeanLagMillis() {
+		long count = notifications.sum();
+		return count == 0 ? 0.0 : (double) totalLagMillis.sum() / count;
+	}
+}
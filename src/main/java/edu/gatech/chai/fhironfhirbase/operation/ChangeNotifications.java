@@ -0,0 +1,73 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Change notifications sent with PostgreSQL NOTIFY, so that every node sharing the
+ * database can evict its cached copies. They are turned on with FHIRBASE_NOTIFY=true.
+ * FHIRBASE_NOTIFY_CHANNEL names the channel (default fhirbase_changes).
+ * <p>
+ * The payload is "type/id/versionId/sentAtMillis". NOTIFY is sent in the writing
+ * transaction, so listeners only hear about committed changes.
+ */
+class ChangeNotifications {
+	private static final String NOTIFY_QUERY = "SELECT pg_notify(?, p) FROM unnest(?::text[]) AS p";
+
+	static final String CHANNEL = channelFromEnvironment();
+
+	private static final boolean ENABLED = "true".equalsIgnoreCase(System.getenv("FHIRBASE_NOTIFY"));
+
+	static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	static void send(Connection connection, FhirContext ctx, List<? extends IBaseResource> resources) throws SQLException {
+		if (!ENABLED || resources.isEmpty()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		String[] payloads = new String[resources.size()];
+		for (int i = 0; i < payloads.length; i++) {
+			IBaseResource resource = resources.get(i);
+			payloads[i] = ctx.getResourceType(resource) + "/" + resource.getIdElement().getIdPart() + "/"
+					+ resource.getIdElement().getVersionIdPart() + "/" + now;
+		}
+
+		try (PreparedStatement stmt = connection.prepareStatement(NOTIFY_QUERY)) {
+			stmt.setString(1, CHANNEL);
+			stmt.setArray(2, connection.createArrayOf("text", payloads));
+			stmt.execute();
+		}
+	}
+
+	/**
+	 * Splits a payload into type, id, versionId and sentAtMillis. Returns null if
+	 * it is malformed.
+	 */
+	static String[] parse(String payload) {
+		if (payload == null) {
+			return null;
+		}
+
+		String[] parts = payload.split("/", 4);
+		return parts.length == 4 ? parts : null;
+	}
+
+	private static String channelFromEnvironment() {
+		String channel = System.getenv("FHIRBASE_NOTIFY_CHANNEL");
+		// The channel is used as an identifier in LISTEN, so only allow plain names.
+		if (channel == null || !channel.matches("[a-z_][a-z0-9_]*")) {
+			return "fhirbase_changes";
+		}
+
+		return channel;
+	}
+}
@@ -1,39 +1,109 @@
 package edu.gatech.chai.fhironfhirbase.operation;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import jakarta.annotation.PreDestroy;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.IdType;
-import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntryTransactionMethodEnum;
 import ca.uhn.fhir.parser.IParser;
 import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
 import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
 
 @Component
 public class FhirbaseMapping implements IResourceMapping {
 	private static final Logger logger = LoggerFactory.getLogger(FhirbaseMapping.class);
 
+	// Write statements keep a constant SQL text with the resource bound as a parameter.
+	// This lets the driver (and PostgreSQL) reuse the prepared plan across requests.
+	// The resource is bound as a UTF-8 byte stream and converted to jsonb on the server.
+	private static final String CREATE_QUERY = "SELECT fhirbase_create(convert_from(?, 'UTF8')::jsonb)";
+	private static final String DELETE_QUERY = "SELECT fhirbase_delete(?, ?)";
+
+	private static final Pattern PLAN_ROWS = Pattern.compile("\"Plan Rows\":\\s*([0-9.eE+]+)");
+
+	// Batch writes send the resources as one JSON array, streamed from the write buffer
+	// like a single create, and call fhirbase_create once per element in a single
+	// statement. The ordinality column keeps rows in input order.
+	private static final String CREATE_ALL_QUERY = "SELECT fhirbase_create(r.resource) AS fhirbase_create "
+			+ "FROM jsonb_array_elements(convert_from(?, 'UTF8')::jsonb) WITH ORDINALITY AS r(resource, ord) ORDER BY r.ord";
+
 	@Autowired
 	DatabaseConfiguration databaseConfiguration;
 
 	protected FhirContext ctx;
 
+	private final WriteMetrics writeMetrics = new WriteMetrics();
+
+	// Rows fetched per round trip when reading search results. The driver only honors
+	// this on connections with autocommit off. 0 means the driver default (all rows).
+	private int fetchSize = OperationUtil.getEnvInt("FHIRBASE_FETCH_SIZE", 100);
+
+	// Search pages with at least FHIRBASE_PARALLEL_PARSE_THRESHOLD rows are parsed on a
+	// pool of FHIRBASE_PARSE_PARALLELISM threads. Smaller pages stay on the request thread.
+	private final SearchPageParser pageParser = new SearchPageParser(
+			OperationUtil.getEnvInt("FHIRBASE_PARSE_PARALLELISM", Runtime.getRuntime().availableProcessors()),
+			OperationUtil.getEnvInt("FHIRBASE_PARALLEL_PARSE_THRESHOLD", 16));
+
+	// Reads, searches and counts go to reader DataSources when they are configured.
+	// For FHIRBASE_READ_YOUR_WRITES_MS after a write to a resource type, reads of that
+	// type stay on the writer so a client can see its own change. 0 disables this.
+	private long readYourWritesMillis = OperationUtil.getEnvInt("FHIRBASE_READ_YOUR_WRITES_MS", 0);
+	private final Map<String, Long> lastWriteMillis = new ConcurrentHashMap<String, Long>();
+	private volatile long lastAnyWriteMillis = 0L;
+
+	private ResourceCache resourceCache = ResourceCache.fromEnvironment();
+	// Bumped on every write. A read only fills the cache if no write finished while it ran,
+	// so a read racing with an update cannot put the old version back after invalidation.
+	private final AtomicLong writeSequence = new AtomicLong();
+
+	private SearchCursors searchCursors = SearchCursors.fromEnvironment();
+
+	// Latency and rows per search shape. Every FHIRBASE_SEARCH_SHAPES_REPORT_MS the
+	// costliest shapes are logged, if there were searches since the last report.
+	private final SearchShapes searchShapes = SearchShapes.fromEnvironment();
+	private long reportedExecutions = 0L;
+
 	public FhirContext getCtx() {
 		return this.ctx;
 	}
@@ -42,17 +112,256 @@ public class FhirbaseMapping implements IResourceMapping {
 		this.ctx = ctx;
 	}
 
+	@PreDestroy
+	public void shutdown() {
+		pageParser.shutdown();
+		searchCursors.closeAll();
+	}
+
+	public WriteMetrics getWriteMetrics() {
+		return this.writeMetrics;
+	}
+
+	public int getFetchSize() {
+		return this.fetchSize;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public ResourceCache getResourceCache() {
+		return this.resourceCache;
+	}
+
+	public void setResourceCache(ResourceCache resourceCache) {
+		this.resourceCache = resourceCache;
+	}
+
+	public SearchCursors getSearchCursors() {
+		return this.searchCursors;
+	}
+
+	public void setSearchCursors(SearchCursors searchCursors) {
+		this.searchCursors.closeAll();
+		this.searchCursors = searchCursors;
+	}
+
+	@Scheduled(fixedDelayString = "${FHIRBASE_SEARCH_CURSOR_SWEEP_MS:60000}")
+	public void closeIdleSearchCursors() {
+		searchCursors.closeIdle();
+	}
+
+	public SearchShapes getSearchShapes() {
+		return this.searchShapes;
+	}
+
+	@Scheduled(fixedDelayString = "${FHIRBASE_SEARCH_SHAPES_REPORT_MS:300000}")
+	public void logSearchShapes() {
+		long executions = searchShapes.getExecutions();
+		if (executions == reportedExecutions) {
+			return;
+		}
+		reportedExecutions = executions;
+
+		for (SearchShapes.Shape shape : searchShapes.costliest(10)) {
+			logger.info("Search shape " + shape);
+		}
+	}
+
+	private void invalidateCached(IBaseResource fhirResource) {
+		if (fhirResource != null && fhirResource.getIdElement() != null) {
+			resourceCache.invalidate(ctx.getResourceType(fhirResource), fhirResource.getIdElement().getIdPart());
+		}
+	}
+
+	/**
+	 * A change written by another node, heard through ChangeNotifications. The
+	 * write sequence is bumped before the entry is evicted, as for a local write,
+	 * so a read of the old version still in flight cannot put it back.
+	 */
+	void invalidateRemoteChange(String resourceType, String id) {
+		writeSequence.incrementAndGet();
+		resourceCache.invalidate(resourceType, id);
+	}
+
+	/**
+	 * Changes from other nodes may have been missed, so nothing cached can be
+	 * trusted.
+	 */
+	void invalidateAllRemoteChanges() {
+		writeSequence.incrementAndGet();
+		resourceCache.invalidateAll();
+	}
+
+	long getWriteSequence() {
+		return writeSequence.get();
+	}
+
+	public long getReadYourWritesMillis() {
+		return this.readYourWritesMillis;
+	}
+
+	public void setReadYourWritesMillis(long readYourWritesMillis) {
+		this.readYourWritesMillis = readYourWritesMillis;
+	}
+
+	private String resourceTypeKey(Class<? extends Resource> fhirClass) {
+		return ctx.getResourceType(fhirClass).toLowerCase();
+	}
+
+	void recordWrite(String resourceTypeKey) {
+		writeSequence.incrementAndGet();
+		long now = System.currentTimeMillis();
+		lastWriteMillis.put(resourceTypeKey, now);
+		lastAnyWriteMillis = now;
+	}
+
+	private boolean recentlyWritten(Long lastWrite) {
+		return readYourWritesMillis > 0 && lastWrite != null
+				&& System.currentTimeMillis() - lastWrite < readYourWritesMillis;
+	}
+
+	/**
+	 * DataSource for reading the given resource type (a table name). If there is
+	 * no type, as for counts, any recent write keeps the read on the writer.
+	 */
+	DataSource readDataSource(String resourceTypeKey) {
+		Long lastWrite = resourceTypeKey == null ? Long.valueOf(lastAnyWriteMillis) : lastWriteMillis.get(resourceTypeKey);
+		if (recentlyWritten(lastWrite)) {
+			return databaseConfiguration.getDataSource();
+		}
+
+		return databaseConfiguration.getReaderDataSource();
+	}
+
+	/**
+	 * Unpooled DataSource for a search cursor, routed like readDataSource: a
+	 * recent write keeps it on the writer, otherwise it goes to a reader.
+	 * Cursors are long-lived, so they never take a pool slot.
+	 */
+	DataSource cursorDataSource(String resourceTypeKey) {
+		if (recentlyWritten(lastWriteMillis.get(resourceTypeKey))) {
+			return databaseConfiguration.getUnpooledDataSource();
+		}
+
+		return databaseConfiguration.getUnpooledReaderDataSource();
+	}
+
+	/**
+	 * DataSource for reading one resource by id. Cached types are read from the
+	 * writer: a replica that has not caught up with a write would otherwise put
+	 * the old version in the cache for the whole TTL, even with
+	 * FHIRBASE_READ_YOUR_WRITES_MS at 0. Cache hits keep that load off the writer.
+	 */
+	DataSource instanceReadDataSource(String tableName) {
+		if (resourceCache.isCached(tableName)) {
+			return databaseConfiguration.getDataSource();
+		}
+
+		return readDataSource(tableName.toLowerCase());
+	}
+
+	/**
+	 * Parses a jsonb column without materializing it as a String. The driver keeps
+	 * the column as raw UTF-8 bytes, which are handed to the parser as a reader.
+	 */
+	private <T extends IBaseResource> T parseColumn(IParser parser, Class<T> fhirClass, ResultSet rs, String column) throws SQLException {
+		InputStream stream = rs.getBinaryStream(column);
+		if (stream == null) {
+			return null;
+		}
+
+		return parser.parseResource(fhirClass, new InputStreamReader(stream, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encodes the resources as one JSON array, for a batch write.
+	 */
+	private JsonWriteBuffer encodeResources(IParser parser, List<? extends IBaseResource> fhirResources) {
+		JsonWriteBuffer buffer = JsonWriteBuffer.acquire();
+		try {
+			Writer writer = buffer.writer();
+			writer.write('[');
+			for (int i = 0; i < fhirResources.size(); i++) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				parser.encodeResourceToWriter(fhirResources.get(i), writer);
+			}
+			writer.write(']');
+			writer.flush();
+		} catch (IOException e) {
+			buffer.release();
+			throw ThrowFHIRExceptions.internalErrorException("Failed to encode resources: " + e.getMessage());
+		}
+
+		return buffer;
+	}
+
+	private JsonWriteBuffer encodeResource(IParser parser, IBaseResource fhirResource) {
+		JsonWriteBuffer buffer = JsonWriteBuffer.acquire();
+		try {
+			Writer writer = buffer.writer();
+			parser.encodeResourceToWriter(fhirResource, writer);
+			writer.flush();
+		} catch (IOException e) {
+			buffer.release();
+			throw ThrowFHIRExceptions.internalErrorException("Failed to encode resource: " + e.getMessage());
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * A unit of JDBC work run on one borrowed connection.
+	 */
+	@FunctionalInterface
+	interface ConnectionWork<T> {
+		T run(Connection connection) throws SQLException;
+	}
+
+	/**
+	 * Borrows a connection, runs the work, and commits it. On any failure the
+	 * transaction is rolled back. The connection is always returned to the pool.
+	 * Statements and result sets opened by the work should use try-with-resources.
+	 */
+	<T> T inTransaction(ConnectionWork<T> work) throws SQLException {
+		return inTransaction(databaseConfiguration.getDataSource(), work);
+	}
+
+	<T> T inTransaction(DataSource dataSource, ConnectionWork<T> work) throws SQLException {
+		Connection connection = getConnection(dataSource);
+		try {
+			T result = work.run(connection);
+			connection.commit();
+
+			return result;
+		} catch (SQLException | RuntimeException e) {
+			try {
+				connection.rollback();
+			} catch (SQLException rollbackException) {
+				logger.debug("Rollback failed: " + rollbackException.getMessage());
+			}
+			throw e;
+		} finally {
+			DataSourceUtils.releaseConnection(connection, dataSource);
+		}
+	}
+
 	public void closeConnection(Connection connection) throws SQLException {
 		if (connection != null) {
 			connection.commit();
-			// connection.close();
 		}
 		DataSourceUtils.releaseConnection(connection, databaseConfiguration.getDataSource());
 	}
 
 	public Connection getConnection() throws SQLException {
-		Connection connection = DataSourceUtils.getConnection(databaseConfiguration.getDataSource());
-		// ds.getConnection();
+		return getConnection(databaseConfiguration.getDataSource());
+	}
+
+	private Connection getConnection(DataSource dataSource) throws SQLException {
+		Connection connection = DataSourceUtils.getConnection(dataSource);
 		if (connection.getAutoCommit()) {
 			try {
 				connection.setAutoCommit(false);
@@ -66,261 +375,663 @@ public class FhirbaseMapping implements IResourceMapping {
 
 	@Override
 	public IBaseResource create(IBaseResource fhirResource, Class<? extends Resource> fhirClass) throws SQLException {
-		IBaseResource retVal = null;
-
-		IParser parser = ctx.newJsonParser();
-		String serialized = parser.encodeResourceToString(fhirResource).replace("'", "''");
+		IParser parser = JsonParserCache.acquire(ctx);
+		long allocatedAtStart = WriteMetrics.currentThreadAllocatedBytes();
+		JsonWriteBuffer buffer = encodeResource(parser, fhirResource);
 
-		Connection connection = null;
 		try {
-			// connection = databaseConfiguration.getDataSource().getConnection();
-			connection = getConnection();
-
-			String query = "SELECT fhirbase_create('" + serialized + "'::jsonb);";
-			logger.debug("Query to create: " + query);
-			PreparedStatement stmt = connection.prepareStatement(query);
-
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				String createdResource = rs.getString("fhirbase_create");
-				retVal = parser.parseResource(fhirClass, createdResource);
-//			
-//			JsonObject jsonObject = new JsonParser().parse(createdResource).getAsJsonObject();
-//			JsonElement idValue = jsonObject.get("id");
-//			retVal = idValue.getAsString();
-			}
-
-			// connection.close();
-			closeConnection(connection);
+			return inTransaction(connection -> {
+				logger.debug("Query to create: " + CREATE_QUERY);
+				try (PreparedStatement stmt = connection.prepareStatement(CREATE_QUERY)) {
+					stmt.setBinaryStream(1, buffer.toInputStream(), buffer.size());
+
+					try (ResultSet rs = stmt.executeQuery()) {
+						writeMetrics.record(buffer.size(), allocatedAtStart);
+						if (rs.next()) {
+							String createdResource = rs.getString("fhirbase_create");
+							IBaseResource created = parser.parseResource(fhirClass, createdResource);
+							ChangeNotifications.send(connection, ctx, List.of(created));
+							return created;
+						}
+					}
+				}
 
-		} catch (SQLException e) {
-			if (connection != null) connection.close();
-			throw e;
+				return null;
+			});
+		} finally {
+			recordWrite(resourceTypeKey(fhirClass));
+			invalidateCached(fhirResource);
+			buffer.release();
+			JsonParserCache.release(ctx, parser);
 		}
-
-		return retVal;
 	}
 
 	@Override
 	public IBaseResource read(IdType id, Class<? extends Resource> fhirClass, String tableName) throws SQLException {
-		IBaseResource retVal = null;
+		if (id.hasVersionIdPart()) {
+			return readVersion(id, fhirClass, tableName);
+		}
 
-		Connection connection = null;
+		IBaseResource cached = resourceCache.get(tableName, id.getIdPart());
+		if (cached != null) {
+			return cached;
+		}
 
-		try {
-			// connection = databaseConfiguration.getDataSource().getConnection();
-			connection = getConnection();
-			String query = "SELECT resource FROM " + tableName + " where id = ? limit 1";
-
-			logger.debug("Query to read: " + query);
-			String idString = id.getIdPart();
-			PreparedStatement stmt = connection.prepareStatement(query);
-			stmt.setString(1, idString);
-
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				String resource = rs.getString("resource");
-				IParser parser = ctx.newJsonParser();
-				retVal = parser.parseResource(fhirClass, resource);
+		long sequenceAtStart = writeSequence.get();
+		String query = "SELECT resource FROM " + tableName + " where id = ? limit 1";
+		logger.debug("Query to read: " + query);
+
+		IBaseResource retVal = inTransaction(instanceReadDataSource(tableName), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				stmt.setString(1, id.getIdPart());
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						IParser parser = JsonParserCache.acquire(ctx);
+						try {
+							return parseColumn(parser, fhirClass, rs, "resource");
+						} finally {
+							JsonParserCache.release(ctx, parser);
+						}
+					}
+				}
 			}
 
-			// connection.close();
-			closeConnection(connection);
-		} catch (SQLException e) {
-			if (connection != null) connection.close();
-			throw e;
+			return null;
+		});
+
+		if (writeSequence.get() == sequenceAtStart) {
+			resourceCache.put(tableName, id.getIdPart(), retVal);
+			// A write can bump the sequence and invalidate between the check and the
+			// put. Writes bump before they invalidate, so checking again catches it.
+			if (writeSequence.get() != sequenceAtStart) {
+				resourceCache.invalidate(tableName, id.getIdPart());
+			}
 		}
-		
+
 		return retVal;
 	}
 
-	@Override
-	public IBaseResource update(IBaseResource fhirResource, Class<? extends Resource> fhirClass) throws SQLException {
-		IBaseResource retVal = null;
+	/**
+	 * vread. fhirbase uses the txid as the version id. The current version is in the
+	 * resource table and older ones are in its _history table, so both are checked.
+	 * Versions are not cached.
+	 */
+	private IBaseResource readVersion(IdType id, Class<? extends Resource> fhirClass, String tableName) throws SQLException {
+		long txid;
+		try {
+			txid = Long.parseLong(id.getVersionIdPart());
+		} catch (NumberFormatException e) {
+			return null;
+		}
 
-		IParser parser = ctx.newJsonParser();
-		String serialized = parser.encodeResourceToString(fhirResource).replace("'", "''");
+		String query = "SELECT resource FROM " + tableName + " WHERE id = ? AND txid = ? "
+				+ "UNION ALL SELECT resource FROM " + tableName + "_history WHERE id = ? AND txid = ? LIMIT 1";
+		logger.debug("Query to vread: " + query);
+
+		return inTransaction(readDataSource(tableName.toLowerCase()), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				stmt.setString(1, id.getIdPart());
+				stmt.setLong(2, txid);
+				stmt.setString(3, id.getIdPart());
+				stmt.setLong(4, txid);
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						IParser parser = JsonParserCache.acquire(ctx);
+						try {
+							return parseColumn(parser, fhirClass, rs, "resource");
+						} finally {
+							JsonParserCache.release(ctx, parser);
+						}
+					}
+				}
+			}
 
-		Connection connection = null;
+			return null;
+		});
+	}
 
-		try {
-			// connection = databaseConfiguration.getDataSource().getConnection();
-			connection = getConnection();
+	/**
+	 * One page of _history, newest first, ordered by (txid, id) descending. The
+	 * current rows and the _history rows are merged with UNION ALL. Each branch
+	 * is ordered and limited on its own, so it stops early.
+	 *
+	 * If afterTxid and afterId are given, the page starts right after that entry
+	 * (keyset paging) and offset should be 0. Otherwise the page is found by offset.
+	 * id limits the history to one instance and since to entries at or after it;
+	 * either may be null.
+	 *
+	 * Each returned resource has the txid of its row as its version id. Its
+	 * transaction method (POST, PUT or DELETE) is set from the row status, for
+	 * the history bundle entries.
+	 */
+	public List<IBaseResource> history(Class<? extends Resource> fhirClass, String tableName, String id, Date since,
+			Long afterTxid, String afterId, int offset, int count) throws SQLException {
+		List<Object> branchParams = new ArrayList<Object>();
+		String where = historyWhere(id, since, afterTxid, afterId, branchParams);
+		String branchOrder = " ORDER BY txid DESC, id DESC LIMIT ?";
+
+		String query = "SELECT id, txid, ts, status, resource FROM ("
+				+ "(SELECT id, txid, ts, status, resource FROM " + tableName + where + branchOrder + ") UNION ALL "
+				+ "(SELECT id, txid, ts, status, resource FROM " + tableName + "_history" + where + branchOrder + ")"
+				+ ") h ORDER BY txid DESC, id DESC LIMIT ? OFFSET ?";
+		logger.debug("Query for history: " + query);
+
+		List<String[]> keys = new ArrayList<String[]>();
+		List<Date> timestamps = new ArrayList<Date>();
+		List<SearchPageParser.RawRow> rows = inTransaction(readDataSource(tableName.toLowerCase()), connection -> {
+			List<SearchPageParser.RawRow> rawRows = new ArrayList<SearchPageParser.RawRow>();
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				int index = 1;
+				for (int branch = 0; branch < 2; branch++) {
+					for (Object param : branchParams) {
+						stmt.setObject(index++, param);
+					}
+					stmt.setInt(index++, offset + count);
+				}
+				stmt.setInt(index++, count);
+				stmt.setInt(index, offset);
+				stmt.setFetchSize(fetchSize);
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						byte[] resource = rs.getBytes("resource");
+						keys.add(new String[] { rs.getString("id"), rs.getString("txid"), rs.getString("status") });
+						timestamps.add(rs.getTimestamp("ts"));
+						rawRows.add(new SearchPageParser.RawRow(resource, null));
+					}
+				}
+			}
 
-			String query = "SELECT fhirbase_create('" + serialized + "'::jsonb);";
-			PreparedStatement stmt = connection.prepareStatement(query);
+			return rawRows;
+		});
+
+		String resourceType = ctx.getResourceType(fhirClass);
+		List<IBaseResource> retVal = pageParser.parse(ctx, fhirClass, rows);
+		for (int i = 0; i < retVal.size(); i++) {
+			Resource resource = (Resource) retVal.get(i);
+			String[] key = keys.get(i);
+			resource.setId(new IdType(resourceType, key[0], key[1]));
+			resource.getMeta().setVersionId(key[1]);
+
+			if ("deleted".equals(key[2])) {
+				ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.put(resource, BundleEntryTransactionMethodEnum.DELETE);
+				ResourceMetadataKeyEnum.DELETED_AT.put(resource, new InstantType(timestamps.get(i)));
+			} else if ("created".equals(key[2])) {
+				ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.put(resource, BundleEntryTransactionMethodEnum.POST);
+			} else {
+				ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.put(resource, BundleEntryTransactionMethodEnum.PUT);
+			}
+		}
 
-			logger.debug("Query to update:" + query);
+		return retVal;
+	}
 
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				String updatedResource = rs.getString("fhirbase_create");
-				if (updatedResource == null || updatedResource.isEmpty()) {
-					connection.close();
-					throw ThrowFHIRExceptions
-							.internalErrorException("Not Existing Resource or Incorrect Resource Content for Update");
+	/**
+	 * Number of _history entries for a type, or for one instance if id is given.
+	 * This counts both tables; getEstimatedHistorySize does not.
+	 */
+	public int getHistorySize(String tableName, String id, Date since) throws SQLException {
+		List<Object> branchParams = new ArrayList<Object>();
+		String where = historyWhere(id, since, null, null, branchParams);
+		String query = "SELECT (SELECT count(*) FROM " + tableName + where + ") + (SELECT count(*) FROM "
+				+ tableName + "_history" + where + ") AS count";
+		logger.debug("Query for history size: " + query);
+
+		return inTransaction(readDataSource(tableName.toLowerCase()), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				int index = 1;
+				for (int branch = 0; branch < 2; branch++) {
+					for (Object param : branchParams) {
+						stmt.setObject(index++, param);
+					}
 				}
 
-				System.out.println("<<<<<<<<<<<<<" + updatedResource);
-				retVal = parser.parseResource(fhirClass, updatedResource);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						return rs.getInt("count");
+					}
+				}
 			}
 
-			// connection.close();
-			closeConnection(connection);
-		} catch (SQLException e) {
-			if (connection != null) connection.close();
-			throw e;
+			return 0;
+		});
+	}
+
+	/**
+	 * The planner's estimate of getHistorySize, from EXPLAIN. Returns null if the
+	 * plan has no estimate.
+	 */
+	public Integer getEstimatedHistorySize(String tableName, String id, Date since) throws SQLException {
+		List<Object> branchParams = new ArrayList<Object>();
+		String where = historyWhere(id, since, null, null, branchParams);
+
+		List<Object> params = new ArrayList<Object>(branchParams);
+		params.addAll(branchParams);
+
+		return getEstimatedSize(new BoundSql("SELECT 1 FROM " + tableName + where + " UNION ALL SELECT 1 FROM "
+				+ tableName + "_history" + where, params));
+	}
+
+	private String historyWhere(String id, Date since, Long afterTxid, String afterId, List<Object> params) {
+		List<String> conditions = new ArrayList<String>();
+		// Rows without a resource are never returned, so they must not be counted or paged over either.
+		conditions.add("resource IS NOT NULL");
+		if (id != null) {
+			conditions.add("id = ?");
+			params.add(id);
+		}
+		if (since != null) {
+			conditions.add("ts >= ?");
+			params.add(new Timestamp(since.getTime()));
+		}
+		if (afterTxid != null && afterId != null) {
+			conditions.add("(txid, id) < (?, ?)");
+			params.add(afterTxid);
+			params.add(afterId);
 		}
-		
-		return retVal;
-	};
 
-	@Override
-	public IBaseResource delete(IdType id, Class<? extends Resource> fhirClass, String tableName) throws SQLException {
-		IBaseResource retVal = null;
-		IParser parser = ctx.newJsonParser();
+		return " WHERE " + String.join(" AND ", conditions);
+	}
+
+	/**
+	 * Reads the stored JSON of a resource without parsing it, together with its
+	 * txid and ts. Returns null if there is no such resource.
+	 */
+	public RawResource readRaw(String tableName, String id) throws SQLException {
+		String query = "SELECT txid, ts, resource FROM " + tableName + " where id = ? limit 1";
+		logger.debug("Query to read raw: " + query);
+
+		return inTransaction(readDataSource(tableName.toLowerCase()), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				stmt.setString(1, id);
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						byte[] json = rs.getBytes("resource");
+						if (json == null || json.length == 0) {
+							return null;
+						}
 
-		String idString = id.getIdPart();
+						return new RawResource(rs.getString("txid"), rs.getTimestamp("ts"), json);
+					}
+				}
+			}
 
-		Connection connection = null;
+			return null;
+		});
+	}
 
-		try {
-			// connection = databaseConfiguration.getDataSource().getConnection();
-			connection = getConnection();
-
-			String query = "SELECT fhirbase_delete('" + tableName + "', '" + idString + "');";
-			PreparedStatement stmt = connection.prepareStatement(query);
-
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				String deletedResource = rs.getString("fhirbase_delete");
-				if (deletedResource == null || deletedResource.isEmpty()) {
-					connection.close();
-					throw ThrowFHIRExceptions
-							.internalErrorException("Not Existing Resource or Incorrect Resource Content for Delete");
+	/**
+	 * Reads only the txid and ts of a resource, for conditional reads. The returned
+	 * RawResource has no JSON. Returns null if there is no such resource.
+	 */
+	public RawResource readMetadata(String tableName, String id) throws SQLException {
+		String query = "SELECT txid, ts FROM " + tableName + " where id = ? limit 1";
+		logger.debug("Query to read metadata: " + query);
+
+		return inTransaction(readDataSource(tableName.toLowerCase()), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				stmt.setString(1, id);
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						return new RawResource(rs.getString("txid"), rs.getTimestamp("ts"), null);
+					}
 				}
+			}
+
+			return null;
+		});
+	}
 
-				retVal = parser.parseResource(fhirClass, deletedResource);
+	@Override
+	public Map<String, IBaseResource> readMany(Class<? extends Resource> fhirClass, String tableName, Collection<String> ids) throws SQLException {
+		Map<String, IBaseResource> retVal = new LinkedHashMap<String, IBaseResource>();
+		if (ids == null || ids.isEmpty()) {
+			return retVal;
+		}
+
+		Set<String> uniqueIds = new LinkedHashSet<String>(ids);
+		String query = "SELECT id, resource FROM " + tableName + " WHERE id = ANY(?)";
+		logger.debug("Query to read " + uniqueIds.size() + " ids: " + query);
+
+		List<String> foundIds = new ArrayList<String>();
+		List<SearchPageParser.RawRow> rows = inTransaction(readDataSource(tableName.toLowerCase()), connection -> {
+			List<SearchPageParser.RawRow> rawRows = new ArrayList<SearchPageParser.RawRow>();
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				stmt.setArray(1, connection.createArrayOf("text", uniqueIds.toArray()));
+				stmt.setFetchSize(fetchSize);
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						byte[] resource = rs.getBytes("resource");
+						if (resource != null && resource.length > 0) {
+							foundIds.add(rs.getString("id"));
+							rawRows.add(new SearchPageParser.RawRow(resource, null));
+						}
+					}
+				}
 			}
 
-			// connection.close();
-			closeConnection(connection);
-		} catch (SQLException e) {
-			if (connection != null) connection.close();
-			throw e;
+			return rawRows;
+		});
+
+		Map<String, IBaseResource> byId = new HashMap<String, IBaseResource>();
+		List<IBaseResource> resources = pageParser.parse(ctx, fhirClass, rows);
+		for (int i = 0; i < resources.size(); i++) {
+			byId.put(foundIds.get(i), resources.get(i));
+		}
+
+		for (String id : uniqueIds) {
+			IBaseResource resource = byId.get(id);
+			if (resource != null) {
+				retVal.put(id, resource);
+			}
 		}
-		
+
 		return retVal;
 	}
 
 	@Override
-	public List<IBaseResource> search(String sql, Set<Include> theIncludes, Set<Include> theRevIncludes, Class<? extends Resource> fhirClass) throws SQLException {
+	public IBaseResource update(IBaseResource fhirResource, Class<? extends Resource> fhirClass) throws SQLException {
+		IParser parser = JsonParserCache.acquire(ctx);
+		long allocatedAtStart = WriteMetrics.currentThreadAllocatedBytes();
+		JsonWriteBuffer buffer = encodeResource(parser, fhirResource);
+
+		try {
+			return inTransaction(connection -> {
+				logger.debug("Query to update:" + CREATE_QUERY);
+				try (PreparedStatement stmt = connection.prepareStatement(CREATE_QUERY)) {
+					stmt.setBinaryStream(1, buffer.toInputStream(), buffer.size());
+
+					try (ResultSet rs = stmt.executeQuery()) {
+						writeMetrics.record(buffer.size(), allocatedAtStart);
+						if (rs.next()) {
+							String updatedResource = rs.getString("fhirbase_create");
+							if (updatedResource == null || updatedResource.isEmpty()) {
+								throw ThrowFHIRExceptions
+										.internalErrorException("Not Existing Resource or Incorrect Resource Content for Update");
+							}
+
+							logger.debug("Updated resource: " + updatedResource);
+							IBaseResource updated = parser.parseResource(fhirClass, updatedResource);
+							ChangeNotifications.send(connection, ctx, List.of(updated));
+							return updated;
+						}
+					}
+				}
+
+				return null;
+			});
+		} finally {
+			recordWrite(resourceTypeKey(fhirClass));
+			invalidateCached(fhirResource);
+			buffer.release();
+			JsonParserCache.release(ctx, parser);
+		}
+	}
+
+	@Override
+	public List<IBaseResource> createAll(List<? extends IBaseResource> fhirResources) throws SQLException {
+		return writeAll(fhirResources);
+	}
+
+	/**
+	 * fhirbase_create stores the resource under its own id when it has one, so
+	 * creates and upserts share the same statement (update() does the same).
+	 */
+	@Override
+	public List<IBaseResource> upsertAll(List<? extends IBaseResource> fhirResources) throws SQLException {
+		return writeAll(fhirResources);
+	}
+
+	private List<IBaseResource> writeAll(List<? extends IBaseResource> fhirResources) throws SQLException {
 		List<IBaseResource> retVal = new ArrayList<IBaseResource>();
-		IParser parser = ctx.newJsonParser();
+		if (fhirResources == null || fhirResources.isEmpty()) {
+			return retVal;
+		}
 
-		Connection connection = null;
+		IParser parser = JsonParserCache.acquire(ctx);
+		long allocatedAtStart = WriteMetrics.currentThreadAllocatedBytes();
+		JsonWriteBuffer buffer = encodeResources(parser, fhirResources);
 
 		try {
-			connection = databaseConfiguration.getDataSource().getConnection();
-
-			logger.debug("search(): " + sql);
-			PreparedStatement stmt = connection.prepareStatement(sql);
+			return inTransaction(connection -> {
+				logger.debug("Query to create " + fhirResources.size() + " resources: " + CREATE_ALL_QUERY);
+				try (PreparedStatement stmt = connection.prepareStatement(CREATE_ALL_QUERY)) {
+					stmt.setBinaryStream(1, buffer.toInputStream(), buffer.size());
+
+					try (ResultSet rs = stmt.executeQuery()) {
+						writeMetrics.record(buffer.size(), allocatedAtStart);
+						int i = 0;
+						while (rs.next()) {
+							String createdResource = rs.getString("fhirbase_create");
+							if (createdResource == null || createdResource.isEmpty()) {
+								throw ThrowFHIRExceptions.internalErrorException(
+										"Incorrect Resource Content for batch create at entry " + i);
+							}
 
-			ResultSet rs = stmt.executeQuery();
-			while (rs.next()) {
-				String resourceString = rs.getString("resource");
-				if (resourceString == null || resourceString.isEmpty()) {
-					connection.close();
-					throw ThrowFHIRExceptions.internalErrorException("Empty resource body for search (2)");
+							retVal.add(parser.parseResource(fhirResources.get(i).getClass(), createdResource));
+							i++;
+						}
+					}
 				}
 
-				Resource resource = parser.parseResource(fhirClass, resourceString);
-				retVal.add(resource);
+				ChangeNotifications.send(connection, ctx, retVal);
+				return retVal;
+			});
+		} finally {
+			for (IBaseResource fhirResource : fhirResources) {
+				recordWrite(ctx.getResourceType(fhirResource).toLowerCase());
+				invalidateCached(fhirResource);
+			}
+			buffer.release();
+			JsonParserCache.release(ctx, parser);
+		}
+	}
+
+	@Override
+	public IBaseResource delete(IdType id, Class<? extends Resource> fhirClass, String tableName) throws SQLException {
+		IParser parser = JsonParserCache.acquire(ctx);
 
-				if (theIncludes != null && !theIncludes.isEmpty()) {
-					for (Include include : theIncludes) {
-						if ("subject".equals(include.getParamName())) {
-							String subjectString = rs.getString("subject");
-							if (subjectString != null && !subjectString.isEmpty()) {
-								Resource subject = parser.parseResource(Patient.class, subjectString);
-								retVal.add(subject);
+		try {
+			return inTransaction(connection -> {
+				try (PreparedStatement stmt = connection.prepareStatement(DELETE_QUERY)) {
+					stmt.setString(1, tableName);
+					stmt.setString(2, id.getIdPart());
+
+					try (ResultSet rs = stmt.executeQuery()) {
+						if (rs.next()) {
+							String deletedResource = rs.getString("fhirbase_delete");
+							if (deletedResource == null || deletedResource.isEmpty()) {
+								throw ThrowFHIRExceptions
+										.internalErrorException("Not Existing Resource or Incorrect Resource Content for Delete");
 							}
+
+							IBaseResource deleted = parser.parseResource(fhirClass, deletedResource);
+							ChangeNotifications.send(connection, ctx, List.of(deleted));
+							return deleted;
 						}
 					}
 				}
-			}
 
-			connection.close();
-		} catch (SQLException e) {
-			if (connection != null) connection.close();
-			throw e;
+				return null;
+			});
+		} finally {
+			// After the commit, so a read that saw the row cannot cache it past the invalidation.
+			recordWrite(tableName.toLowerCase());
+			resourceCache.invalidate(tableName, id.getIdPart());
+			JsonParserCache.release(ctx, parser);
 		}
-		
-		return retVal;
 	}
 
 	@Override
-	public List<IBaseResource> search(String sql, Class<? extends Resource> fhirClass) throws SQLException {
-		List<IBaseResource> retVal = new ArrayList<IBaseResource>();
-		IParser parser = ctx.newJsonParser();
+	public List<IBaseResource> search(BoundSql sql, Class<? extends Resource> fhirClass) throws SQLException {
+		return search(sql, null, null, fhirClass);
+	}
 
-		Connection connection = null;
+	@Override
+	public List<IBaseResource> search(BoundSql sql, Set<Include> theIncludes, Set<Include> theRevIncludes, Class<? extends Resource> fhirClass) throws SQLException {
+		List<SearchPageParser.RawRow> rows = fetchRows(sql, includesSubject(theIncludes), resourceTypeKey(fhirClass));
 
-		try {
-			connection = databaseConfiguration.getDataSource().getConnection();
+		return pageParser.parse(ctx, fhirClass, rows);
+	}
 
-			logger.debug("search(): " + sql);
-			PreparedStatement stmt = connection.prepareStatement(sql);
+	private boolean includesSubject(Set<Include> theIncludes) {
+		if (theIncludes != null) {
+			for (Include include : theIncludes) {
+				if ("subject".equals(include.getParamName())) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
 
-			ResultSet rs = stmt.executeQuery();
-			while (rs.next()) {
-				String resourceString = rs.getString("resource");
-				if (resourceString == null || resourceString.isEmpty()) {
-					connection.close();
-					throw ThrowFHIRExceptions.internalErrorException("Empty resource body for search (2)");
+	/**
+	 * Drains the raw rows of a search. Parsing happens afterwards, outside the
+	 * transaction and possibly in parallel.
+	 */
+	private List<SearchPageParser.RawRow> fetchRows(BoundSql sql, boolean includeSubject, String resourceTypeKey) throws SQLException {
+		logger.debug("search(): " + sql);
+
+		long started = System.nanoTime();
+		List<SearchPageParser.RawRow> found = inTransaction(readDataSource(resourceTypeKey), connection -> {
+			List<SearchPageParser.RawRow> rows = new ArrayList<SearchPageParser.RawRow>();
+			try (PreparedStatement stmt = connection.prepareStatement(sql.getSql())) {
+				sql.bind(stmt);
+				stmt.setFetchSize(fetchSize);
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					readRows(rs, includeSubject, rows);
 				}
+			}
 
-				Resource resource = parser.parseResource(fhirClass, resourceString);
-				retVal.add(resource);
+			return rows;
+		});
+		searchShapes.record(sql, System.nanoTime() - started, found.size());
+
+		return found;
+	}
+
+	static void readRows(ResultSet rs, boolean includeSubject, List<SearchPageParser.RawRow> rows) throws SQLException {
+		while (rs.next()) {
+			byte[] resource = rs.getBytes("resource");
+			if (resource == null || resource.length == 0) {
+				throw ThrowFHIRExceptions.internalErrorException("Empty resource body for search (2)");
+			}
+
+			byte[] subject = null;
+			if (includeSubject) {
+				subject = rs.getBytes("subject");
+				if (subject != null && subject.length == 0) {
+					subject = null;
+				}
 			}
 
-			connection.close();
+			rows.add(new SearchPageParser.RawRow(resource, subject));
+		}
+	}
+
+	/**
+	 * Reads a page of a paged search from its server-side cursor, opening the
+	 * cursor on sql (the whole search, without LIMIT) the first time. Returns
+	 * null when the search gets no cursor and should run a page query instead.
+	 * See SearchCursors.
+	 */
+	public List<IBaseResource> searchCursor(String searchId, BoundSql sql, Integer totalSize, int fromIndex, int count,
+			Set<Include> theIncludes, Class<? extends Resource> fhirClass) throws SQLException {
+		SearchCursors.SearchCursor cursor = searchCursors.acquire(cursorDataSource(resourceTypeKey(fhirClass)), searchId,
+				sql, totalSize);
+		if (cursor == null) {
+			return null;
+		}
+
+		logger.debug("searchCursor(): " + searchId + " rows " + fromIndex + " to " + (fromIndex + count));
+		List<SearchPageParser.RawRow> rows;
+		try {
+			rows = cursor.fetch(fromIndex, count, includesSubject(theIncludes));
 		} catch (SQLException e) {
-			if (connection != null) connection.close();
+			searchCursors.discard(searchId, cursor);
 			throw e;
 		}
-		
-		return retVal;
+
+		return pageParser.parse(ctx, fhirClass, rows);
+	}
+
+	/**
+	 * The planner's row estimate for a query, from EXPLAIN. Nothing is executed.
+	 * Returns null if the plan has no estimate.
+	 */
+	public Integer getEstimatedSize(BoundSql sql) throws SQLException {
+		String query = "EXPLAIN (FORMAT JSON) " + sql.getSql();
+		logger.debug("getEstimatedSize(): " + query);
+
+		return inTransaction(readDataSource(null), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				sql.bind(stmt);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						// The top node comes first, so the first "Plan Rows" is the estimate for the query.
+						Matcher matcher = PLAN_ROWS.matcher(rs.getString(1));
+						if (matcher.find()) {
+							return (int) Math.min(Integer.MAX_VALUE, Math.round(Double.parseDouble(matcher.group(1))));
+						}
+					}
+				}
+			}
+
+			return null;
+		});
 	}
 
 	@Override
-	public int getSize(String sql) throws SQLException {
+	public int getSize(BoundSql sql) throws SQLException {
 		logger.debug("getSize(): " + sql);
 
-		int retVal = 0;
-
-		if (databaseConfiguration == null) {
-			System.out.println("databaseConfiguration is null");
-		}
+		long started = System.nanoTime();
+		int size = inTransaction(readDataSource(null), connection -> {
+			try (PreparedStatement stmt = connection.prepareStatement(sql.getSql())) {
+				sql.bind(stmt);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						return rs.getInt("count");
+					}
+				}
+			}
 
-		Connection connection = null;
+			return 0;
+		});
+		// A count's rows are the rows it counted, which is what an index would save.
+		searchShapes.record(sql, System.nanoTime() - started, size);
 
-		try {
-			connection = databaseConfiguration.getDataSource().getConnection();
-			PreparedStatement stmt = connection.prepareStatement(sql);
+		return size;
+	}
 
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				retVal = rs.getInt("count");
+	/**
+	 * The indexes on a table, name to definition, as pg_indexes lists them. Read
+	 * from a reader, as replicas have the writer's indexes.
+	 */
+	public Map<String, String> getIndexDefinitions(String tableName) throws SQLException {
+		String query = "SELECT indexname, indexdef FROM pg_indexes WHERE tablename = ?";
+		logger.debug("getIndexDefinitions(): " + query + " [" + tableName + "]");
+
+		return inTransaction(readDataSource(null), connection -> {
+			Map<String, String> indexes = new LinkedHashMap<String, String>();
+			try (PreparedStatement stmt = connection.prepareStatement(query)) {
+				stmt.setString(1, tableName);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						indexes.put(rs.getString("indexname"), rs.getString("indexdef"));
+					}
+				}
 			}
 
-			connection.close();
-		} catch (SQLException e) {
-			if (connection != null) connection.close();
-			throw e;
-		}
-		
-		return retVal;
+			return indexes;
+		});
 	}
 
 }
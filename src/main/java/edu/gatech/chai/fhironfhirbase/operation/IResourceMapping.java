@@ -16,7 +16,9 @@
 package edu.gatech.chai.fhironfhirbase.operation;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -28,11 +30,27 @@ import ca.uhn.fhir.model.api.Include;
 public interface IResourceMapping {
 	public IBaseResource create(IBaseResource fhirResource, Class<? extends Resource> fhirClass) throws SQLException;
 	public IBaseResource read(IdType id, Class<? extends Resource> fhirClass, String tableName) throws SQLException;
+
+	/**
+	 * Reads several resources of one type in a single query. The map is keyed by id
+	 * and ordered like the requested ids. Ids that are not found are left out.
+	 */
+	public Map<String, IBaseResource> readMany(Class<? extends Resource> fhirClass, String tableName, Collection<String> ids) throws SQLException;
 	public IBaseResource update (IBaseResource fhirResource, Class<? extends Resource> fhirClass)  throws SQLException;
 	public IBaseResource delete (IdType id, Class<? extends Resource> fhirClass, String tableName) throws SQLException;
+
+	/**
+	 * Writes all resources in one statement and one transaction. Returns the
+	 * stored resources in input order.
+	 */
+	public List<IBaseResource> createAll(List<? extends IBaseResource> fhirResources) throws SQLException;
+	public List<IBaseResource> upsertAll(List<? extends IBaseResource> fhirResources) throws SQLException;
 	
-	public List<IBaseResource> search(String sql, Class<? extends Resource> fhirClass) throws Exception;
-	public List<IBaseResource> search(String sql, Set<Include> theIncludes, Set<Include> theRevIncludes, Class<? extends Resource> fhirClass) throws Exception;
+	/**
+	 * Runs a search with bind parameters. See BoundSql.
+	 */
+	public List<IBaseResource> search(BoundSql sql, Class<? extends Resource> fhirClass) throws Exception;
+	public List<IBaseResource> search(BoundSql sql, Set<Include> theIncludes, Set<Include> theRevIncludes, Class<? extends Resource> fhirClass) throws Exception;
 	
-	public int getSize(String sql) throws Exception;
+	public int getSize(BoundSql sql) throws Exception;
 }
@@ -0,0 +1,47 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-thread, reusable byte buffer that resources are encoded into before they
+ * are written to fhirbase. The encoded UTF-8 bytes are handed to the driver as a
+ * stream so that no String copy of the resource is made on the write path.
+ */
+class JsonWriteBuffer extends ByteArrayOutputStream {
+	private static final int INITIAL_SIZE = 64 * 1024;
+
+	// Do not keep very large buffers (big document Bundles) pinned to a thread.
+	private static final int MAX_RETAINED_SIZE = 8 * 1024 * 1024;
+
+	private static final ThreadLocal<JsonWriteBuffer> buffers = ThreadLocal.withInitial(JsonWriteBuffer::new);
+
+	private JsonWriteBuffer() {
+		super(INITIAL_SIZE);
+	}
+
+	static JsonWriteBuffer acquire() {
+		JsonWriteBuffer buffer = buffers.get();
+		buffer.reset();
+
+		return buffer;
+	}
+
+	void release() {
+		if (buf.length > MAX_RETAINED_SIZE) {
+			buffers.remove();
+		}
+	}
+
+	Writer writer() {
+		return new OutputStreamWriter(this, StandardCharsets.UTF_8);
+	}
+
+	InputStream toInputStream() {
+		return new ByteArrayInputStream(buf, 0, count);
+	}
+}
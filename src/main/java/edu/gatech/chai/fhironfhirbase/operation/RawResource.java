@@ -0,0 +1,32 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.util.Date;
+
+/**
+ * A stored resource as its raw jsonb bytes, plus the version and timestamp columns
+ * of its fhirbase row. Used by paths that write the stored JSON out as-is. The
+ * JSON is null when only the metadata was read.
+ */
+public class RawResource {
+	private final String versionId;
+	private final Date lastUpdated;
+	private final byte[] json;
+
+	public RawResource(String versionId, Date lastUpdated, byte[] json) {
+		this.versionId = versionId;
+		this.lastUpdated = lastUpdated;
+		this.json = json;
+	}
+
+	public String getVersionId() {
+		return this.versionId;
+	}
+
+	public Date getLastUpdated() {
+		return this.lastUpdated;
+	}
+
+	public byte[] getJson() {
+		return this.json;
+	}
+}
@@ -0,0 +1,128 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+
+/**
+ * Resolves a set of ResourceType/id references across fhirbase tables in one
+ * round trip. References are grouped by type. Each type becomes one branch of a
+ * UNION ALL query that binds its ids as an array. Type names are checked
+ * against the FhirContext before they are used as table names.
+ */
+@Component
+public class ReferenceResolver {
+	private static final Logger logger = LoggerFactory.getLogger(ReferenceResolver.class);
+
+	@Autowired
+	FhirbaseMapping fhirbaseMapping;
+
+	/**
+	 * Key used in the resolved map for a reference, e.g. "Patient/123".
+	 */
+	public static String key(IIdType reference) {
+		return reference.getResourceType() + "/" + reference.getIdPart();
+	}
+
+	public Map<String, IBaseResource> resolve(Collection<? extends IIdType> references) throws SQLException {
+		Map<String, IBaseResource> retVal = new LinkedHashMap<String, IBaseResource>();
+		if (references == null || references.isEmpty()) {
+			return retVal;
+		}
+
+		FhirContext ctx = fhirbaseMapping.getCtx();
+		Set<String> knownTypes = ctx.getResourceTypes();
+
+		Map<String, Set<String>> idsByType = new LinkedHashMap<String, Set<String>>();
+		List<String> requested = new ArrayList<String>();
+		for (IIdType reference : references) {
+			if (reference == null || !reference.hasResourceType() || !reference.hasIdPart()) {
+				continue;
+			}
+
+			String resourceType = reference.getResourceType();
+			if (!knownTypes.contains(resourceType)) {
+				logger.debug("Skipping reference to unknown resource type: " + reference.getValue());
+				continue;
+			}
+
+			idsByType.computeIfAbsent(resourceType, type -> new LinkedHashSet<String>()).add(reference.getIdPart());
+			requested.add(key(reference));
+		}
+
+		if (idsByType.isEmpty()) {
+			return retVal;
+		}
+
+		StringBuilder query = new StringBuilder();
+		for (String resourceType : idsByType.keySet()) {
+			if (query.length() > 0) {
+				query.append(" UNION ALL ");
+			}
+			query.append("SELECT '").append(resourceType).append("' AS resource_type, id, resource FROM ")
+					.append(resourceType.toLowerCase()).append(" WHERE id = ANY(?)");
+		}
+		logger.debug("Query to resolve " + requested.size() + " references: " + query);
+
+		Map<String, IBaseResource> found = fhirbaseMapping.inTransaction(fhirbaseMapping.readDataSource(null), connection -> {
+			Map<String, IBaseResource> rows = new HashMap<String, IBaseResource>();
+			IParser parser = JsonParserCache.acquire(ctx);
+			try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
+				int index = 1;
+				for (Set<String> ids : idsByType.values()) {
+					stmt.setArray(index++, connection.createArrayOf("text", ids.toArray()));
+				}
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						String resourceType = rs.getString("resource_type");
+						InputStream stream = rs.getBinaryStream("resource");
+						if (stream == null) {
+							continue;
+						}
+
+						IBaseResource resource = parser.parseResource(
+								ctx.getResourceDefinition(resourceType).getImplementingClass(),
+								new InputStreamReader(stream, StandardCharsets.UTF_8));
+						rows.put(resourceType + "/" + rs.getString("id"), resource);
+					}
+				}
+			} finally {
+				JsonParserCache.release(ctx, parser);
+			}
+
+			return rows;
+		});
+
+		for (String key : requested) {
+			IBaseResource resource = found.get(key);
+			if (resource != null) {
+				retVal.put(key, resource);
+			}
+		}
+
+		return retVal;
+	}
+}
@@ -0,0 +1,106 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Resource;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+
+/**
+ * Read-through cache of parsed resources, keyed by type/id. Only the resource
+ * types listed in FHIRBASE_CACHE_TYPES (comma separated, e.g.
+ * "Practitioner,Organization,Location,Patient") are cached. Leaving it unset
+ * disables the cache. FHIRBASE_CACHE_MAX_SIZE and FHIRBASE_CACHE_TTL_SECONDS
+ * bound it.
+ * <p>
+ * Entries are copied on the way in and on the way out, so callers can never
+ * change the shared instance.
+ */
+public class ResourceCache {
+	private final Set<String> cachedTypes;
+	private final Cache<String, IBaseResource> cache;
+
+	public ResourceCache(Set<String> cachedTypes, long maximumSize, long ttlSeconds) {
+		this.cachedTypes = new HashSet<String>();
+		for (String cachedType : cachedTypes) {
+			this.cachedTypes.add(cachedType.trim().toLowerCase());
+		}
+
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+				.recordStats()
+				.build();
+	}
+
+	static ResourceCache fromEnvironment() {
+		Set<String> types = new HashSet<String>();
+		String typeList = System.getenv("FHIRBASE_CACHE_TYPES");
+		if (typeList != null) {
+			for (String type : typeList.split(",")) {
+				if (!type.isBlank()) {
+					types.add(type);
+				}
+			}
+		}
+
+		return new ResourceCache(types,
+				OperationUtil.getEnvInt("FHIRBASE_CACHE_MAX_SIZE", 10000),
+				OperationUtil.getEnvInt("FHIRBASE_CACHE_TTL_SECONDS", 300));
+	}
+
+	public boolean isCached(String resourceType) {
+		return cachedTypes.contains(resourceType.toLowerCase());
+	}
+
+	public IBaseResource get(String resourceType, String id) {
+		if (!isCached(resourceType)) {
+			return null;
+		}
+
+		return copy(cache.getIfPresent(key(resourceType, id)));
+	}
+
+	public void put(String resourceType, String id, IBaseResource resource) {
+		if (resource != null && isCached(resourceType)) {
+			cache.put(key(resourceType, id), copy(resource));
+		}
+	}
+
+	public void invalidate(String resourceType, String id) {
+		if (id != null && isCached(resourceType)) {
+			cache.invalidate(key(resourceType, id));
+		}
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public long size() {
+		return cache.estimatedSize();
+	}
+
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	private static String key(String resourceType, String id) {
+		return resourceType.toLowerCase() + "/" + id;
+	}
+
+	private static IBaseResource copy(IBaseResource resource) {
+		if (resource instanceof Resource) {
+			return ((Resource) resource).copy();
+		}
+
+		return resource;
+	}
+}
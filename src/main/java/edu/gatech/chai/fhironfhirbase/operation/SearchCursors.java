@@ -0,0 +1,239 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+
+/**
+ * Server-side cursors for large paged searches, one per search id from the
+ * paging provider. Re-running a search for every page costs a full query per
+ * page; with a cursor the query runs once and later pages are fetched from the
+ * result PostgreSQL kept for it.
+ * <p>
+ * Off unless FHIRBASE_SEARCH_CURSORS=true. A cursor is only opened for searches
+ * of at least FHIRBASE_SEARCH_CURSOR_MIN_ROWS (default 1000) matches, at most
+ * FHIRBASE_SEARCH_CURSOR_MAX (default 4) are open at once, and one unused for
+ * FHIRBASE_SEARCH_CURSOR_IDLE_MS (default 300000) is closed. When no cursor can
+ * be opened, or one fails, the search pages with plain queries as before.
+ * <p>
+ * Each cursor is declared WITH HOLD on its own connection, opened without the
+ * pool on a reader (or on the writer right after a write, as reads are), so
+ * it does not hold a pool slot or an open transaction. It is SCROLL, so a
+ * client that jumps between pages is served from it too.
+ */
+public class SearchCursors {
+	private static final Logger logger = LoggerFactory.getLogger(SearchCursors.class);
+
+	private static final String CURSOR_NAME = "fhirbase_search";
+
+	private final boolean enabled;
+	private final int minRows;
+	private final int maxOpen;
+	private final long idleMillis;
+
+	private final Map<String, SearchCursor> cursors = new ConcurrentHashMap<String, SearchCursor>();
+	// One permit per cursor connection, taken before the connection is opened
+	// and given back when the cursor is closed.
+	private final Semaphore permits;
+
+	public SearchCursors(boolean enabled, int minRows, int maxOpen, long idleMillis) {
+		this.enabled = enabled;
+		this.minRows = minRows;
+		this.maxOpen = maxOpen;
+		this.idleMillis = idleMillis;
+		this.permits = new Semaphore(Math.max(0, maxOpen));
+	}
+
+	static SearchCursors fromEnvironment() {
+		return new SearchCursors("true".equalsIgnoreCase(System.getenv("FHIRBASE_SEARCH_CURSORS")),
+				OperationUtil.getEnvInt("FHIRBASE_SEARCH_CURSOR_MIN_ROWS", 1000),
+				OperationUtil.getEnvInt("FHIRBASE_SEARCH_CURSOR_MAX", 4),
+				OperationUtil.getEnvInt("FHIRBASE_SEARCH_CURSOR_IDLE_MS", 300000));
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getOpenCount() {
+		return cursors.size();
+	}
+
+	/**
+	 * The open cursor for searchId, or a new one for sql if the search is large
+	 * enough and there is room. Returns null if the search should page without one.
+	 */
+	SearchCursor acquire(DataSource dataSource, String searchId, BoundSql sql, Integer totalSize) throws SQLException {
+		if (!enabled || searchId == null) {
+			return null;
+		}
+
+		SearchCursor cursor = cursors.get(searchId);
+		if (cursor != null) {
+			return cursor;
+		}
+
+		if (dataSource == null || totalSize == null || totalSize < minRows) {
+			return null;
+		}
+
+		if (!permits.tryAcquire()) {
+			closeIdle();
+			if (!permits.tryAcquire()) {
+				logger.debug("All " + maxOpen + " search cursors are in use; paging " + searchId + " with queries");
+				return null;
+			}
+		}
+
+		Connection connection;
+		try {
+			connection = dataSource.getConnection();
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+
+		cursor = new SearchCursor(connection, permits);
+		try {
+			cursor.declare(sql);
+		} catch (SQLException | RuntimeException e) {
+			cursor.close();
+			throw e;
+		}
+
+		SearchCursor existing = cursors.putIfAbsent(searchId, cursor);
+		if (existing != null) {
+			// Another request for the same search opened one first.
+			cursor.close();
+			return existing;
+		}
+
+		logger.debug("Opened search cursor for " + searchId + " (" + cursors.size() + " open)");
+		return cursor;
+	}
+
+	/**
+	 * Closes a cursor after a failed fetch so the next page opens a fresh one.
+	 */
+	void discard(String searchId, SearchCursor cursor) {
+		if (cursors.remove(searchId, cursor)) {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Closes the cursors that have not been used within the idle timeout.
+	 */
+	public void closeIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, SearchCursor>> it = cursors.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, SearchCursor> entry = it.next();
+			if (now - entry.getValue().lastUsedMillis > idleMillis) {
+				it.remove();
+				entry.getValue().close();
+				logger.debug("Closed idle search cursor for " + entry.getKey());
+			}
+		}
+	}
+
+	public void closeAll() {
+		Iterator<SearchCursor> it = cursors.values().iterator();
+		while (it.hasNext()) {
+			SearchCursor cursor = it.next();
+			it.remove();
+			cursor.close();
+		}
+	}
+
+	public int getAvailablePermits() {
+		return permits.availablePermits();
+	}
+
+	/**
+	 * One cursor and the connection it lives on. Calls are serialized, since
+	 * the cursor position is shared. Closing it gives its permit back once.
+	 */
+	static class SearchCursor {
+		private final Connection connection;
+		private final Semaphore permits;
+		private volatile long lastUsedMillis = System.currentTimeMillis();
+		// Rows before the cursor's current position.
+		private int position = 0;
+		private boolean closed = false;
+
+		SearchCursor(Connection connection, Semaphore permits) {
+			this.connection = connection;
+			this.permits = permits;
+		}
+
+		private void declare(BoundSql sql) throws SQLException {
+			connection.setAutoCommit(false);
+			try (PreparedStatement stmt = connection
+					.prepareStatement("DECLARE " + CURSOR_NAME + " SCROLL CURSOR WITH HOLD FOR " + sql.getSql())) {
+				sql.bind(stmt);
+				stmt.execute();
+			}
+			// The held result is materialized on commit; the cursor outlives the transaction.
+			connection.commit();
+			connection.setAutoCommit(true);
+		}
+
+		/**
+		 * Reads rows fromIndex to fromIndex + count. The cursor only moves when the
+		 * page does not follow the last one read.
+		 */
+		synchronized List<SearchPageParser.RawRow> fetch(int fromIndex, int count, boolean includeSubject) throws SQLException {
+			lastUsedMillis = System.currentTimeMillis();
+			List<SearchPageParser.RawRow> rows = new ArrayList<SearchPageParser.RawRow>();
+			try (Statement stmt = connection.createStatement()) {
+				if (position != fromIndex) {
+					stmt.execute("MOVE ABSOLUTE " + fromIndex + " IN " + CURSOR_NAME);
+				}
+
+				try (ResultSet rs = stmt.executeQuery("FETCH FORWARD " + count + " FROM " + CURSOR_NAME)) {
+					FhirbaseMapping.readRows(rs, includeSubject, rows);
+				}
+			} catch (SQLException e) {
+				position = -1;
+				throw e;
+			}
+
+			// A short page leaves the cursor past the end, so the next read moves first.
+			position = rows.size() == count ? fromIndex + count : -1;
+			lastUsedMillis = System.currentTimeMillis();
+
+			return rows;
+		}
+
+		synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				logger.debug("Failed to close search cursor connection: " + e.getMessage());
+			} finally {
+				permits.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
+
+/**
+ * Parses the rows of a search page after they have been drained from the
+ * ResultSet. Pages with at least {@code threshold} rows are split into chunks
+ * that are parsed concurrently on a bounded pool. Smaller pages are parsed on
+ * the calling thread. Either way the resources come back in SQL row order.
+ */
+class SearchPageParser {
+	private final ExecutorService executor;
+	private final int parallelism;
+	private final int threshold;
+
+	static class RawRow {
+		final byte[] resource;
+		final byte[] subject;
+
+		RawRow(byte[] resource, byte[] subject) {
+			this.resource = resource;
+			this.subject = subject;
+		}
+	}
+
+	SearchPageParser(int parallelism, int threshold) {
+		this.parallelism = Math.max(1, parallelism);
+		this.threshold = threshold;
+
+		if (this.parallelism > 1) {
+			AtomicInteger threadCount = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+				Thread thread = new Thread(runnable, "fhirbase-parse-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			this.executor = null;
+		}
+	}
+
+	List<IBaseResource> parse(FhirContext ctx, Class<? extends Resource> fhirClass, List<RawRow> rows) {
+		if (executor == null || rows.size() < threshold) {
+			return parseChunk(ctx, fhirClass, rows);
+		}
+
+		int chunkSize = (rows.size() + parallelism - 1) / parallelism;
+		List<Future<List<IBaseResource>>> futures = new ArrayList<Future<List<IBaseResource>>>();
+		for (int from = 0; from < rows.size(); from += chunkSize) {
+			List<RawRow> chunk = rows.subList(from, Math.min(rows.size(), from + chunkSize));
+			futures.add(executor.submit(() -> parseChunk(ctx, fhirClass, chunk)));
+		}
+
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>(rows.size());
+		for (Future<List<IBaseResource>> future : futures) {
+			try {
+				retVal.addAll(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw ThrowFHIRExceptions.internalErrorException("Interrupted while parsing search results");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw ThrowFHIRExceptions.internalErrorException("Failed to parse search results: " + e.getCause());
+			}
+		}
+
+		return retVal;
+	}
+
+	void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	// IParser instances are not thread-safe; each chunk leases its own from the pool.
+	private List<IBaseResource> parseChunk(FhirContext ctx, Class<? extends Resource> fhirClass, List<RawRow> rows) {
+		IParser parser = JsonParserCache.acquire(ctx);
+		try {
+			List<IBaseResource> retVal = new ArrayList<IBaseResource>(rows.size());
+			for (RawRow row : rows) {
+				retVal.add(parseBytes(parser, fhirClass, row.resource));
+				if (row.subject != null) {
+					retVal.add(parseBytes(parser, Patient.class, row.subject));
+				}
+			}
+
+			return retVal;
+		} finally {
+			JsonParserCache.release(ctx, parser);
+		}
+	}
+
+	private static <T extends IBaseResource> T parseBytes(IParser parser, Class<T> fhirClass, byte[] json) {
+		return parser.parseResource(fhirClass, new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,195 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+
+/**
+ * Statistics per search shape. A shape is the SQL text of a search once its
+ * values are bound (see BoundSql), with whitespace and bind lists normalized,
+ * so "Observation by code and patient" is one shape whatever the code and
+ * patient are. Each shape keeps executions, mean and p99 latency and rows
+ * returned. The shapes with the most total time are the ones worth an index.
+ * <p>
+ * FHIRBASE_SEARCH_SHAPES_MAX bounds how many shapes are kept (default 500).
+ * Past it Caffeine evicts by W-TinyLFU, which favours shapes seen often and
+ * recently, so a shape seen once may be dropped and counted again from zero.
+ * 0 disables it.
+ */
+public class SearchShapes {
+	// Latencies kept per shape for the p99.
+	private static final int SAMPLES = 256;
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final Pattern BIND_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+	private static final Pattern NUMBER_VALUE = Pattern.compile("(=|<>|!=|<|(?<![-#>])>)\\s*-?\\d+(?:\\.\\d+)?\\b");
+
+	private final Cache<String, Shape> shapes;
+	private final LongAdder executions = new LongAdder();
+
+	public SearchShapes(long maximumSize) {
+		this.shapes = maximumSize > 0 ? Caffeine.newBuilder().maximumSize(maximumSize).build() : null;
+	}
+
+	static SearchShapes fromEnvironment() {
+		return new SearchShapes(OperationUtil.getEnvInt("FHIRBASE_SEARCH_SHAPES_MAX", 500));
+	}
+
+	public boolean isEnabled() {
+		return shapes != null;
+	}
+
+	/**
+	 * The shape of sql: its text with whitespace collapsed, lists of binds
+	 * written as one and numbers compared against replaced by "?".
+	 */
+	public static String normalize(String sql) {
+		String shape = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+		shape = NUMBER_VALUE.matcher(shape).replaceAll("$1 ?");
+
+		return BIND_LIST.matcher(shape).replaceAll("?, ...");
+	}
+
+	/**
+	 * Records an execution of sql. rows is what it returned, or for a count
+	 * the value counted.
+	 */
+	public void record(BoundSql sql, long nanos, int rows) {
+		if (shapes == null || sql == null || sql.isEmpty()) {
+			return;
+		}
+
+		shapes.get(normalize(sql.getSql()), Shape::new).record(nanos, rows);
+		executions.increment();
+	}
+
+	public Shape get(BoundSql sql) {
+		if (shapes == null) {
+			return null;
+		}
+
+		return shapes.getIfPresent(normalize(sql.getSql()));
+	}
+
+	/**
+	 * Up to limit shapes, the most total time first.
+	 */
+	public List<Shape> costliest(int limit) {
+		if (shapes == null) {
+			return new ArrayList<Shape>();
+		}
+
+		List<Shape> all = new ArrayList<Shape>(shapes.asMap().values());
+		all.sort(Comparator.comparingLong(Shape::getTotalNanos).reversed());
+
+		return all.size() > limit ? new ArrayList<Shape>(all.subList(0, limit)) : all;
+	}
+
+	/**
+	 * Executions recorded over all shapes, including evicted ones.
+	 */
+	public long getExecutions() {
+		return executions.sum();
+	}
+
+	public long size() {
+		return shapes == null ? 0 : shapes.estimatedSize();
+	}
+
+	public void clear() {
+		if (shapes != null) {
+			shapes.invalidateAll();
+		}
+	}
+
+	public static class Shape {
+		private final String sql;
+		private final LongAdder executions = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAdder rows = new LongAdder();
+		// The last SAMPLES latencies, oldest overwritten first.
+		private final long[] samples = new long[SAMPLES];
+		private long sampled = 0;
+
+		Shape(String sql) {
+			this.sql = sql;
+		}
+
+		void record(long nanos, int rowCount) {
+			executions.increment();
+			totalNanos.add(nanos);
+			rows.add(rowCount);
+
+			synchronized (samples) {
+				samples[(int) (sampled % SAMPLES)] = nanos;
+				sampled++;
+			}
+		}
+
+		/**
+		 * A short, stable id for logs.
+		 */
+		public String getSignature() {
+			return String.format("%08x", sql.hashCode());
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public long getExecutions() {
+			return executions.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getRows() {
+			return rows.sum();
+		}
+
+		public double getMeanMillis() {
+			long count = getExecutions();
+			return count == 0 ? 0.0 : getTotalNanos() / 1e6 / count;
+		}
+
+		/**
+		 * The 99th percentile over the last executions.
+		 */
+		public double getP99Millis() {
+			long[] recent;
+			synchronized (samples) {
+				recent = Arrays.copyOf(samples, (int) Math.min(sampled, SAMPLES));
+			}
+			if (recent.length == 0) {
+				return 0.0;
+			}
+
+			Arrays.sort(recent);
+			int index = (int) Math.ceil(recent.length * 0.99) - 1;
+
+			return recent[index] / 1e6;
+		}
+
+		public double getRowsPerExecution() {
+			long count = getExecutions();
+			return count == 0 ? 0.0 : (double) getRows() / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s executions=%d, meanMs=%.1f, p99Ms=%.1f, rows=%d, rowsPerExecution=%.1f: %s",
+					getSignature(), getExecutions(), getMeanMillis(), getP99Millis(), getRows(), getRowsPerExecution(),
+					sql);
+		}
+	}
+}
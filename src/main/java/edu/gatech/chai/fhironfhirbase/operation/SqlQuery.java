@@ -0,0 +1,273 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a SELECT with bind parameters from WITH definitions, a FROM table,
+ * joins, conditions, ORDER BY and LIMIT/OFFSET. Conditions are ANDed, and the
+ * same condition with the same values is added once. Joins are keyed by alias,
+ * so adding the same alias twice keeps the first.
+ * <pre>
+ * BoundSql page = SqlQuery.from("observation o")
+ *     .join(Join.arrayElements("o.resource-&gt;'code'-&gt;'coding'", "codings"))
+ *     .where("o.resource-&gt;&gt;'status' = ?", status)
+ *     .orderBy("o.id").limit(20).build();
+ * </pre>
+ */
+public class SqlQuery {
+	private final String from;
+	private final String fromAlias;
+	private String select = "*";
+	private final Map<String, BoundSql> withs = new LinkedHashMap<String, BoundSql>();
+	private final Map<String, Join> joins = new LinkedHashMap<String, Join>();
+	private final List<BoundSql> conditions = new ArrayList<BoundSql>();
+	private final List<String> orderBy = new ArrayList<String>();
+	private Integer limit;
+	private Integer offset;
+
+	/**
+	 * One joined table or set-returning function. oneToMany says whether a row
+	 * of the FROM table can match more than one row of it, as it does for the
+	 * elements of an array. A join to a resource by its id matches one row.
+	 */
+	public static final class Join {
+		private final String keyword;
+		private final String source;
+		private final String alias;
+		private final String on;
+		private final boolean oneToMany;
+
+		private Join(String keyword, String source, String alias, String on, boolean oneToMany) {
+			this.keyword = keyword;
+			this.source = source;
+			this.alias = alias;
+			this.on = on;
+			this.oneToMany = oneToMany;
+		}
+
+		/**
+		 * "JOIN table alias ON on", where on matches at most one row of table.
+		 */
+		public static Join inner(String table, String alias, String on) {
+			return new Join("JOIN", table, alias, on, false);
+		}
+
+		/**
+		 * ", jsonb_array_elements(path) alias": a row for each element of the
+		 * jsonb array at path.
+		 */
+		public static Join arrayElements(String path, String alias) {
+			return new Join(",", "jsonb_array_elements(" + path + ")", alias, null, true);
+		}
+
+		/**
+		 * ", json_array_elements(json) alias", for a json (not jsonb) array.
+		 */
+		public static Join jsonArrayElements(String json, String alias) {
+			return new Join(",", "json_array_elements(" + json + ")", alias, null, true);
+		}
+
+		/**
+		 * "CROSS JOIN LATERAL jsonb_array_elements(path) alias".
+		 */
+		public static Join lateralArrayElements(String path, String alias) {
+			return new Join("CROSS JOIN LATERAL", "jsonb_array_elements(" + path + ")", alias, null, true);
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+
+		public boolean isOneToMany() {
+			return oneToMany;
+		}
+
+		private void appendTo(StringBuilder sql) {
+			sql.append(",".equals(keyword) ? ", " : " " + keyword + " ").append(source).append(" ").append(alias);
+			if (on != null) {
+				sql.append(" ON ").append(on);
+			}
+		}
+	}
+
+	private SqlQuery(String from) {
+		this.from = from.trim();
+
+		// "table", "table alias" or "table AS alias". Other sources are joins.
+		String[] words = this.from.split("\\s+");
+		if (words.length > 3 || (words.length == 3 && !"AS".equalsIgnoreCase(words[1]))) {
+			throw new IllegalArgumentException("FROM takes one table, add the others with join(): " + from);
+		}
+		this.fromAlias = words[words.length - 1];
+	}
+
+	/**
+	 * A query on one table or WITH name, with an optional alias, e.g.
+	 * "observation o".
+	 */
+	public static SqlQuery from(String fromClause) {
+		return new SqlQuery(fromClause);
+	}
+
+	/**
+	 * A new query with the same definitions, joins, conditions and order, to page
+	 * or count without changing this one.
+	 */
+	public SqlQuery copy() {
+		SqlQuery copy = new SqlQuery(from);
+		copy.select = select;
+		copy.withs.putAll(withs);
+		copy.joins.putAll(joins);
+		copy.conditions.addAll(conditions);
+		copy.orderBy.addAll(orderBy);
+		copy.limit = limit;
+		copy.offset = offset;
+
+		return copy;
+	}
+
+	public SqlQuery select(String columns) {
+		this.select = columns;
+		return this;
+	}
+
+	/**
+	 * Adds "name AS (definition)" to the WITH list, in the order added, so a
+	 * definition can use the ones before it.
+	 */
+	public SqlQuery with(String name, BoundSql definition) {
+		withs.put(name, definition);
+		return this;
+	}
+
+	/**
+	 * Adds join, unless its alias is already joined or is the FROM alias.
+	 */
+	public SqlQuery join(Join join) {
+		if (!fromAlias.equals(join.getAlias())) {
+			joins.putIfAbsent(join.getAlias(), join);
+		}
+		return this;
+	}
+
+	public boolean isJoined(String alias) {
+		return joins.containsKey(alias) || fromAlias.equals(alias);
+	}
+
+	/**
+	 * Whether a join is one-to-many, so that a resource can be on more than one
+	 * row. Definitions in WITH are not looked at; a definition that selects
+	 * DISTINCT ids gives one row per id.
+	 */
+	public boolean mayRepeatRows() {
+		for (Join join : joins.values()) {
+			if (join.isOneToMany()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public SqlQuery where(String condition, Object... params) {
+		return where(new BoundSql(condition, Arrays.asList(params)));
+	}
+
+	public SqlQuery where(BoundSql condition) {
+		if (condition != null && !condition.isEmpty() && !conditions.contains(condition)) {
+			conditions.add(condition);
+		}
+		return this;
+	}
+
+	public boolean hasConditions() {
+		return !conditions.isEmpty();
+	}
+
+	/**
+	 * Adds ORDER BY expressions, comma separated. Blank adds nothing.
+	 */
+	public SqlQuery orderBy(String expression) {
+		if (expression != null && !expression.isBlank()) {
+			orderBy.add(expression);
+		}
+		return this;
+	}
+
+	public boolean hasOrder() {
+		return !orderBy.isEmpty();
+	}
+
+	public SqlQuery limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	public SqlQuery offset(int offset) {
+		this.offset = offset;
+		return this;
+	}
+
+	public BoundSql build() {
+		List<Object> params = new ArrayList<Object>();
+		StringBuilder sql = selectFrom(select, params);
+		appendWhere(sql, params);
+
+		if (!orderBy.isEmpty()) {
+			sql.append(" ORDER BY ").append(String.join(", ", orderBy));
+		}
+		if (limit != null) {
+			sql.append(" LIMIT ?");
+			params.add(limit);
+		}
+		if (offset != null && offset > 0) {
+			sql.append(" OFFSET ?");
+			params.add(offset);
+		}
+
+		return new BoundSql(sql.toString(), params);
+	}
+
+	/**
+	 * SELECT count(*) over the same definitions, FROM, joins and conditions.
+	 */
+	public BoundSql buildCount() {
+		List<Object> params = new ArrayList<Object>();
+		StringBuilder sql = selectFrom("count(*)", params);
+		appendWhere(sql, params);
+
+		return new BoundSql(sql.toString(), params);
+	}
+
+	private StringBuilder selectFrom(String columns, List<Object> params) {
+		StringBuilder sql = new StringBuilder();
+		for (Map.Entry<String, BoundSql> with : withs.entrySet()) {
+			sql.append(sql.length() == 0 ? "WITH " : ", ");
+			sql.append(with.getKey()).append(" AS (").append(with.getValue().getSql()).append(")");
+			params.addAll(with.getValue().getParams());
+		}
+		if (sql.length() > 0) {
+			sql.append(" ");
+		}
+
+		sql.append("SELECT ").append(columns).append(" FROM ").append(from);
+		for (Join join : joins.values()) {
+			join.appendTo(sql);
+		}
+
+		return sql;
+	}
+
+	private void appendWhere(StringBuilder sql, List<Object> params) {
+		for (int i = 0; i < conditions.size(); i++) {
+			BoundSql condition = conditions.get(i);
+			sql.append(i == 0 ? " WHERE " : " AND ");
+			sql.append(conditions.size() == 1 ? condition.getSql() : "(" + condition.getSql() + ")");
+			params.addAll(condition.getParams());
+		}
+	}
+}
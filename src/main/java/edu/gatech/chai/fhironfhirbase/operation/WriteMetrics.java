@@ -0,0 +1,69 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the FhirbaseMapping write path. Allocated bytes are taken from the
+ * JVM per-thread allocation counter, so they are only recorded on JVMs that
+ * support it (HotSpot does).
+ */
+public class WriteMetrics {
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder payloadBytes = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LongAdder measuredWrites = new LongAdder();
+
+	static long currentThreadAllocatedBytes() {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+			if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+				return sunThreadMXBean.getCurrentThreadAllocatedBytes();
+			}
+		}
+
+		return -1L;
+	}
+
+	void record(long payload, long allocatedAtStart) {
+		writes.increment();
+		payloadBytes.add(payload);
+
+		if (allocatedAtStart >= 0) {
+			long allocatedAtEnd = currentThreadAllocatedBytes();
+			if (allocatedAtEnd >= allocatedAtStart) {
+				allocatedBytes.add(allocatedAtEnd - allocatedAtStart);
+				measuredWrites.increment();
+			}
+		}
+	}
+
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	public long getPayloadBytes() {
+		return payloadBytes.sum();
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	public long getAllocatedBytesPerWrite() {
+		long measured = measuredWrites.sum();
+		if (measured == 0) {
+			return 0L;
+		}
+
+		return allocatedBytes.sum() / measured;
+	}
+
+	@Override
+	public String toString() {
+		return "writes=" + getWrites() + ", payloadBytes=" + getPayloadBytes() + ", allocatedBytesPerWrite="
+				+ getAllocatedBytesPerWrite();
+	}
+}
@@ -1,26 +1,51 @@
 package edu.gatech.chai.fhironfhirbase.provider;
 
+import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.IElement;
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.base.composite.BaseIdentifierDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.model.primitive.UriDt;
+import ca.uhn.fhir.rest.annotation.Count;
+import ca.uhn.fhir.rest.annotation.History;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Since;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
 import ca.uhn.fhir.rest.param.DateParam;
@@ -37,11 +62,30 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
 import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
+import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
 
 public abstract class BaseResourceProvider implements IResourceProvider {
 	private static final Logger logger = LoggerFactory.getLogger(BaseResourceProvider.class);
 
+	// Runs a search's count and its first page side by side on virtual threads.
+	// Each task holds a pooled connection only while its query runs, so a search
+	// uses one more connection than before, for about half the latency.
+	private static final ExecutorService searchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+	// Rows to prefetch for the first page. HAPI takes the page size from _count
+	// or the paging provider, which the search methods do not see, so a prefetch
+	// of another size is only used if it covers the page. -1 means
+	// preferredPageSize; 0 turns the prefetch off.
+	private static final int searchPrefetchSize = OperationUtil.getEnvInt("FHIRBASE_SEARCH_PREFETCH_SIZE", -1);
+
+	private static final Pattern SORT_PARAM_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
 	protected int preferredPageSize = 30;
 	
 	private FhirbaseMapping fhirbaseMapping;
@@ -87,6 +131,75 @@ public abstract class BaseResourceProvider implements IResourceProvider {
 		return this.fhirbaseMapping;
 	}
 	
+	/**
+	 * Starts counting this provider's table, and checking it has the indexes
+	 * its searches use (see IndexAdvisor), in the background. Called from
+	 * @PostConstruct, so startup does not wait for either.
+	 */
+	protected void loadResourceCount() {
+		ResourceCountLoader.load(fhirbaseMapping, getMyResourceType(), getTableName());
+		IndexAdvisor.check(fhirbaseMapping, this);
+	}
+
+	/**
+	 * Instance _history, newest version first. Versions come from the resource
+	 * table and its fhirbase _history table. The total is counted unless _total
+	 * asks otherwise.
+	 */
+	@History()
+	public IBundleProvider getInstanceHistory(@IdParam IdType theId, @Since InstantType theSince, @Count Integer theCount,
+			RequestDetails theRequestDetails) {
+		SearchTotalModeEnum totalMode = historyTotalMode(theRequestDetails, SearchTotalModeEnum.ACCURATE);
+		return historyBundleProvider(theId.getIdPart(), theSince, theCount, totalMode);
+	}
+
+	/**
+	 * Type _history, newest version first. Counting every version of a type is
+	 * a scan of both tables, so there is no total unless _total=estimate or
+	 * _total=accurate asks for one.
+	 */
+	@History()
+	public IBundleProvider getTypeHistory(@Since InstantType theSince, @Count Integer theCount,
+			RequestDetails theRequestDetails) {
+		SearchTotalModeEnum totalMode = historyTotalMode(theRequestDetails, SearchTotalModeEnum.NONE);
+		return historyBundleProvider(null, theSince, theCount, totalMode);
+	}
+
+	private static SearchTotalModeEnum historyTotalMode(RequestDetails theRequestDetails, SearchTotalModeEnum defaultMode) {
+		String[] values = theRequestDetails == null ? null : theRequestDetails.getParameters().get(Constants.PARAM_SEARCH_TOTAL_MODE);
+		SearchTotalModeEnum totalMode = values == null || values.length == 0 ? null : SearchTotalModeEnum.fromCode(values[0]);
+
+		return totalMode == null ? defaultMode : totalMode;
+	}
+
+	@SuppressWarnings("unchecked")
+	private IBundleProvider historyBundleProvider(String id, InstantType theSince, Integer theCount,
+			SearchTotalModeEnum theTotalMode) {
+		Date since = theSince == null ? null : theSince.getValue();
+		Class<? extends Resource> fhirClass = (Class<? extends Resource>) getResourceType();
+
+		HistoryBundleProvider historyBundleProvider = new HistoryBundleProvider(fhirbaseMapping, fhirClass, tableName, id, since);
+		try {
+			if (theTotalMode == SearchTotalModeEnum.NONE) {
+				historyBundleProvider.setTotalSize(null);
+			} else if (theTotalMode == SearchTotalModeEnum.ESTIMATED) {
+				historyBundleProvider.setTotalSize(fhirbaseMapping.getEstimatedHistorySize(tableName, id, since));
+			} else {
+				historyBundleProvider.setTotalSize(fhirbaseMapping.getHistorySize(tableName, id, since));
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to count history of " + tableName + (id == null ? "" : "/" + id), e);
+			throw ThrowFHIRExceptions.internalErrorException("Failed to read history: " + e.getMessage());
+		}
+		historyBundleProvider.setPreferredPageSize(theCount != null && theCount > 0 ? theCount : preferredPageSize);
+
+		return historyBundleProvider;
+	}
+
+	/**
+	 * The ORDER BY list for a _sort. Sort parameter names go into the SQL as
+	 * column names, so anything but a plain name is rejected.
+	 */
 	public String constructOrderParams(SortSpec theSort) {
 		String direction;
 
@@ -98,54 +211,161 @@ public abstract class BaseResourceProvider implements IResourceProvider {
 		else
 			direction = "ASC";
 
-		String parameter = theSort.getParamName();
+		String parameter = sortColumn(theSort.getParamName());
 		while (theSort.getChain() != null && theSort.getChain() != theSort) {
 			theSort = theSort.getChain();
-			parameter += ", " + theSort.getParamName();
+			parameter += ", " + sortColumn(theSort.getParamName());
 		}
 		String orderParam = parameter + " " + direction;
 
 		return orderParam.trim();
 	}
 
-	protected int getTotalSize(String query) {
-		int totalSize = 0;
+	private static String sortColumn(String paramName) {
+		if (paramName == null || !SORT_PARAM_NAME.matcher(paramName).matches()) {
+			throw new InvalidRequestException("Unsupported _sort parameter: " + paramName);
+		}
 
+		return paramName;
+	}
+
+	/**
+	 * The count of query. A failed count is thrown, so it cannot pass for 0.
+	 */
+	protected int getTotalSize(BoundSql query) {
 		if (query == null || query.isEmpty()) {
 			return 0;
 		}
 
 		try {
-			totalSize = fhirbaseMapping.getSize(query);
-		} catch (Exception e) {
+			return fhirbaseMapping.getSize(query);
+		} catch (SQLException e) {
+			logger.error("Failed to count " + tableName, e);
+			throw ThrowFHIRExceptions.internalErrorException("Failed to count " + tableName + ": " + e.getMessage());
+		}
+	}
+
+	protected void submitSearch(FhirbaseBundleProvider bundleProvider, SearchTotalModeEnum theTotalMode) {
+		submitSearch(bundleProvider, theTotalMode, null);
+	}
+
+	/**
+	 * Sets a search bundle's total as the _total parameter asks. "none" skips the
+	 * count, and the bundle has no total. "estimate" uses the planner's row
+	 * estimate for the search query. "accurate", or no _total, submits the count
+	 * and the first page query to the search executor together, and size() waits
+	 * for the count. theIncludes must be what the bundle's pages are read with.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void submitSearch(FhirbaseBundleProvider bundleProvider, SearchTotalModeEnum theTotalMode,
+			Set<Include> theIncludes) {
+		if (theTotalMode == SearchTotalModeEnum.NONE) {
+			bundleProvider.setTotalSize(null);
+		} else if (theTotalMode == SearchTotalModeEnum.ESTIMATED) {
+			bundleProvider.setTotalSize(getEstimatedSize(bundleProvider.searchQuery()));
+		} else {
+			BoundSql queryCount = bundleProvider.countQuery();
+			bundleProvider.setPendingTotalSize(searchExecutor.submit(() -> countTotal(queryCount)));
 
-			totalSize = 0;
-			e.printStackTrace();
+			int pageSize = searchPrefetchSize < 0 ? preferredPageSize : searchPrefetchSize;
+			if (pageSize > 0) {
+				bundleProvider.prefetchFirstPage(searchExecutor, fhirbaseMapping, pageSize, theIncludes,
+						(Class<? extends Resource>) getResourceType());
+			}
 		}
+	}
 
-		return totalSize;
+	/**
+	 * Like getTotalSize, but a failed count is thrown so the bundle reports no
+	 * total instead of 0.
+	 */
+	private int countTotal(BoundSql queryCount) throws SQLException {
+		if (queryCount == null || queryCount.isEmpty()) {
+			return 0;
+		}
+
+		return fhirbaseMapping.getSize(queryCount);
 	}
 
-	protected String constructWhereStatement(List<String> whereParameters, SortSpec theSort) {
-		String whereStatement = "";
-		if (!whereParameters.isEmpty()) {
-			whereStatement = " WHERE ";
-			for (String whereParameter : whereParameters) {
-				whereStatement += "(" + whereParameter + ") AND ";
-			}
+	/**
+	 * The planner's row estimate for query, for _total=estimate. With no query or
+	 * a failed EXPLAIN there is no estimate, and the bundle has no total rather
+	 * than a total of 0.
+	 */
+	protected Integer getEstimatedSize(BoundSql query) {
+		if (query == null || query.isEmpty()) {
+			return null;
+		}
 
-			whereStatement = whereStatement.substring(0, whereStatement.length() - 5);
+		try {
+			return fhirbaseMapping.getEstimatedSize(query);
+		} catch (SQLException | RuntimeException e) {
+			logger.warn("Search estimate failed; the bundle has no total: " + e.getMessage(), e);
 		}
 
-		String orderParams = constructOrderParams(theSort);
-		if (orderParams != null && !orderParams.isEmpty()) {
-			whereStatement += " ORDER BY " + orderParams;
+		return null;
+	}
+
+	/**
+	 * "idColumn IN (?, ...)" for the ids of a _id search.
+	 */
+	protected BoundSql constructIdWhereParameter(String idColumn, TokenOrListParam theIds) {
+		List<Object> ids = new ArrayList<Object>();
+		for (TokenParam theId : theIds.getValuesAsQueryTokens()) {
+			ids.add(theId.getValue());
+		}
+
+		if (ids.isEmpty()) {
+			return BoundSql.empty();
 		}
 
-		return whereStatement;
+		return new BoundSql(idColumn + " IN (" + String.join(", ", Collections.nCopies(ids.size(), "?")) + ")", ids);
 	}
-	
-	protected String constructFromStatementPatientChain(String fromStatement, String chainName) {
+
+	/**
+	 * "column @&gt; ?::jsonb" with json bound.
+	 */
+	protected static BoundSql constructContainsWhere(String column, JsonElement json) {
+		return BoundSql.of(column + " @> ?::jsonb", json.toString());
+	}
+
+	/**
+	 * "column @> ?::jsonb" with the JSON object of keysAndValues (key, value,
+	 * key, value, ...) bound. Null values are left out.
+	 */
+	protected static BoundSql constructContainsWhere(String column, String... keysAndValues) {
+		return constructContainsWhere(column, jsonObject(keysAndValues));
+	}
+
+	/**
+	 * Like constructContainsWhere, with column and values compared in lower case.
+	 */
+	protected static BoundSql constructLowerContainsWhere(String column, String... keysAndValues) {
+		return BoundSql.of("lower(" + column + "::text)::jsonb @> lower(?)::jsonb", jsonObject(keysAndValues).toString());
+	}
+
+	/**
+	 * Like constructContainsWhere, for a JSON array column: "column @&gt; ?::jsonb"
+	 * with a one-element array of that object bound.
+	 */
+	protected static BoundSql constructArrayContainsWhere(String column, String... keysAndValues) {
+		JsonArray array = new JsonArray();
+		array.add(jsonObject(keysAndValues));
+		return constructContainsWhere(column, array);
+	}
+
+	protected static JsonObject jsonObject(String... keysAndValues) {
+		JsonObject json = new JsonObject();
+		for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+			if (keysAndValues[i + 1] != null) {
+				json.addProperty(keysAndValues[i], keysAndValues[i + 1]);
+			}
+		}
+
+		return json;
+	}
+
+	protected void constructFromStatementPatientChain(SqlQuery search, String chainName) {
 		String[] chainWithModifier = chainName.split(":");
 		if (chainWithModifier.length > 1) {
 			chainName = chainWithModifier[0];
@@ -156,183 +376,175 @@ public abstract class BaseResourceProvider implements IResourceProvider {
 			|| USCorePatient.SP_ADDRESS_POSTALCODE.equals(chainName)
 			|| USCorePatient.SP_ADDRESS_STATE.equals(chainName)
 			|| USCorePatient.SP_ADDRESS_USE.equals(chainName)) {
-			fromStatement = constructFromStatementPath(fromStatement, "addresses", "p.resource->'address'");
+			constructFromStatementPath(search, "addresses", "p.resource->'address'");
 		} else if (USCorePatient.SP_FAMILY.equals(chainName)
 			|| USCorePatient.SP_GIVEN.equals(chainName)
 			|| USCorePatient.SP_NAME.equals(chainName)) {
-			fromStatement = constructFromStatementPath(fromStatement, "names", "p.resource->'name'");
+			constructFromStatementPath(search, "names", "p.resource->'name'");
 		} else if (USCorePatient.SP_EMAIL.equals(chainName)
 			|| USCorePatient.SP_PHONE.equals(chainName)
 			|| USCorePatient.SP_TELECOM.equals(chainName)) {
-			fromStatement = constructFromStatementPath(fromStatement, "telecoms", "p.resource->'contact'->'telecom'");
+			constructFromStatementPath(search, "telecoms", "p.resource->'contact'->'telecom'");
 		} else if (USCorePatient.SP_IDENTIFIER.equals(chainName)) {
-			fromStatement = constructFromStatementPath(fromStatement, "identifiers", "p.resource->'identifier'");
+			constructFromStatementPath(search, "identifiers", "p.resource->'identifier'");
 		}
-
-		return fromStatement;
 	}
 
-	protected String constructFromStatementJson(String fromStatement, String alias, String json) {
-		if (!fromStatement.contains(alias)) {
-			fromStatement += ", json_array_elements("+json+") " + alias;
-		}
-		
-		return fromStatement;
+	protected void constructFromStatementJson(SqlQuery search, String alias, String json) {
+		search.join(Join.jsonArrayElements(json, alias));
 	}
 
-	protected String constructFromStatementPath(String fromStatement, String alias, String path) {
-		if (!fromStatement.contains(alias)) {
-			fromStatement += ", jsonb_array_elements("+path+") " + alias;
-		}
-		
-		return fromStatement;
+	protected void constructFromStatementPath(SqlQuery search, String alias, String path) {
+		search.join(Join.arrayElements(path, alias));
 	}
 
-	protected String constructCrossJoinLateralFromStatementPath(String fromStatement, String alias, String path) {
-		if (!fromStatement.contains(alias)) {
-			fromStatement += "CROSS JOIN LATERAL jsonb_array_elements("+path+") " + alias + " ";
-		}
-		
-		return fromStatement;
+	protected void constructCrossJoinLateralFromStatementPath(SqlQuery search, String alias, String path) {
+		search.join(Join.lateralArrayElements(path, alias));
 	}
 
-
-	protected String constructFromWherePatients(String fromStatement, List<String> whereParameters, ReferenceAndListParam theReferenceParts) {
+	/**
+	 * Adds the patient conditions, and the joins their chains need, to search.
+	 * Returns false if a reference is to something other than a Patient, which
+	 * this search does not support.
+	 */
+	protected boolean constructFromWherePatients(SqlQuery search, ReferenceAndListParam theReferenceParts) {
 		if (theReferenceParts != null) {
 			for (ReferenceOrListParam theReferences : theReferenceParts.getValuesAsQueryTokens()) {
-				String whereOr = "";
+				List<BoundSql> whereOr = new ArrayList<BoundSql>();
 				for (ReferenceParam theReference : theReferences.getValuesAsQueryTokens()) {
 					if (theReference.getResourceType() != null && !"Patient".equals(theReference.getResourceType())) {
 						logger.warn("Unsupported resource found: " + theReference.getResourceType());
-						return "";
+						return false;
 					}
 
-					String where = constructPatientWhereParameter(theReference);
-					if (whereOr.isEmpty()) {
-						whereOr = where;
-					} else {
-						whereOr += " or " + where;
-					}
+					whereOr.add(constructPatientWhereParameter(theReference));
 					if (theReference.getChain() != null && !theReference.getChain().isEmpty()) {
-						fromStatement = constructFromStatementPatientChain(fromStatement, theReference.getChain());
+						constructFromStatementPatientChain(search, theReference.getChain());
 					}	
 				}
 
-				if (whereOr != null && !whereOr.isEmpty()) {
-					whereParameters.add(whereOr);
+				search.where(BoundSql.join(" OR ", whereOr));
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds the conditions of operation patient parameters (family, given, gender
+	 * and birthdate parts, comma separated) to search, which is on "patient p".
+	 */
+	protected void constructWherePatientParameters(SqlQuery search, List<ParametersParameterComponent> thePatients) {
+		for (ParametersParameterComponent thePatient : thePatients) {
+			for (ParametersParameterComponent patientParam : thePatient.getPart()) {
+				List<BoundSql> whereOr = new ArrayList<BoundSql>();
+				if (Patient.SP_FAMILY.equals(patientParam.getName())) {
+					// we have family value. Add name field to from statement
+					constructFromStatementPatientChain(search, Patient.SP_FAMILY);
+					for (String family : splitParameterValue(patientParam)) {
+						whereOr.add(constructLowerContainsWhere("names", "family", family));
+					}
+				} else if (Patient.SP_GIVEN.equals(patientParam.getName())) {
+					constructFromStatementPatientChain(search, Patient.SP_GIVEN);
+					for (String given : splitParameterValue(patientParam)) {
+						JsonArray givens = new JsonArray();
+						givens.add(given);
+						JsonObject name = new JsonObject();
+						name.add("given", givens);
+						whereOr.add(BoundSql.of("lower(names::text)::jsonb @> lower(?)::jsonb", name.toString()));
+					}
+				} else if (Patient.SP_GENDER.equals(patientParam.getName())) {
+					for (String gender : splitParameterValue(patientParam)) {
+						whereOr.add(BoundSql.of("p.resource->>'gender' = ?", gender));
+					}
+				} else if (Patient.SP_BIRTHDATE.equals(patientParam.getName())) {
+					StringType birthDate = (StringType) patientParam.getValue();
+					DateParam date = getDateParam(birthDate.asStringValue());
+					whereOr.add(constructDateWhereParameter(date, "p", "birthDate"));
 				}
+
+				search.where(BoundSql.join(" OR ", whereOr));
 			}
 		}
+	}
 
-		return fromStatement;
+	private static List<String> splitParameterValue(ParametersParameterComponent parameter) {
+		StringType value = (StringType) parameter.getValue();
+		if (value == null || value.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		return List.of(value.asStringValue().split(","));
 	}
-	
-	protected void addToWhereParemters(List<String> whereParameters, String where) {
-		for (String whereParameter : whereParameters) {
-			if (where.equals(whereParameter)) {
-				return;
-			}
+
+	/**
+	 * The tracking number condition on an extension element column for a
+	 * "system|value" token.
+	 */
+	protected static BoundSql constructTrackingNumberWhere(String column, String token) {
+		int barIndex = ParameterUtil.nonEscapedIndexOf(token, '|');
+		if (barIndex != -1) {
+			return constructTrackingNumberWhere(column, token.substring(0, barIndex),
+					ParameterUtil.unescape(token.substring(barIndex + 1)));
 		}
 
-		whereParameters.add(where);
+		return constructTrackingNumberWhere(column, null, ParameterUtil.unescape(token));
 	}
 
-	protected String constructTypesWhereParameter(TokenOrListParam theOrTypes) {
+	/**
+	 * The tracking number condition on an extension element column. A blank
+	 * system or value matches any.
+	 */
+	protected static BoundSql constructTrackingNumberWhere(String column, String system, String value) {
+		JsonArray typeCodings = new JsonArray();
+		typeCodings.add(jsonObject("system", ExtensionUtil.extTrackingNumberTypeSystem));
+		JsonObject type = new JsonObject();
+		type.add("coding", typeCodings);
+
+		JsonObject identifier = jsonObject("system", system == null || system.isBlank() ? null : system, "value",
+				value == null || value.isBlank() ? null : value);
+		identifier.add("type", type);
+
+		JsonObject extension = jsonObject("url", ExtensionUtil.extTrackingNumberUrl);
+		extension.add("valueIdentifier", identifier);
+
+		return constructContainsWhere(column, extension);
+	}
+
+	protected BoundSql constructTypesWhereParameter(TokenOrListParam theOrTypes) {
 		return constructTypesWhereParameter(theOrTypes, "system", "code");
 	}
 
-	protected String constructTypeToWhereParam(TokenParam type, String whereCodings, String systemName, String valueName) {
+	protected BoundSql constructTypeToWhereParam(TokenParam type, String systemName, String valueName) {
 		String system = type.getSystem();
 		String value = type.getValue();
 
-		if (whereCodings != null && !whereCodings.isEmpty()) {
-			whereCodings += " OR ";
-		} else {
-			whereCodings = "";
-		}
-		
 		if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-			whereCodings += "types @> '{\"" + systemName + "\": \"" + system + "\", \"" + valueName + "\": \"" + value + "\"}'::jsonb";
+			return constructContainsWhere("types", systemName, system, valueName, value);
 		} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-			whereCodings += "types @> '{\"" + systemName + "\": \"" + system + "\"}'::jsonb";
+			return constructContainsWhere("types", systemName, system);
 		} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-			whereCodings += "types @> '{\"" + valueName + "\": \"" + value + "\"}'::jsonb";
+			return constructContainsWhere("types", valueName, value);
 		} else {
-			whereCodings += "types @> '{\"" + systemName + "\": \"\", \"" + valueName + "\": \"\"}'::jsonb";
-		}
-
-		return whereCodings;
-	}
-
-	protected String constructTypesWhereParameter(TokenOrListParam theOrTypes, String systemName, String valueName) {
-		List<TokenParam> types = theOrTypes.getValuesAsQueryTokens();
-
-		String whereCodings = "";
-		if (!types.isEmpty()) {
-			for (TokenParam type : types) {
-				whereCodings = constructTypeToWhereParam(type, whereCodings, systemName, valueName);
-				// String system = type.getSystem();
-				// String value = type.getValue();
-
-				// if (!whereCodings.isEmpty()) {
-				// 	whereCodings += " OR ";
-				// }
-				// if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				// 	whereCodings += "types @> '{\"" + systemName + "\": \"" + system + "\", \"" + valueName + "\": \"" + value + "\"}'::jsonb";
-				// } else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				// 	whereCodings += "types @> '{\"" + systemName + "\": \"" + system + "\"}'::jsonb";
-				// } else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				// 	whereCodings += "types @> '{\"" + valueName + "\": \"" + value + "\"}'::jsonb";
-				// } else {
-				// 	whereCodings += "types @> '{\"" + systemName + "\": \"\", \"" + valueName + "\": \"\"}'::jsonb";
-				// }
-			}
-
-			if (!whereCodings.isEmpty()) {
-				whereCodings = "(" + whereCodings + ")";
-			}
+			return constructContainsWhere("types", systemName, "", valueName, "");
 		}
-		
-		return whereCodings;
-
 	}
 
-	protected String constructDateRangeWhereParameter(DateRangeParam theDateRange, String tableAlias, String column) {
-		String dateWhere = "";
-
-		DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-		if (theDateRange.getLowerBound() != null && !theDateRange.getLowerBound().isEmpty()
-			&& theDateRange.getUpperBound() != null && !theDateRange.getUpperBound().isEmpty()) {
-			// We have both lower and upper.
-			String lowerBound = formatter.format(theDateRange.getLowerBoundAsInstant());
-			String upperBound = formatter.format(theDateRange.getUpperBoundAsInstant());
-			dateWhere = tableAlias + ".resource->>'" + column + "' >= '" + lowerBound 
-				+ "' and " + tableAlias + ".resource->>'" + column + "' <= '" + upperBound + "'";
-		} else if (theDateRange.getLowerBound() != null && !theDateRange.getLowerBound().isEmpty()) {
-			String lowerBound = formatter.format(theDateRange.getLowerBoundAsInstant());
-			if (ParamPrefixEnum.GREATERTHAN_OR_EQUALS == theDateRange.getLowerBound().getPrefix()) {
-				dateWhere = tableAlias + ".resource->>'" + column + "' >= '" + lowerBound + "'";
-			} else if (ParamPrefixEnum.GREATERTHAN == theDateRange.getLowerBound().getPrefix()) {
-				dateWhere = tableAlias + ".resource->>'" + column + "' > '" + lowerBound + "'";
-			} else {
-				dateWhere = tableAlias + ".resource->>'" + column + "' = '" + lowerBound + "'";
-			}
-		} else {
-			String upperBound = formatter.format(theDateRange.getUpperBoundAsInstant());
-			if (ParamPrefixEnum.LESSTHAN_OR_EQUALS == theDateRange.getUpperBound().getPrefix()) {
-				dateWhere = tableAlias + ".resource->>'" + column + "' <= '" + upperBound + "'";
-			} else if (ParamPrefixEnum.LESSTHAN == theDateRange.getUpperBound().getPrefix()) {
-				dateWhere = tableAlias + ".resource->>'" + column + "' < '" + upperBound + "'";
-			} else {
-				dateWhere = tableAlias + ".resource->>'" + column + "' = '" + upperBound + "'";
-			}
+	protected BoundSql constructTypesWhereParameter(TokenOrListParam theOrTypes, String systemName, String valueName) {
+		List<BoundSql> whereCodings = new ArrayList<BoundSql>();
+		for (TokenParam type : theOrTypes.getValuesAsQueryTokens()) {
+			whereCodings.add(constructTypeToWhereParam(type, systemName, valueName));
 		}
 
-		return dateWhere;
+		return BoundSql.join(" OR ", whereCodings);
+	}
+
+	protected BoundSql constructDateRangeWhereParameter(DateRangeParam theDateRange, String tableAlias, String column) {
+		return constructDateRangeAliasPathWhere(theDateRange, tableAlias + ".resource", column);
 	}
 
-	protected String constructDateRangeAliasPathWhere(DateRangeParam theDateRange, String aliasPath, String column) {
-		String dateWhere = "";
+	protected BoundSql constructDateRangeAliasPathWhere(DateRangeParam theDateRange, String aliasPath, String column) {
+		String expression = aliasPath + "->>'" + column + "'";
 
 		DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
 		if (theDateRange.getLowerBound() != null && !theDateRange.getLowerBound().isEmpty()
@@ -340,331 +552,211 @@ public abstract class BaseResourceProvider implements IResourceProvider {
 			// We have both lower and upper.
 			String lowerBound = formatter.format(theDateRange.getLowerBoundAsInstant());
 			String upperBound = formatter.format(theDateRange.getUpperBoundAsInstant());
-			dateWhere = aliasPath + "->>'" + column + "' >= '" + lowerBound + "' and " + 
-						aliasPath + "->>'" + column + "' <= '" + upperBound + "'";
+			return BoundSql.of(expression + " >= ? and " + expression + " <= ?", lowerBound, upperBound);
 		} else if (theDateRange.getLowerBound() != null && !theDateRange.getLowerBound().isEmpty()) {
 			String lowerBound = formatter.format(theDateRange.getLowerBoundAsInstant());
 			if (ParamPrefixEnum.GREATERTHAN_OR_EQUALS == theDateRange.getLowerBound().getPrefix()) {
-				dateWhere = aliasPath + "->>'" + column + "' >= '" + lowerBound + "'";
+				return BoundSql.of(expression + " >= ?", lowerBound);
 			} else if (ParamPrefixEnum.GREATERTHAN == theDateRange.getLowerBound().getPrefix()) {
-				dateWhere = aliasPath + "->>'" + column + "' > '" + lowerBound + "'";
+				return BoundSql.of(expression + " > ?", lowerBound);
 			} else {
-				dateWhere = aliasPath + "->>'" + column + "' = '" + lowerBound + "'";
+				return BoundSql.of(expression + " = ?", lowerBound);
 			}
 		} else {
 			String upperBound = formatter.format(theDateRange.getUpperBoundAsInstant());
 			if (ParamPrefixEnum.LESSTHAN_OR_EQUALS == theDateRange.getUpperBound().getPrefix()) {
-				dateWhere = aliasPath + "->>'" + column + "' <= '" + upperBound + "'";
+				return BoundSql.of(expression + " <= ?", upperBound);
 			} else if (ParamPrefixEnum.LESSTHAN == theDateRange.getUpperBound().getPrefix()) {
-				dateWhere = aliasPath + "->>'" + column + "' < '" + upperBound + "'";
+				return BoundSql.of(expression + " < ?", upperBound);
 			} else {
-				dateWhere = aliasPath + "->>'" + column + "' = '" + upperBound + "'";
+				return BoundSql.of(expression + " = ?", upperBound);
 			}
 		}
-		return dateWhere;
 	}
 
-	protected String constructDateWhereParameter(DateParam theDate, String tableAlias, String column) {
-		Format formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		String dateString = formatter.format(theDate.getValue());
-		String inequality = "=";
-		if (ParamPrefixEnum.EQUAL == theDate.getPrefix()) {
-			inequality = "=";
-		} else if (ParamPrefixEnum.GREATERTHAN == theDate.getPrefix()) {
-			inequality = ">";
-		} else if (ParamPrefixEnum.GREATERTHAN_OR_EQUALS == theDate.getPrefix()) {
-			inequality = ">=";
-		} else if (ParamPrefixEnum.LESSTHAN == theDate.getPrefix()) {
-			inequality = "<";
-		} else if (ParamPrefixEnum.LESSTHAN_OR_EQUALS == theDate.getPrefix()) {
-			inequality = "<=";
-		}
-		
-		return tableAlias+".resource->>'"+column+"' " + inequality + " '" + dateString + "'";		
+	protected BoundSql constructDateWhereParameter(DateParam theDate, String tableAlias, String column) {
+		return constructDateTimeAliasPathWhere(theDate, tableAlias + ".resource", column);
 	}
 
-	protected String constructTimeAliasPathWhere(DateParam theDate, String aliasPath, String column) {
+	protected BoundSql constructTimeAliasPathWhere(DateParam theDate, String aliasPath, String column) {
 		Format formatter = new SimpleDateFormat("HH:mm:ss");
-		String dateString = formatter.format(theDate.getValue());
-		String inequality = "=";
-		if (ParamPrefixEnum.EQUAL == theDate.getPrefix()) {
-			inequality = "=";
-		} else if (ParamPrefixEnum.GREATERTHAN == theDate.getPrefix()) {
-			inequality = ">";
-		} else if (ParamPrefixEnum.GREATERTHAN_OR_EQUALS == theDate.getPrefix()) {
-			inequality = ">=";
-		} else if (ParamPrefixEnum.LESSTHAN == theDate.getPrefix()) {
-			inequality = "<";
-		} else if (ParamPrefixEnum.LESSTHAN_OR_EQUALS == theDate.getPrefix()) {
-			inequality = "<=";
-		}
-		
-		return aliasPath+"->>'"+column+"' " + inequality + " '" + dateString + "'";		
+		return BoundSql.of(aliasPath + "->>'" + column + "' " + inequality(theDate) + " ?",
+				formatter.format(theDate.getValue()));
 	}
 
-	protected String constructDateTimeAliasPathWhere(DateParam theDate, String aliasPath, String column) {
+	protected BoundSql constructDateTimeAliasPathWhere(DateParam theDate, String aliasPath, String column) {
 		Format formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		String dateString = formatter.format(theDate.getValue());
-		String inequality = "=";
-		if (ParamPrefixEnum.EQUAL == theDate.getPrefix()) {
-			inequality = "=";
-		} else if (ParamPrefixEnum.GREATERTHAN == theDate.getPrefix()) {
-			inequality = ">";
+		return BoundSql.of(aliasPath + "->>'" + column + "' " + inequality(theDate) + " ?",
+				formatter.format(theDate.getValue()));
+	}
+
+	private static String inequality(DateParam theDate) {
+		if (ParamPrefixEnum.GREATERTHAN == theDate.getPrefix()) {
+			return ">";
 		} else if (ParamPrefixEnum.GREATERTHAN_OR_EQUALS == theDate.getPrefix()) {
-			inequality = ">=";
+			return ">=";
 		} else if (ParamPrefixEnum.LESSTHAN == theDate.getPrefix()) {
-			inequality = "<";
+			return "<";
 		} else if (ParamPrefixEnum.LESSTHAN_OR_EQUALS == theDate.getPrefix()) {
-			inequality = "<=";
+			return "<=";
 		}
-		
-		return aliasPath+"->>'"+column+"' " + inequality + " '" + dateString + "'";		
+
+		return "=";
 	}
 
-	protected String constructDatePeriodWhereParameter(Date startDate, Date endDate, String tableAlias, String column) {
+	protected BoundSql constructDatePeriodWhereParameter(Date startDate, Date endDate, String tableAlias, String column) {
 		Format formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		String where = "";
+		List<BoundSql> where = new ArrayList<BoundSql>();
 		if (startDate != null) {
-			String startDateString = formatter.format(startDate);
-			where += tableAlias + ".resource->>'" + column + "' >= '" + startDateString + "'";
+			where.add(BoundSql.of(tableAlias + ".resource->>'" + column + "' >= ?", formatter.format(startDate)));
 		}
 		
 		if (endDate != null) {
-			String endDateString = formatter.format(endDate);
-			if (where != null && !where.isEmpty()) {
-				where += " AND ";
-			}
-			where += tableAlias + ".resource->>'" + column + "' <= '" + endDateString + "'";
+			where.add(BoundSql.of(tableAlias + ".resource->>'" + column + "' <= ?", formatter.format(endDate)));
 		}
 		
-		return where;
+		return BoundSql.join(" AND ", where);
 	}
 
-	protected String constructReferenceWhereParameter(ReferenceParam theSource, String tableAlias, String column) {
+	protected BoundSql constructReferenceWhereParameter(ReferenceParam theSource, String tableAlias, String column) {
 		if (theSource != null) {
 			if (theSource.getResourceType() != null) { 
-				return tableAlias + ".resource->'" + column + "'->>'reference' like '%" + theSource.getValue() + "%'";
+				return BoundSql.of(tableAlias + ".resource->'" + column + "'->>'reference' like ?",
+						"%" + theSource.getValue() + "%");
 			} 
 		}
 		return null;
 	}
 
-	protected String constructCanonicalWhereParameter(ReferenceParam theSource, String tableAlias, String column) {
+	protected BoundSql constructCanonicalWhereParameter(ReferenceParam theSource, String tableAlias, String column) {
 		if (theSource != null) {
 			if (theSource.getResourceType() != null) { 
-				return tableAlias + ".resource->>'" + column + "' like '%" + theSource.getValue() + "%'";
+				return BoundSql.of(tableAlias + ".resource->>'" + column + "' like ?", "%" + theSource.getValue() + "%");
 			} 
 		}
 		return null;
 	}
 	
-	protected String constructPatientWhereParameter(ReferenceParam thePatient) {
-		String where = "";
-
-		if (thePatient != null) {
-			String theValue = thePatient.getValue();
-
-			String patientChain = thePatient.getChain();
-			if (patientChain != null) {
-				String[] patientChainWithModifier = patientChain.split(":");
-				String modifier = null;
-				if (patientChainWithModifier.length > 1) {
-					patientChain = patientChainWithModifier[0];
-					modifier = patientChainWithModifier[1];
-				}
-				if (USCorePatient.SP_NAME.equals(patientChain)) {
-					// check if we have modifier.
-					String nameSearching = "";
-					if ("missing".equalsIgnoreCase(modifier)) {
-						if ("true".equalsIgnoreCase(theValue)) {
-							nameSearching = "p.resource->'name' is null OR (" +
-								"COALESCE(TRIM(names->>'family'), '') = '' AND " +
-								"COALESCE(TRIM(names->>'given'), '') = '' AND " +
-								"COALESCE(TRIM(names->>'text'), '') = '' AND " +
-								"COALESCE(TRIM(names->>'prefix'), '') = '' AND " +
-								"COALESCE(TRIM(names->>'suffix'), '') = ''" +
-								")";
-						} else {
-							nameSearching = "p.resource->'name' is not null AND (" +
-								"COALESCE(TRIM(names->>'family'), '') != '' OR " +
-								"COALESCE(TRIM(names->>'given'), '') != '' OR " +
-								"COALESCE(TRIM(names->>'text'), '') != '' OR " +
-								"COALESCE(TRIM(names->>'prefix'), '') != '' OR " +
-								"COALESCE(TRIM(names->>'suffix'), '') != ''" +
-								")";
-						}
-					} else {
-						nameSearching = 
-							"lower(names->>'family') like lower('%" + theValue + "%') OR " +
-							"lower(names->>'given') like lower('%" + theValue + "%') OR " +
-							"lower(names->>'text') like lower('%" + theValue + "%') OR " +
-							"lower(names->>'prefix') like lower('%" + theValue + "%') OR " +
-							"lower(names->>'suffix') like lower('%" + theValue + "%')";
-					}
-					if (where.isEmpty()) {
-						where = "("+ nameSearching +")";
- 					} else {
-						where += " and ("+ nameSearching +")";
-					}
-				} else if (USCorePatient.SP_ADDRESS_CITY.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "lower(addresses::text)::jsonb @> lower('{\"city\":\""+ theValue +"\"}')::jsonb";
- 					} else {
-						where += " and lower(addresses::text)::jsonb @> lower('{\"city\":\""+ theValue +"\"}')::jsonb";
-					}
-				} else if (USCorePatient.SP_ADDRESS_COUNTRY.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "lower(addresses::text)::jsonb @> lower('{\"country\":\""+ theValue +"\"}')::jsonb";
- 					} else {
-						where += " and lower(addresses::text)::jsonb @> lower('{\"country\":\""+ theValue +"\"}')::jsonb";
-					}
-				} else if (USCorePatient.SP_ADDRESS_POSTALCODE.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "addresses @> '{\"postalCode\":\""+ theValue +"\"}'";
- 					} else {
-						where += " and addresses @> '{\"postalCode\":\""+ theValue +"\"}'";
-					}
-				} else if (USCorePatient.SP_ADDRESS_STATE.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "lower(addresses::text)::jsonb @> lower('{\"state\":\""+ theValue +"\"}')::jsonb";
- 					} else {
-						where += " and lower(addresses::text)::jsonb @> lower('{\"state\":\""+ theValue +"\"}')::jsonb";
-					}
-				} else if (USCorePatient.SP_ADDRESS_USE.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "addresses @> '{\"use\":\""+ theValue +"\"}'";
- 					} else {
-						where += " and addresses @> '{\"use\":\""+ theValue +"\"}'";
-					}
-				} else if (USCorePatient.SP_BIRTHDATE.equals(patientChain)) {
-					DateParam theDateParam = thePatient.toDateParam(getFhirContext());
-					String birthDateWhere = constructDateWhereParameter(theDateParam, "patient", "birthDate");
-					if (where.isEmpty()) {
-						where = birthDateWhere;
- 					} else {
-						where += " and " + birthDateWhere;
-					}
-				} else if (USCorePatient.SP_DEATH_DATE.equals(patientChain)) {
-					DateParam theDateParam = thePatient.toDateParam(getFhirContext());
-					String deathDateWhere = constructDateWhereParameter(theDateParam, "patient", "deceasedDateTime");
-					if (where.isEmpty()) {
-						where = deathDateWhere;
- 					} else {
-						where += " and " + deathDateWhere;
-					}
-				} else if (USCorePatient.SP_EMAIL.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "lower(telecoms::text)::jsonb @> lower('{\"system\":\"email\", \"value\":\""+ theValue +"\"}')::jsonb";
- 					} else {
-						where += " and lower(telecoms::text)::jsonb @> lower('{\"system\":\"email\", \"value\":\""+ theValue +"\"}')::jsonb";
-					}
-				} else if (USCorePatient.SP_FAMILY.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "lower(names::text)::jsonb @> lower('{\"family\":\""+ theValue +"\"}')::jsonb";
- 					} else {
-						where += " and lower(names::text)::jsonb @> lower('{\"family\":\""+ theValue +"\"}')::jsonb";
-					}
-				} else if (USCorePatient.SP_GENDER.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "p.resource->>'gender' = " + "'" + theValue + "'";
- 					} else {
-						where += " and p.resource->>'gender' = " + "'" + theValue + "'";
-					}
-				} else if (USCorePatient.SP_GIVEN.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "lower(names::text)::jsonb @> lower('{\"given\":[\""+ theValue + "\"]}')::jsonb";
- 					} else {
-						where += " and lower(names::text)::jsonb @> lower('{\"given\":[\""+ theValue + "\"]}')::jsonb";
-					}
-				} else if (USCorePatient.SP_PHONE.equals(patientChain)) {
-					if (where.isEmpty()) {
-						where = "telecoms @> '{\"system\":\"phone\", \"value\":\""+ theValue +"\"}'";
- 					} else {
-						where += " and telecoms @> '{\"system\":\"phone\", \"value\":\""+ theValue +"\"}'";
-					}
-				} else if (USCorePatient.SP_TELECOM.equals(patientChain)) {
-					TokenParam tokenPatient = thePatient.toTokenParam(getFhirContext());
-					if (where.isEmpty()) {
-						where = "lower(telecoms::text)::jsonb @> lower('{\"system\":\"" + tokenPatient.getSystem() + "\", \"value\":\""+ tokenPatient.getValue() +"\"}')::jsonb";
- 					} else {
-						where += " and lower(telecoms::text)::jsonb @> lower('{\"system\":\"" + tokenPatient.getSystem() + "\", \"value\":\""+ tokenPatient.getValue() +"\"}')::jsonb";
-					}
-				} else if (USCorePatient.SP_IDENTIFIER.equals(patientChain)) {
-					TokenParam identifierToken = thePatient.toTokenParam(getFhirContext());
-					if (where.isEmpty()) {
-						where = "identifiers @> '{\"system\":\"" + identifierToken.getSystem() + "\", \"value\":\""+ identifierToken.getValue() +"\"}'";
- 					} else {
-						where += " and identifiers @> '{\"system\":\"" + identifierToken.getSystem() + "\", \"value\":\""+ identifierToken.getValue() +"\"}'";
-					}
-				}
-			} else {
-				where = "p.resource->>'id' like '" + thePatient.getIdPart() + "'";
-			}
+	protected BoundSql constructPatientWhereParameter(ReferenceParam thePatient) {
+		if (thePatient == null) {
+			return BoundSql.empty();
 		}
 
-		return where;
-	}
-
-	protected String constructCodeWhereParameter(TokenOrListParam theOrCodes) {
-		List<TokenParam> codes = theOrCodes.getValuesAsQueryTokens();
+		String theValue = thePatient.getValue();
 
-		String whereCodings = "";
-		if (!codes.isEmpty()) {
-			for (TokenParam code : codes) {
-				String system = code.getSystem();
-				String value = code.getValue();
+		String patientChain = thePatient.getChain();
+		if (patientChain == null) {
+			return BoundSql.of("p.resource->>'id' like ?", thePatient.getIdPart());
+		}
 
-				if (!whereCodings.isEmpty()) {
-					whereCodings += " OR ";
-				}
-				if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-					whereCodings += "codings @> '{\"system\": \"" + system + "\", \"code\": \"" + value + "\"}'::jsonb";
-				} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-					whereCodings += "codings @> '{\"system\": \"" + system + "\"}'::jsonb";
-				} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-					whereCodings += "codings @> '{\"code\": \"" + value + "\"}'::jsonb";
+		String[] patientChainWithModifier = patientChain.split(":");
+		String modifier = null;
+		if (patientChainWithModifier.length > 1) {
+			patientChain = patientChainWithModifier[0];
+			modifier = patientChainWithModifier[1];
+		}
+		if (USCorePatient.SP_NAME.equals(patientChain)) {
+			// check if we have modifier.
+			if ("missing".equalsIgnoreCase(modifier)) {
+				if ("true".equalsIgnoreCase(theValue)) {
+					return BoundSql.of("p.resource->'name' is null OR (" +
+						"COALESCE(TRIM(names->>'family'), '') = '' AND " +
+						"COALESCE(TRIM(names->>'given'), '') = '' AND " +
+						"COALESCE(TRIM(names->>'text'), '') = '' AND " +
+						"COALESCE(TRIM(names->>'prefix'), '') = '' AND " +
+						"COALESCE(TRIM(names->>'suffix'), '') = ''" +
+						")");
 				} else {
-					whereCodings += "codings @> '{\"system\": \"\", \"code\": \"\"}'::jsonb";
+					return BoundSql.of("p.resource->'name' is not null AND (" +
+						"COALESCE(TRIM(names->>'family'), '') != '' OR " +
+						"COALESCE(TRIM(names->>'given'), '') != '' OR " +
+						"COALESCE(TRIM(names->>'text'), '') != '' OR " +
+						"COALESCE(TRIM(names->>'prefix'), '') != '' OR " +
+						"COALESCE(TRIM(names->>'suffix'), '') != ''" +
+						")");
 				}
 			}
 
-			if (!whereCodings.isEmpty()) {
-				whereCodings = "(" + whereCodings + ")";
-			}
+			String like = "%" + theValue + "%";
+			return BoundSql.of(
+				"lower(names->>'family') like lower(?) OR " +
+				"lower(names->>'given') like lower(?) OR " +
+				"lower(names->>'text') like lower(?) OR " +
+				"lower(names->>'prefix') like lower(?) OR " +
+				"lower(names->>'suffix') like lower(?)", like, like, like, like, like);
+		} else if (USCorePatient.SP_ADDRESS_CITY.equals(patientChain)) {
+			return constructLowerContainsWhere("addresses", "city", theValue);
+		} else if (USCorePatient.SP_ADDRESS_COUNTRY.equals(patientChain)) {
+			return constructLowerContainsWhere("addresses", "country", theValue);
+		} else if (USCorePatient.SP_ADDRESS_POSTALCODE.equals(patientChain)) {
+			return constructContainsWhere("addresses", "postalCode", theValue);
+		} else if (USCorePatient.SP_ADDRESS_STATE.equals(patientChain)) {
+			return constructLowerContainsWhere("addresses", "state", theValue);
+		} else if (USCorePatient.SP_ADDRESS_USE.equals(patientChain)) {
+			return constructContainsWhere("addresses", "use", theValue);
+		} else if (USCorePatient.SP_BIRTHDATE.equals(patientChain)) {
+			DateParam theDateParam = thePatient.toDateParam(getFhirContext());
+			return constructDateWhereParameter(theDateParam, "patient", "birthDate");
+		} else if (USCorePatient.SP_DEATH_DATE.equals(patientChain)) {
+			DateParam theDateParam = thePatient.toDateParam(getFhirContext());
+			return constructDateWhereParameter(theDateParam, "patient", "deceasedDateTime");
+		} else if (USCorePatient.SP_EMAIL.equals(patientChain)) {
+			return constructLowerContainsWhere("telecoms", "system", "email", "value", theValue);
+		} else if (USCorePatient.SP_FAMILY.equals(patientChain)) {
+			return constructLowerContainsWhere("names", "family", theValue);
+		} else if (USCorePatient.SP_GENDER.equals(patientChain)) {
+			return BoundSql.of("p.resource->>'gender' = ?", theValue);
+		} else if (USCorePatient.SP_GIVEN.equals(patientChain)) {
+			JsonObject given = new JsonObject();
+			JsonArray givenNames = new JsonArray();
+			givenNames.add(theValue);
+			given.add("given", givenNames);
+			return BoundSql.of("lower(names::text)::jsonb @> lower(?)::jsonb", given.toString());
+		} else if (USCorePatient.SP_PHONE.equals(patientChain)) {
+			return constructContainsWhere("telecoms", "system", "phone", "value", theValue);
+		} else if (USCorePatient.SP_TELECOM.equals(patientChain)) {
+			TokenParam tokenPatient = thePatient.toTokenParam(getFhirContext());
+			return constructLowerContainsWhere("telecoms", "system", tokenPatient.getSystem(), "value",
+					tokenPatient.getValue());
+		} else if (USCorePatient.SP_IDENTIFIER.equals(patientChain)) {
+			TokenParam identifierToken = thePatient.toTokenParam(getFhirContext());
+			return constructContainsWhere("identifiers", "system", identifierToken.getSystem(), "value",
+					identifierToken.getValue());
 		}
 
-		return whereCodings;
+		return BoundSql.empty();
 	}
 
-	protected String constructIdentifierWhereParameter(TokenOrListParam theOrIdentifiers) {
-		List<TokenParam> identifiers = theOrIdentifiers.getValuesAsQueryTokens();
+	protected BoundSql constructCodeWhereParameter(TokenOrListParam theOrCodes) {
+		return constructTokenWhereParameter(theOrCodes, "codings", "code");
+	}
 
-		String whereCodings = "";
-		if (!identifiers.isEmpty()) {
-			for (TokenParam identifier : identifiers) {
-				String system = identifier.getSystem();
-				String value = identifier.getValue();
+	protected BoundSql constructIdentifierWhereParameter(TokenOrListParam theOrIdentifiers) {
+		return constructTokenWhereParameter(theOrIdentifiers, "identifiers", "value");
+	}
 
-				if (!whereCodings.isEmpty()) {
-					whereCodings += " OR ";
-				}
-				if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-					whereCodings += "identifiers @> '{\"system\": \"" + system + "\", \"value\": \"" + value + "\"}'::jsonb";
-				} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-					whereCodings += "identifiers @> '{\"system\": \"" + system + "\"}'::jsonb";
-				} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-					whereCodings += "identifiers @> '{\"value\": \"" + value + "\"}'::jsonb";
-				} else {
-					whereCodings += "identifiers @> '{\"system\": \"\", \"value\": \"\"}'::jsonb";
-				}
-			}
+	/**
+	 * "column @> ?::jsonb" for each system|value token, ORed. valueName is the
+	 * JSON key of the value, such as "code" for a Coding.
+	 */
+	protected BoundSql constructTokenWhereParameter(TokenOrListParam theOrTokens, String column, String valueName) {
+		List<BoundSql> where = new ArrayList<BoundSql>();
+		for (TokenParam token : theOrTokens.getValuesAsQueryTokens()) {
+			String system = token.getSystem();
+			String value = token.getValue();
 
-			if (!whereCodings.isEmpty()) {
-				whereCodings = "(" + whereCodings + ")";
+			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
+				where.add(constructContainsWhere(column, "system", system, valueName, value));
+			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
+				where.add(constructContainsWhere(column, "system", system));
+			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
+				where.add(constructContainsWhere(column, valueName, value));
+			} else {
+				where.add(constructContainsWhere(column, "system", "", valueName, ""));
 			}
 		}
 
-		return whereCodings;
+		return BoundSql.join(" OR ", where);
 	}
 
 	protected boolean addTokenToIdentifierQuery (IQuery<IBaseBundle> query, TokenClientParam clientParam, StringOrListParam theTokenList) {
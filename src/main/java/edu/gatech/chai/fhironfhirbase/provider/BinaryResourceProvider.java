@@ -40,9 +40,11 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -58,8 +60,7 @@ public class BinaryResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -81,13 +82,11 @@ public class BinaryResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdBinary.getIdElement());
 			retVal.setResource(createdBinary);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -95,16 +94,15 @@ public class BinaryResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteBinary(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readBinary(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -137,23 +135,17 @@ public class BinaryResourceProvider extends BaseResourceProvider {
 
 	@Search()
 	public IBundleProvider findDocumentReferenceByIds(
-			@OptionalParam(name = Binary.SP_RES_ID) TokenOrListParam theBinaryIds) {
+			@OptionalParam(name = Binary.SP_RES_ID) TokenOrListParam theBinaryIds,
+			SearchTotalModeEnum theTotalMode) {
 
-		String whereStatement = "";
+		SqlQuery search = SqlQuery.from("\"binary\" b");
 		if (theBinaryIds != null) {
-			whereStatement = " WHERE ";
-			for (TokenParam theBinaryId : theBinaryIds.getValuesAsQueryTokens()) {
-				whereStatement += "b.id = '" + theBinaryId.getValue() + "' OR ";
-			}
-
-			whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+			search.where(constructIdWhereParameter("b.id", theBinaryIds));
 		}
 
-		String queryCount = "SELECT count(*) FROM \"binary\" b" + whereStatement;
-		String query = "SELECT * FROM \"binary\" b" + whereStatement;
-
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("b.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -162,8 +154,8 @@ public class BinaryResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -173,13 +165,10 @@ public class BinaryResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 			
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
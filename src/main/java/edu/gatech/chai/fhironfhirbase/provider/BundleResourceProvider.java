@@ -49,6 +49,7 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -56,6 +57,8 @@ import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 /**
@@ -76,8 +79,7 @@ public class BundleResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -107,14 +109,12 @@ public class BundleResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdBundle.getIdElement());
 			retVal.setResource(createdBundle);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-
 		return retVal;
 	}
 
@@ -130,7 +130,7 @@ public class BundleResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readBundle(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 
@@ -170,13 +170,12 @@ public class BundleResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteBundle(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -203,15 +202,15 @@ public class BundleResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = Bundle.SP_COMPOSITION) ReferenceOrListParam theDocuments,
 			@OptionalParam(name = Bundle.SP_MESSAGE) ReferenceOrListParam theMessages,
 			@OptionalParam(name = Bundle.SP_TYPE) TokenOrListParam theTypes,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "bundle b";
+		SqlQuery search = SqlQuery.from("bundle b");
 
 		if (theBundleId != null) {
-			whereParameters.add("b.id = '" + theBundleId.getValue() + "'");
+			search.where("b.id = ?", theBundleId.getValue());
 			returnAll = false;
 		}
 
@@ -220,95 +219,80 @@ public class BundleResourceProvider extends BaseResourceProvider {
 			String value = theBundleIdentifier.getValue();
 
 			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				whereParameters.add("b.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-						+ system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("b.resource->'identifier'", "value", value, "system", system));
 			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				whereParameters.add("b.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("b.resource->'identifier'", "system", system));
 			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				whereParameters.add("b.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("b.resource->'identifier'", "value", value));
 			}
 			returnAll = false;
 		}
 
 		if (theDocuments != null) {
-			String documentEntries = "";
+			List<BoundSql> documentEntries = new ArrayList<BoundSql>();
 			for (ReferenceParam documentReference : theDocuments.getValuesAsQueryTokens()) {
-				if (!documentEntries.isEmpty()) {
-					documentEntries += " OR ";
-				}
-
 				String documentId = documentReference.getIdPart();
 
 				// documentEntries += "b.resource->'entry'->0->>'fullUrl' like '%" + documentId + "%'";
-				documentEntries += "b.resource->'entry'->0->'resource'->>'id' = '" + documentId + "'";
+				documentEntries.add(BoundSql.of("b.resource->'entry'->0->'resource'->>'id' = ?", documentId));
 			}
 
 			if (!documentEntries.isEmpty()) {
-				whereParameters.add("b.resource->'entry'->0->'resource'->>'resourceType' = 'Composition'");
-				whereParameters.add("b.resource->>'type' = 'document'");
-				whereParameters.add(documentEntries);
+				search.where("b.resource->'entry'->0->'resource'->>'resourceType' = 'Composition'");
+				search.where("b.resource->>'type' = 'document'");
+				search.where(BoundSql.join(" OR ", documentEntries));
 
 				returnAll = false;
 			}
 		}
 
 		if (theMessages != null) {
-			String messageEntries = "";
+			List<BoundSql> messageEntries = new ArrayList<BoundSql>();
 			for (ReferenceParam messageReference : theMessages.getValuesAsQueryTokens()) {
-				if (!messageEntries.isEmpty()) {
-					messageEntries += " OR ";
-				}
-
 				String messageId = messageReference.getIdPart();
 
-				messageEntries += "b.resource->'entry'->0->'resource'->>'id' = '" + messageId + "'";
+				messageEntries.add(BoundSql.of("b.resource->'entry'->0->'resource'->>'id' = ?", messageId));
 			}
 
 			if (!messageEntries.isEmpty()) {
-				whereParameters.add("b.resource->'entry'->0->'resource'->>'resourceType' = 'MessageHeader'");
-				whereParameters.add("b.resource->>'type' = 'message'");
-				whereParameters.add(messageEntries);
+				search.where("b.resource->'entry'->0->'resource'->>'resourceType' = 'MessageHeader'");
+				search.where("b.resource->>'type' = 'message'");
+				search.where(BoundSql.join(" OR ", messageEntries));
 
 				returnAll = false;
 			}
 		}
 
 		if (theTypes != null) {
-			String typeOr = "";
+			List<BoundSql> typeOr = new ArrayList<BoundSql>();
 			for (TokenParam type : theTypes.getValuesAsQueryTokens()) {
 				String typeUrl = type.getSystem();
 				if (typeUrl != null && !typeUrl.isBlank()) {
 					// Search Raven extension type code.
-					fromStatement = constructFromStatementPath(fromStatement, "types", "b.resource->'_type'->'extension'");
-					typeOr = constructTypeToWhereParam(type, typeOr,  "url", "valueCode");
+					constructFromStatementPath(search, "types", "b.resource->'_type'->'extension'");
+					typeOr.add(constructTypeToWhereParam(type, "url", "valueCode"));
 				} else {
-					if (typeOr.isBlank()) {
-						typeOr = "b.resource->>'type' = '" + type.getValue() + "'";
-					} else {
-						typeOr += " or b.resource->>'type' = '" + type.getValue() + "'";
-					}	
+					typeOr.add(BoundSql.of("b.resource->>'type' = ?", type.getValue()));
 				}
 			}
 
 			// extended code search
-			if (!typeOr.isBlank()) {
-				typeOr = "(" + typeOr + ")";
-				whereParameters.add(typeOr);
+			if (!typeOr.isEmpty()) {
+				search.where(BoundSql.join(" OR ", typeOr));
 				returnAll = false;
 			}
 		}
 
 		// Complete Query.
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		search.orderBy(constructOrderParams(theSort));
+
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("b.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -341,8 +325,8 @@ public class BundleResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -352,13 +336,10 @@ public class BundleResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retv = new ArrayList<IBaseResource>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retv.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retv.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -3,7 +3,9 @@ package edu.gatech.chai.fhironfhirbase.provider;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -12,6 +14,7 @@ import jakarta.annotation.PostConstruct;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
@@ -45,6 +48,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.Include;
@@ -64,6 +68,7 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -82,6 +87,10 @@ import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
+import edu.gatech.chai.fhironfhirbase.operation.ReferenceResolver;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 import edu.gatech.chai.fhironfhirbase.utilities.MdiProfileUtil;
@@ -92,6 +101,10 @@ import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
 @Scope("prototype")
 public class CompositionResourceProvider extends BaseResourceProvider {
 	private static final Logger logger = LoggerFactory.getLogger(CompositionResourceProvider.class);
+
+	@Autowired
+	private ReferenceResolver referenceResolver;
+
 	public static final String NQ_EVENT_DETAIL = "event-detail";
 
 	/**
@@ -213,8 +226,7 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -236,57 +248,47 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdObservation.getIdElement());
 			retVal.setResource(createdObservation);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-
 		return retVal;
 	}
 
 	@Delete()
 	public void deleteComposition(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
 	@Search()
 	public IBundleProvider findCompositionsById(
 			@RequiredParam(name = Composition.SP_RES_ID) TokenOrListParam theCompositionIds, @Sort SortSpec theSort,
-			@IncludeParam(allow = { "Composition:subject" }) final Set<Include> theIncludes) {
+			@IncludeParam(allow = { "Composition:subject" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theCompositionIds == null) {
 			return null;
 		}
 
-		String selectStatement = "comp.resource as resource ";
-		String fromStatement = getTableName() + " comp ";
+		SqlQuery search = SqlQuery.from(getTableName() + " comp").select("comp.resource as resource");
 		if (theIncludes != null && theIncludes.contains(new Include("Composition:subject"))) {
-			selectStatement += ", p.resource as subject ";
-			fromStatement += " join patient p on comp.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id') ";
+			search.select("comp.resource as resource, p.resource as subject");
+			search.join(Join.inner("patient", "p", "comp.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 		} 
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theComposition : theCompositionIds.getValuesAsQueryTokens()) {
-			whereStatement += "comp.id = '" + theComposition.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT " + selectStatement + "FROM " + fromStatement + whereStatement;
+		search.where(constructIdWhereParameter("comp.id", theCompositionIds));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("comp.id");
+		submitSearch(myBundleProvider, theTotalMode, theIncludes);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -333,13 +335,12 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 					USCorePatient.SP_IDENTIFIER }) ReferenceAndListParam theSubjects,
 			@OptionalParam(name = CompositionResourceProvider.SP_MANNER_OF_DEATH) TokenOrListParam theMannerOfDeath,
 			@Sort SortSpec theSort,
-			@IncludeParam(allow = { "Composition:subject" }) final Set<Include> theIncludes) {
-
-		List<String> withStatements = new ArrayList<String>();
+			@IncludeParam(allow = { "Composition:subject" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> withCompWhereParameters = new ArrayList<String>();
-		// String withCompSelectStatement = "SELECT DISTINCT comp.id, comp.resource, comp.resource->'subject'->>'reference' as subject_ref";
-		String withCompFromStatement = getTableName() + " comp ";
+		SqlQuery search = SqlQuery.from("filtered_compositions fc").select("fc.resource as resource");
+		SqlQuery compositions = SqlQuery.from(getTableName() + " comp")
+				.select("DISTINCT ON (comp.id) comp.id, comp.resource, comp.resource->'subject'->>'reference' as subject_ref");
 
 		// Set up join statements.
 		// if (theSubjects != null || thePatients != null) {
@@ -352,269 +353,80 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 		// boolean returnAll = true;
 
 		if (theSubjects != null || thePatients != null) {
-			String myFromStatement = "FROM patient p ";
-			List<String> myWhereParameters = new ArrayList<String>();
-			String updatedFromStatement = constructFromWherePatients(myFromStatement, myWhereParameters, theSubjects);
-			updatedFromStatement = constructFromWherePatients(updatedFromStatement, myWhereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			SqlQuery patients = SqlQuery.from("patient p").select("DISTINCT p.id");
+			if (!constructFromWherePatients(patients, theSubjects) || !constructFromWherePatients(patients, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we
 				// should discard all and
 				// return null.
 				return null;
 			}
 
-			String myWhereStatement = "WHERE ";
-			for (String myWhereParameter : myWhereParameters) {
-				myWhereStatement += myWhereParameter + " AND ";
-			}
-
-			myWhereStatement = myWhereStatement.substring(0, myWhereStatement.length() - 5);
-			
-			withStatements.add("filtered_patients AS (" + //
-					"    SELECT DISTINCT p.id " + 
-					updatedFromStatement + " " +
-					myWhereStatement + ")");
-
-			withCompWhereParameters.add("EXISTS ( SELECT 1 FROM filtered_patients fp WHERE comp.resource->'subject'->>'reference' = 'Patient/' || fp.id)");
+			search.with("filtered_patients", patients.build());
+			compositions.where("EXISTS ( SELECT 1 FROM filtered_patients fp WHERE comp.resource->'subject'->>'reference' = 'Patient/' || fp.id)");
 			// returnAll = false;
 		}
 
 		if (theDeathLocations != null) {
-			String districtOrWhere = null;
-			for (StringParam theDeathLocation : theDeathLocations.getValuesAsQueryTokens()) {
-				String districtOrWhere_ = "lower(l.resource->'address'->>'city') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'state') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'district') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'postalCode') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'country') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				if (districtOrWhere == null || districtOrWhere.isEmpty()) {
-					districtOrWhere = districtOrWhere_;
-				} else {
-					districtOrWhere += " or " + districtOrWhere_;
-				}
-			}
-
-			withStatements.add("filtered_dl_locations AS (" + 
-					"    SELECT DISTINCT l.id" + 
-					"    FROM location l" + 
-					"    WHERE " + districtOrWhere + ")");
-
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			withCompWhereParameters.add("codings @> '{\"code\": \"circumstances\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_dl_locations fdll WHERE entries->>'reference' = 'Location/' || fdll.id)");
-
+			withDeathLocations(search, compositions, theDeathLocations);
 		}
 
 		// Death Date Pronounced
 		if (thePronouncedDeathDate != null) {
-			String myStatement = "";
-			// where value of input dates.
-			for (DateParam dateParam : thePronouncedDeathDate.getValuesAsQueryTokens()) {
-				myStatement += constructDateWhereParameter(dateParam, "component", "valueDateTime") + " AND ";
-			}
-			myStatement = myStatement.substring(0, myStatement.length() - 5);
-
-			// we want manner of death observation. So, check the code of Observations and
-			// choose one for manner of death.
-			withStatements.add("filtered_pdd_observations AS (" + 
-					"    SELECT DISTINCT o.id" + 
-					"    FROM observation o" + 
-					"         CROSS JOIN LATERAL jsonb_array_elements(o.resource->'component') component" +
-					"         CROSS JOIN LATERAL jsonb_array_elements(component->'code'->'coding') component_codings" +
-					"    WHERE EXISTS (" + 
-					"        SELECT 1" + 
-					"        FROM jsonb_array_elements(o.resource->'code'->'coding') c" + 
-					"        WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"81956-5\"}'::jsonb" + 
-					"          ) AND (" + "component_codings @> '{\"system\": \"http://loinc.org\", \"code\": \"80616-6\"}'::jsonb" +
-					"          } AND (" + myStatement + "))");
-
-
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-			
-			withCompWhereParameters.add("codings @> '{\"code\": \"jurisdiction\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_pdd_observations fddo WHERE entries->>'reference' = 'Observation/' || fddo.id)");
+			withPronouncedDeathDates(search, compositions, thePronouncedDeathDate.getValuesAsQueryTokens());
 		}
 
 		if (theDeathDate != null) {
-			String myStatement = "";
-
-			// where value of input dates.
-			for (DateParam dateParam : theDeathDate.getValuesAsQueryTokens()) {
-				myStatement +=(constructDateWhereParameter(dateParam, "o", "valueDateTime")) + " AND ";
-			}
-
-			myStatement = myStatement.substring(0, myStatement.length() - 5);
-
-			// we want manner of death observation. So, check the code of Observations and
-			// choose one for manner of death.
-			withStatements.add("filtered_dd_observations AS (" + //
-					"    SELECT DISTINCT o.id" + //
-					"    FROM observation o" + //
-					"    WHERE EXISTS (" + //
-					"        SELECT 1" + //
-					"        FROM jsonb_array_elements(o.resource->'code'->'coding') c" + //
-					"        WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"81956-5\"}'::jsonb" + //
-					"    ) AND (" + myStatement + "))");
-
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			withCompWhereParameters.add("codings @> '{\"code\": \"jurisdiction\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_dd_observations fddo WHERE entries->>'reference' = 'Observation/' || fddo.id)");
+			withDeathDates(search, compositions, theDeathDate.getValuesAsQueryTokens());
 		}
 
 		if (theOrTypes != null) {
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "types", "comp.resource->'type'->'coding'");
-
-			String where = constructTypesWhereParameter(theOrTypes);
-			if (where != null && !where.isEmpty()) {
-				withCompWhereParameters.add(where);
-			}
+			constructCrossJoinLateralFromStatementPath(compositions, "types", "comp.resource->'type'->'coding'");
+			compositions.where(constructTypesWhereParameter(theOrTypes));
 
 			// returnAll = false;
 		}
 
 		if (theDate != null) {
-			String where = constructDateWhereParameter(theDate, "comp", "date");
-			if (where != null && !where.isEmpty()) {
-				withCompWhereParameters.add(where);
-			}
+			compositions.where(constructDateWhereParameter(theDate, "comp", "date"));
 
 			// returnAll = false;
 		}
 
 		if (theTrackingNumber != null) {
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "extensions", "comp.resource->'extension'");
+			constructCrossJoinLateralFromStatementPath(compositions, "extensions", "comp.resource->'extension'");
 
-			String where = "";
+			List<BoundSql> wheres = new ArrayList<BoundSql>();
 			for (TokenParam trackingNumberToken : theTrackingNumber.getValuesAsQueryTokens()) {
-				String system = trackingNumberToken.getSystem();
-				String value = trackingNumberToken.getValue();
-				String whereItem;
-				if (system == null || system.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"value\": \"" + value
-							+ "\"}}'::jsonb";
-				} else if (value == null || value.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\"}}'::jsonb";
-				} else {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\", \"value\": \"" + value + "\"}}'::jsonb";
-				}
-				if (where.isEmpty()) {
-					where = whereItem;
-				} else {
-					where += " or " + whereItem;
-				}
+				wheres.add(constructTrackingNumberWhere("extensions", trackingNumberToken.getSystem(),
+						trackingNumberToken.getValue()));
 			}
-
-			withCompWhereParameters.add(where);
+			compositions.where(BoundSql.join(" OR ", wheres));
 
 			// returnAll = false;
 		}
 
 		// Manner of Death
 		if (theMannerOfDeath != null) {
-			// Manner of Death information is in the observation. So, set up the filtered observation.
-			String myStatement = "";
+			List<BoundSql> codings = new ArrayList<BoundSql>();
 			for (TokenParam tokenParam : theMannerOfDeath.getValuesAsQueryTokens()) {
-				String system = tokenParam.getSystem();
-				String code = tokenParam.getValue();
-
-				String whereItem;
-				if (system == null || system.isBlank()) {
-					whereItem = "'{\"code\": \"" + code + "\"}'::jsonb";
-				} else if (code == null || code.isBlank()) {
-					whereItem = "'{\"system\": \"" + system + "\"}'::jsonb";
-				} else {
-					whereItem = "'{\"system\": \"" + system + "\", \"code\": \"" + code + "\"}'::jsonb";
-				}
-
-				if (myStatement != null && !myStatement.isEmpty()) {
-					myStatement += " OR ";
-				}
-				myStatement += "EXISTS (" +
-						"    SELECT 1" + //
-						"    FROM jsonb_array_elements(o.resource->'valueCodeableConcept'->'coding') v" + //
-						"    WHERE v @> " + whereItem + //
-						")";
+				codings.add(constructMannerOfDeathWhere(tokenParam.getSystem(), tokenParam.getValue()));
 			}
-
-			// we want manner of death observation. So, check the code of Observations and
-			// choose one for manner of death.
-			withStatements.add("filtered_mod_observations AS (" + //
-					"    SELECT DISTINCT o.id" + //
-					"    FROM observation o" + //
-					"    WHERE EXISTS (" + //
-					"        SELECT 1" + //
-					"        FROM jsonb_array_elements(o.resource->'code'->'coding') c" + //
-					"        WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"69449-7\"}'::jsonb" + //
-					"    ) AND (" + myStatement + ")" +
-					")");
-
-			// Now construct with statement for Composition.
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			// We only want a section for cause-manner where we keep manner of death
-			// observation reference.
-			withCompWhereParameters.add("codings @> '{\"code\": \"cause-manner\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_mod_observations fmodo WHERE entries->>'reference' = 'Observation/' || fmodo.id)");
+			withMannerOfDeath(search, compositions, codings);
 		}
 		
 		// Final SQL statement of Composition.
-		String finalCompositionQuery = "filtered_compositions AS (" +
-			"  SELECT DISTINCT comp.id, comp.resource, comp.resource->'subject'->>'reference' as subject_ref " +
-			"  FROM " + withCompFromStatement + " " + constructWhereStatement(withCompWhereParameters, null) + ")";
+		search.with("filtered_compositions", compositions.build());
 
-		withStatements.add(finalCompositionQuery);
-
-		// Final Query
-		String finalQueryCountStatement = " SELECT count(*) FROM filtered_compositions fc";
-
-		String finalQueryStatement = "";
 		if (theIncludes != null && theIncludes.contains(new Include("Composition:subject"))) {
-			finalQueryStatement = " SELECT fc.resource as resource, p.resource as subject " +
-				"FROM filtered_compositions fc JOIN patient p ON fc.subject_ref = 'Patient/' || (p.resource->>'id')";
-		} else {
-			finalQueryStatement = " SELECT fc.resource as resource FROM filtered_compositions fc";
-		}
-
-		String finalCountQuery = "With ";
-		String finalQuery = "With ";
-		for (String withStatement : withStatements) {
-			finalCountQuery += withStatement + ", ";
-			finalQuery += withStatement + ", ";
+			search.select("fc.resource as resource, p.resource as subject");
+			search.join(Join.inner("patient", "p", "fc.subject_ref = 'Patient/' || (p.resource->>'id')"));
 		}
 
-		finalCountQuery = finalCountQuery.substring(0, finalCountQuery.length()-2);
-		finalQuery = finalQuery.substring(0, finalQuery.length()-2);
+		logger.debug("query:" + search.build());
 
-		finalCountQuery += finalQueryCountStatement;
-		finalQuery += finalQueryStatement;
-		
-		logger.debug("query count:" + finalQueryCountStatement + "\nquery:" + finalQueryStatement);
-
-		MyBundleProvider myBundleProvider = new MyBundleProvider(finalQuery, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(finalCountQuery));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("fc.id");
+		submitSearch(myBundleProvider, theTotalMode, theIncludes);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -631,7 +443,7 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readComposition(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 
@@ -707,19 +519,67 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 		return bundleEntry;
 	}
 
-	private Resource processReference(IGenericClient client, List<BundleEntryComponent> bundleEntries,
-			List<String> addedResource, List<String> addedPractitioner, Composition composition, Reference reference,
-			boolean addToSection) {
+	/**
+	 * Collects every reference the document assembly below will follow, so they can
+	 * be resolved from the database in one round trip.
+	 */
+	private List<IIdType> collectDocumentReferences(Composition composition) {
+		List<Reference> references = new ArrayList<Reference>();
+		references.add(composition.getSubject());
+		references.add(composition.getEncounter());
+		references.addAll(composition.getAuthor());
+		for (CompositionAttesterComponent attester : composition.getAttester()) {
+			references.add(attester.getParty());
+		}
+		references.add(composition.getCustodian());
+		for (CompositionRelatesToComponent relatedTo : composition.getRelatesTo()) {
+			if (relatedTo.getTarget() instanceof Reference) {
+				references.add((Reference) relatedTo.getTarget());
+			}
+		}
+		for (CompositionEventComponent event : composition.getEvent()) {
+			references.addAll(event.getDetail());
+		}
+		for (SectionComponent section : composition.getSection()) {
+			references.addAll(section.getEntry());
+		}
+
+		List<IIdType> retVal = new ArrayList<IIdType>();
+		for (Reference reference : references) {
+			if (reference != null && !reference.isEmpty()) {
+				retVal.add(reference.getReferenceElement());
+			}
+		}
+
+		return retVal;
+	}
+
+	private Map<String, IBaseResource> resolveReferences(List<IIdType> references) {
+		try {
+			return referenceResolver.resolve(references);
+		} catch (SQLException e) {
+			// Fall back to reading each reference through the client.
+			logger.debug("Reference resolution failed: " + e.getMessage());
+			return new HashMap<String, IBaseResource>();
+		}
+	}
+
+	private Resource processReference(IGenericClient client, Map<String, IBaseResource> resolved,
+			List<BundleEntryComponent> bundleEntries, List<String> addedResource, List<String> addedPractitioner,
+			Composition composition, Reference reference, boolean addToSection) {
 		Resource resource = null;
 		if (reference != null && !reference.isEmpty()) {
 			String referenceId = reference.getReferenceElement().getValue();
 			if (reference.getReferenceElement().getResourceType() != null
 					&& !reference.getReferenceElement().getResourceType().isBlank()
 					&& !addedResource.contains(referenceId)) {
-				resource = (Resource) client.read()
-						.resource(reference.getReferenceElement().getResourceType())
-						.withId(reference.getReferenceElement().getIdPart()).encodedJson()
-						.execute();
+				resource = (Resource) resolved.get(ReferenceResolver.key(reference.getReferenceElement()));
+				if (resource == null) {
+					resource = (Resource) client.read()
+							.resource(reference.getReferenceElement().getResourceType())
+							.withId(reference.getReferenceElement().getIdPart()).encodedJson()
+							.execute();
+				}
 
 				if (resource == null || resource.isEmpty()) {
 					OperationOutcome outcome = new OperationOutcome();
@@ -759,36 +619,31 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 	@Search(queryName = CompositionResourceProvider.NQ_EVENT_DETAIL)
 	public IBundleProvider searchByNamedQuery(
 			@RequiredParam(name = "case-id") TokenAndListParam theCaseIds,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
-		String fromStatement = getTableName() + " comp";
-		fromStatement += " join procedure proc on comp.resource->'event'->'detail'->>'reference' = concat('Procedure/', proc.resource->>'id')";
+		SqlQuery search = SqlQuery.from(getTableName() + " comp").select("comp.resource as resource");
+		search.join(Join.inner("procedure", "proc", "comp.resource->'event'->'detail'->>'reference' = concat('Procedure/', proc.resource->>'id')"));
 
 		boolean returnAll = true;
 
-		fromStatement = constructFromStatementPath(fromStatement, "identifiers", "proc.resource->'identifier'");
+		constructFromStatementPath(search, "identifiers", "proc.resource->'identifier'");
 		for (TokenOrListParam theCaseIdAnd : theCaseIds.getValuesAsQueryTokens()) {
-			String where = constructIdentifierWhereParameter(theCaseIdAnd);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructIdentifierWhereParameter(theCaseIdAnd));
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT comp.resource as resource FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		logger.debug("query count:" + queryCount + "\nquery:" + query);
+		logger.debug("query:" + search.build());
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("comp.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -901,233 +756,45 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 		// 	fromStatement += " join patient p on comp.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
 		// }
 
-		List<String> withStatements = new ArrayList<String>();
-
-		List<String> withCompWhereParameters = new ArrayList<String>();
-		String withCompFromStatement = getTableName() + " comp ";
-
+		SqlQuery search = SqlQuery.from("filtered_compositions fc").select("fc.resource as resource");
+		SqlQuery compositions = SqlQuery.from(getTableName() + " comp")
+				.select("DISTINCT ON (comp.id) comp.id, comp.resource, comp.resource->'subject'->>'reference' as subject_ref");
 
 		if (thePatients != null) {
-			String myFromStatement = "FROM patient p";
-			List<String> myWhereParameters = new ArrayList<String>();
-			for (ParametersParameterComponent thePatient : thePatients) {
-				for (ParametersParameterComponent patientParam : thePatient.getPart()) {
-					String wheres = null;
-					if (Patient.SP_FAMILY.equals(patientParam.getName())) {
-						// we have family value. Add name field to from statement
-						myFromStatement = constructFromStatementPatientChain(myFromStatement, Patient.SP_FAMILY);
-						StringType theFamilies = (StringType) patientParam.getValue();
-						if (theFamilies != null && !theFamilies.isEmpty()) {
-							String[] familyStrings = theFamilies.asStringValue().split(",");
-							for (String family : familyStrings) {
-								if (wheres == null) {
-									wheres = "lower(names::text)::jsonb @> lower('{\"family\":\"" + family
-											+ "\"}')::jsonb";
-								} else {
-									wheres += "or lower(names::text)::jsonb @> lower('{\"family\":\"" + family
-											+ "\"}')::jsonb";
-								}
-							}
-						}
-					} else if (Patient.SP_GIVEN.equals(patientParam.getName())) {
-						// we have family value. Add name field to from statement
-						myFromStatement = constructFromStatementPatientChain(myFromStatement, Patient.SP_GIVEN);
-						StringType theGivens = (StringType) patientParam.getValue();
-						if (theGivens != null && !theGivens.isEmpty()) {
-							String[] givenStrings = theGivens.asStringValue().split(",");
-							for (String given : givenStrings) {
-								if (wheres == null) {
-									wheres = "lower(names::text)::jsonb @> lower('{\"given\":[\"" + given
-											+ "\"]}')::jsonb";
-								} else {
-									wheres += " or lower(names::text)::jsonb @> lower('{\"given\":[\"" + given
-											+ "\"]}')::jsonb";
-								}
-							}
-						}
-					} else if (Patient.SP_GENDER.equals(patientParam.getName())) {
-						// we have gender value. Add name field to from statement
-						myFromStatement = constructFromStatementPatientChain(myFromStatement, Patient.SP_GENDER);
-						StringType theGenders = (StringType) patientParam.getValue();
-						if (theGenders != null && !theGenders.isEmpty()) {
-							String[] genderStrings = theGenders.asStringValue().split(",");
-							for (String gender : genderStrings) {
-								if (wheres == null) {
-									wheres = "p.resource->>'gender' = " + "'" + gender + "'";
-								} else {
-									wheres += " or p.resource->>'gender' = " + "'" + gender + "'";
-								}
-							}
-						}
-					} else if (Patient.SP_BIRTHDATE.equals(patientParam.getName())) {
-						StringType birthDate = (StringType) patientParam.getValue();
-						DateParam date = getDateParam(birthDate.asStringValue());
-						wheres = constructDateWhereParameter(date, "p", "birthDate");
-					}
-
-					if (wheres != null) {
-						myWhereParameters.add(wheres);
-					}
-				}
-			}
+			SqlQuery patients = SqlQuery.from("patient p").select("DISTINCT p.id");
+			constructWherePatientParameters(patients, thePatients);
 
-			String myWhereStatement = "WHERE ";
-			for (String myWhereParameter : myWhereParameters) {
-				myWhereStatement += myWhereParameter + " AND ";
-			}
-
-			myWhereStatement = myWhereStatement.substring(0, myWhereStatement.length() - 5);
-
-			withStatements.add("filtered_patients AS (" +
-				"    SELECT DISTINCT p.id " + //
-					myFromStatement + " " +
-					myWhereStatement + ")");
-			
-			withCompWhereParameters.add("EXISTS ( SELECT 1 FROM filtered_patients fp WHERE comp.resource->'subject'->>'reference' = 'Patient/' || fp.id)");
+			search.with("filtered_patients", patients.build());
+			compositions.where("EXISTS ( SELECT 1 FROM filtered_patients fp WHERE comp.resource->'subject'->>'reference' = 'Patient/' || fp.id)");
 		}
 
 		if (theTrackingNumber != null) {
-			// String myFromStatement = "FROM patient p";
-			// List<String> myWhereParameters = new ArrayList<String>();
-			withCompFromStatement = constructFromStatementPath(withCompFromStatement, "extensions", "comp.resource->'extension'");
+			constructFromStatementPath(compositions, "extensions", "comp.resource->'extension'");
 
-			String wheres = null;
+			List<BoundSql> wheres = new ArrayList<BoundSql>();
 			for (StringParam tokenParam : theTrackingNumber.getValuesAsQueryTokens()) {
-				String token = tokenParam.getValue();
-				int barIndex = ParameterUtil.nonEscapedIndexOf(token, '|');
-				String system = null;
-				String value = null;
-				if (barIndex != -1) {
-					system = token.substring(0, barIndex);
-					value = ParameterUtil.unescape(token.substring(barIndex + 1));
-				} else {
-					value = ParameterUtil.unescape(token);
-				}
-
-				String whereItem;
-				if (system == null || system.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"value\": \"" + value
-							+ "\"}}'::jsonb";
-				} else if (value == null || value.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\"}}'::jsonb";
-				} else {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\", \"value\": \"" + value + "\"}}'::jsonb";
-				}
-
-				if (wheres == null) {
-					wheres = whereItem;
-				} else {
-					wheres += " or " + whereItem;
-				}
+				wheres.add(constructTrackingNumberWhere("extensions", tokenParam.getValue()));
 			}
-
-			withCompWhereParameters.add(wheres);
+			compositions.where(BoundSql.join(" OR ", wheres));
 		}
 
 		if (theDeathLocations != null) {
-			String districtOrWhere = null;
-			for (StringParam theDeathLocation : theDeathLocations.getValuesAsQueryTokens()) {
-				String districtOrWhere_ = "lower(l.resource->'address'->>'city') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'state') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'district') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'postalCode') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				districtOrWhere_ += " or lower(l.resource->'address'->>'country') like lower('%"
-						+ theDeathLocation.getValue() + "%')";
-				if (districtOrWhere == null || districtOrWhere.isEmpty()) {
-					districtOrWhere = districtOrWhere_;
-				} else {
-					districtOrWhere += " or " + districtOrWhere_;
-				}
-			}
-
-			withStatements.add("filtered_dl_locations AS (" + 
-					"    SELECT DISTINCT l.id" + 
-					"    FROM location l" + 
-					"    WHERE " + districtOrWhere + ")");
-
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			withCompWhereParameters.add("codings @> '{\"code\": \"circumstances\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_dl_locations fdll WHERE entries->>'reference' = 'Location/' || fdll.id)");
+			withDeathLocations(search, compositions, theDeathLocations);
 		}
 
 		// Death Date Pronounced
 		if (thePronouncedDeathDate != null) {
-			String myStatement = "";
-			// where value of input dates.
-			for (DateParam dateParam : thePronouncedDeathDate.getValuesAsQueryTokens()) {
-				myStatement += constructDateWhereParameter(dateParam, "component", "valueDateTime") + " AND ";
-			}
-			myStatement = myStatement.substring(0, myStatement.length() - 5);
-
-			// we want manner of death observation. So, check the code of Observations and
-			// choose one for manner of death.
-			withStatements.add("filtered_pdd_observations AS (" + 
-					"    SELECT DISTINCT o.id" + 
-					"    FROM observation o" + 
-					"         CROSS JOIN LATERAL jsonb_array_elements(o.resource->'component') component" +
-					"         CROSS JOIN LATERAL jsonb_array_elements(component->'code'->'coding') component_codings" +
-					"    WHERE EXISTS (" + 
-					"        SELECT 1" + 
-					"        FROM jsonb_array_elements(o.resource->'code'->'coding') c" + 
-					"        WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"81956-5\"}'::jsonb" + 
-					"          ) AND (" + "component_codings @> '{\"system\": \"http://loinc.org\", \"code\": \"80616-6\"}'::jsonb" +
-					"          } AND (" + myStatement + "))");
-
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			withCompWhereParameters.add("codings @> '{\"code\": \"jurisdiction\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_pdd_observations fddo WHERE entries->>'reference' = 'Observation/' || fddo.id)");
+			withPronouncedDeathDates(search, compositions, thePronouncedDeathDate.getValuesAsQueryTokens());
 		}
 
 		// Death Date
 		if (theDeathDate != null) {
-			String myStatement = "";
-
-			// where value of input dates.
-			for (DateParam dateParam : theDeathDate.getValuesAsQueryTokens()) {
-				myStatement +=(constructDateWhereParameter(dateParam, "o", "valueDateTime")) + " AND ";
-			}
-			myStatement = myStatement.substring(0, myStatement.length() - 5);
-
-			// we want manner of death observation. So, check the code of Observations and
-			// choose one for manner of death.
-			withStatements.add("filtered_dd_observations AS (" + //
-					"    SELECT DISTINCT o.id" + //
-					"    FROM observation o" + //
-					"    WHERE EXISTS (" + //
-					"        SELECT 1" + //
-					"        FROM jsonb_array_elements(o.resource->'code'->'coding') c" + //
-					"        WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"81956-5\"}'::jsonb" + //
-					"    ) AND (" + myStatement + "))");
-
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			withCompWhereParameters.add("codings @> '{\"code\": \"jurisdiction\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_dd_observations fddo WHERE entries->>'reference' = 'Observation/' || fddo.id)");
+			withDeathDates(search, compositions, theDeathDate.getValuesAsQueryTokens());
 		}
 
 		// Manner of Death
 		if (theMannerOfDeath != null) {
-			String myStatement = "";
+			List<BoundSql> codings = new ArrayList<BoundSql>();
 			for (StringParam tokenParam : theMannerOfDeath.getValuesAsQueryTokens()) {
 				String token = tokenParam.getValue();
 				int barIndex = ParameterUtil.nonEscapedIndexOf(token, '|');
@@ -1140,79 +807,119 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 					code = ParameterUtil.unescape(token);
 				}
 
-				String whereItem;
-				if (system == null || system.isBlank()) {
-					whereItem = "'{\"code\": \"" + code + "\"}'::jsonb";
-				} else if (code == null || code.isBlank()) {
-					whereItem = "'{\"system\": \"" + system + "\"}'::jsonb";
-				} else {
-					whereItem = "'{\"system\": \"" + system + "\", \"code\": \"" + code + "\"}'::jsonb";
-				}
-
-				if (myStatement != null && !myStatement.isEmpty()) {
-					myStatement += " OR ";
-				}
-				myStatement += "EXISTS (" +
-						"    SELECT 1" + //
-						"    FROM jsonb_array_elements(o.resource->'valueCodeableConcept'->'coding') v" + //
-						"    WHERE v @> " + whereItem + //
-						")";
+				codings.add(constructMannerOfDeathWhere(system, code));
 			}
-
-			// we want manner of death observation. So, check the code of Observations and
-			// choose one for manner of death.
-			withStatements.add("filtered_mod_observations AS (" + //
-					"    SELECT DISTINCT o.id" + //
-					"    FROM observation o" + //
-					"    WHERE EXISTS (" + //
-					"        SELECT 1" + //
-					"        FROM jsonb_array_elements(o.resource->'code'->'coding') c" + //
-					"        WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"69449-7\"}'::jsonb" + //
-					"    ) AND (" + myStatement + ")" +
-					")");
-
-			// Now construct with statement for Composition.
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "sections", "comp.resource->'section'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "codings", "sections->'code'->'coding'");
-			withCompFromStatement = constructCrossJoinLateralFromStatementPath(withCompFromStatement, "entries", "sections->'entry'");
-
-			// We only want a section for cause-manner where we keep manner of death
-			// observation reference.
-			withCompWhereParameters.add("codings @> '{\"code\": \"cause-manner\", \"system\": \"" + MdiProfileUtil.CS_MDI_CODES + "\"}'::jsonb");
-			withCompWhereParameters.add("EXISTS (SELECT 1 FROM filtered_mod_observations fmodo WHERE entries->>'reference' = 'Observation/' || fmodo.id)");
+			withMannerOfDeath(search, compositions, codings);
 		}
 
 		// Final SQL statement of Composition.
-		String finalCompositionQuery = "filtered_compositions AS (" +
-			"  SELECT DISTINCT comp.id, comp.resource, comp.resource->'subject'->>'reference' as subject_ref " +
-			"  FROM " + withCompFromStatement + " " + constructWhereStatement(withCompWhereParameters, null) + ")";
+		search.with("filtered_compositions", compositions.build());
+
+		logger.debug("query:" + search.build());
 
-		withStatements.add(finalCompositionQuery);
+		MyDocumentBundle myDocumentBundleProvider = new MyDocumentBundle(search, theRequestDetails, null, null);
+		myDocumentBundleProvider.setKeyset("fc.id");
+		submitSearch(myDocumentBundleProvider, null);
+		myDocumentBundleProvider.setPreferredPageSize(preferredPageSize);
 
-		// Final Query
-		String finalQueryCountStatement = " SELECT count(*) FROM filtered_compositions fc";
-		String finalQueryStatement = " SELECT fc.resource as resource FROM filtered_compositions fc";
+		return myDocumentBundleProvider;
+	}
 
-		String finalCountQuery = "With ";
-		String finalQuery = "With ";
-		for (String withStatement : withStatements) {
-			finalCountQuery += withStatement + ", ";
-			finalQuery += withStatement + ", ";
+	/**
+	 * Joins the composition's sections, and keeps those with sectionCode.
+	 * Their entries are then in "entries".
+	 */
+	private void joinSectionEntries(SqlQuery compositions, String sectionCode) {
+		constructCrossJoinLateralFromStatementPath(compositions, "sections", "comp.resource->'section'");
+		constructCrossJoinLateralFromStatementPath(compositions, "codings", "sections->'code'->'coding'");
+		constructCrossJoinLateralFromStatementPath(compositions, "entries", "sections->'entry'");
+
+		compositions.where(constructContainsWhere("codings", "code", sectionCode, "system", MdiProfileUtil.CS_MDI_CODES));
+	}
+
+	private void withDeathLocations(SqlQuery search, SqlQuery compositions, StringOrListParam theDeathLocations) {
+		List<BoundSql> districtOrWhere = new ArrayList<BoundSql>();
+		for (StringParam theDeathLocation : theDeathLocations.getValuesAsQueryTokens()) {
+			String like = "%" + theDeathLocation.getValue() + "%";
+			districtOrWhere.add(BoundSql.of("lower(l.resource->'address'->>'city') like lower(?)"
+					+ " or lower(l.resource->'address'->>'state') like lower(?)"
+					+ " or lower(l.resource->'address'->>'district') like lower(?)"
+					+ " or lower(l.resource->'address'->>'postalCode') like lower(?)"
+					+ " or lower(l.resource->'address'->>'country') like lower(?)", like, like, like, like, like));
 		}
 
-		finalCountQuery = finalCountQuery.substring(0, finalCountQuery.length()-2);
-		finalQuery = finalQuery.substring(0, finalQuery.length()-2);
+		search.with("filtered_dl_locations", SqlQuery.from("location l").select("DISTINCT l.id")
+				.where(BoundSql.join(" or ", districtOrWhere)).build());
 
-		finalCountQuery += finalQueryCountStatement;
-		finalQuery += finalQueryStatement;
-		
-		logger.debug("query count:" + finalQueryCountStatement + "\nquery:" + finalQueryStatement);
+		joinSectionEntries(compositions, "circumstances");
+		compositions.where("EXISTS (SELECT 1 FROM filtered_dl_locations fdll WHERE entries->>'reference' = 'Location/' || fdll.id)");
+	}
 
-		MyDocumentBundle myDocumentBundleProvider = new MyDocumentBundle(finalQuery, theRequestDetails, null, null);
-		myDocumentBundleProvider.setTotalSize(getTotalSize(finalCountQuery));
-		myDocumentBundleProvider.setPreferredPageSize(preferredPageSize);
+	private void withPronouncedDeathDates(SqlQuery search, SqlQuery compositions, List<DateParam> dateParams) {
+		// where value of input dates.
+		List<BoundSql> dates = new ArrayList<BoundSql>();
+		for (DateParam dateParam : dateParams) {
+			dates.add(constructDateTimeAliasPathWhere(dateParam, "component", "valueDateTime"));
+		}
 
-		return myDocumentBundleProvider;
+		// we want the death date observation, and its date pronounced component.
+		search.with("filtered_pdd_observations", SqlQuery.from("observation o")
+				.join(Join.lateralArrayElements("o.resource->'component'", "component"))
+				.join(Join.lateralArrayElements("component->'code'->'coding'", "component_codings"))
+				.select("DISTINCT o.id")
+				.where("EXISTS (SELECT 1 FROM jsonb_array_elements(o.resource->'code'->'coding') c"
+						+ " WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"81956-5\"}'::jsonb)")
+				.where("component_codings @> '{\"system\": \"http://loinc.org\", \"code\": \"80616-6\"}'::jsonb")
+				.where(BoundSql.join(" AND ", dates)).build());
+
+		joinSectionEntries(compositions, "jurisdiction");
+		compositions.where("EXISTS (SELECT 1 FROM filtered_pdd_observations fddo WHERE entries->>'reference' = 'Observation/' || fddo.id)");
+	}
+
+	private void withDeathDates(SqlQuery search, SqlQuery compositions, List<DateParam> dateParams) {
+		// where value of input dates.
+		List<BoundSql> dates = new ArrayList<BoundSql>();
+		for (DateParam dateParam : dateParams) {
+			dates.add(constructDateWhereParameter(dateParam, "o", "valueDateTime"));
+		}
+
+		// we want the death date observation. So, check the code of Observations.
+		search.with("filtered_dd_observations", SqlQuery.from("observation o").select("DISTINCT o.id")
+				.where("EXISTS (SELECT 1 FROM jsonb_array_elements(o.resource->'code'->'coding') c"
+						+ " WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"81956-5\"}'::jsonb)")
+				.where(BoundSql.join(" AND ", dates)).build());
+
+		joinSectionEntries(compositions, "jurisdiction");
+		compositions.where("EXISTS (SELECT 1 FROM filtered_dd_observations fddo WHERE entries->>'reference' = 'Observation/' || fddo.id)");
+	}
+
+	/**
+	 * A manner of death value coding condition on "v". A blank system or code
+	 * matches any.
+	 */
+	private BoundSql constructMannerOfDeathWhere(String system, String code) {
+		return constructContainsWhere("v", "system", system == null || system.isBlank() ? null : system, "code",
+				code == null || code.isBlank() ? null : code);
+	}
+
+	private void withMannerOfDeath(SqlQuery search, SqlQuery compositions, List<BoundSql> codings) {
+		List<BoundSql> values = new ArrayList<BoundSql>();
+		for (BoundSql coding : codings) {
+			values.add(BoundSql.of("EXISTS (SELECT 1 FROM jsonb_array_elements(o.resource->'valueCodeableConcept'->'coding') v"
+					+ " WHERE " + coding.getSql() + ")", coding.getParams().toArray()));
+		}
+
+		// Manner of Death information is in the observation. So, set up the filtered
+		// observation, choosing the manner of death one by its code.
+		search.with("filtered_mod_observations", SqlQuery.from("observation o").select("DISTINCT o.id")
+				.where("EXISTS (SELECT 1 FROM jsonb_array_elements(o.resource->'code'->'coding') c"
+						+ " WHERE c @> '{\"system\": \"http://loinc.org\", \"code\": \"69449-7\"}'::jsonb)")
+				.where(BoundSql.join(" OR ", values)).build());
+
+		// We only want a section for cause-manner where we keep manner of death
+		// observation reference.
+		joinSectionEntries(compositions, "cause-manner");
+		compositions.where("EXISTS (SELECT 1 FROM filtered_mod_observations fmodo WHERE entries->>'reference' = 'Observation/' || fmodo.id)");
 	}
 
 	private Bundle addMessageWrapper(IGenericClient client, Bundle compositionBundle) {
@@ -1579,138 +1286,39 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			@OperationParam(name = Composition.SP_PATIENT) List<ParametersParameterComponent> thePatients,
 			@OperationParam(name = CompositionResourceProvider.SP_TRACKING_NUMBER) StringOrListParam theTrackingNumber) {
 
-		List<String> whereParameters = new ArrayList<String>();
-		String fromStatement = getTableName() + " comp";
+		SqlQuery search = SqlQuery.from(getTableName() + " comp");
 
 		// Set up join statements.
 		if (thePatients != null) {
 			// join patient and composition subject tables
-			fromStatement += " join patient p on comp.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "comp.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 		}
 
 		if (thePatients != null) {
-			for (ParametersParameterComponent thePatient : thePatients) {
-				for (ParametersParameterComponent patientParam : thePatient.getPart()) {
-					String wheres = null;
-					if (Patient.SP_FAMILY.equals(patientParam.getName())) {
-						// we have family value. Add name field to from statement
-						fromStatement = constructFromStatementPatientChain(fromStatement, Patient.SP_FAMILY);
-						StringType theFamilies = (StringType) patientParam.getValue();
-						if (theFamilies != null && !theFamilies.isEmpty()) {
-							String[] familyStrings = theFamilies.asStringValue().split(",");
-							for (String family : familyStrings) {
-								if (wheres == null) {
-									wheres = "lower(names::text)::jsonb @> lower('{\"family\":\"" + family
-											+ "\"}')::jsonb";
-								} else {
-									wheres += "or lower(names::text)::jsonb @> lower('{\"family\":\"" + family
-											+ "\"}')::jsonb";
-								}
-							}
-						}
-					} else if (Patient.SP_GIVEN.equals(patientParam.getName())) {
-						// we have family value. Add name field to from statement
-						fromStatement = constructFromStatementPatientChain(fromStatement, Patient.SP_GIVEN);
-						StringType theGivens = (StringType) patientParam.getValue();
-						if (theGivens != null && !theGivens.isEmpty()) {
-							String[] givenStrings = theGivens.asStringValue().split(",");
-							for (String given : givenStrings) {
-								if (wheres == null) {
-									wheres = "lower(names::text)::jsonb @> lower('{\"given\":[\"" + given
-											+ "\"]}')::jsonb";
-								} else {
-									wheres += " or lower(names::text)::jsonb @> lower('{\"given\":[\"" + given
-											+ "\"]}')::jsonb";
-								}
-							}
-						}
-					} else if (Patient.SP_GENDER.equals(patientParam.getName())) {
-						// we have gender value. Add name field to from statement
-						fromStatement = constructFromStatementPatientChain(fromStatement, Patient.SP_GENDER);
-						StringType theGenders = (StringType) patientParam.getValue();
-						if (theGenders != null && !theGenders.isEmpty()) {
-							String[] genderStrings = theGenders.asStringValue().split(",");
-							for (String gender : genderStrings) {
-								if (wheres == null) {
-									wheres = "p.resource->>'gender' = " + "'" + gender + "'";
-								} else {
-									wheres += " or p.resource->>'gender' = " + "'" + gender + "'";
-								}
-							}
-						}
-					} else if (Patient.SP_BIRTHDATE.equals(patientParam.getName())) {
-						StringType birthDate = (StringType) patientParam.getValue();
-						DateParam date = getDateParam(birthDate.asStringValue());
-						wheres = constructDateWhereParameter(date, "p", "birthDate");
-					}
-
-					if (wheres != null) {
-						whereParameters.add(wheres);
-					}
-				}
-			}
+			constructWherePatientParameters(search, thePatients);
 		}
 
 		if (theTrackingNumber != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "extensions", "comp.resource->'extension'");
+			constructFromStatementPath(search, "extensions", "comp.resource->'extension'");
 
-			String wheres = null;
+			List<BoundSql> wheres = new ArrayList<BoundSql>();
 			for (StringParam tokenParam : theTrackingNumber.getValuesAsQueryTokens()) {
-				String token = tokenParam.getValue();
-				int barIndex = ParameterUtil.nonEscapedIndexOf(token, '|');
-				String system = null;
-				String value = null;
-				if (barIndex != -1) {
-					system = token.substring(0, barIndex);
-					value = ParameterUtil.unescape(token.substring(barIndex + 1));
-				} else {
-					value = ParameterUtil.unescape(token);
-				}
-
-				String whereItem;
-				if (system == null || system.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"value\": \"" + value
-							+ "\"}}'::jsonb";
-				} else if (value == null || value.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\"}}'::jsonb";
-				} else {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\", \"value\": \"" + value + "\"}}'::jsonb";
-				}
-
-				if (wheres == null) {
-					wheres = whereItem;
-				} else {
-					wheres += " or " + whereItem;
-				}
+				wheres.add(constructTrackingNumberWhere("extensions", tokenParam.getValue()));
 			}
-
-			whereParameters.add(wheres);
+			search.where(BoundSql.join(" OR ", wheres));
 		}
 
 		// Composition also has MDI to EDRS document. For DCR document, we only want DCR
 		// type. So, add this to wherestatement.
-		fromStatement = constructFromStatementPath(fromStatement, "typeCodings", "comp.resource->'type'->'coding'");
-		String whereMdiDocument = "typeCodings @> '{\"system\": \"" + MdiProfileUtil.DCR_REPORT.getSystem()
-				+ "\", \"code\": \"" + MdiProfileUtil.DCR_REPORT.getCode() + "\"}'::jsonb";
-		whereParameters.add(whereMdiDocument);
-
-		String whereStatement = constructWhereStatement(whereParameters, null);
+		constructFromStatementPath(search, "typeCodings", "comp.resource->'type'->'coding'");
+		search.where(constructContainsWhere("typeCodings", "system", MdiProfileUtil.DCR_REPORT.getSystem(), "code",
+				MdiProfileUtil.DCR_REPORT.getCode()));
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT comp.resource as resource FROM " + fromStatement + whereStatement;
+		logger.debug("query:" + search.build());
 
-		logger.debug("query count:" + queryCount + "\nquery:" + query);
-
-		MyDcrMessageBundle myDcrMessageBundle = new MyDcrMessageBundle(query, theRequestDetails, null, null);
-		myDcrMessageBundle.setTotalSize(getTotalSize(queryCount));
+		MyDcrMessageBundle myDcrMessageBundle = new MyDcrMessageBundle(search, theRequestDetails, null, null);
+		myDcrMessageBundle.setKeyset("comp.id");
+		submitSearch(myDcrMessageBundle, null);
 		myDcrMessageBundle.setPreferredPageSize(preferredPageSize);
 
 		return myDcrMessageBundle;
@@ -1840,6 +1448,10 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			List<String> addedResource = new ArrayList<String>();
 			List<String> addedPractitioner = new ArrayList<String>();
 
+			// Resolve all referenced resources in one database round trip. Anything not
+			// found there is still read through the client.
+			Map<String, IBaseResource> resolved = resolveReferences(collectDocumentReferences(composition));
+
 			// String patientId =
 			// composition.getSubject().getReferenceElement().getIdPart();
 
@@ -1852,34 +1464,34 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			// }
 
 			// Add patient reference
-			processReference(client, bundleEntries, addedResource, addedPractitioner, composition,
+			processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition,
 					composition.getSubject(), addToSection);
 
 			// Add encounter
-			processReference(client, bundleEntries, addedResource, addedPractitioner, composition,
+			processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition,
 					composition.getEncounter(), addToSection);
 
 			// Add authors
 			for (Reference reference : composition.getAuthor()) {
-				processReference(client, bundleEntries, addedResource, addedPractitioner, composition, reference,
+				processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition, reference,
 						addToSection);
 			}
 
 			// Add Attester
 			for (CompositionAttesterComponent attester : composition.getAttester()) {
-				processReference(client, bundleEntries, addedResource, addedPractitioner, composition,
+				processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition,
 						attester.getParty(), addToSection);
 			}
 
 			// Add custodian
-			processReference(client, bundleEntries, addedResource, addedPractitioner, composition,
+			processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition,
 					composition.getCustodian(), addToSection);
 
 			// Add related to composition
 			for (CompositionRelatesToComponent relatedTo : composition.getRelatesTo()) {
 				Type target = relatedTo.getTarget();
 				if (target != null && target instanceof Reference) {
-					processReference(client, bundleEntries, addedResource, addedPractitioner, composition,
+					processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition,
 							(Reference) target, addToSection);
 				}
 			}
@@ -1887,7 +1499,7 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			// Add event detail
 			for (CompositionEventComponent event : composition.getEvent()) {
 				for (Reference detail : event.getDetail()) {
-					processReference(client, bundleEntries, addedResource, addedPractitioner, composition, detail,
+					processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition, detail,
 							addToSection);
 				}
 			}
@@ -1897,7 +1509,7 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 					// String referenceId = reference.getReferenceElement().getValue();
 					addToSection = false;
 
-					processReference(client, bundleEntries, addedResource, addedPractitioner, composition, reference,
+					processReference(client, resolved, bundleEntries, addedResource, addedPractitioner, composition, reference,
 							addToSection);
 				}
 			}
@@ -2220,8 +1832,8 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -2231,14 +1843,11 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 
-			String myQuery = query;
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			logger.debug("calling database: " + myQuery);
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, theIncludes, theReverseIncludes, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, theIncludes, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -2250,9 +1859,9 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 	class MyDocumentBundle extends FhirbaseBundleProvider {
 		RequestDetails theRequestDetails;
 
-		public MyDocumentBundle(String query, RequestDetails theRequestDetails, Set<Include> theIncludes,
+		public MyDocumentBundle(SqlQuery search, RequestDetails theRequestDetails, Set<Include> theIncludes,
 				Set<Include> theReverseIncludes) {
-			super(query);
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theRequestDetails = theRequestDetails;
 		}
@@ -2262,14 +1871,11 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			List<IBaseResource> documentBundles = new ArrayList<IBaseResource>();
 			List<IBaseResource> retResources = new ArrayList<IBaseResource>();
 
-			String myQuery = query;
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			logger.debug("Generate documents alling database: " + myQuery);
 			try {
-				retResources = getFhirbaseMapping().search(myQuery, getResourceType());
+				retResources = searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType());
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -2293,9 +1899,9 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 	class MyDcrMessageBundle extends FhirbaseBundleProvider {
 		RequestDetails theRequestDetails;
 
-		public MyDcrMessageBundle(String query, RequestDetails theRequestDetails, Set<Include> theIncludes,
+		public MyDcrMessageBundle(SqlQuery search, RequestDetails theRequestDetails, Set<Include> theIncludes,
 				Set<Include> theReverseIncludes) {
-			super(query);
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theRequestDetails = theRequestDetails;
 		}
@@ -2305,14 +1911,11 @@ public class CompositionResourceProvider extends BaseResourceProvider {
 			List<IBaseResource> messageBundles = new ArrayList<IBaseResource>();
 			List<IBaseResource> retResources = new ArrayList<IBaseResource>();
 
-			String myQuery = query;
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			logger.debug("Generate documents alling database: " + myQuery);
 			try {
-				retResources = getFhirbaseMapping().search(myQuery, getResourceType());
+				retResources = searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType());
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
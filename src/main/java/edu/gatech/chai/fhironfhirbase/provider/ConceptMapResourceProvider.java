@@ -35,7 +35,6 @@ import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
-import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
 @Scope("prototype")
@@ -52,8 +51,7 @@ public class ConceptMapResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
     private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM "+ConceptMapResourceProvider.getType().toLowerCase()+";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	@Override
@@ -22,6 +22,9 @@ import java.util.List;
 import jakarta.annotation.PostConstruct;
 
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -42,13 +45,13 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 
 /**
  * This is a simple resource provider which only implements "read/GET" methods,
@@ -72,8 +75,7 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -101,6 +103,7 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 			if (createdCondition != null && !createdCondition.isEmpty()) {
 				retVal.setId(createdCondition.getIdElement());
 				retVal.setCreated(true);
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 				retVal.setResource(createdCondition);
 			} else {
 				retVal.setCreated(false);
@@ -110,22 +113,18 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 			retVal.setCreated(false);
 		}
 		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-		
 		return retVal;
 	}
 
 	@Delete()
 	public void deleteCondition(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -141,7 +140,7 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readCondition(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		try {
@@ -179,22 +178,18 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 
 	@Search()
 	public IBundleProvider findConditionByIds(
-			@RequiredParam(name = Condition.SP_RES_ID) TokenOrListParam theConditionIds) {
+			@RequiredParam(name = Condition.SP_RES_ID) TokenOrListParam theConditionIds,
+			SearchTotalModeEnum theTotalMode) {
 		if (theConditionIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theCondition : theConditionIds.getValuesAsQueryTokens()) {
-			whereStatement += "c.id = '" + theCondition.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from("condition c")
+				.where(constructIdWhereParameter("c.id", theConditionIds));
 
-		String queryCount = "SELECT count(*) FROM condition c " + whereStatement;
-		String query = "SELECT * FROM condition c " + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("c.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -205,56 +200,47 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = Condition.SP_SUBJECT) ReferenceAndListParam theSubjects,
 			@OptionalParam(name = Condition.SP_PATIENT, chainWhitelist = { "",
 					USCorePatient.SP_NAME }) ReferenceAndListParam thePatients,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "condition c";
+		SqlQuery search = SqlQuery.from("condition c");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on c.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "c.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 		
 		if (theOrCodes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "codings", "c.resource->'code'->'coding'");
-			String where = constructCodeWhereParameter(theOrCodes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			constructFromStatementPath(search, "codings", "c.resource->'code'->'coding'");
+			search.where(constructCodeWhereParameter(theOrCodes));
 			
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("c.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -265,8 +251,8 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 	}
 
 	class MyBundleProvider extends FhirbaseBundleProvider implements IBundleProvider {
-		public MyBundleProvider(String query) {
-			super(query);
+		public MyBundleProvider(SqlQuery search) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 		}
 
@@ -278,13 +264,10 @@ public class ConditionResourceProvider extends BaseResourceProvider {
 			// TODO: do this later
 			List<String> includes = new ArrayList<String>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,102 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.sql.SQLException;
+import java.util.Date;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.DateUtils;
+import edu.gatech.chai.fhironfhirbase.operation.RawResource;
+
+/**
+ * Answers conditional reads (If-None-Match, If-Modified-Since) from the txid and
+ * ts columns alone. When the client's copy is current, this replies 304 Not
+ * Modified without reading or parsing the resource body. Otherwise the request
+ * carries on to the normal read, or to RawJsonReadInterceptor when that is
+ * registered.
+ * <p>
+ * The hook runs before RawJsonReadInterceptor's. Like that interceptor, it steps
+ * aside when a pre-handled interceptor such as authorization is registered.
+ */
+@Interceptor
+public class ConditionalReadInterceptor {
+	private static final Logger logger = LoggerFactory.getLogger(ConditionalReadInterceptor.class);
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = -10)
+	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletResponse theResponse) {
+		String ifNoneMatch = theRequestDetails.getHeader(Constants.HEADER_IF_NONE_MATCH);
+		String ifModifiedSince = theRequestDetails.getHeader(Constants.HEADER_IF_MODIFIED_SINCE);
+		if (ifNoneMatch == null && ifModifiedSince == null) {
+			return true;
+		}
+
+		BaseResourceProvider provider = FastReadSupport.readProvider(theRequestDetails);
+		if (provider == null) {
+			return true;
+		}
+
+		RawResource metadata;
+		try {
+			metadata = provider.getFhirbaseMapping().readMetadata(provider.getTableName(),
+					theRequestDetails.getId().getIdPart());
+		} catch (SQLException e) {
+			logger.debug("Metadata read failed, using the normal read: " + e.getMessage());
+			return true;
+		}
+
+		if (metadata == null || !notModified(metadata, ifNoneMatch, ifModifiedSince)) {
+			theRequestDetails.getUserData().put(FastReadSupport.CONDITIONAL_CHECKED, Boolean.TRUE);
+			return true;
+		}
+
+		theResponse.setStatus(Constants.STATUS_HTTP_304_NOT_MODIFIED);
+		if (metadata.getVersionId() != null) {
+			theResponse.setHeader(Constants.HEADER_ETAG, "W/\"" + metadata.getVersionId() + '"');
+		}
+		if (metadata.getLastUpdated() != null) {
+			theResponse.setHeader(Constants.HEADER_LAST_MODIFIED, DateUtils.formatDate(metadata.getLastUpdated()));
+		}
+		FastReadSupport.processingCompleted(theRequestDetails);
+
+		return false;
+	}
+
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since, as in RFC 9110.
+	 */
+	private boolean notModified(RawResource metadata, String ifNoneMatch, String ifModifiedSince) {
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				String version = tag.trim();
+				if ("*".equals(version)) {
+					return true;
+				}
+				if (version.startsWith("W/")) {
+					version = version.substring(2);
+				}
+				version = version.replace("\"", "");
+				if (version.equals(metadata.getVersionId())) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		Date since = DateUtils.parseDate(ifModifiedSince);
+		if (since == null || metadata.getLastUpdated() == null) {
+			return false;
+		}
+
+		// HTTP dates have one-second precision.
+		return metadata.getLastUpdated().getTime() / 1000 <= since.getTime() / 1000;
+	}
+}
@@ -37,13 +37,16 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.fhironfhirbase.model.MyDevice;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -59,8 +62,7 @@ public class DeviceResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
     private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	@Override
@@ -94,7 +96,7 @@ public class DeviceResourceProvider extends BaseResourceProvider {
 //		return new MethodOutcome(new IdDt(id));
 //	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readPatient(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		try {
@@ -124,34 +126,28 @@ public class DeviceResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteDevice(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
 	@Search()
-	public IBundleProvider findDevicesById(@RequiredParam(name = MyDevice.SP_RES_ID) TokenOrListParam theDeviceId) {
+	public IBundleProvider findDevicesById(@RequiredParam(name = MyDevice.SP_RES_ID) TokenOrListParam theDeviceId, SearchTotalModeEnum theTotalMode) {
 
 		if (theDeviceId == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theCondition : theDeviceId.getValuesAsQueryTokens()) {
-			whereStatement += "c.id = '" + theCondition.getValue() + "' OR ";
-		}
+		SqlQuery search = SqlQuery.from("condition c")
+				.where(constructIdWhereParameter("c.id", theDeviceId));
 
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM condition c " + whereStatement;
-		String query = "SELECT * FROM condition c " + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("c.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -161,49 +157,40 @@ public class DeviceResourceProvider extends BaseResourceProvider {
 	public IBundleProvider findDevicesByParams(
 			@OptionalParam(name=MyDevice.SP_PATIENT, chainWhitelist={"", USCorePatient.SP_NAME}) ReferenceAndListParam thePatients, 
 			@OptionalParam(name=MyDevice.SP_TYPE) TokenOrListParam theOrTypes,
-			@Sort SortSpec theSort
-			) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "device d";
+		SqlQuery search = SqlQuery.from("device d");
 
 		if (thePatients != null) {
-			fromStatement += " join patient p on d.resource->'patient'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "d.resource->'patient'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// unsupported resource is included in the search chain
 				return null;
 			}
-
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 
 		}
 
 		if (theOrTypes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "types", "d.resource->'type'->'coding'");
-			String where = constructTypesWhereParameter(theOrTypes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			constructFromStatementPath(search, "types", "d.resource->'type'->'coding'");
+			search.where(constructTypesWhereParameter(theOrTypes));
 			returnAll = false;
 		}
 		
-		String whereStatement = constructWhereStatement(whereParameters, theSort);		
-
-		if (!returnAll) {
-			if (whereStatement == null || whereStatement.isEmpty()) return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM "+fromStatement+whereStatement;
-		String query = "SELECT * FROM "+fromStatement+whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("d.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -214,8 +201,8 @@ public class DeviceResourceProvider extends BaseResourceProvider {
 	}
 
 	class MyBundleProvider extends FhirbaseBundleProvider implements IBundleProvider {
-		public MyBundleProvider(String query) {
-			super(query);
+		public MyBundleProvider(SqlQuery search) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 		}
 
@@ -226,13 +213,10 @@ public class DeviceResourceProvider extends BaseResourceProvider {
 			// TODO: do this later
 			List<String> includes = new ArrayList<String>();
 
-			String myQuery = query;			
-			if (theToIndex - theFromIndex > 0) {
-				myQuery += " LIMIT " + (theToIndex - theFromIndex) + " OFFSET " + theFromIndex;
-			}
+			BoundSql myQuery = pageQuery(theFromIndex, theToIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, theFromIndex, theToIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
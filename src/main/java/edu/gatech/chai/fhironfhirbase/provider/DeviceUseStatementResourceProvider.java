@@ -43,16 +43,19 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.fhironfhirbase.model.MyDeviceUseStatement;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -70,8 +73,7 @@ public class DeviceUseStatementResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	@Override
@@ -102,18 +104,16 @@ public class DeviceUseStatementResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdDeviceUseStatement.getIdElement());
 			retVal.setResource(createdDeviceUseStatement);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readPatient(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		try {
@@ -147,13 +147,12 @@ public class DeviceUseStatementResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteDeviceUseStatement(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -164,55 +163,45 @@ public class DeviceUseStatementResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = MyDeviceUseStatement.SP_SUBJECT, chainWhitelist = { "",
 					USCorePatient.SP_NAME }) ReferenceAndListParam theSubjects,
 			@Sort SortSpec theSort,
-			@IncludeParam(allow = { "DeviceUseStatement:device" }) final Set<Include> theIncludes
-
-	) {
+			@IncludeParam(allow = { "DeviceUseStatement:device" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "deviceusestatement du";
+		SqlQuery search = SqlQuery.from("deviceusestatement du");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on du.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "du.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 
 		if (theDeviceUseStatementIds != null) {
-			for (TokenParam theDeviceUseStatementId : theDeviceUseStatementIds.getValuesAsQueryTokens()) {
-				whereParameters.add("du.id = '" + theDeviceUseStatementId.getValue() + "'");
-			}
+			search.where(constructIdWhereParameter("du.id", theDeviceUseStatementIds));
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll) {
-			if (whereStatement == null || whereStatement.isEmpty()) return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes);
+		myBundleProvider.setKeyset("du.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -233,8 +222,8 @@ public class DeviceUseStatementResourceProvider extends BaseResourceProvider {
 	class MyBundleProvider extends FhirbaseBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 		}
@@ -250,13 +239,10 @@ public class DeviceUseStatementResourceProvider extends BaseResourceProvider {
 				includes.add("DeviceUseStatement:device");
 			}
 
-			String myQuery = query;			
-			if (theToIndex - theFromIndex > 0) {
-				myQuery += " LIMIT " + (theToIndex - theFromIndex) + " OFFSET " + theFromIndex;
-			}
+			BoundSql myQuery = pageQuery(theFromIndex, theToIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, theFromIndex, theToIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
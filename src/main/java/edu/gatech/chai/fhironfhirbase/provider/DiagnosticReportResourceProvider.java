@@ -17,7 +17,9 @@ package edu.gatech.chai.fhironfhirbase.provider;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -25,6 +27,7 @@ import jakarta.annotation.PostConstruct;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.DiagnosticReport;
 import org.hl7.fhir.r4.model.IdType;
@@ -32,7 +35,6 @@ import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.PractitionerRole;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
-import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.UrlType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +47,7 @@ import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.Patient;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.Include;
@@ -64,13 +67,12 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.IQuery;
-import ca.uhn.fhir.rest.param.DateParam;
-import ca.uhn.fhir.rest.param.ParameterUtil;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
@@ -79,7 +81,11 @@ import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.UriOrListParam;
 import ca.uhn.fhir.rest.param.UriParam;
+import edu.gatech.chai.fhironfhirbase.operation.ReferenceResolver;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.provider.CompositionResourceProvider.MyDocumentBundle;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 import edu.gatech.chai.fhironfhirbase.utilities.MdiProfileUtil;
@@ -91,6 +97,9 @@ import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
 public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 	private static final Logger logger = LoggerFactory.getLogger(DiagnosticReportResourceProvider.class);
 
+	@Autowired
+	private ReferenceResolver referenceResolver;
+
 	/**
 	 * Search parameter: <b>tox-lab-case-number</b>
 	 * <p>
@@ -141,8 +150,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -164,13 +172,11 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdDiagnosticReport.getIdElement());
 			retVal.setResource(createdDiagnosticReport);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -178,16 +184,15 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteDiagnosticReport(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readDiagnosticReport(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -225,24 +230,19 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			@IncludeParam(allow = { "DiagnosticReport:patient", "DiagnosticReport:subject",
 					"DiagnosticReport:encounter" }) final Set<Include> theIncludes,
 
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theDiagnosticReportIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theDiagnosticReport : theDiagnosticReportIds.getValuesAsQueryTokens()) {
-			whereStatement += "diag.id = '" + theDiagnosticReport.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM documentreference diag " + whereStatement;
-		String query = "SELECT * FROM documentreference diag " + whereStatement;
+		SqlQuery search = SqlQuery.from("documentreference diag")
+				.where(constructIdWhereParameter("diag.id", theDiagnosticReportIds));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("diag.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -260,37 +260,33 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			@IncludeParam(allow = { "DiagnosticReport:patient", "DiagnosticReport:subject",
 					"DiagnosticReport:encounter" }) final Set<Include> theIncludes,
 
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = getTableName() + " diag";
+		SqlQuery search = SqlQuery.from(getTableName() + " diag");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on diag.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "diag.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;			
 		}
 
 		if (theEncounter != null) {
-			whereParameters.add("diag.resource->'context'->>'encounter' like '%" + theEncounter.getValue() + "%'");
+			search.where("diag.resource->'context'->>'encounter' like ?", "%" + theEncounter.getValue() + "%");
 			returnAll = false;
 		}
 
@@ -299,56 +295,42 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			String value = theDocumentReferenceIdentifier.getValue();
 
 			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				whereParameters.add("diag.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-						+ system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("diag.resource->'identifier'", "value", value, "system", system));
 			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				whereParameters.add("diag.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("diag.resource->'identifier'", "system", system));
 			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				whereParameters.add("diag.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("diag.resource->'identifier'", "value", value));
 			}
 			returnAll = false;
 		}
 
 		if (theTrackingNumber != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "extensions", "diag.resource->'extension'");
+			constructFromStatementPath(search, "extensions", "diag.resource->'extension'");
 
-			String where = "";
+			List<BoundSql> wheres = new ArrayList<BoundSql>();
 			for (TokenParam toxLabCaseNumberToken : theTrackingNumber.getValuesAsQueryTokens()) {
-				String system = toxLabCaseNumberToken.getSystem();
-				String value = toxLabCaseNumberToken.getValue();
-				String whereItem;
-				if (system == null || system.isEmpty()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl + "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \"" + ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"value\": \"" + value + "\"}}'::jsonb";
-				} else {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl + "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \"" + ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system + "\", \"value\": \"" + value + "\"}}'::jsonb";
-				}
-				if (where.isEmpty()) {
-					where = whereItem;
-				} else {
-					where += " or " + whereItem;
-				}
+				wheres.add(constructTrackingNumberWhere("extensions", toxLabCaseNumberToken.getSystem(),
+						toxLabCaseNumberToken.getValue()));
 			}
 
-			whereParameters.add(where);
+			search.where(BoundSql.join(" OR ", wheres));
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) { 
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("diag.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
 
-	private BundleEntryComponent makeEntryResourceToEntry (IGenericClient client, Reference reference) {
+	private BundleEntryComponent makeEntryResourceToEntry (IGenericClient client, Map<String, IBaseResource> resolved, Reference reference) {
 		if (reference == null || reference.isEmpty()) {
 			return null;
 		}
@@ -358,10 +340,13 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			return null;
 		}
 
-		Resource resource = (Resource) client.read()
-		.resource(reference.getReferenceElement().getResourceType())
-		.withId(reference.getReferenceElement().getIdPart()).encodedJson()
-		.execute();
+		Resource resource = (Resource) resolved.get(ReferenceResolver.key(reference.getReferenceElement()));
+		if (resource == null) {
+			resource = (Resource) client.read()
+			.resource(reference.getReferenceElement().getResourceType())
+			.withId(reference.getReferenceElement().getIdPart()).encodedJson()
+			.execute();
+		}
 
 		BundleEntryComponent bundleEntryComponent = new BundleEntryComponent();
 		bundleEntryComponent.setFullUrl(reference.getReference());
@@ -370,6 +355,26 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		return bundleEntryComponent;
 	}
 
+	/**
+	 * Resolves the given references from the database in one round trip and adds
+	 * them to the resolved map. Anything not found is read through the client later.
+	 */
+	private void resolveReferences(Map<String, IBaseResource> resolved, List<Reference> references) {
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (Reference reference : references) {
+			if (reference != null && reference.getReference() != null
+					&& !resolved.containsKey(ReferenceResolver.key(reference.getReferenceElement()))) {
+				ids.add(reference.getReferenceElement());
+			}
+		}
+
+		try {
+			resolved.putAll(referenceResolver.resolve(ids));
+		} catch (SQLException e) {
+			logger.debug("Reference resolution failed: " + e.getMessage());
+		}
+	}
+
 	private Bundle constructMessageBundleFromDiagnosticReport(IGenericClient client, DiagnosticReport diagnosticReport) {
 		Bundle retMessageBundle = new Bundle();
 		MessageHeader messageHeader;
@@ -422,9 +427,40 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		// list of references added.
 		List<Reference> addedReferences = new ArrayList<Reference>();
 
+		// Resolve the report's references in one database round trip.
+		Map<String, IBaseResource> resolved = new HashMap<String, IBaseResource>();
+		List<Reference> reportReferences = new ArrayList<Reference>();
+		reportReferences.add(diagnosticReport.getSubject());
+		reportReferences.addAll(diagnosticReport.getPerformer());
+		reportReferences.addAll(diagnosticReport.getSpecimen());
+		reportReferences.addAll(diagnosticReport.getResult());
+		reportReferences.addAll(diagnosticReport.getBasedOn());
+		reportReferences.add(diagnosticReport.getEncounter());
+		reportReferences.addAll(diagnosticReport.getResultsInterpreter());
+		reportReferences.addAll(diagnosticReport.getImagingStudy());
+		for (DiagnosticReportMediaComponent media : diagnosticReport.getMedia()) {
+			reportReferences.add(media.getLink());
+		}
+		resolveReferences(resolved, reportReferences);
+
+		// PractitionerRole performers bring in their own references. Resolve those in a second round trip.
+		List<Reference> roleReferences = new ArrayList<Reference>();
+		for (Reference ref : diagnosticReport.getPerformer()) {
+			if (ref.getReference() == null) continue;
+			IBaseResource performer = resolved.get(ReferenceResolver.key(ref.getReferenceElement()));
+			if (performer instanceof PractitionerRole) {
+				PractitionerRole practitionerRole = (PractitionerRole) performer;
+				roleReferences.add(practitionerRole.getPractitioner());
+				roleReferences.add(practitionerRole.getOrganization());
+				roleReferences.addAll(practitionerRole.getLocation());
+				roleReferences.addAll(practitionerRole.getEndpoint());
+			}
+		}
+		resolveReferences(resolved, roleReferences);
+
 		// Add Patient.
 		Reference reference = diagnosticReport.getSubject();
-		bundleEntryComponent = makeEntryResourceToEntry(client, reference);
+		bundleEntryComponent = makeEntryResourceToEntry(client, resolved, reference);
 		if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 			retMessageBundle.addEntry(bundleEntryComponent);
 			addedReferences.add(reference);
@@ -433,7 +469,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		// Add Performer(s)
 		List<Reference> references = diagnosticReport.getPerformer();
 		for (Reference ref : references) {
-			bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 				addedReferences.add(ref);
@@ -444,7 +480,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 					
 					Reference practitionerRef = practitionerRole.getPractitioner();
 					if (!addedReferences.contains(practitionerRef)) {
-						bundleEntryComponent = makeEntryResourceToEntry(client, practitionerRef);
+						bundleEntryComponent = makeEntryResourceToEntry(client, resolved, practitionerRef);
 						if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 							retMessageBundle.addEntry(bundleEntryComponent);
 							addedReferences.add(practitionerRef);
@@ -453,7 +489,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 
 					Reference organizationRef = practitionerRole.getOrganization();
 					if (!addedReferences.contains(organizationRef)) {
-						bundleEntryComponent = makeEntryResourceToEntry(client, organizationRef);
+						bundleEntryComponent = makeEntryResourceToEntry(client, resolved, organizationRef);
 						if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 							retMessageBundle.addEntry(bundleEntryComponent);
 							addedReferences.add(organizationRef);
@@ -463,7 +499,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 					List<Reference> locationRefs = practitionerRole.getLocation();
 					for (Reference locationRef : locationRefs) {
 						if (!addedReferences.contains(locationRef)) {
-							bundleEntryComponent = makeEntryResourceToEntry(client, locationRef);
+							bundleEntryComponent = makeEntryResourceToEntry(client, resolved, locationRef);
 							if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 								retMessageBundle.addEntry(bundleEntryComponent);
 								addedReferences.add(locationRef);
@@ -474,7 +510,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 					List<Reference> endpointRefs = practitionerRole.getEndpoint();
 					for (Reference endpointRef : endpointRefs) {
 						if (!addedReferences.contains(endpointRef)) {
-							bundleEntryComponent = makeEntryResourceToEntry(client, endpointRef);
+							bundleEntryComponent = makeEntryResourceToEntry(client, resolved, endpointRef);
 							if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 								retMessageBundle.addEntry(bundleEntryComponent);
 								addedReferences.add(endpointRef);
@@ -490,7 +526,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		for (Reference ref : references) {
 			if (addedReferences.contains(ref)) continue;
 
-			bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
@@ -501,7 +537,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		for (Reference ref : references) {
 			if (addedReferences.contains(ref)) continue;
 
-			bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
@@ -512,7 +548,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		for (Reference ref : references) {
 			if (addedReferences.contains(ref)) continue;
 
-			bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
@@ -521,7 +557,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		// Add encounter
 		reference = diagnosticReport.getEncounter();
 		if (!addedReferences.contains(reference)) {
-			bundleEntryComponent = makeEntryResourceToEntry(client, reference);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, reference);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
@@ -532,7 +568,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		for (Reference ref : references) {
 			if (addedReferences.contains(ref)) continue;
 
-			bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
@@ -543,7 +579,7 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		for (Reference ref : references) {
 			if (addedReferences.contains(ref)) continue;
 
-			bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
@@ -555,13 +591,13 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			reference = media.getLink();
 			if (addedReferences.contains(reference)) continue;
 
-			bundleEntryComponent = makeEntryResourceToEntry(client, reference);
+			bundleEntryComponent = makeEntryResourceToEntry(client, resolved, reference);
 			if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 				retMessageBundle.addEntry(bundleEntryComponent);
 			}
 		}
 		// for (Reference ref : references) {
-		// 	bundleEntryComponent = makeEntryResourceToEntry(client, ref);
+		// 	bundleEntryComponent = makeEntryResourceToEntry(client, resolved, ref);
 		// 	if (bundleEntryComponent != null && !bundleEntryComponent.isEmpty()) {
 		// 		retMessageBundle.addEntry(bundleEntryComponent);
 		// 	}
@@ -609,9 +645,9 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		// List<String> whereParameters = new ArrayList<String>();
 		// String fromStatement = getTableName() + " diag";
 
-		List<String> withStatements = new ArrayList<String>();
-		List<String> withDiagWhereParameters = new ArrayList<String>();
-		String withDiagFromStatement = getTableName() + " diag";
+		SqlQuery search = SqlQuery.from("filtered_diag_reports fdr").select("fdr.resource as resource");
+		SqlQuery diagReports = SqlQuery.from(getTableName() + " diag")
+				.select("DISTINCT ON (diag.id) diag.id, diag.resource, diag.resource->'subject'->>'reference' as subject_ref");
 
 		// Set up join statements.
 		// if (thePatients != null) {
@@ -620,159 +656,31 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		// }
 
 		if (thePatients != null) {
-			String myFromStatement = "FROM patient p";
-			List<String> myWhereParameters = new ArrayList<String>();
-			for (ParametersParameterComponent thePatient : thePatients) {
-				for (ParametersParameterComponent patientParam : thePatient.getPart()) {
-					String wheres = null;
-					if (Patient.SP_FAMILY.equals(patientParam.getName())) {
-						// we have family value. Add name field to from statement
-						myFromStatement = constructFromStatementPatientChain(myFromStatement, Patient.SP_FAMILY);
-						StringType theFamilies = (StringType) patientParam.getValue();
-						if (theFamilies != null && !theFamilies.isEmpty()) {
-							String[] familyStrings = theFamilies.asStringValue().split(",");
-							for (String family : familyStrings) {
-								if (wheres == null) {
-									wheres = "lower(names::text)::jsonb @> lower('{\"family\":\"" + family
-											+ "\"}')::jsonb";
-								} else {
-									wheres += "or lower(names::text)::jsonb @> lower('{\"family\":\"" + family
-											+ "\"}')::jsonb";
-								}
-							}
-						}
-					} else if (Patient.SP_GIVEN.equals(patientParam.getName())) {
-						// we have family value. Add name field to from statement
-						myFromStatement = constructFromStatementPatientChain(myFromStatement, Patient.SP_GIVEN);
-						StringType theGivens = (StringType) patientParam.getValue();
-						if (theGivens != null && !theGivens.isEmpty()) {
-							String[] givenStrings = theGivens.asStringValue().split(",");
-							for (String given : givenStrings) {
-								if (wheres == null) {
-									wheres = "lower(names::text)::jsonb @> lower('{\"given\":[\"" + given
-											+ "\"]}')::jsonb";
-								} else {
-									wheres += " or lower(names::text)::jsonb @> lower('{\"given\":[\"" + given
-											+ "\"]}')::jsonb";
-								}
-							}
-						}
-					} else if (Patient.SP_GENDER.equals(patientParam.getName())) {
-						// we have gender value. Add name field to from statement
-						myFromStatement = constructFromStatementPatientChain(myFromStatement, Patient.SP_GENDER);
-						StringType theGenders = (StringType) patientParam.getValue();
-						if (theGenders != null && !theGenders.isEmpty()) {
-							String[] genderStrings = theGenders.asStringValue().split(",");
-							for (String gender : genderStrings) {
-								if (wheres == null) {
-									wheres = "p.resource->>'gender' = " + "'" + gender + "'";
-								} else {
-									wheres += " or p.resource->>'gender' = " + "'" + gender + "'";
-								}
-							}
-						}
-					} else if (Patient.SP_BIRTHDATE.equals(patientParam.getName())) {
-						StringType birthDate = (StringType) patientParam.getValue();
-						DateParam date = getDateParam(birthDate.asStringValue());
-						wheres = constructDateWhereParameter(date, "p", "birthDate");
-					}
-
-					if (wheres != null) {
-						myWhereParameters.add(wheres);
-					}
-				}
-			}
-
-			String myWhereStatement = "WHERE ";
-			for (String myWhereParameter : myWhereParameters) {
-				myWhereStatement += myWhereParameter + " AND ";
-			}
-
-			myWhereStatement = myWhereStatement.substring(0, myWhereStatement.length() - 5);
+			SqlQuery patients = SqlQuery.from("patient p").select("DISTINCT p.id");
+			constructWherePatientParameters(patients, thePatients);
 
-			withStatements.add("filtered_patients AS (" +
-				"    SELECT DISTINCT p.id " + //
-					myFromStatement + " " +
-					myWhereStatement + ")");
-			
-			withDiagWhereParameters.add("EXISTS ( SELECT 1 FROM filtered_patients fp WHERE diag.resource->'subject'->>'reference' = 'Patient/' || fp.id)");
+			search.with("filtered_patients", patients.build());
+			diagReports.where("EXISTS ( SELECT 1 FROM filtered_patients fp WHERE diag.resource->'subject'->>'reference' = 'Patient/' || fp.id)");
 		}
 
 		if (theTrackingNumber != null) {
-			withDiagFromStatement = constructFromStatementPath(withDiagFromStatement, "extensions", "diag.resource->'extension'");
+			constructFromStatementPath(diagReports, "extensions", "diag.resource->'extension'");
 
-			String wheres = null;
+			List<BoundSql> wheres = new ArrayList<BoundSql>();
 			for (StringParam tokenParam : theTrackingNumber.getValuesAsQueryTokens()) {
-				String token = tokenParam.getValue();
-				int barIndex = ParameterUtil.nonEscapedIndexOf(token, '|');
-				String system = null;
-				String value = null;
-				if (barIndex != -1) {
-					system = token.substring(0, barIndex);
-					value = ParameterUtil.unescape(token.substring(barIndex + 1));
-				} else {
-					value = ParameterUtil.unescape(token);
-				}
-
-				String whereItem;
-				if (system == null || system.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"value\": \"" + value
-							+ "\"}}'::jsonb";
-				} else if (value == null || value.isBlank()) {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\"}}'::jsonb";
-				} else {
-					whereItem = "extensions @> '{\"url\": \"" + ExtensionUtil.extTrackingNumberUrl
-							+ "\", \"valueIdentifier\": {\"type\": {\"coding\": [{\"system\": \""
-							+ ExtensionUtil.extTrackingNumberTypeSystem + "\"}]}, \"system\": \"" + system
-							+ "\", \"value\": \"" + value + "\"}}'::jsonb";
-				}
-
-				if (wheres == null) {
-					wheres = whereItem;
-				} else {
-					wheres += " or " + whereItem;
-				}
+				wheres.add(constructTrackingNumberWhere("extensions", tokenParam.getValue()));
 			}
 
-			withDiagWhereParameters.add(wheres);
+			diagReports.where(BoundSql.join(" OR ", wheres));
 		}
 
-		String finalDiagReportQuery = "filtered_diag_reports AS (" +
-			"    SELECT DISTINCT diag.id, diag.resource, diag.resource->'subject'->>'reference' as subject_ref " + //
-			"    FROM " + withDiagFromStatement + " " + constructWhereStatement(withDiagWhereParameters, null) + ")";
-
-		withStatements.add(finalDiagReportQuery);
-
-		String finalQueryCountStatement = " SELECT count(*) FROM filtered_diag_reports fdr";
-		String finalQueryStatement = " SELECT fdr.resource as resource FROM filtered_diag_reports fdr";
-
-		String finalCountQuery = "With ";
-		String finalQuery = "With ";
-		for (String withStatement : withStatements) {
-			finalCountQuery += withStatement + ", ";
-			finalQuery += withStatement + ", ";
-		}
+		search.with("filtered_diag_reports", diagReports.build());
 
-		finalCountQuery = finalCountQuery.substring(0, finalCountQuery.length() - 2);
-		finalQuery = finalQuery.substring(0, finalQuery.length() - 2);
+		logger.debug("query:" + search.build());
 
-		finalCountQuery += finalQueryCountStatement;
-		finalQuery += finalQueryStatement;
-
-		// String whereStatement = constructWhereStatement(whereParameters, null);
-
-		// String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		// String query = "SELECT diag.resource as resource FROM " + fromStatement + whereStatement;
-
-		logger.debug("query count:" + finalCountQuery + "\nquery:" + finalQuery);
-
-		MyMessageBundle myMessageBundleProvider = new MyMessageBundle(finalQuery, theRequestDetails, null, null);
-		myMessageBundleProvider.setTotalSize(getTotalSize(finalCountQuery));
+		MyMessageBundle myMessageBundleProvider = new MyMessageBundle(search, theRequestDetails, null, null);
+		myMessageBundleProvider.setKeyset("fdr.id");
+		submitSearch(myMessageBundleProvider, null);
 		myMessageBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myMessageBundleProvider;
@@ -783,8 +691,8 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -809,13 +717,10 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 				includes.add("DiagnosticReport:subject");
 			}
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -827,9 +732,9 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 	class MyMessageBundle extends FhirbaseBundleProvider {
 		RequestDetails theRequestDetails;
 
-		public MyMessageBundle(String query, RequestDetails theRequestDetails, Set<Include> theIncludes,
+		public MyMessageBundle(SqlQuery search, RequestDetails theRequestDetails, Set<Include> theIncludes,
 				Set<Include> theReverseIncludes) {
-			super(query);
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theRequestDetails = theRequestDetails;
 		}
@@ -839,14 +744,11 @@ public class DiagnosticReportResourceProvider extends BaseResourceProvider {
 			List<IBaseResource> messageBundles = new ArrayList<IBaseResource>();
 			List<IBaseResource> retResources = new ArrayList<IBaseResource>();
 
-			String myQuery = query;
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			logger.debug("Generate diagnostic report message from database: " + myQuery);
 			try {
-				retResources = getFhirbaseMapping().search(myQuery, getResourceType());
+				retResources = searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType());
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -42,6 +42,7 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
@@ -50,6 +51,9 @@ import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -65,8 +69,7 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -88,13 +91,11 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdDocumentReference.getIdElement());
 			retVal.setResource(createdDocumentReference);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -102,16 +103,15 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteDocumentReference(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readDocumentReference(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -149,24 +149,19 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 			@IncludeParam(allow = { "DocumentReference:patient", "DocumentReference:subject",
 					"DocumentReference:encounter" }) final Set<Include> theIncludes,
 
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theDocumentReferenceIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theDocumentReference : theDocumentReferenceIds.getValuesAsQueryTokens()) {
-			whereStatement += "r.id = '" + theDocumentReference.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from("documentreference r")
+				.where(constructIdWhereParameter("r.id", theDocumentReferenceIds));
 
-		String queryCount = "SELECT count(*) FROM documentreference r " + whereStatement;
-		String query = "SELECT * FROM documentreference r " + whereStatement;
-
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("r.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -184,54 +179,44 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 			@IncludeParam(allow = { "DocumentReference:patient", "DocumentReference:subject",
 					"DocumentReference:encounter" }) final Set<Include> theIncludes,
 
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "documentreference dr";
+		SqlQuery search = SqlQuery.from("documentreference dr");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on dr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "dr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;			
 		}
 
 		if (theOrTypes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "types", "dr.resource->'type'->'coding'");
-			String where = constructTypesWhereParameter(theOrTypes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			constructFromStatementPath(search, "types", "dr.resource->'type'->'coding'");
+			search.where(constructTypesWhereParameter(theOrTypes));
 			returnAll = false;
 		}
 
 		if (theDate != null) {
-			String where = constructDateWhereParameter(theDate, "dr", "date");
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructDateWhereParameter(theDate, "dr", "date"));
 			returnAll = false;
 		}
 
 		if (theEncounter != null) {
-			whereParameters.add("dr.resource->'context'->>'encounter' like '%" + theEncounter.getValue() + "%'");
+			search.where("dr.resource->'context'->>'encounter' like ?", "%" + theEncounter.getValue() + "%");
 			returnAll = false;
 		}
 
@@ -240,27 +225,24 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 			String value = theDocumentReferenceIdentifier.getValue();
 
 			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				whereParameters.add("dr.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-						+ system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("dr.resource->'identifier'", "value", value, "system", system));
 			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				whereParameters.add("dr.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("dr.resource->'identifier'", "system", system));
 			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				whereParameters.add("dr.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("dr.resource->'identifier'", "value", value));
 			}
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) { 
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("dr.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -269,8 +251,8 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -295,13 +277,10 @@ public class DocumentReferenceResourceProvider extends BaseResourceProvider {
 				includes.add("DocumentReference:subject");
 			}
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -31,10 +31,12 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
@@ -52,8 +54,7 @@ public class EndpointResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -75,13 +76,11 @@ public class EndpointResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdEndpoint.getIdElement());
 			retVal.setResource(createdEndpoint);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -89,16 +88,16 @@ public class EndpointResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteLocation(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readEndpoint(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -129,46 +128,39 @@ public class EndpointResourceProvider extends BaseResourceProvider {
 
 	@Search()
 	public IBundleProvider findEndpointByIds(
-			@RequiredParam(name = Endpoint.SP_RES_ID) TokenOrListParam theEndpointIds) {
+			@RequiredParam(name = Endpoint.SP_RES_ID) TokenOrListParam theEndpointIds,
+			SearchTotalModeEnum theTotalMode) {
 		if (theEndpointIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theCondition : theEndpointIds.getValuesAsQueryTokens()) {
-			whereStatement += "lo.id = '" + theCondition.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from("location lo")
+				.where(constructIdWhereParameter("lo.id", theEndpointIds));
 
-		String queryCount = "SELECT count(*) FROM location lo " + whereStatement;
-		String query = "SELECT * FROM location lo " + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("lo.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
 	}
 
 	@Search()
-	public IBundleProvider findEndpointByParams(@Sort SortSpec theSort) {
+	public IBundleProvider findEndpointByParams(@Sort SortSpec theSort, SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "endpoint e";
+		SqlQuery search = SqlQuery.from("endpoint e");
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll) {
-			if (whereStatement == null || whereStatement.isEmpty()) return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("e.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -179,8 +171,8 @@ public class EndpointResourceProvider extends BaseResourceProvider {
 	}
 
 	class MyBundleProvider extends FhirbaseBundleProvider {
-		public MyBundleProvider(String query) {
-			super(query);
+		public MyBundleProvider(SqlQuery search) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 		}
 
@@ -192,13 +184,10 @@ public class EndpointResourceProvider extends BaseResourceProvider {
 			// TODO: do this later
 			List<String> includes = new ArrayList<String>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,77 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Shared checks for interceptors that answer reads before the @Read method runs.
+ */
+class FastReadSupport {
+	// Set on the request once a conditional read was checked and did not match.
+	static final String CONDITIONAL_CHECKED = FastReadSupport.class.getName() + ".conditionalChecked";
+
+	// Binary is served as its raw content, and ConceptMap reads are not backed by a table.
+	private static final Set<String> EXCLUDED_TYPES = Set.of("Binary", "ConceptMap");
+
+	/**
+	 * Returns the fhirbase provider that serves this plain, unversioned read.
+	 * Returns null if the request is something else, or if an interceptor on the
+	 * pre-handled pointcut (e.g. authorization) must see it first.
+	 */
+	static BaseResourceProvider readProvider(RequestDetails theRequestDetails) {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.READ) {
+			return null;
+		}
+
+		IIdType id = theRequestDetails.getId();
+		String resourceName = theRequestDetails.getResourceName();
+		if (id == null || !id.hasIdPart() || id.hasVersionIdPart() || resourceName == null
+				|| EXCLUDED_TYPES.contains(resourceName)) {
+			return null;
+		}
+
+		if (!(theRequestDetails.getServer() instanceof RestfulServer)
+				|| hasHooks(theRequestDetails, Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)) {
+			return null;
+		}
+
+		RestfulServer server = (RestfulServer) theRequestDetails.getServer();
+		for (IResourceProvider resourceProvider : server.getResourceProviders()) {
+			if (resourceProvider instanceof BaseResourceProvider
+					&& resourceName.equals(server.getFhirContext().getResourceType(resourceProvider.getResourceType()))) {
+				BaseResourceProvider provider = (BaseResourceProvider) resourceProvider;
+				return provider.getTableName() != null ? provider : null;
+			}
+		}
+
+		return null;
+	}
+
+	static boolean hasHooks(RequestDetails theRequestDetails, Pointcut pointcut) {
+		IInterceptorBroadcaster broadcaster = theRequestDetails.getInterceptorBroadcaster();
+		return broadcaster != null && broadcaster.hasHooks(pointcut);
+	}
+
+	/**
+	 * Fires the completion hooks (e.g. request logging) for a request answered here.
+	 */
+	static void processingCompleted(RequestDetails theRequestDetails) {
+		if (hasHooks(theRequestDetails, Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+				&& theRequestDetails instanceof ServletRequestDetails) {
+			HookParams params = new HookParams()
+					.add(RequestDetails.class, theRequestDetails)
+					.add(ServletRequestDetails.class, (ServletRequestDetails) theRequestDetails);
+			theRequestDetails.getInterceptorBroadcaster().callHooks(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY, params);
+		}
+	}
+}
@@ -15,26 +15,60 @@
  *******************************************************************************/
 package edu.gatech.chai.fhironfhirbase.provider;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.method.ResponsePage.ResponsePageBuilder;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 
 public abstract class FhirbaseBundleProvider implements IBundleProvider {
+	private static final Logger logger = LoggerFactory.getLogger(FhirbaseBundleProvider.class);
+
 	InstantType searchTime;
-	String query;
+	// The search, without paging. Null for bundles that do not page a query.
+	SqlQuery search;
 	Integer preferredPageSize;
 	Integer totalSize;
+	// A count still running; size() waits for it.
+	private volatile Future<Integer> pendingTotalSize;
 	String bundleId;
 
-	protected FhirbaseBundleProvider (String query) {
+	// Keyset paging. When set, pages are ordered by keyColumn. The paging
+	// provider keeps this object per bundleId, and with it the last key of each
+	// page served, stored under the index where the next page starts. Following
+	// the next link then seeks past that key instead of re-reading and skipping
+	// fromIndex rows.
+	String keyColumn;
+	private final Map<Integer, String> pageKeys = new ConcurrentHashMap<Integer, String>();
+
+	// First page read while the count runs; see prefetchFirstPage.
+	private volatile Future<List<IBaseResource>> prefetchedPage;
+	private int prefetchSize;
+	private Set<Include> prefetchIncludes;
+
+	protected FhirbaseBundleProvider (SqlQuery search) {
 		this.searchTime = InstantType.withCurrentTime();
-		this.query = query;
+		this.search = search;
 	}
 	
 	public void setPreferredPageSize(Integer preferredPageSize) {
@@ -43,6 +77,12 @@ public abstract class FhirbaseBundleProvider implements IBundleProvider {
 	
 	public void setTotalSize(Integer totalSize) {
 		this.totalSize = totalSize;
+		this.pendingTotalSize = null;
+	}
+
+	public void setPendingTotalSize(Future<Integer> totalSize) {
+		this.totalSize = null;
+		this.pendingTotalSize = totalSize;
 	}
 
 	@Override
@@ -60,8 +100,26 @@ public abstract class FhirbaseBundleProvider implements IBundleProvider {
 		return this.preferredPageSize;
 	}
 
+	/**
+	 * The total, waiting for a pending count. If the count failed the total is
+	 * unknown (null), as with _total=none, rather than 0.
+	 */
 	@Override
 	public Integer size() {
+		Future<Integer> pending = this.pendingTotalSize;
+		if (pending != null) {
+			try {
+				this.totalSize = pending.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.totalSize = null;
+			} catch (ExecutionException e) {
+				logger.warn("Search count failed; the bundle has no total: " + e.getCause().getMessage(), e.getCause());
+				this.totalSize = null;
+			}
+			this.pendingTotalSize = null;
+		}
+
 		return this.totalSize;
 	}
 
@@ -74,4 +132,203 @@ public abstract class FhirbaseBundleProvider implements IBundleProvider {
 		this.bundleId = bundleId;
 	}
 
+	/**
+	 * Enables keyset paging on keyColumn, a qualified id column such as "o.id".
+	 * Pages keep using LIMIT/OFFSET with a _sort (an ORDER BY on the search), and
+	 * when a join can repeat a resource's row (see SqlQuery.mayRepeatRows):
+	 * seeking past the last id would skip its repeats, which count(*) and
+	 * OFFSET include.
+	 */
+	public void setKeyset(String keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+
+	boolean keysetEnabled() {
+		return keyColumn != null && search != null && !search.hasOrder() && !search.mayRepeatRows();
+	}
+
+	/**
+	 * SELECT count(*) for the search.
+	 */
+	public BoundSql countQuery() {
+		return search.buildCount();
+	}
+
+	/**
+	 * The whole search, as run without paging.
+	 */
+	public BoundSql searchQuery() {
+		return search.build();
+	}
+
+	/**
+	 * The SQL for rows fromIndex to toIndex. If the previous page's last key is
+	 * known this seeks past it. Otherwise, such as on a jump to the last page,
+	 * it uses OFFSET.
+	 */
+	protected BoundSql pageQuery(int fromIndex, int toIndex) {
+		int count = toIndex - fromIndex;
+		if (!keysetEnabled()) {
+			SqlQuery page = search.copy();
+			if (count > 0) {
+				page.limit(count).offset(fromIndex);
+			}
+
+			return page.build();
+		}
+
+		SqlQuery page = search.copy().orderBy(keyColumn);
+		String lastKey = fromIndex == 0 ? null : pageKeys.get(fromIndex);
+		if (lastKey != null) {
+			page.where(keyColumn + " > ?", lastKey);
+		}
+		if (count > 0) {
+			page.limit(count);
+			if (lastKey == null) {
+				page.offset(fromIndex);
+			}
+		}
+
+		return page.build();
+	}
+
+	/**
+	 * The whole search without LIMIT, in page order, for a server-side cursor.
+	 */
+	protected BoundSql cursorQuery() {
+		if (!keysetEnabled()) {
+			return search.build();
+		}
+
+		return search.copy().orderBy(keyColumn).build();
+	}
+
+	/**
+	 * Starts reading rows 0 to pageSize on executor while the count runs. HAPI
+	 * asks for size() before the first page, so without this the page query
+	 * would only start once the count is done.
+	 */
+	public void prefetchFirstPage(ExecutorService executor, FhirbaseMapping fhirbaseMapping, int pageSize,
+			Set<Include> theIncludes, Class<? extends Resource> fhirClass) {
+		BoundSql myQuery = pageQuery(0, pageSize);
+		this.prefetchSize = pageSize;
+		this.prefetchIncludes = theIncludes == null || theIncludes.isEmpty() ? null : theIncludes;
+		this.prefetchedPage = executor
+				.submit(() -> queryPage(fhirbaseMapping, myQuery, 0, pageSize, theIncludes, fhirClass));
+	}
+
+	/**
+	 * Reads the page fromIndex to toIndex. The first page comes from the
+	 * prefetch when it covers the page HAPI asks for. A large search that the
+	 * paging provider holds gets a server-side cursor when those are enabled
+	 * (see SearchCursors); otherwise myQuery, from pageQuery, is run.
+	 */
+	protected List<IBaseResource> searchPage(FhirbaseMapping fhirbaseMapping, BoundSql myQuery, int fromIndex, int toIndex,
+			Set<Include> theIncludes, Class<? extends Resource> fhirClass) throws SQLException {
+		if (fromIndex == 0) {
+			List<IBaseResource> page = takePrefetchedPage(toIndex, theIncludes, fhirClass);
+			if (page != null) {
+				return page;
+			}
+		}
+
+		return queryPage(fhirbaseMapping, myQuery, fromIndex, toIndex, theIncludes, fhirClass);
+	}
+
+	/**
+	 * The prefetched first page if it answers rows 0 to toIndex, or null.
+	 * The prefetch is used at most once.
+	 */
+	private List<IBaseResource> takePrefetchedPage(int toIndex, Set<Include> theIncludes,
+			Class<? extends Resource> fhirClass) {
+		Future<List<IBaseResource>> pending = this.prefetchedPage;
+		if (pending == null) {
+			return null;
+		}
+		this.prefetchedPage = null;
+
+		Set<Include> includes = theIncludes == null || theIncludes.isEmpty() ? null : theIncludes;
+		if (!Objects.equals(includes, prefetchIncludes)) {
+			return null;
+		}
+
+		List<IBaseResource> page;
+		try {
+			page = pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			logger.warn("Prefetching the first page failed; reading it again: " + e.getCause().getMessage());
+			return null;
+		}
+
+		int matches = 0;
+		for (IBaseResource resource : page) {
+			if (fhirClass.isInstance(resource)) {
+				matches++;
+			}
+		}
+
+		// The same page, or all there is.
+		if (toIndex == prefetchSize || (matches < prefetchSize && toIndex >= matches)) {
+			return page;
+		}
+
+		// A smaller page. Only cut when nothing is included, so rows map to matches.
+		if (toIndex < prefetchSize && matches == page.size()) {
+			List<IBaseResource> firstRows = new ArrayList<IBaseResource>(page.subList(0, toIndex));
+			rememberPage(0, firstRows, fhirClass);
+			return firstRows;
+		}
+
+		return null;
+	}
+
+	private List<IBaseResource> queryPage(FhirbaseMapping fhirbaseMapping, BoundSql myQuery, int fromIndex, int toIndex,
+			Set<Include> theIncludes, Class<? extends Resource> fhirClass) throws SQLException {
+		int count = toIndex - fromIndex;
+		if (count > 0 && bundleId != null && fhirbaseMapping.getSearchCursors().isEnabled()) {
+			try {
+				List<IBaseResource> page = fhirbaseMapping.searchCursor(bundleId, cursorQuery(), size(), fromIndex, count,
+						theIncludes, fhirClass);
+				if (page != null) {
+					return page;
+				}
+			} catch (SQLException e) {
+				// The cursor was discarded, so this page is read with a query instead.
+				logger.warn("Search cursor for " + bundleId + " failed; reading the page with a query: " + e.getMessage());
+			}
+		}
+
+		List<IBaseResource> page = fhirbaseMapping.search(myQuery, theIncludes, null, fhirClass);
+		rememberPage(fromIndex, page, fhirClass);
+
+		return page;
+	}
+
+	/**
+	 * Records the last key of a page read with pageQuery. Included resources
+	 * (such as a Composition's subject) are interleaved with the matches, so
+	 * only resources of the searched type are considered.
+	 */
+	protected void rememberPage(int fromIndex, List<IBaseResource> page, Class<? extends IBaseResource> searchedType) {
+		if (!keysetEnabled()) {
+			return;
+		}
+
+		String lastKey = null;
+		int matches = 0;
+		for (IBaseResource resource : page) {
+			if (searchedType.isInstance(resource) && resource.getIdElement() != null) {
+				lastKey = resource.getIdElement().getIdPart();
+				matches++;
+			}
+		}
+
+		if (lastKey != null) {
+			pageKeys.put(fromIndex + matches, lastKey);
+		}
+	}
+
 }
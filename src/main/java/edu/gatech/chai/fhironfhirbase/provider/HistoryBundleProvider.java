@@ -0,0 +1,72 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
+
+/**
+ * _history of a type or of one instance, read a page at a time from the fhirbase
+ * resource and _history tables.
+ *
+ * The paging provider keeps this object between page requests. The last entry
+ * of each page is remembered by the index where the next page starts, so
+ * following the next link continues from that (txid, id) instead of skipping
+ * rows with OFFSET. A page that does not start at a remembered index, such as
+ * a jump to the last page, falls back to OFFSET.
+ */
+class HistoryBundleProvider extends FhirbaseBundleProvider {
+	private static final Logger logger = LoggerFactory.getLogger(HistoryBundleProvider.class);
+
+	private final FhirbaseMapping fhirbaseMapping;
+	private final Class<? extends Resource> fhirClass;
+	private final String tableName;
+	private final String id;
+	private final Date since;
+
+	private final Map<Integer, IIdType> pageStarts = new ConcurrentHashMap<Integer, IIdType>();
+
+	HistoryBundleProvider(FhirbaseMapping fhirbaseMapping, Class<? extends Resource> fhirClass, String tableName, String id, Date since) {
+		super(null);
+		this.fhirbaseMapping = fhirbaseMapping;
+		this.fhirClass = fhirClass;
+		this.tableName = tableName;
+		this.id = id;
+		this.since = since;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+		int count = toIndex - fromIndex;
+		IIdType after = fromIndex == 0 ? null : pageStarts.get(fromIndex);
+
+		List<IBaseResource> retVal;
+		try {
+			if (after != null) {
+				retVal = fhirbaseMapping.history(fhirClass, tableName, id, since,
+						after.getVersionIdPartAsLong(), after.getIdPart(), 0, count);
+			} else {
+				retVal = fhirbaseMapping.history(fhirClass, tableName, id, since, null, null, fromIndex, count);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to read history of " + tableName + (id == null ? "" : "/" + id), e);
+			throw ThrowFHIRExceptions.internalErrorException("Failed to read history: " + e.getMessage());
+		}
+
+		if (!retVal.isEmpty()) {
+			pageStarts.put(fromIndex + retVal.size(), retVal.get(retVal.size() - 1).getIdElement());
+		}
+
+		return retVal;
+	}
+}
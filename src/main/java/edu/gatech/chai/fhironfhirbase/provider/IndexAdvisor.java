@@ -0,0 +1,362 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+
+import ca.uhn.fhir.rest.annotation.OptionalParam;
+import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+
+/**
+ * Indexes for the search parameters the providers support. fhirbase only
+ * creates the id primary key, so every other search reads the whole table.
+ * <p>
+ * The catalog below lists, per resource type and search parameter, the
+ * expression the provider's SQL filters on: btree expression indexes for
+ * references compared with "=" (the patient joins) and for dates, jsonb_path_ops
+ * GIN indexes for arrays searched with "@&gt;". Parameters searched by unnesting
+ * an array with jsonb_array_elements (code, type, tracking-number) or with
+ * like '%...%' cannot use an index as they are queried, so none is proposed.
+ * <p>
+ * At startup each provider's table is checked against pg_indexes in the
+ * background, and missing indexes are logged with their DDL.
+ * FHIRBASE_INDEX_CHECK=false turns the check off. ddl() gives the DDL for all
+ * providers.
+ */
+public final class IndexAdvisor {
+	private static final Logger logger = LoggerFactory.getLogger(IndexAdvisor.class);
+
+	private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private static final Set<String> checkedTables = ConcurrentHashMap.newKeySet();
+
+	private static final String SUBJECT = "resource->'subject'->>'reference'";
+	private static final String PATIENT = "resource->'patient'->>'reference'";
+	private static final String IDENTIFIER = "resource->'identifier'";
+
+	// "Type:param" to the indexes its search uses. An empty list means the
+	// parameter is searched in a way no index serves.
+	private static final Map<String, List<Index>> CATALOG = new HashMap<String, List<Index>>();
+
+	static {
+		for (String type : new String[] { "Observation", "Condition", "Composition", "DiagnosticReport",
+				"DocumentReference", "Encounter", "List", "MedicationRequest", "MedicationStatement", "Procedure",
+				"QuestionnaireResponse", "Specimen", "DeviceUseStatement" }) {
+			btree(type, "patient", SUBJECT);
+			btree(type, "subject", SUBJECT);
+		}
+		btree("Device", "patient", PATIENT);
+		btree("RelatedPerson", "patient", PATIENT);
+
+		btree("Observation", "date", "resource->>'effectiveDateTime'");
+		btree("Composition", "date", "resource->>'date'");
+		btree("DocumentReference", "date", "resource->>'date'");
+		btree("Procedure", "date", "resource->>'performedDateTime'");
+		btree("MedicationRequest", "authoredon", "resource->>'authoredOn'");
+		btree("MedicationStatement", "effective", "resource->>'effectiveDateTime'");
+		btree("Questionnaire", "date", "resource->>'date'");
+		btree("CodeSystem", "date", "resource->>'date'");
+		btree("ValueSet", "date", "resource->>'date'");
+		btree("Patient", "birthdate", "resource->>'birthDate'");
+
+		for (String type : new String[] { "Bundle", "DiagnosticReport", "DocumentReference", "Patient", "Practitioner",
+				"PractitionerRole", "Procedure" }) {
+			gin(type, "identifier", IDENTIFIER);
+		}
+		gin("Specimen", "accession", "resource->'accessionIdentifier'");
+		gin("Patient", "telecom", "resource->'telecom'");
+		gin("Patient", "email", "resource->'telecom'");
+		gin("Patient", "phone", "resource->'telecom'");
+
+		btree("Patient", "gender", "resource->>'gender'");
+		btree("Practitioner", "gender", "resource->>'gender'");
+		// Codes without a system; with one the _type extension is unnested.
+		btree("Bundle", "type", "resource->>'type'");
+		btree("Bundle", "composition", "resource->'entry'->0->'resource'->>'id'");
+		btree("Bundle", "message", "resource->'entry'->0->'resource'->>'id'");
+		btree("MessageHeader", "source", "resource->'source'->>'name'");
+		btree("MessageHeader", "source-uri", "resource->'source'->>'endpoint'");
+
+		for (String typeParam : new String[] { "Observation:code", "Condition:code", "Procedure:code",
+				"Medication:code", "MedicationRequest:code", "MedicationStatement:code", "List:code",
+				"Questionnaire:code", "DocumentReference:type", "Device:type", "Composition:type",
+				"Composition:tracking-number", "DiagnosticReport:tracking-number", "MessageHeader:focus",
+				"Patient:name", "Patient:family", "Patient:given", "Patient:address", "Practitioner:name",
+				"Practitioner:family", "Practitioner:given", "Organization:name", "List:source",
+				"DocumentReference:encounter", "DiagnosticReport:encounter", "Procedure:encounter",
+				"Procedure:performer", "MedicationRequest:encounter", "MedicationStatement:context",
+				"MedicationStatement:source", "Encounter:diagnosis", "PractitionerRole:organization",
+				"PractitionerRole:practitioner", "QuestionnaireResponse:questionnaire" }) {
+			CATALOG.putIfAbsent(typeParam, new ArrayList<Index>());
+		}
+	}
+
+	private IndexAdvisor() {
+	}
+
+	/**
+	 * The catalog, "Type:param" to the indexes its search uses.
+	 */
+	static Map<String, List<Index>> catalog() {
+		return Collections.unmodifiableMap(CATALOG);
+	}
+
+	private static void btree(String type, String param, String expression) {
+		CATALOG.computeIfAbsent(type + ":" + param, k -> new ArrayList<Index>()).add(new Index(null, "btree", expression));
+	}
+
+	private static void gin(String type, String param, String expression) {
+		CATALOG.computeIfAbsent(type + ":" + param, k -> new ArrayList<Index>()).add(new Index(null, "gin", expression));
+	}
+
+	/**
+	 * An index on one expression of a table's resource column.
+	 */
+	public static final class Index {
+		private final String table;
+		private final String method;
+		private final String expression;
+
+		Index(String table, String method, String expression) {
+			this.table = table;
+			this.method = method;
+			this.expression = expression;
+		}
+
+		public String getTable() {
+			return table;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getExpression() {
+			return expression;
+		}
+
+		/**
+		 * table_path_idx, from the JSON keys of the expression, e.g.
+		 * observation_subject_reference_idx.
+		 */
+		public String getName() {
+			StringBuilder name = new StringBuilder(table);
+			for (String part : expression.split("->>?")) {
+				String key = part.replace("'", "").trim().toLowerCase(Locale.ROOT);
+				if (!key.isEmpty() && !"resource".equals(key)) {
+					name.append('_').append(key.replaceAll("[^a-z0-9]", ""));
+				}
+			}
+			if ("gin".equals(method)) {
+				name.append("_gin");
+			}
+
+			return name.append("_idx").toString();
+		}
+
+		public String toDdl() {
+			if ("gin".equals(method)) {
+				return "CREATE INDEX IF NOT EXISTS " + getName() + " ON " + table + " USING gin ((" + expression
+						+ ") jsonb_path_ops);";
+			}
+
+			return "CREATE INDEX IF NOT EXISTS " + getName() + " ON " + table + " ((" + expression + "));";
+		}
+
+		/**
+		 * Whether one of indexes (name to definition, from pg_indexes) is this
+		 * index, by name or by method and expression.
+		 */
+		boolean isIn(Map<String, String> indexes) {
+			if (indexes.containsKey(getName())) {
+				return true;
+			}
+
+			String wanted = normalize(expression);
+			for (String definition : indexes.values()) {
+				String lower = definition.toLowerCase(Locale.ROOT);
+				boolean sameMethod = "gin".equals(method) ? lower.contains("using gin") : !lower.contains("using gin");
+				if (sameMethod && normalize(definition).contains(wanted)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		// pg_indexes writes expressions back with casts and parentheses:
+		// ((resource -> 'subject'::text) ->> 'reference'::text)
+		private static String normalize(String sql) {
+			return sql.toLowerCase(Locale.ROOT).replace("::text", "").replaceAll("[\\s()]", "");
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Index)) {
+				return false;
+			}
+			Index index = (Index) other;
+
+			return table.equals(index.table) && method.equals(index.method) && expression.equals(index.expression);
+		}
+
+		@Override
+		public int hashCode() {
+			return (table + " " + method + " " + expression).hashCode();
+		}
+	}
+
+	/**
+	 * The search parameter names of a provider's @Search methods.
+	 */
+	public static Set<String> searchParameters(Class<?> providerClass) {
+		Set<String> params = new TreeSet<String>();
+		for (Method method : providerClass.getMethods()) {
+			if (method.getAnnotation(Search.class) == null) {
+				continue;
+			}
+
+			for (Annotation[] annotations : method.getParameterAnnotations()) {
+				for (Annotation annotation : annotations) {
+					if (annotation instanceof RequiredParam) {
+						params.add(((RequiredParam) annotation).name());
+					} else if (annotation instanceof OptionalParam) {
+						params.add(((OptionalParam) annotation).name());
+					}
+				}
+			}
+		}
+
+		return params;
+	}
+
+	/**
+	 * The indexes for the search parameters providerClass supports, on tableName.
+	 */
+	public static Set<Index> recommend(Class<?> providerClass, String resourceType, String tableName) {
+		Set<Index> indexes = new LinkedHashSet<Index>();
+		for (String param : searchParameters(providerClass)) {
+			List<Index> catalogued = CATALOG.get(resourceType + ":" + param);
+			if (catalogued != null) {
+				for (Index index : catalogued) {
+					indexes.add(new Index(tableName, index.method, index.expression));
+				}
+			}
+		}
+
+		return indexes;
+	}
+
+	/**
+	 * Search parameters of providerClass that no index can serve as queried.
+	 */
+	public static Set<String> unindexable(Class<?> providerClass, String resourceType) {
+		Set<String> params = new TreeSet<String>();
+		for (String param : searchParameters(providerClass)) {
+			List<Index> catalogued = CATALOG.get(resourceType + ":" + param);
+			if (catalogued != null && catalogued.isEmpty()) {
+				params.add(param);
+			}
+		}
+
+		return params;
+	}
+
+	/**
+	 * Checks the provider's table for the indexes its searches use, once per
+	 * table, in the background. Missing ones are logged with their DDL.
+	 */
+	static void check(FhirbaseMapping fhirbaseMapping, BaseResourceProvider provider) {
+		String enabled = System.getenv("FHIRBASE_INDEX_CHECK");
+		if ((enabled != null && "false".equalsIgnoreCase(enabled.trim())) || !checkedTables.add(provider.getTableName())) {
+			return;
+		}
+
+		executor.execute(() -> {
+			try {
+				Map<String, String> present = fhirbaseMapping.getIndexDefinitions(provider.getTableName());
+				List<String> missing = new ArrayList<String>();
+				for (Index index : recommend(provider.getClass(), provider.getMyResourceType(), provider.getTableName())) {
+					if (!index.isIn(present)) {
+						missing.add(index.toDdl());
+					}
+				}
+
+				if (!missing.isEmpty()) {
+					logger.warn(provider.getTableName() + " is missing " + missing.size()
+							+ " index(es) for its search parameters:\n  " + String.join("\n  ", missing));
+				}
+			} catch (SQLException e) {
+				logger.warn("Failed to check indexes on " + provider.getTableName() + ": " + e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * The resource providers in this package, by resource type.
+	 */
+	static Map<String, Class<?>> providers() {
+		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+		scanner.addIncludeFilter(new AssignableTypeFilter(BaseResourceProvider.class));
+
+		Map<String, Class<?>> providers = new TreeMap<String, Class<?>>();
+		for (BeanDefinition definition : scanner.findCandidateComponents(IndexAdvisor.class.getPackageName())) {
+			try {
+				Class<?> providerClass = Class.forName(definition.getBeanClassName());
+				String resourceType = (String) providerClass.getMethod("getType").invoke(null);
+				providers.put(resourceType, providerClass);
+			} catch (ReflectiveOperationException e) {
+				logger.debug("Skipping " + definition.getBeanClassName() + ": " + e.getMessage());
+			}
+		}
+
+		return providers;
+	}
+
+	/**
+	 * The DDL for every resource provider in this package, one block per table.
+	 */
+	public static String ddl() {
+		StringBuilder ddl = new StringBuilder();
+		for (Map.Entry<String, Class<?>> provider : providers().entrySet()) {
+			String resourceType = provider.getKey();
+			// Providers name their table after the resource type.
+			Set<Index> indexes = recommend(provider.getValue(), resourceType, resourceType.toLowerCase());
+			Set<String> unindexable = unindexable(provider.getValue(), resourceType);
+			if (indexes.isEmpty() && unindexable.isEmpty()) {
+				continue;
+			}
+
+			ddl.append("-- ").append(resourceType).append('\n');
+			for (Index index : indexes) {
+				ddl.append(index.toDdl()).append('\n');
+			}
+			if (!unindexable.isEmpty()) {
+				ddl.append("-- not indexable as queried: ").append(String.join(", ", unindexable)).append('\n');
+			}
+			ddl.append('\n');
+		}
+
+		return ddl.toString();
+	}
+}
@@ -24,14 +24,17 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
@@ -50,8 +53,7 @@ public class ListResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -72,30 +74,27 @@ public class ListResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdList.getIdElement());
 			retVal.setResource(createdList);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-		
 		return retVal;
 	}
 
 	@Delete()
 	public void deleteListResource(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readListResource(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -126,22 +125,18 @@ public class ListResourceProvider extends BaseResourceProvider {
 
 	@Search()
 	public IBundleProvider findListResourceByIds(
-			@RequiredParam(name = ListResource.SP_RES_ID) TokenOrListParam theListResourceIds) {
+			@RequiredParam(name = ListResource.SP_RES_ID) TokenOrListParam theListResourceIds,
+			SearchTotalModeEnum theTotalMode) {
 		if (theListResourceIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theCondition : theListResourceIds.getValuesAsQueryTokens()) {
-			whereStatement += "l.id = '" + theCondition.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from("list l")
+				.where(constructIdWhereParameter("l.id", theListResourceIds));
 
-		String queryCount = "SELECT count(*) FROM list l " + whereStatement;
-		String query = "SELECT * FROM list l " + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("l.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -155,65 +150,54 @@ public class ListResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = ListResource.SP_SOURCE) ReferenceOrListParam theSources,
 			@OptionalParam(name = ListResource.SP_PATIENT, chainWhitelist = { "",
 					USCorePatient.SP_NAME }) ReferenceAndListParam thePatients,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "list l";
+		SqlQuery search = SqlQuery.from("list l");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on l.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "l.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 	
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 		
 		if (theOrCodes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "codings", "l.resource->'code'->'coding'");
-			String where = constructCodeWhereParameter(theOrCodes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			constructFromStatementPath(search, "codings", "l.resource->'code'->'coding'");
+			search.where(constructCodeWhereParameter(theOrCodes));
 			returnAll = false;
 		}
 
 		if (theSources != null) {
 			for (ReferenceParam theSource : theSources.getValuesAsQueryTokens()) {
-				String where = constructReferenceWhereParameter(theSource, "l", "source");
-				if (where != null && !where.isEmpty()) {
-					whereParameters.add(where);
-				}
+				search.where(constructReferenceWhereParameter(theSource, "l", "source"));
 			}
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll) {
-			if (whereStatement == null || whereStatement.isEmpty()) return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
+
+		search.orderBy(constructOrderParams(theSort));
 		
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("l.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -224,8 +208,8 @@ public class ListResourceProvider extends BaseResourceProvider {
 	}
 
 	class MyBundleProvider extends FhirbaseBundleProvider implements IBundleProvider {
-		public MyBundleProvider(String query) {
-			super(query);
+		public MyBundleProvider(SqlQuery search) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 		}
 
@@ -237,13 +221,10 @@ public class ListResourceProvider extends BaseResourceProvider {
 			// TODO: do this later
 			List<String> includes = new ArrayList<String>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -23,10 +23,12 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
@@ -44,8 +46,7 @@ public class LocationResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -67,13 +68,11 @@ public class LocationResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdLocation.getIdElement());
 			retVal.setResource(createdLocation);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -81,16 +80,16 @@ public class LocationResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteLocation(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readLocation(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -121,46 +120,39 @@ public class LocationResourceProvider extends BaseResourceProvider {
 
 	@Search()
 	public IBundleProvider findLocationByIds(
-			@RequiredParam(name = Location.SP_RES_ID) TokenOrListParam theLocationIds) {
+			@RequiredParam(name = Location.SP_RES_ID) TokenOrListParam theLocationIds,
+			SearchTotalModeEnum theTotalMode) {
 		if (theLocationIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theCondition : theLocationIds.getValuesAsQueryTokens()) {
-			whereStatement += "lo.id = '" + theCondition.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from("location lo")
+				.where(constructIdWhereParameter("lo.id", theLocationIds));
 
-		String queryCount = "SELECT count(*) FROM location lo " + whereStatement;
-		String query = "SELECT * FROM location lo " + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("lo.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
 	}
 
 	@Search()
-	public IBundleProvider findLocationByParams(@Sort SortSpec theSort) {
+	public IBundleProvider findLocationByParams(@Sort SortSpec theSort, SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "location lo";
+		SqlQuery search = SqlQuery.from("location lo");
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll) {
-			if (whereStatement == null || whereStatement.isEmpty()) return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("lo.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -171,8 +163,8 @@ public class LocationResourceProvider extends BaseResourceProvider {
 	}
 
 	class MyBundleProvider extends FhirbaseBundleProvider implements IBundleProvider {
-		public MyBundleProvider(String query) {
-			super(query);
+		public MyBundleProvider(SqlQuery search) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 		}
 
@@ -184,13 +176,10 @@ public class LocationResourceProvider extends BaseResourceProvider {
 			// TODO: do this later
 			List<String> includes = new ArrayList<String>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -46,15 +46,18 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -72,8 +75,7 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -100,26 +102,24 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdMedicationRequest.getIdElement());
 			retVal.setResource(createdMedicationRequest);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-
 		return retVal;
 	}
 
 	@Delete()
 	public void deleteMedicationRequest(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -141,7 +141,7 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 		return retVal;
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readMedicationRequest(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 
@@ -158,26 +158,19 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 	public IBundleProvider findMedicationRequetsById(
 			@RequiredParam(name = MedicationRequest.SP_RES_ID) TokenOrListParam theMedicationRequestId,
 
-			@IncludeParam(allow = { "MedicationRequest:medication" }) final Set<Include> theIncludes
-
-	) {
+			@IncludeParam(allow = { "MedicationRequest:medication" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theMedicationRequestId == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theCondition : theMedicationRequestId.getValuesAsQueryTokens()) {
-			whereStatement += "mr.id = '" + theCondition.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM medicationrequest mr " + whereStatement;
-		String query = "SELECT * FROM medicationrequest mr " + whereStatement;
+		SqlQuery search = SqlQuery.from("medicationrequest mr")
+				.where(constructIdWhereParameter("mr.id", theMedicationRequestId));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes);
+		myBundleProvider.setKeyset("mr.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -195,56 +188,44 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 					USCorePatient.SP_IDENTIFIER }) ReferenceAndListParam theSubjects,
 			@Sort SortSpec theSort,
 
-			@IncludeParam(allow = { "MedicationRequest:medication" }) final Set<Include> theIncludes
+			@IncludeParam(allow = { "MedicationRequest:medication" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-	) {
-
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "medicationrequest mr";
+		SqlQuery search = SqlQuery.from("medicationrequest mr");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on mr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "mr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 
 		if (theOrCodes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "codings", "mr.resource->'medicationCodeableConcept'->'coding'");
-			String where = constructCodeWhereParameter(theOrCodes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			constructFromStatementPath(search, "codings", "mr.resource->'medicationCodeableConcept'->'coding'");
+			search.where(constructCodeWhereParameter(theOrCodes));
 			returnAll = false;
 		}
 
 		if (theEncounter != null) {
-			whereParameters.add("mr.resource->encounter->>reference like '%" + theEncounter.getIdPart() + "%'");
+			search.where("mr.resource->encounter->>reference like ?", "%" + theEncounter.getIdPart() + "%");
 			returnAll = false;
 		}
 
 		if (theDate != null) {
-			String where = constructDateWhereParameter(theDate, "mr", "authoredOn");
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructDateWhereParameter(theDate, "mr", "authoredOn"));
 			returnAll = false;
 		}
 
@@ -259,22 +240,19 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 
 		if (theMedication != null) {
 			//TODO: Medication.code needs to be implemented.
-			whereParameters
-					.add("mr.resource->medicationReference->>reference like '%" + theMedication.getIdPart() + "%'");
+			search.where("mr.resource->medicationReference->>reference like ?", "%" + theMedication.getIdPart() + "%");
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
-			 return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes);
+		myBundleProvider.setKeyset("mr.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -302,8 +280,8 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 	class MyBundleProvider extends FhirbaseBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 		}
@@ -319,13 +297,10 @@ public class MedicationRequestResourceProvider extends BaseResourceProvider {
 				includes.add("MedicationRequest:medication");
 			}
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
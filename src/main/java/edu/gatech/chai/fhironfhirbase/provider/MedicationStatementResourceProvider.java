@@ -42,15 +42,18 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -66,8 +69,7 @@ public class MedicationStatementResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	@Override
@@ -93,27 +95,24 @@ public class MedicationStatementResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdMedStatement.getIdElement());
 			retVal.setResource(createdMedStatement);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-
 		return retVal;
 	}
 
 	@Delete()
 	public void deleteMedicationStatement(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -134,7 +133,7 @@ public class MedicationStatementResourceProvider extends BaseResourceProvider {
 		return retVal;
 	}
 
-	@Read()
+	@Read(version = true)
 	public IBaseResource readMedicationStatement(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 
@@ -150,24 +149,19 @@ public class MedicationStatementResourceProvider extends BaseResourceProvider {
 	@Search()
 	public IBundleProvider findMedicationStatementsById(
 			@RequiredParam(name = MedicationStatement.SP_RES_ID) TokenOrListParam theMedicationStatementIds,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theMedicationStatementIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theMedicationStatement : theMedicationStatementIds.getValuesAsQueryTokens()) {
-			whereStatement += "ms.id = '" + theMedicationStatement.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM medicationstatement ms " + whereStatement;
-		String query = "SELECT * FROM medicationstatement ms " + whereStatement;
+		SqlQuery search = SqlQuery.from("medicationstatement ms")
+				.where(constructIdWhereParameter("ms.id", theMedicationStatementIds));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("ms.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -181,73 +175,61 @@ public class MedicationStatementResourceProvider extends BaseResourceProvider {
 					USCorePatient.SP_IDENTIFIER }) ReferenceAndListParam thePatients,
 			@OptionalParam(name = MedicationStatement.SP_SUBJECT, chainWhitelist = { "", USCorePatient.SP_NAME,
 					USCorePatient.SP_IDENTIFIER }) ReferenceAndListParam theSubjects,
-			@OptionalParam(name = MedicationStatement.SP_SOURCE) ReferenceParam theSource, @Sort SortSpec theSort) {
+			@OptionalParam(name = MedicationStatement.SP_SOURCE) ReferenceParam theSource, @Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "medicationstatement ms";
+		SqlQuery search = SqlQuery.from("medicationstatement ms");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on ms.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "ms.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 
 		if (theOrCodes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "codings",
+			constructFromStatementPath(search, "codings",
 					"ms.resource->'medicationCodeableConcept'->'coding'");
-			String where = constructCodeWhereParameter(theOrCodes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructCodeWhereParameter(theOrCodes));
 			returnAll = false;
 		}
 		if (theContext != null) {
-			whereParameters.add("ms.resource->context->>reference like '%" + theContext.getValue() + "%'");
+			search.where("ms.resource->context->>reference like ?", "%" + theContext.getValue() + "%");
 			returnAll = false;
 		}
 
 		if (theDate != null) {
-			String where = constructDateWhereParameter(theDate, "ms", "effectiveDateTime");
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructDateWhereParameter(theDate, "ms", "effectiveDateTime"));
 			returnAll = false;
 		}
 
 		if (theSource != null) {
-			whereParameters.add("ms.resource->informationSource->>reference like '%" + theSource.getValue() + "%'");
+			search.where("ms.resource->informationSource->>reference like ?", "%" + theSource.getValue() + "%");
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
-			 return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search);
+		myBundleProvider.setKeyset("ms.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 
@@ -283,21 +265,18 @@ public class MedicationStatementResourceProvider extends BaseResourceProvider {
 
 	class MyBundleProvider extends FhirbaseBundleProvider {
 
-		public MyBundleProvider(String query) {
-			super(query);
+		public MyBundleProvider(SqlQuery search) {
+			super(search);
 		}
 
 		@Override
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -31,14 +31,16 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -55,8 +57,7 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 
@@ -79,13 +80,11 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdObservation.getIdElement());
 			retVal.setResource(createdObservation);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -93,36 +92,30 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteMessageHeader(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
 	@Search()
 	public IBundleProvider findMessageHeaderById(
 			@RequiredParam(name = MessageHeader.SP_RES_ID) TokenOrListParam theMessageHeaderIds,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theMessageHeaderIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theMessageHeader : theMessageHeaderIds.getValuesAsQueryTokens()) {
-			whereStatement += "mh.id = '" + theMessageHeader.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from(getTableName() + " mh")
+				.where(constructIdWhereParameter("mh.id", theMessageHeaderIds));
 
-		String queryCount = "SELECT count(*) FROM " + getTableName() + " mh " + whereStatement;
-		String query = "SELECT * FROM " + getTableName() + " mh " + whereStatement;
-
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("mh.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -132,50 +125,44 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = MessageHeader.SP_SOURCE) StringParam theSource,
 			@OptionalParam(name = MessageHeader.SP_SOURCE_URI) StringParam theSourceUri,
 			@OptionalParam(name = MessageHeader.SP_FOCUS) ReferenceOrListParam theFocusReferences,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = getTableName() + " mh";
+		SqlQuery search = SqlQuery.from(getTableName() + " mh");
 		if (theSource != null) {
-			whereParameters.add("mh.resource->'source'->>'name' = '" + theSource.getValue() + "'");
+			search.where("mh.resource->'source'->>'name' = ?", theSource.getValue());
 			returnAll = false;
 		}
 
 		if (theSourceUri != null) {
-			whereParameters.add("mh.resource->'source'->>'endpoint' = '" + theSource.getValue() + "'");
+			search.where("mh.resource->'source'->>'endpoint' = ?", theSourceUri.getValue());
 			returnAll = false;
 		}
 
 		if (theFocusReferences != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "focuses", "mh.resource->'focus'");
+			constructFromStatementPath(search, "focuses", "mh.resource->'focus'");
 
-			String whereFocuses = "";
+			List<BoundSql> whereFocuses = new ArrayList<BoundSql>();
 			for (ReferenceParam focusReference : theFocusReferences.getValuesAsQueryTokens()) {
-				if (!whereFocuses.isEmpty()) {
-					whereFocuses += " OR ";
-				}
-				
-				whereFocuses += "focuses @> '{\"reference\": \"" + focusReference.getValue() + "\"}'::jsonb";
+				whereFocuses.add(constructContainsWhere("focuses", "reference", focusReference.getValue()));
 			}
 
-			whereParameters.add(whereFocuses);
+			search.where(BoundSql.join(" OR ", whereFocuses));
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
-			 return null;
+		if (!returnAll && !search.hasConditions()) {
+			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		logger.debug("query count:" + queryCount + "\nquery:" + query);
+		logger.debug("query:" + search.build());
 		
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("mh.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -192,7 +179,7 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readMessageHeader(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 
@@ -233,8 +220,8 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -244,13 +231,10 @@ public class MessageHeaderResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 			
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
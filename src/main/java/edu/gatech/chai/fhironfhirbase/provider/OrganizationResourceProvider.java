@@ -41,11 +41,13 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 /**
@@ -68,8 +70,7 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -99,14 +100,12 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdOrg.getIdElement());
 			retVal.setResource(createdOrg);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-		
 		return retVal;
 	}
 
@@ -122,7 +121,7 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readOrganization(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -162,13 +161,12 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteOrganization(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	}
 
 	@Search()
@@ -176,39 +174,35 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = Organization.SP_RES_ID) TokenOrListParam theOrganizationIds,
 			@OptionalParam(name = Organization.SP_NAME) StringParam theName, @Sort SortSpec theSort,
 
-			@IncludeParam(allow = { "Organization:partof" }) final Set<Include> theIncludes) {
-		List<String> whereParameters = new ArrayList<String>();
+			@IncludeParam(allow = { "Organization:partof" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 		boolean returnAll = true;
 		
-		String fromStatement = "organization org";
+		SqlQuery search = SqlQuery.from("organization org");
 
 		if (theOrganizationIds != null) {
-			for (TokenParam theOrganizationId : theOrganizationIds.getValuesAsQueryTokens()) {
-				whereParameters.add("org.id = '" + theOrganizationId.getValue() + "'");
-			}
+			search.where(constructIdWhereParameter("org.id", theOrganizationIds));
 			returnAll = false;
 		}
 
 		if (theName != null) {
 			if (theName.isExact()) {
-				whereParameters.add("org.resource->>name = '" + theName.getValue() + "'");
+				search.where("org.resource->>name = ?", theName.getValue());
 			} else {
-				whereParameters.add("org.resource->>name like '%" + theName.getValue() + "%'");
+				search.where("org.resource->>name like ?", "%" + theName.getValue() + "%");
 			}
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) { 
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("org.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -221,8 +215,8 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -238,13 +232,10 @@ public class OrganizationResourceProvider extends BaseResourceProvider {
 				includes.add("Organization:partof");
 			}
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -12,7 +12,6 @@ import org.springframework.stereotype.Service;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Read;
-import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
 @Scope("prototype")
@@ -28,8 +27,7 @@ public class ParametersResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
     private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM "+ParametersResourceProvider.getType().toLowerCase()+";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	@Override
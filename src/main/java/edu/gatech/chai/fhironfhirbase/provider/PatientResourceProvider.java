@@ -67,6 +67,7 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -75,6 +76,9 @@ import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
 
@@ -96,8 +100,7 @@ public class PatientResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -127,14 +130,12 @@ public class PatientResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdPatient.getIdElement());
 			retVal.setResource(createdPatient);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-
 		return retVal;
 	}
 
@@ -150,7 +151,7 @@ public class PatientResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readPatient(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 
@@ -190,13 +191,12 @@ public class PatientResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deletePatient(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -241,15 +241,15 @@ public class PatientResourceProvider extends BaseResourceProvider {
 					"Patient:link" }) final Set<Include> theIncludes,
 
 			@IncludeParam(allow = { "Encounter:subject",
-					"Observation:subject" }, reverse = true) final Set<Include> theReverseIncludes) {
+					"Observation:subject" }, reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "patient p";
+		SqlQuery search = SqlQuery.from("patient p");
 
 		if (thePatientId != null) {
-			whereParameters.add("p.id = '" + thePatientId.getValue() + "'");
+			search.where("p.id = ?", thePatientId.getValue());
 			returnAll = false;
 		}
 
@@ -258,62 +258,53 @@ public class PatientResourceProvider extends BaseResourceProvider {
 			String value = thePatientIdentifier.getValue();
 
 			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				whereParameters.add("p.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-						+ system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("p.resource->'identifier'", "value", value, "system", system));
 			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				whereParameters.add("p.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("p.resource->'identifier'", "system", system));
 			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				whereParameters.add("p.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("p.resource->'identifier'", "value", value));
 			}
 			returnAll = false;
 		}
 		if (theActive != null) {
-			whereParameters.add("p.resource->>'active'=" + theActive.getValue());
+			search.where("p.resource->>'active' = ?", theActive.getValue());
 			returnAll = false;
 		}
 		if (theEmail != null) {
-			whereParameters.add(
-					"p.resource->'telecom' @> '[{\"system\":\"email\"}]'::jsonb AND p.resource->'telecom' @> '[{\"value\":\""
-							+ theEmail.getValue() + "\"}]'::jsonb");
+			search.where(constructArrayContainsWhere("p.resource->'telecom'", "system", "email"));
+			search.where(constructArrayContainsWhere("p.resource->'telecom'", "value", theEmail.getValue()));
 			returnAll = false;
 		}
 		if (thePhone != null) {
-			whereParameters.add(
-					"p.resource->'telecom' @> '[{\"system\":\"phone\"}]'::jsonb AND p.resource->'telecom' @> '[{\"value\":\""
-							+ thePhone.getValue() + "\"}]'::jsonb");
+			search.where(constructArrayContainsWhere("p.resource->'telecom'", "system", "phone"));
+			search.where(constructArrayContainsWhere("p.resource->'telecom'", "value", thePhone.getValue()));
 			returnAll = false;
 		}
 		if (theTelecom != null) {
-			whereParameters.add("p.resource->'telecom' @> '[{\"system\":\"" + theTelecom.getSystem()
-					+ "\"}]'::jsonb AND p.resource->'telecom' @> '[{\"value\":\"" + theTelecom.getValue()
-					+ "\"}]'::jsonb");
+			search.where(constructArrayContainsWhere("p.resource->'telecom'", "system", theTelecom.getSystem()));
+			search.where(constructArrayContainsWhere("p.resource->'telecom'", "value", theTelecom.getValue()));
 			returnAll = false;
 		}
 		if (theFamilyName != null) {
-			if (!fromStatement.contains("names")) {
-				fromStatement += ", jsonb_array_elements(p.resource->'name') names";
-			}
+			constructFromStatementPath(search, "names", "p.resource->'name'");
 
 			if (theFamilyName.isExact()) {
-				whereParameters.add("names->>'family' = '" + theFamilyName.getValue() + "'");
+				search.where("names->>'family' = ?", theFamilyName.getValue());
 			} else {
-				whereParameters.add("names->>'family' like '%" + theFamilyName.getValue() + "%'");
+				search.where("names->>'family' like ?", "%" + theFamilyName.getValue() + "%");
 			}
 			returnAll = false;
 		}
 		if (theName != null) {
-			if (!fromStatement.contains("names")) {
-				fromStatement += ", jsonb_array_elements(p.resource->'name') names";
-			}
+			constructFromStatementPath(search, "names", "p.resource->'name'");
 
 			if (theName.getValue() != null && !theName.getValue().isEmpty()) {
-				String nameSearching = 
-					"lower(names->>'family') like lower('%" + theName.getValue() + "%') OR " +
-					"lower(names->>'given') like lower('%" + theName.getValue() + "%') OR " +
-					"lower(names->>'text') like lower('%" + theName.getValue() + "%') OR " +
-					"lower(names->>'prefix') like lower('%" + theName.getValue() + "%') OR " +
-					"lower(names->>'suffix') like lower('%" + theName.getValue() + "%')";
-				whereParameters.add(nameSearching);
+				String like = "%" + theName.getValue() + "%";
+				search.where("lower(names->>'family') like lower(?) OR " +
+					"lower(names->>'given') like lower(?) OR " +
+					"lower(names->>'text') like lower(?) OR " +
+					"lower(names->>'prefix') like lower(?) OR " +
+					"lower(names->>'suffix') like lower(?)", like, like, like, like, like);
 			}
 
 			if (theName.getMissing() != null) {
@@ -326,7 +317,7 @@ public class PatientResourceProvider extends BaseResourceProvider {
 						"COALESCE(TRIM(names->>'prefix'), '') = '' AND " +
 						"COALESCE(TRIM(names->>'suffix'), '') = ''" +
 						")";
-					whereParameters.add(nameSearching);
+					search.where(nameSearching);
 				} else {
 					nameSearching = "p.resource->'name' is not null AND (" +
 						"COALESCE(TRIM(names->>'family'), '') != '' OR " +
@@ -335,68 +326,57 @@ public class PatientResourceProvider extends BaseResourceProvider {
 						"COALESCE(TRIM(names->>'prefix'), '') != '' OR " +
 						"COALESCE(TRIM(names->>'suffix'), '') != ''" +
 						")";
-					whereParameters.add(nameSearching);
+					search.where(nameSearching);
 				}
 			}
 			returnAll = false;
 		}
 		if (theGivenName != null) {
-			if (!fromStatement.contains("names")) {
-				fromStatement += ", jsonb_array_elements(p.resource->'name') names";
-			}
+			constructFromStatementPath(search, "names", "p.resource->'name'");
 
-			whereParameters.add("names->>'given' like '%" + theGivenName.getValue() + "%'");
+			search.where("names->>'given' like ?", "%" + theGivenName.getValue() + "%");
 			returnAll = false;
 		}
 		if (theGender != null) {
-			whereParameters.add("p.resource->>'gender' = '" + theGender.getValue() + "'");
+			search.where("p.resource->>'gender' = ?", theGender.getValue());
 			returnAll = false;
 		}
 		if (theBirthDate != null) {
-			String where = constructDateWhereParameter(theBirthDate, "p", "birthDate");
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructDateWhereParameter(theBirthDate, "p", "birthDate"));
 			returnAll = false;
 		}
 		if (theAddress != null) {
-			whereParameters.add("p.resource->>'address' like '%" + theAddress.getValue() + "%'");
+			search.where("p.resource->>'address' like ?", "%" + theAddress.getValue() + "%");
 			returnAll = false;
 		}
 		if (theAddressCity != null) {
-			if (!fromStatement.contains("addresses")) {
-				fromStatement += ", jsonb_array_elements(p.resource->'address') addresses";
-			}
+			constructFromStatementPath(search, "addresses", "p.resource->'address'");
 
 			if (theAddressCity.isExact()) {
-				whereParameters.add("addresses->>'city' = '" + theAddressCity.getValue() + "'");
+				search.where("addresses->>'city' = ?", theAddressCity.getValue());
 			} else {
-				whereParameters.add("addresses->>'city' like '%" + theAddressCity.getValue() + "%'");
+				search.where("addresses->>'city' like ?", "%" + theAddressCity.getValue() + "%");
 			}
 
 			returnAll = false;
 		}
 		if (theAddressState != null) {
-			if (!fromStatement.contains("addresses")) {
-				fromStatement += ", jsonb_array_elements(p.resource->'address') addresses";
-			}
+			constructFromStatementPath(search, "addresses", "p.resource->'address'");
 
 			if (theAddressState.isExact()) {
-				whereParameters.add("addresses->>'state' = '" + theAddressState.getValue() + "'");
+				search.where("addresses->>'state' = ?", theAddressState.getValue());
 			} else {
-				whereParameters.add("addresses->>'state' like '%" + theAddressState.getValue() + "%'");
+				search.where("addresses->>'state' like ?", "%" + theAddressState.getValue() + "%");
 			}
 			returnAll = false;
 		}
 		if (theAddressZip != null) {
-			if (!fromStatement.contains("addresses")) {
-				fromStatement += ", jsonb_array_elements(p.resource->'address') addresses";
-			}
+			constructFromStatementPath(search, "addresses", "p.resource->'address'");
 
 			if (theAddressZip.isExact()) {
-				whereParameters.add("addresses->>'postalCode' = '" + theAddressZip.getValue() + "'");
+				search.where("addresses->>'postalCode' = ?", theAddressZip.getValue());
 			} else {
-				whereParameters.add("addresses->>'postalCode' like '%" + theAddressZip.getValue() + "%'");
+				search.where("addresses->>'postalCode' like ?", "%" + theAddressZip.getValue() + "%");
 			}
 			returnAll = false;
 		}
@@ -425,16 +405,15 @@ public class PatientResourceProvider extends BaseResourceProvider {
 //		}
 
 		// Complete Query.
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		search.orderBy(constructOrderParams(theSort));
+
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("p.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -466,8 +445,7 @@ public class PatientResourceProvider extends BaseResourceProvider {
 		try {
 			resources.add(getFhirbaseMapping().read(thePatientId, getResourceType(), "patient"));
 
-			// addition where
-			String where = "";
+			String patientReference = "%Patient/" + thePatientId.getIdPart();
 			
 //			get compositions
 //			String sql = "select * from composition c where c.resource->'subject'->>'reference' like '%Patient/"
@@ -475,14 +453,11 @@ public class PatientResourceProvider extends BaseResourceProvider {
 //			resources.addAll(getFhirbaseMapping().search(sql, Composition.class));
 			
 			// Get conditions
-			String sql = "select * from condition c where c.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "c", "onsetDateTime");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
+			SqlQuery query = SqlQuery.from("condition c")
+					.where("c.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "c", "onsetDateTime"));
 			
-			List<IBaseResource> conditions = getFhirbaseMapping().search(sql, Condition.class);
+			List<IBaseResource> conditions = getFhirbaseMapping().search(query.build(), Condition.class);
 			resources.addAll(conditions);
 			
 			// Now, we have some resources that we need to include but only being referenced by cause of death condition.
@@ -507,69 +482,51 @@ public class PatientResourceProvider extends BaseResourceProvider {
 				}
 			}
 			// Get practitioner (Asserter)
-			String practitionerIds = "";
-			String sourceWhere = "";
+			List<String> practitionerIds = new ArrayList<String>();
+			List<BoundSql> sourceWhere = new ArrayList<BoundSql>();
 			for (Reference asserter : asserters) {
 				String id = asserter.getReferenceElement().getIdPart();
-				if (practitionerIds.isEmpty()) {
-					practitionerIds = "'" + id + "'";
-					sourceWhere = "l.resource->'source'->>'reference' like '%Practitioner/" + id + "'";
-				} else {
-					practitionerIds += ", '" + id + "'";
-					sourceWhere += " or l.resource->'source'->>'reference' like '%Practitioner/" + id + "'";
-				}
+				practitionerIds.add(id);
+				sourceWhere.add(BoundSql.of("l.resource->'source'->>'reference' like ?", "%Practitioner/" + id));
 			}
 			if (!practitionerIds.isEmpty()) {
-				sql = "select * from practitioner where id in (" + practitionerIds + ")";
-				resources.addAll(getFhirbaseMapping().search(sql, Practitioner.class));
+				resources.addAll(getFhirbaseMapping().readMany(Practitioner.class, "practitioner", practitionerIds).values());
 			}
 			
 			// Get devices
-			sql = "select * from device d where d.resource->'patient'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			resources.addAll(getFhirbaseMapping().search(sql, Device.class));
+			query = SqlQuery.from("device d")
+					.where("d.resource->'patient'->>'reference' like ?", patientReference);
+			resources.addAll(getFhirbaseMapping().search(query.build(), Device.class));
 
 			// Get deviceUseStatements
-			sql = "select * from deviceusestatement du where du.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "du", "timingDateTime");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, DeviceUseStatement.class));
+			query = SqlQuery.from("deviceusestatement du")
+					.where("du.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "du", "timingDateTime"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), DeviceUseStatement.class));
 
 			// Get documentReferences
-			sql = "select * from documentreference dr where dr.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "dr", "date");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, DocumentReference.class));
+			query = SqlQuery.from("documentreference dr")
+					.where("dr.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "dr", "date"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), DocumentReference.class));
 
 			// Get encounters
-			sql = "select * from encounter e where e.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "e", "period->'start'");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, Encounter.class));
+			query = SqlQuery.from("encounter e")
+					.where("e.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "e", "period->'start'"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), Encounter.class));
 
 			// Get lists
-			sql = "select * from list l where l.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "l", "date");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
+			query = SqlQuery.from("list l")
+					.where("l.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "l", "date"));
 			
-			List<IBaseResource> lists = getFhirbaseMapping().search(sql, ListResource.class);
+			List<IBaseResource> lists = getFhirbaseMapping().search(query.build(), ListResource.class);
 			
 			// Get List that has source pointing to the asserters.
 			if (!sourceWhere.isEmpty()) {
-				sql = "select * from list l where " + sourceWhere;
-				List<IBaseResource> moreLists = getFhirbaseMapping().search(sql, ListResource.class);
+				query = SqlQuery.from("list l").where(BoundSql.join(" OR ", sourceWhere));
+				List<IBaseResource> moreLists = getFhirbaseMapping().search(query.build(), ListResource.class);
 				resources.addAll(moreLists);
 	
 				for (IBaseResource res : lists) {
@@ -595,50 +552,38 @@ public class PatientResourceProvider extends BaseResourceProvider {
 			}
 						
 			// Get medicationRequests
-			sql = "select * from medicationrequest mr where mr.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "mr", "authoredOn");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, MedicationRequest.class));
+			query = SqlQuery.from("medicationrequest mr")
+					.where("mr.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "mr", "authoredOn"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), MedicationRequest.class));
 
 			// Get medicationStatements
-			sql = "select * from medicationstatement ms where ms.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "ms", "effectiveDateTime");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, MedicationStatement.class));
+			query = SqlQuery.from("medicationstatement ms")
+					.where("ms.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "ms", "effectiveDateTime"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), MedicationStatement.class));
 
 			// Get observations
-			sql = "select * from observation o where o.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "o", "effectiveDateTime");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, Observation.class));
+			query = SqlQuery.from("observation o")
+					.where("o.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "o", "effectiveDateTime"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), Observation.class));
 
 			// Get procedures
-			sql = "select * from procedure p where p.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			where = constructDatePeriodWhereParameter(startDate, endDate, "p", "performedDateTime");
-			if (where != null && !where.isEmpty()) {
-				sql += " AND " + where;
-			}
-			resources.addAll(getFhirbaseMapping().search(sql, Procedure.class));
+			query = SqlQuery.from("procedure p")
+					.where("p.resource->'subject'->>'reference' like ?", patientReference)
+					.where(constructDatePeriodWhereParameter(startDate, endDate, "p", "performedDateTime"));
+			resources.addAll(getFhirbaseMapping().search(query.build(), Procedure.class));
 
 			// Get relatedPersons
-			sql = "select * from relatedperson rp where rp.resource->'patient'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			resources.addAll(getFhirbaseMapping().search(sql, RelatedPerson.class));
+			query = SqlQuery.from("relatedperson rp")
+					.where("rp.resource->'patient'->>'reference' like ?", patientReference);
+			resources.addAll(getFhirbaseMapping().search(query.build(), RelatedPerson.class));
 
 			// Get compositions
-			sql = "select * from composition comp where comp.resource->'subject'->>'reference' like '%Patient/"
-					+ thePatientId.getIdPart() + "'";
-			resources.addAll(getFhirbaseMapping().search(sql, Composition.class));
+			query = SqlQuery.from("composition comp")
+					.where("comp.resource->'subject'->>'reference' like ?", patientReference);
+			resources.addAll(getFhirbaseMapping().search(query.build(), Composition.class));
 			
 			// Now, we have other resources that are not directly reference by decedent.
 			// For those indirect referenced resources, we need to figure out.
@@ -699,10 +644,14 @@ public class PatientResourceProvider extends BaseResourceProvider {
 	}
 
 	private void getLocations(List<IBaseResource> resources, String patientId, String code, String extensionType) throws SQLException {
-		String sql = "select * from observation o, jsonb_array_elements(o.resource->'code'->'coding') codings where o.resource->'subject'->>'reference' like '%Patient/" + 
-		patientId + "' and codings @> '{\"code\": \"" + code + "\"}'::jsonb";
-		
+		BoundSql sql = SqlQuery.from("observation o")
+				.join(Join.arrayElements("o.resource->'code'->'coding'", "codings"))
+				.where("o.resource->'subject'->>'reference' like ?", "%Patient/" + patientId)
+				.where(constructContainsWhere("codings", "code", code))
+				.build();
+
 		List<IBaseResource> observations = getFhirbaseMapping().search(sql, Observation.class);
+		List<String> locationIds = new ArrayList<String>();
 		for (IBaseResource observation : observations) {
 			Observation obs = (Observation) observation;
 			List<Extension> extensions = obs.getExtension();
@@ -720,12 +669,15 @@ public class PatientResourceProvider extends BaseResourceProvider {
 			}
 			
 			if (id != null) {
-				// get this location.
-				sql = "select * from location where id = '" + id + "'";
-				resources.addAll(getFhirbaseMapping().search(sql, Location.class));
+				locationIds.add(id);
 			}
 		}
 
+		// get these locations in one query.
+		if (!locationIds.isEmpty()) {
+			resources.addAll(getFhirbaseMapping().readMany(Location.class, "location", locationIds).values());
+		}
+
 	}
 
 	/**
@@ -754,8 +706,8 @@ public class PatientResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -765,13 +717,10 @@ public class PatientResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retv = new ArrayList<IBaseResource>();
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retv.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retv.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
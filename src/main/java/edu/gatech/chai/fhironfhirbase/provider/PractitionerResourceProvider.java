@@ -29,6 +29,9 @@ import org.hl7.fhir.r4.model.Practitioner;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.annotation.Create;
@@ -42,6 +45,7 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.InternalCodingDt;
@@ -49,6 +53,8 @@ import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.TokenParamModifier;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 import edu.gatech.chai.fhironfhirbase.utilities.ThrowFHIRExceptions;
 
@@ -70,8 +76,7 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -101,27 +106,24 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdPractitioner.getIdElement());
 			retVal.setResource(createdPractitioner);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-
 		return retVal;
 	}
 
 	@Delete()
 	public void deletePractitioner(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -154,17 +156,15 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = Practitioner.SP_TELECOM) TokenOrListParam theTelecoms,
 			@Sort SortSpec theSort,
 			@IncludeParam(allow = {}) final Set<Include> theIncludes,
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "practitioner pract";
+		SqlQuery search = SqlQuery.from("practitioner pract");
 
 		if (thePractitionerIds != null) {
-			for (TokenParam thePractitionerId : thePractitionerIds.getValuesAsQueryTokens()) {
-				whereParameters.add("pract.id = '" + thePractitionerId.getValue() + "'");
-			}
+			search.where(constructIdWhereParameter("pract.id", thePractitionerIds));
 			returnAll = false;
 		}
 		
@@ -186,101 +186,88 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 					}
 				}
 
-				if (system != null && !system.isBlank()) {
-					if (code != null && !code.isBlank()) {
-						whereParameters.add("pract.resource->'identifier' @> '[{\"type\": {\"coding\":[{\"system\":\""+system+"\", \"code\":\""+code+"\"}]}}]'::jsonb");
-					} else {
-						whereParameters.add("pract.resource->'identifier' @> '[{\"type\": {\"coding\":[{\"system\":\""+system+"\"}]}}]'::jsonb");
-					} 
-				} else {
-					if (code != null && !code.isBlank()) {
-						whereParameters.add("pract.resource->'identifier' @> '[{\"type\": {\"coding\":[{\"code\":\""+code+"\"}]}}]'::jsonb");
-					}
+				if ((system != null && !system.isBlank()) || (code != null && !code.isBlank())) {
+					JsonObject type = new JsonObject();
+					JsonArray typeCodings = new JsonArray();
+					typeCodings.add(jsonObject("system", system == null || system.isBlank() ? null : system, "code",
+							code == null || code.isBlank() ? null : code));
+					type.add("coding", typeCodings);
+					JsonObject identifier = new JsonObject();
+					identifier.add("type", type);
+					JsonArray identifiers = new JsonArray();
+					identifiers.add(identifier);
+					search.where(constructContainsWhere("pract.resource->'identifier'", identifiers));
 				}
 				
 				if (_value != null && !_value.isBlank()) {
-					whereParameters.add("pract.resource->'identifier' @> '[{\"value\": \"" + _value + "\"}]'::jsonb");
+					search.where(constructArrayContainsWhere("pract.resource->'identifier'", "value", _value));
 				}
 			} else {
 				if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-					whereParameters.add("pract.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-							+ system + "\"}]'::jsonb");
+					search.where(constructArrayContainsWhere("pract.resource->'identifier'", "value", value, "system", system));
 				} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-					whereParameters.add("pract.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+					search.where(constructArrayContainsWhere("pract.resource->'identifier'", "system", system));
 				} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-					whereParameters.add("pract.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+					search.where(constructArrayContainsWhere("pract.resource->'identifier'", "value", value));
 				}
 			}
 			returnAll = false;
 		}
 
 		if (theActive != null) {
-			whereParameters.add("pract.resource->>'active'=" + theActive.getValue());
+			search.where("pract.resource->>'active' = ?", theActive.getValue());
 			returnAll = false;
 		}
 
 		if (theFamilyName != null) {
-			if (!fromStatement.contains("names")) {
-				fromStatement += ", jsonb_array_elements(pract.resource->'name') names";
-			}
+			constructFromStatementPath(search, "names", "pract.resource->'name'");
 
 			if (theFamilyName.isExact()) {
-				whereParameters.add("names->>'family' = '" + theFamilyName.getValue() + "'");
+				search.where("names->>'family' = ?", theFamilyName.getValue());
 			} else {
-				whereParameters.add("names->>'family' like '%" + theFamilyName.getValue() + "%'");
+				search.where("names->>'family' like ?", "%" + theFamilyName.getValue() + "%");
 			}
 			returnAll = false;
 		}
 
 		if (theGivenName != null) {
-			if (!fromStatement.contains("names")) {
-				fromStatement += ", jsonb_array_elements(pract.resource->'name') names";
-			}
+			constructFromStatementPath(search, "names", "pract.resource->'name'");
 
-			whereParameters.add("names->>'given' like '%" + theGivenName.getValue() + "%'");
+			search.where("names->>'given' like ?", "%" + theGivenName.getValue() + "%");
 			returnAll = false;
 		}
 		if (theName != null) {
-			whereParameters.add("pract.resource->>'name' like '%" + theName.getValue() + "%'");
+			search.where("pract.resource->>'name' like ?", "%" + theName.getValue() + "%");
 			returnAll = false;
 		}
 
 		if (theGender != null) {
-			whereParameters.add("pract.resource->>'gender' = '" + theGender.getValue() + "'");
+			search.where("pract.resource->>'gender' = ?", theGender.getValue());
 			returnAll = false;
 		}
 
 		if (theTelecoms != null) {
-			if (!fromStatement.contains("telecoms")) {
-				fromStatement += ", jsonb_array_elements(pract.resource->'telecom') telecoms";
-			}
+			constructFromStatementPath(search, "telecoms", "pract.resource->'telecom'");
 
-			String telecomString = new String();
+			List<BoundSql> telecomWhere = new ArrayList<BoundSql>();
 			for (TokenParam theTelecom : theTelecoms.getValuesAsQueryTokens()) {
-				telecomString = telecomString.concat("telecoms->>'value' = '" + theTelecom.getValue() + "'" + " OR ");
-			}
-
-			if (!telecomString.isBlank()) {
-				telecomString = telecomString.substring(0, telecomString.length()-4);
+				telecomWhere.add(BoundSql.of("telecoms->>'value' = ?", theTelecom.getValue()));
 			}
 
-			whereParameters.add(telecomString);
+			search.where(BoundSql.join(" OR ", telecomWhere));
 			
 			returnAll = false;
 		}
 
-
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("pract.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 
@@ -298,7 +285,7 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readPractitioner(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -355,8 +342,8 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -366,13 +353,10 @@ public class PractitionerResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 			
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
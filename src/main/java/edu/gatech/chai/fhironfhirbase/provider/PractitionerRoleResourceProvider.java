@@ -27,12 +27,15 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -48,8 +51,7 @@ public class PractitionerRoleResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -75,50 +77,42 @@ public class PractitionerRoleResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdPractitionerRole.getIdElement());
 			retVal.setResource(createdPractitionerRole);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
 		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
-		
 		return retVal;
 	}
 
 	@Delete()
 	public void deletePractitionerRole(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
 	@Search()
 	public IBundleProvider findPractitionerRolesById(
-		@RequiredParam(name = PractitionerRole.SP_RES_ID) TokenOrListParam thePractitionerRoleIds, @Sort SortSpec theSort) {
+		@RequiredParam(name = PractitionerRole.SP_RES_ID) TokenOrListParam thePractitionerRoleIds, @Sort SortSpec theSort,
+		SearchTotalModeEnum theTotalMode) {
 
 		if (thePractitionerRoleIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam thePractitionerRoleId : thePractitionerRoleIds.getValuesAsQueryTokens()) {
-			whereStatement += "practrole.id = '" + thePractitionerRoleId.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from(getTableName() + " practrole")
+				.where(constructIdWhereParameter("practrole.id", thePractitionerRoleIds));
 
-		String queryCount = "SELECT count(*) FROM " + getTableName() + " practrole " + whereStatement;
-		String query = "SELECT * FROM " + getTableName() + " practrole " + whereStatement;
-
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("practrole.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -132,17 +126,15 @@ public class PractitionerRoleResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = PractitionerRole.SP_PRACTITIONER) ReferenceOrListParam thePractitioners,
 			@Sort SortSpec theSort,
 			@IncludeParam(allow = {}) final Set<Include> theIncludes,
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = getTableName() + " practrole";
+		SqlQuery search = SqlQuery.from(getTableName() + " practrole");
 
 		if (thePractitionerRoleIds != null) {
-			for (TokenParam thePractitionerRoleId : thePractitionerRoleIds.getValuesAsQueryTokens()) {
-				whereParameters.add("practrole.id = '" + thePractitionerRoleId.getValue() + "'");
-			}
+			search.where(constructIdWhereParameter("practrole.id", thePractitionerRoleIds));
 			returnAll = false;
 		}
 		
@@ -151,58 +143,49 @@ public class PractitionerRoleResourceProvider extends BaseResourceProvider {
 			String value = thePractitionerRoleIdentifier.getValue();
 
 			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				whereParameters.add("practrole.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-						+ system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("practrole.resource->'identifier'", "value", value, "system", system));
 			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				whereParameters.add("pract.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("pract.resource->'identifier'", "system", system));
 			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				whereParameters.add("pract.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("pract.resource->'identifier'", "value", value));
 			}
 			returnAll = false;
 		}
 
 		if (theActive != null) {
-			whereParameters.add("practrole.resource->>'active'=" + theActive.getValue());
+			search.where("practrole.resource->>'active' = ?", theActive.getValue());
 			returnAll = false;
 		}
 
 		if (theOrganizations != null) {
 			for (ReferenceParam theOrganization : theOrganizations.getValuesAsQueryTokens()) {
-				String where = constructReferenceWhereParameter(theOrganization, "practrole", "organization");
-				if (where != null && !where.isEmpty()) {
-					whereParameters.add(where);
-				}
+				search.where(constructReferenceWhereParameter(theOrganization, "practrole", "organization"));
 			}
 			returnAll = false;
 		}
 
 		if (thePractitioners != null) {
 			for (ReferenceParam thePractitioner : thePractitioners.getValuesAsQueryTokens()) {
-				String where = constructReferenceWhereParameter(thePractitioner, "practrole", "practitioner");
-				if (where != null && !where.isEmpty()) {
-					whereParameters.add(where);
-				}
+				search.where(constructReferenceWhereParameter(thePractitioner, "practrole", "practitioner"));
 			}
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) { 
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, theReverseIncludes);
+		myBundleProvider.setKeyset("practrole.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 
 	}
 	
-	@Read()
+	@Read(version = true)
 	public IBaseResource readPractitioner(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -257,8 +240,8 @@ public class PractitionerRoleResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -268,13 +251,10 @@ public class PractitionerRoleResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 			
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
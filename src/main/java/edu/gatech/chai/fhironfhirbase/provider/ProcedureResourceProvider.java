@@ -42,6 +42,7 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
@@ -50,6 +51,9 @@ import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -65,8 +69,7 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	@Override
@@ -92,13 +95,11 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdProcedure.getIdElement());
 			retVal.setResource(createdProcedure);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-	
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 		return retVal;
 	}
@@ -130,13 +131,12 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteProcedure(@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -152,7 +152,7 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readProcedure(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 				
@@ -168,24 +168,19 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 	@Search()
 	public IBundleProvider findProcedureById(
 			@RequiredParam(name = Procedure.SP_RES_ID) TokenOrListParam theProcedureIds, @IncludeParam(allow = {
-					"Procedure:patient", "Procedure:performer", "Procedure:context" }) final Set<Include> theIncludes) {
+					"Procedure:patient", "Procedure:performer", "Procedure:context" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
 		if (theProcedureIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theProcedureId : theProcedureIds.getValuesAsQueryTokens()) {
-			whereStatement += "proc.id = '" + theProcedureId.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM procedure proc " + whereStatement;
-		String query = "SELECT * FROM procedure proc " + whereStatement;
+		SqlQuery search = SqlQuery.from("procedure proc")
+				.where(constructIdWhereParameter("proc.id", theProcedureIds));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("proc.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -218,41 +213,34 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 			@OptionalParam(name = Procedure.SP_PERFORMER) ReferenceParam thePerformerParam, @Sort SortSpec theSort,
 
 			@IncludeParam(allow = { "Procedure:patient", "Procedure:performer",
-					"Procedure:context" }) final Set<Include> theIncludes) {
+					"Procedure:context" }) final Set<Include> theIncludes,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = "procedure proc";
+		SqlQuery search = SqlQuery.from("procedure proc");
 
 		if (theSubjects != null || thePatients != null) {
-			fromStatement += " join patient p on proc.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "proc.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 
-			String updatedFromStatement = constructFromWherePatients (fromStatement, whereParameters, theSubjects);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, theSubjects)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 
-			updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 		
 		if (theOrCodes != null) {
-			fromStatement = constructFromStatementPath(fromStatement, "codings", "proc.resource->'code'->'coding'");
-			String where = constructCodeWhereParameter(theOrCodes);
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			constructFromStatementPath(search, "codings", "proc.resource->'code'->'coding'");
+			search.where(constructCodeWhereParameter(theOrCodes));
 			returnAll = false;
 		}
 
@@ -261,44 +249,38 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 			String value = theProcecureIdentifier.getValue();
 
 			if (system != null && !system.isEmpty() && value != null && !value.isEmpty()) {
-				whereParameters.add("proc.resource->'identifier' @> '[{\"value\": \"" + value + "\",\"system\": \""
-						+ system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("proc.resource->'identifier'", "value", value, "system", system));
 			} else if (system != null && !system.isEmpty() && (value == null || value.isEmpty())) {
-				whereParameters.add("proc.resource->'identifier' @> '[{\"system\": \"" + system + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("proc.resource->'identifier'", "system", system));
 			} else if ((system == null || system.isEmpty()) && value != null && !value.isEmpty()) {
-				whereParameters.add("proc.resource->'identifier' @> '[{\"value\": \"" + value + "\"}]'::jsonb");
+				search.where(constructArrayContainsWhere("proc.resource->'identifier'", "value", value));
 			}
 			returnAll = false;
 		}
 
 		if (theDateParam != null) {
-			String where = constructDateWhereParameter(theDateParam, "proc", "performedDateTime");
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructDateWhereParameter(theDateParam, "proc", "performedDateTime"));
 			returnAll = false;
 		}
 		if (theEncounterParam != null) {
-			whereParameters.add("proc.resource->>'encounter' like '%" + theEncounterParam.getValue() + "%'");
+			search.where("proc.resource->>'encounter' like ?", "%" + theEncounterParam.getValue() + "%");
 			returnAll = false;
 		}
 
 		if (thePerformerParam != null) {
-			whereParameters.add("proc.resource->>'performer' like '%" + theEncounterParam.getValue() + "%'");
+			search.where("proc.resource->>'performer' like ?", "%" + theEncounterParam.getValue() + "%");
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("proc.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -316,8 +298,8 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -341,13 +323,10 @@ public class ProcedureResourceProvider extends BaseResourceProvider {
 				includes.add("Procedure:context");
 			}
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -47,15 +47,18 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceAndListParam;
 import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -72,8 +75,7 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -99,13 +101,11 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 			retVal.setId(createdQuestionnaire.getIdElement());
 			retVal.setResource(createdQuestionnaire);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	
 		return retVal;
 	}
@@ -113,13 +113,12 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 	@Delete()
 	public void deleteQuestionnaireResponse (@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
@@ -127,24 +126,19 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 	public IBundleProvider findQuestionnaireResponseById(
 		@RequiredParam(name = QuestionnaireResponse.SP_RES_ID) TokenOrListParam theQuestionnaireResponseIds, 
 		@IncludeParam(allow = { "QuestionnaireResponse:questionnaire", "Observation:patient", "Observation:subject" }) final Set<Include> theIncludes,
-		@Sort SortSpec theSort) {
+		@Sort SortSpec theSort,
+		SearchTotalModeEnum theTotalMode) {
 
 		if (theQuestionnaireResponseIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theQuestionnaireResponse : theQuestionnaireResponseIds.getValuesAsQueryTokens()) {
-			whereStatement += "qr.id = '" + theQuestionnaireResponse.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
-
-		String queryCount = "SELECT count(*) FROM " + getTableName() + " qr " + whereStatement;
-		String query = "SELECT * FROM " + getTableName() + " qr " + whereStatement;
+		SqlQuery search = SqlQuery.from(getTableName() + " qr")
+				.where(constructIdWhereParameter("qr.id", theQuestionnaireResponseIds));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("qr.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -156,83 +150,62 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 					USCorePatient.SP_IDENTIFIER }) ReferenceAndListParam thePatients,
 			@OptionalParam(name = QuestionnaireResponse.SP_SUBJECT) ReferenceAndListParam theSubjects,
 			@IncludeParam(allow = { "QuestionnaireResponse:questionnaire", "QuestionnaireResponse:patient", "QuestionnaireResponse:subject" }) final Set<Include> theIncludes,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = getTableName() + " qr";
+		SqlQuery search = SqlQuery.from(getTableName() + " qr");
 		
 		if (theQuestionnaires != null) {
 			for (ReferenceParam theQuestionnaire : theQuestionnaires.getValuesAsQueryTokens()) {
-				String where = constructCanonicalWhereParameter(theQuestionnaire, "qr", "questionnaire");
-				if (where != null && !where.isEmpty()) {
-					whereParameters.add(where);
-				}
+				search.where(constructCanonicalWhereParameter(theQuestionnaire, "qr", "questionnaire"));
 			}
 			returnAll = false;
 		}
 
 		if (thePatients != null) {
-			fromStatement += " join patient p on qr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
+			search.join(Join.inner("patient", "p", "qr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
 			
-			String updatedFromStatement = constructFromWherePatients(fromStatement, whereParameters, thePatients);
-			if (updatedFromStatement.isEmpty()) {
+			if (!constructFromWherePatients(search, thePatients)) {
 				// This means that we have unsupported resource. Since this is to search, we should discard all and
 				// return null.
 				return null;
 			}
-			fromStatement = updatedFromStatement;
 			
 			returnAll = false;
 		}
 
 		if (theSubjects != null) {
 			for (ReferenceOrListParam theReferences : theSubjects.getValuesAsQueryTokens()) {
-				String whereOr = "";
+				List<BoundSql> whereOr = new ArrayList<BoundSql>();
 				for (ReferenceParam theReference : theReferences.getValuesAsQueryTokens()) {
 					if ("Patient".equals(theReference.getResourceType())) {
-						if (!fromStatement.contains("patient p")) {
-							fromStatement += " join patient p on qr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')";
-						}
-
-						String where = constructPatientWhereParameter(theReference);
-						if (whereOr.isEmpty()) {
-							whereOr = where;
-						} else {
-							whereOr += " or " + where;
-						}
+						search.join(Join.inner("patient", "p", "qr.resource->'subject'->>'reference' = concat('Patient/', p.resource->>'id')"));
+
+						whereOr.add(constructPatientWhereParameter(theReference));
 						if (theReference.getChain() != null && !theReference.getChain().isEmpty()) {
-							fromStatement = constructFromStatementPatientChain(fromStatement, theReference.getChain());
+							constructFromStatementPatientChain(search, theReference.getChain());
 						}	
 					} else {
-						String where = "qr.resource->'subject'->>'reference' = '" + theReference.getValue() + "'"; 
-						if (whereOr.isEmpty()) {
-							whereOr = where;
-						} else {
-							whereOr += " or " + where;
-						}
+						whereOr.add(BoundSql.of("qr.resource->'subject'->>'reference' = ?", theReference.getValue()));
 					}
 				}
 
-				if (whereOr != null && !whereOr.isEmpty()) {
-					whereParameters.add(whereOr);
-				}
+				search.where(BoundSql.join(" OR ", whereOr));
 			}			
 
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, theIncludes, null);
+		myBundleProvider.setKeyset("qr.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -249,7 +222,7 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readQuestionnaireResponse(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -300,8 +273,8 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -326,13 +299,10 @@ public class QuestionnaireResponseResourceProvider extends BaseResourceProvider
 				includes.add("QuestionnaireResponse:subject");
 			}
 
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
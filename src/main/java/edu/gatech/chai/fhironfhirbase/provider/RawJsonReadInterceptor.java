@@ -0,0 +1,151 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.util.DateUtils;
+import edu.gatech.chai.fhironfhirbase.operation.RawResource;
+
+/**
+ * Serves plain reads (GET [type]/[id]) by writing the stored jsonb out as-is.
+ * This skips the parse into a HAPI model and the encode back to JSON. The body
+ * is the same resource, but not the same bytes: jsonb keeps keys in its own
+ * order and writes a space after ':' and ','.
+ * <p>
+ * A request only takes this path when nothing would change the stored JSON:
+ * <ul>
+ * <li>the response is JSON and not pretty-printed</li>
+ * <li>there is no _summary or _elements</li>
+ * <li>the type is served by a fhirbase provider whose resource class is the
+ * plain HAPI model. Custom classes such as USCorePatient or MyDevice add
+ * meta.profile and their own extensions when encoded, which the stored JSON
+ * does not have.</li>
+ * <li>no interceptor is registered that needs the parsed resource or the handled
+ * request, such as authorization, narrative or response highlighting</li>
+ * </ul>
+ * Everything else, including not-found, falls through to the normal @Read
+ * method. Register with {@code registerInterceptor(new RawJsonReadInterceptor())}.
+ */
+@Interceptor
+public class RawJsonReadInterceptor {
+	private static final Logger logger = LoggerFactory.getLogger(RawJsonReadInterceptor.class);
+
+	private static final Pointcut[] OUTPUT_POINTCUTS = {
+			Pointcut.SERVER_OUTGOING_RESPONSE,
+			Pointcut.SERVER_OUTGOING_WRITER_CREATED,
+			Pointcut.STORAGE_PRESHOW_RESOURCES };
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletResponse theResponse)
+			throws IOException {
+		BaseResourceProvider provider = rawReadProvider(theRequestDetails);
+		if (provider == null) {
+			return true;
+		}
+
+		RawResource rawResource;
+		try {
+			rawResource = provider.getFhirbaseMapping().readRaw(provider.getTableName(),
+					theRequestDetails.getId().getIdPart());
+		} catch (SQLException e) {
+			logger.debug("Raw read failed, using the normal read: " + e.getMessage());
+			return true;
+		}
+
+		if (rawResource == null) {
+			return true;
+		}
+
+		writeResponse(theRequestDetails, theResponse, rawResource);
+		FastReadSupport.processingCompleted(theRequestDetails);
+
+		return false;
+	}
+
+	/**
+	 * Returns the fhirbase provider that would serve this request if it qualifies
+	 * for the raw path, otherwise null.
+	 */
+	private BaseResourceProvider rawReadProvider(RequestDetails theRequestDetails) {
+		BaseResourceProvider provider = FastReadSupport.readProvider(theRequestDetails);
+		if (provider == null || !isPlainModel(provider.getResourceType())) {
+			return null;
+		}
+
+		// Conditional reads are answered by ConditionalReadInterceptor, or else by the read method binding.
+		if (theRequestDetails.getHeader(Constants.HEADER_IF_NONE_MATCH) != null
+				&& theRequestDetails.getUserData().get(FastReadSupport.CONDITIONAL_CHECKED) == null) {
+			return null;
+		}
+
+		for (String parameter : theRequestDetails.getParameters().keySet()) {
+			if (parameter.startsWith(Constants.PARAM_ELEMENTS) || parameter.equals(Constants.PARAM_SUMMARY)) {
+				return null;
+			}
+		}
+
+		RestfulServer server = (RestfulServer) theRequestDetails.getServer();
+		ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, null);
+		EncodingEnum encodingEnum = encoding != null ? encoding.getEncoding() : server.getDefaultResponseEncoding();
+		if (encodingEnum != EncodingEnum.JSON || RestfulServerUtils.prettyPrintResponse(server, theRequestDetails)) {
+			return null;
+		}
+
+		for (Pointcut pointcut : OUTPUT_POINTCUTS) {
+			if (FastReadSupport.hasHooks(theRequestDetails, pointcut)) {
+				return null;
+			}
+		}
+
+		return provider;
+	}
+
+	/**
+	 * True for the HAPI R4 model classes themselves, false for custom
+	 * {@code @ResourceDef} subclasses.
+	 */
+	static boolean isPlainModel(Class<?> resourceType) {
+		return resourceType != null && resourceType.getPackage() == Resource.class.getPackage();
+	}
+
+	private void writeResponse(RequestDetails theRequestDetails, HttpServletResponse theResponse,
+			RawResource rawResource) throws IOException {
+		ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, null);
+		String contentType = encoding != null ? encoding.getResourceContentType() : Constants.CT_FHIR_JSON_NEW;
+
+		theResponse.setStatus(Constants.STATUS_HTTP_200_OK);
+		theResponse.setContentType(contentType);
+		theResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+
+		RestfulServer server = (RestfulServer) theRequestDetails.getServer();
+		if (rawResource.getVersionId() != null && server.getETagSupport() == ETagSupportEnum.ENABLED) {
+			theResponse.setHeader(Constants.HEADER_ETAG, "W/\"" + rawResource.getVersionId() + '"');
+		}
+		if (rawResource.getLastUpdated() != null) {
+			theResponse.setHeader(Constants.HEADER_LAST_MODIFIED, DateUtils.formatDate(rawResource.getLastUpdated()));
+		}
+
+		byte[] json = rawResource.getJson();
+		theResponse.setContentLength(json.length);
+		ServletOutputStream outputStream = theResponse.getOutputStream();
+		outputStream.write(json);
+		outputStream.flush();
+	}
+}
@@ -0,0 +1,80 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+import edu.gatech.chai.fhironfhirbase.utilities.ResourceCountRegistry;
+
+/**
+ * Loads the startup resource counts in the background. Each provider used to
+ * count its table in @PostConstruct on the startup thread, so startup time grew
+ * with the database. Counts now run on virtual threads, at most
+ * FHIRBASE_STARTUP_COUNT_PARALLELISM (default 4) at a time so they do not take
+ * the whole connection pool. The server answers requests while they run; until
+ * a count is in, the type reports whatever creates and deletes have added.
+ *
+ * Each count logs how long it waited and how long the query took. The last one
+ * logs the total time from the first provider.
+ */
+final class ResourceCountLoader {
+	private static final Logger logger = LoggerFactory.getLogger(ResourceCountLoader.class);
+
+	private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private static final Semaphore permits = new Semaphore(
+			Math.max(1, OperationUtil.getEnvInt("FHIRBASE_STARTUP_COUNT_PARALLELISM", 4)));
+
+	private static final AtomicInteger pending = new AtomicInteger();
+	private static final AtomicLong firstQueuedNanos = new AtomicLong();
+
+	private ResourceCountLoader() {
+	}
+
+	static void load(FhirbaseMapping fhirbaseMapping, String resourceType, String tableName) {
+		long queued = System.nanoTime();
+		firstQueuedNanos.compareAndSet(0L, queued);
+		pending.incrementAndGet();
+
+		executor.execute(() -> {
+			long started = queued;
+			try {
+				permits.acquire();
+				try {
+					started = System.nanoTime();
+					// Creates and deletes during the count are not in its result; setCounted adds them back.
+					long adjustments = ResourceCountRegistry.getInstance().getAdjustments(resourceType);
+					int count = fhirbaseMapping.getSize(SqlQuery.from(tableName).buildCount());
+					ResourceCountRegistry.getInstance().setCounted(resourceType, count, adjustments);
+
+					logger.info("Counted " + resourceType + ": " + count + " in " + millis(started, System.nanoTime())
+							+ " ms (waited " + millis(queued, started) + " ms)");
+				} finally {
+					permits.release();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				// Leave the count to the scheduled reconcile rather than report 0.
+				logger.warn("Failed to count " + resourceType + " after " + millis(started, System.nanoTime()) + " ms: "
+						+ e.getMessage());
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					logger.info("Startup resource counts done in " + millis(firstQueuedNanos.get(), System.nanoTime()) + " ms");
+				}
+			}
+		});
+	}
+
+	private static long millis(long fromNanos, long toNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
+	}
+}
@@ -44,14 +44,16 @@ import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
-import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
 import edu.gatech.chai.fhironfhirbase.utilities.ExtensionUtil;
 
 @Service
@@ -67,8 +69,7 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 
 	@PostConstruct
 	private void postConstruct() {
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
+		loadResourceCount();
 	}
 
 	public static String getType() {
@@ -94,13 +95,11 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 			retVal.setId(createdValueSet.getIdElement());
 			retVal.setResource(createdValueSet);
 			retVal.setCreated(true);
+			ExtensionUtil.adjustResourceCount(getMyResourceType(), 1);
 		} catch (SQLException e) {
 			retVal.setCreated(false);
 			e.printStackTrace();
 		}
-
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 	
 		return retVal;
 	}
@@ -108,36 +107,30 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 	@Delete()
 	public void deleteValueSet (@IdParam IdType theId) {
 		try {
-			getFhirbaseMapping().delete(theId, getResourceType(), getTableName());
+			if (getFhirbaseMapping().delete(theId, getResourceType(), getTableName()) != null) {
+				ExtensionUtil.adjustResourceCount(getMyResourceType(), -1);
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		
-		int totalSize = getTotalSize("SELECT count(*) FROM " + getTableName() + ";");
-		ExtensionUtil.addResourceCount(getMyResourceType(), (long) totalSize);
 
 	}
 
 	@Search()
 	public IBundleProvider findValueSetsById(
-		@RequiredParam(name = ValueSet.SP_RES_ID) TokenOrListParam theValueSetIds, @Sort SortSpec theSort) {
+		@RequiredParam(name = ValueSet.SP_RES_ID) TokenOrListParam theValueSetIds, @Sort SortSpec theSort,
+		SearchTotalModeEnum theTotalMode) {
 
 		if (theValueSetIds == null) {
 			return null;
 		}
 
-		String whereStatement = "WHERE ";
-		for (TokenParam theValueSet : theValueSetIds.getValuesAsQueryTokens()) {
-			whereStatement += "vs.id = '" + theValueSet.getValue() + "' OR ";
-		}
-
-		whereStatement = whereStatement.substring(0, whereStatement.length() - 4);
+		SqlQuery search = SqlQuery.from(getTableName() + " vs")
+				.where(constructIdWhereParameter("vs.id", theValueSetIds));
 
-		String queryCount = "SELECT count(*) FROM " + getTableName() + " vs " + whereStatement;
-		String query = "SELECT * FROM " + getTableName() + " vs " + whereStatement;
-
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("vs.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -146,47 +139,37 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 	public IBundleProvider findValueSetsByParams(
 			@OptionalParam(name = ValueSet.SP_CODE) StringOrListParam theCodes,
 			@OptionalParam(name = ValueSet.SP_DATE) DateParam theDate,
-			@Sort SortSpec theSort) {
+			@Sort SortSpec theSort,
+			SearchTotalModeEnum theTotalMode) {
 
-		List<String> whereParameters = new ArrayList<String>();
 		boolean returnAll = true;
 		
-		String fromStatement = getTableName() + " vs";
+		SqlQuery search = SqlQuery.from(getTableName() + " vs");
 		
 		if (theCodes != null) {
-			String codesQuery = new String();
+			List<BoundSql> codesQuery = new ArrayList<BoundSql>();
 			for (StringParam theCode : theCodes.getValuesAsQueryTokens()) {
-				if (codesQuery.isBlank()) {
-					codesQuery.concat("(vs.resource->'expansion'->'contains'->>'code' = '" + theCode.getValue() + 
-								 "' OR vs.resource->'compose'->'include'->'concept'->>'code' = '" + theCode.getValue() + "')");
-				} else {
-					codesQuery.concat("OR (vs.resource->'expansion'->'contains'->>'code' = '" + theCode.getValue() + 
-								 "' OR vs.resource->'compose'->'include'->'concept'->>'code' = '" + theCode.getValue() + "')");
-				}
+				codesQuery.add(BoundSql.of("vs.resource->'expansion'->'contains'->>'code' = ? OR vs.resource->'compose'->'include'->'concept'->>'code' = ?",
+						theCode.getValue(), theCode.getValue()));
 			}
-			whereParameters.add("(" + codesQuery + ")");
+			search.where(BoundSql.join(" OR ", codesQuery));
 			returnAll = false;
 		}
 
 		if (theDate != null) {
-			String where = constructDateWhereParameter(theDate, "vs", "date");
-			if (where != null && !where.isEmpty()) {
-				whereParameters.add(where);
-			}
+			search.where(constructDateWhereParameter(theDate, "vs", "date"));
 			returnAll = false;
 		}
 
-		String whereStatement = constructWhereStatement(whereParameters, theSort);
-
-		if (!returnAll && (whereStatement == null || whereStatement.isEmpty())) {
+		if (!returnAll && !search.hasConditions()) {
 			return null;
 		}
 
-		String queryCount = "SELECT count(*) FROM " + fromStatement + whereStatement;
-		String query = "SELECT * FROM " + fromStatement + whereStatement;
+		search.orderBy(constructOrderParams(theSort));
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(query, null, null);
-		myBundleProvider.setTotalSize(getTotalSize(queryCount));
+		MyBundleProvider myBundleProvider = new MyBundleProvider(search, null, null);
+		myBundleProvider.setKeyset("vs.id");
+		submitSearch(myBundleProvider, theTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -203,7 +186,7 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 	 *              IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
-	@Read()
+	@Read(version = true)
 	public IBaseResource readValueSet(@IdParam IdType theId) {
 		IBaseResource retVal = null;
 		
@@ -254,8 +237,8 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
 
-		public MyBundleProvider(String query, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
-			super(query);
+		public MyBundleProvider(SqlQuery search, Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+			super(search);
 			setPreferredPageSize(preferredPageSize);
 			this.theIncludes = theIncludes;
 			this.theReverseIncludes = theReverseIncludes;
@@ -265,13 +248,10 @@ public class ValueSetResourceProvider extends BaseResourceProvider {
 		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
 			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
 			
-			String myQuery = query;			
-			if (toIndex - fromIndex > 0) {
-				myQuery += " LIMIT " + (toIndex - fromIndex) + " OFFSET " + fromIndex;
-			}
+			BoundSql myQuery = pageQuery(fromIndex, toIndex);
 
 			try {
-				retVal.addAll(getFhirbaseMapping().search(myQuery, getResourceType()));
+				retVal.addAll(searchPage(getFhirbaseMapping(), myQuery, fromIndex, toIndex, null, getResourceType()));
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
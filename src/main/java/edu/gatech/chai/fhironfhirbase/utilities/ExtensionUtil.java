@@ -1,10 +1,10 @@
 package edu.gatech.chai.fhironfhirbase.utilities;
 
 import java.io.File;
-import java.util.HashMap;
 import java.util.Map;
 
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
 
 import ca.uhn.fhir.parser.IParser;
@@ -20,35 +20,45 @@ public class ExtensionUtil {
 	public static Coding toxLabCaseNumber = new Coding(ExtensionUtil.extTrackingNumberTypeSystem, "tox-lab-case-number", "Toxicology Laboratory Case Number");
 	public static Coding funeralHomeCaseNumber = new Coding(ExtensionUtil.extTrackingNumberTypeSystem, "funeral-home-case-number", "Funeral Home Case Number");
 
-	public static Map<String, Long>  resourceCounts = new HashMap<String, Long>();
-	
 	public static USCorePatient usCorePatientFromResource(Resource resource) {
-		IParser p = OperationUtil.MyFhirContext.newJsonParser();
-		String patientJSON = p.encodeResourceToString(resource);
+		if (resource instanceof Patient) {
+			return USCorePatient.fromPatient((Patient) resource);
+		}
+
+		IParser p = JsonParserCache.acquire(OperationUtil.MyFhirContext);
+		try {
+			String patientJSON = p.encodeResourceToString(resource);
 
-		return p.parseResource(USCorePatient.class, patientJSON);
+			return p.parseResource(USCorePatient.class, patientJSON);
+		} finally {
+			JsonParserCache.release(OperationUtil.MyFhirContext, p);
+		}
 	}
 	
+	/**
+	 * A snapshot of the resource counts. See ResourceCountRegistry.
+	 */
 	public static Map<String, Long> getResourceCounts () {
-		return ExtensionUtil.resourceCounts;
+		return ResourceCountRegistry.getInstance().snapshot();
 	}
 	
 	public static void setResourceCounts (Map<String, Long> resourceCounts) {
-		ExtensionUtil.resourceCounts = resourceCounts;
+		ResourceCountRegistry.getInstance().reset(resourceCounts);
 	}
 	
 	public static void addResourceCount (String resourceName, Long count) {
-		Map<String, Long> counts = ExtensionUtil.getResourceCounts();
-		
-		counts.put(resourceName, count);
+		ResourceCountRegistry.getInstance().set(resourceName, count == null ? 0L : count);
+	}
+
+	/**
+	 * Adjusts a count after a successful create (+1) or delete (-1), so writes
+	 * do not need a count(*). DatabaseConnectionPing corrects any drift.
+	 */
+	public static void adjustResourceCount (String resourceName, long delta) {
+		ResourceCountRegistry.getInstance().adjust(resourceName, delta);
 	}
 	
 	public static Long getResourceCount (String resourceName) {
-		Map<String, Long> counts = ExtensionUtil.getResourceCounts();
-		Long count = counts.get(resourceName);
-		
-		if (count == null) return 0L;
-		
-		return count;
+		return ResourceCountRegistry.getInstance().get(resourceName);
 	}
 }
@@ -0,0 +1,53 @@
+package edu.gatech.chai.fhironfhirbase.utilities;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Small pool of JSON parsers per FhirContext. Creating an IParser for every
+ * call is cheap but not free, and parsers are not safe to share between
+ * threads. A per-thread cache does not help the search and count paths, which
+ * run every task on a new virtual thread, so parsers are leased instead: take
+ * one with acquire and hand it back with release when done. At most MAX_IDLE
+ * parsers are kept per context; extra ones are dropped. Callers must not
+ * change parser options on the instance they get back.
+ */
+public class JsonParserCache {
+	private static final int MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	// FhirContext does not override equals, so this is keyed by identity.
+	private static final Map<FhirContext, BlockingQueue<IParser>> pools =
+			new ConcurrentHashMap<FhirContext, BlockingQueue<IParser>>();
+
+	public static IParser acquire(FhirContext ctx) {
+		IParser parser = pool(ctx).poll();
+
+		return parser != null ? parser : newParser(ctx);
+	}
+
+	public static void release(FhirContext ctx, IParser parser) {
+		if (parser != null) {
+			pool(ctx).offer(parser);
+		}
+	}
+
+	static int idle(FhirContext ctx) {
+		return pool(ctx).size();
+	}
+
+	private static BlockingQueue<IParser> pool(FhirContext ctx) {
+		return pools.computeIfAbsent(ctx, key -> new ArrayBlockingQueue<IParser>(MAX_IDLE));
+	}
+
+	private static IParser newParser(FhirContext ctx) {
+		IParser parser = ctx.newJsonParser();
+		parser.setPrettyPrint(false);
+
+		return parser;
+	}
+}
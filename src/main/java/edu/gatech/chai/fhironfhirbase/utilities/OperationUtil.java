@@ -47,6 +47,19 @@ public class OperationUtil {
 		return myUrl;
 	}
 
+	public static int getEnvInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
 	public static String RAVEN_SYSTEM = "urn:mdi:raven";
 
 	public static Identifier generateIdentifier(String system) {
@@ -0,0 +1,165 @@
+package edu.gatech.chai.fhironfhirbase.utilities;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resource counts by resource type, for the CapabilityStatement extension and
+ * for metrics. Providers adjust a count on every create and delete. A count
+ * that takes a while, such as the startup count or the scheduled reconcile, is
+ * set with setCounted so creates and deletes made while it ran are kept rather
+ * than lost or counted twice.
+ */
+public class ResourceCountRegistry implements ResourceCountsMXBean {
+	private static final Logger logger = LoggerFactory.getLogger(ResourceCountRegistry.class);
+
+	private static final String OBJECT_NAME = "edu.gatech.chai.fhironfhirbase:type=ResourceCounts";
+	private static final ResourceCountRegistry instance = new ResourceCountRegistry();
+
+	static {
+		try {
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance, objectName);
+			}
+		} catch (JMException e) {
+			logger.debug("Failed to register " + OBJECT_NAME + ": " + e.getMessage());
+		}
+	}
+
+	private final Map<String, Counter> counts = new ConcurrentHashMap<String, Counter>();
+
+	public static ResourceCountRegistry getInstance() {
+		return instance;
+	}
+
+	private Counter counter(String resourceName) {
+		return counts.computeIfAbsent(resourceName, name -> new Counter());
+	}
+
+	public void set(String resourceName, long count) {
+		Counter counter = counter(resourceName);
+		counter.base.set(Math.max(0L, count) - counter.adjustments.sum());
+		counter.clamp();
+	}
+
+	/**
+	 * Adds delta to the count. The count never goes below zero.
+	 */
+	public void adjust(String resourceName, long delta) {
+		Counter counter = counter(resourceName);
+		counter.adjustments.add(delta);
+		if (delta < 0) {
+			counter.clamp();
+		}
+	}
+
+	/**
+	 * The sum of all adjustments made so far, to take just before starting a
+	 * count and pass to setCounted.
+	 */
+	public long getAdjustments(String resourceName) {
+		return counter(resourceName).adjustments.sum();
+	}
+
+	/**
+	 * Sets the count from a count query that started when the adjustments were
+	 * adjustmentsAtStart. Adjustments made since then are not in the query's
+	 * result, so they are added to it.
+	 */
+	public void setCounted(String resourceName, long counted, long adjustmentsAtStart) {
+		Counter counter = counter(resourceName);
+		// The count is base plus all adjustments, so this is counted plus those made since.
+		counter.base.set(counted - adjustmentsAtStart);
+		counter.clamp();
+	}
+
+	public long get(String resourceName) {
+		Counter counter = counts.get(resourceName);
+
+		return counter == null ? 0L : counter.get();
+	}
+
+	public Set<String> getResourceNames() {
+		return Collections.unmodifiableSet(counts.keySet());
+	}
+
+	/**
+	 * Replaces all counts with the given ones.
+	 */
+	public void reset(Map<String, Long> newCounts) {
+		counts.keySet().retainAll(newCounts.keySet());
+		for (Map.Entry<String, Long> entry : newCounts.entrySet()) {
+			set(entry.getKey(), entry.getValue() == null ? 0L : entry.getValue());
+		}
+	}
+
+	/**
+	 * A copy of all counts, sorted by resource type. Counts are read without
+	 * locking, so writes may land while the copy is taken.
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : counts.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	@Override
+	public Map<String, Long> getCounts() {
+		return snapshot();
+	}
+
+	@Override
+	public long getTotal() {
+		long total = 0L;
+		for (Counter counter : counts.values()) {
+			total += counter.get();
+		}
+
+		return total;
+	}
+
+	/**
+	 * A count kept as base plus the net of every adjust. Adjusts only add to the
+	 * LongAdder, so creates and deletes take no lock and do not contend on one
+	 * value. set and setCounted move the base.
+	 */
+	private static final class Counter {
+		final AtomicLong base = new AtomicLong();
+		// Net of every adjust, unclamped, so setCounted can tell what changed during a count.
+		final LongAdder adjustments = new LongAdder();
+
+		long get() {
+			return Math.max(0L, base.get() + adjustments.sum());
+		}
+
+		/**
+		 * Raises the base until the count is not below zero, so deletes of rows the
+		 * count never had do not hide later creates.
+		 */
+		void clamp() {
+			while (true) {
+				long current = base.get();
+				long count = current + adjustments.sum();
+				if (count >= 0L || base.compareAndSet(current, current - count)) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package edu.gatech.chai.fhironfhirbase.utilities;
+
+import java.util.Map;
+
+/**
+ * JMX view of the resource counts, registered as
+ * edu.gatech.chai.fhironfhirbase:type=ResourceCounts.
+ */
+public interface ResourceCountsMXBean {
+	Map<String, Long> getCounts();
+
+	long getTotal();
+}
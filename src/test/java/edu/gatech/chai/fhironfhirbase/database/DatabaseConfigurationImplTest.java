@@ -0,0 +1,74 @@
+package edu.gatech.chai.fhironfhirbase.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+public class DatabaseConfigurationImplTest {
+
+	private static DataSource dataSource() {
+		return (DataSource) Proxy.newProxyInstance(DatabaseConfigurationImplTest.class.getClassLoader(),
+				new Class<?>[] { DataSource.class }, (proxy, method, args) -> null);
+	}
+
+	@Test
+	public void poolConfiguredByUrlIsNotItsOwnUnpooledDataSource() {
+		HikariDataSource pool = new HikariDataSource();
+		pool.setJdbcUrl("jdbc:postgresql://localhost:5432/fhirbase");
+		pool.setUsername("fhirbase");
+		pool.setPassword("secret");
+
+		DataSource unpooled = DatabaseConfigurationImpl.unpooled(pool);
+
+		assertNotSame(pool, unpooled);
+		assertTrue(unpooled instanceof DriverManagerDataSource);
+		assertEquals("jdbc:postgresql://localhost:5432/fhirbase", ((DriverManagerDataSource) unpooled).getUrl());
+		assertEquals("fhirbase", ((DriverManagerDataSource) unpooled).getUsername());
+	}
+
+	@Test
+	public void poolAroundADataSourceUnwrapsToIt() {
+		DataSource dataSource = dataSource();
+		HikariDataSource pool = new HikariDataSource();
+		pool.setDataSource(dataSource);
+
+		assertSame(dataSource, DatabaseConfigurationImpl.unpooled(pool));
+		assertSame(dataSource, DatabaseConfigurationImpl.unpooled(dataSource));
+	}
+
+	@Test
+	public void unpooledReadersAreRoundRobin() {
+		DataSource writer = dataSource();
+		DataSource first = dataSource();
+		DataSource second = dataSource();
+		DatabaseConfigurationImpl databaseConfiguration = new DatabaseConfigurationImpl();
+		HikariDataSource writerPool = new HikariDataSource();
+		writerPool.setDataSource(writer);
+		databaseConfiguration.setDataSource(writerPool);
+
+		assertSame(writer, databaseConfiguration.getUnpooledReaderDataSource());
+
+		HikariDataSource firstPool = new HikariDataSource();
+		firstPool.setDataSource(first);
+		HikariDataSource secondPool = new HikariDataSource();
+		secondPool.setDataSource(second);
+		databaseConfiguration.setReaderDataSources(Arrays.<DataSource>asList(firstPool, secondPool));
+
+		DataSource one = databaseConfiguration.getUnpooledReaderDataSource();
+		DataSource two = databaseConfiguration.getUnpooledReaderDataSource();
+		assertNotSame(one, two);
+		assertTrue(one == first || one == second);
+		assertTrue(two == first || two == second);
+	}
+}
@@ -0,0 +1,78 @@
+package edu.gatech.chai.fhironfhirbase.database;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+import edu.gatech.chai.fhironfhirbase.utilities.ResourceCountRegistry;
+
+public class DatabaseConnectionPingTest {
+	private static final String TYPE = "PingTestResource";
+
+	@Test
+	public void reconcileOnTheWriterKeepsCreatesMadeWhileCounting() throws Exception {
+		ResourceCountRegistry registry = ResourceCountRegistry.getInstance();
+		registry.set(TYPE, 5L);
+
+		DatabaseConnectionPing ping = new DatabaseConnectionPing();
+		DataSource writer = dataSource(() -> registry.adjust(TYPE, 1));
+		ping.databaseConfiguration = (DatabaseConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatabaseConfiguration.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "getDataSource" -> writer;
+				case "getReaderDataSource" -> throw new AssertionError("reconciled on a reader");
+				default -> null;
+				});
+
+		ping.pingDatabase();
+
+		// 10 counted, plus the create that landed while the count ran.
+		assertEquals(11L, registry.get(TYPE));
+	}
+
+	/**
+	 * A DataSource that estimates TYPE's table as small and counts 10 rows in
+	 * it, running duringCount while the count query executes.
+	 */
+	private DataSource dataSource(Runnable duringCount) {
+		Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "prepareStatement" -> statement((String) args[0], duringCount);
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+				(proxy, method, args) -> "getConnection".equals(method.getName()) ? connection : null);
+	}
+
+	private PreparedStatement statement(String sql, Runnable duringCount) {
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+					if (!"executeQuery".equals(method.getName())) {
+						return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+					if (sql.startsWith("SELECT count(*)")) {
+						duringCount.run();
+					}
+					return resultSet();
+				});
+	}
+
+	private ResultSet resultSet() {
+		AtomicBoolean read = new AtomicBoolean();
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> switch (method.getName()) {
+				case "next" -> !read.getAndSet(true);
+				case "getString" -> TYPE.toLowerCase();
+				case "getLong" -> 10L;
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+	}
+}
@@ -0,0 +1,29 @@
+package edu.gatech.chai.fhironfhirbase.database;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.scheduling.annotation.Scheduled;
+
+public class SchedulingConfigurationTest {
+	static final CountDownLatch RUNS = new CountDownLatch(2);
+
+	public static class Job {
+		@Scheduled(fixedDelay = 10)
+		public void run() {
+			RUNS.countDown();
+		}
+	}
+
+	@Test
+	public void scheduledMethodsRunWithOnlyTheLibraryConfiguration() throws InterruptedException {
+		try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+				SchedulingConfiguration.class, Job.class)) {
+			assertTrue("@Scheduled method did not run", RUNS.await(5, TimeUnit.SECONDS));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package edu.gatech.chai.fhironfhirbase.model;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+
+/**
+ * Repeatable timing of the Patient to USCorePatient conversion: the JSON round
+ * trip ExtensionUtil.usCorePatientFromResource used to do, with a new parser
+ * per call, against USCorePatient.fromPatient. Each side runs warm-up rounds,
+ * then the median of several timed rounds is reported, so one GC pause or JIT
+ * compile does not decide the result. Timings depend on the machine, so this
+ * only reports them. It is not run by the build; run it with mvn test
+ * -Pbenchmark. USCorePatientTest checks that the conversions agree.
+ */
+public class USCorePatientConversionBenchmark {
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 9;
+	private static final int CONVERSIONS_PER_ROUND = 2000;
+
+	private interface Conversion {
+		USCorePatient convert(Patient patient);
+	}
+
+	@Test
+	public void conversionTimes() {
+		Patient patient = USCorePatientTest.patient();
+
+		Conversion roundTrip = p -> {
+			IParser parser = OperationUtil.MyFhirContext.newJsonParser();
+			return parser.parseResource(USCorePatient.class, parser.encodeResourceToString(p));
+		};
+		Conversion cachedParserRoundTrip = p -> {
+			IParser parser = JsonParserCache.acquire(OperationUtil.MyFhirContext);
+			try {
+				return parser.parseResource(USCorePatient.class, parser.encodeResourceToString(p));
+			} finally {
+				JsonParserCache.release(OperationUtil.MyFhirContext, parser);
+			}
+		};
+		Conversion direct = USCorePatient::fromPatient;
+
+		long roundTripNanos = medianNanosPerConversion(roundTrip, patient);
+		long cachedParserNanos = medianNanosPerConversion(cachedParserRoundTrip, patient);
+		long directNanos = medianNanosPerConversion(direct, patient);
+
+		System.out.println("USCorePatientConversionBenchmark: median per conversion: round trip, new parser="
+				+ roundTripNanos + " ns, round trip, cached parser=" + cachedParserNanos + " ns, fromPatient="
+				+ directNanos + " ns");
+	}
+
+	private static long medianNanosPerConversion(Conversion conversion, Patient patient) {
+		long sink = 0;
+		long[] rounds = new long[ROUNDS];
+		for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < CONVERSIONS_PER_ROUND; i++) {
+				sink += conversion.convert(patient).getName().size();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (round >= 0) {
+				rounds[round] = elapsed / CONVERSIONS_PER_ROUND;
+			}
+		}
+
+		assertTrue(sink > 0);
+		Arrays.sort(rounds);
+		return rounds[ROUNDS / 2];
+	}
+}
@@ -0,0 +1,85 @@
+package edu.gatech.chai.fhironfhirbase.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+import edu.gatech.chai.fhironfhirbase.utilities.OperationUtil;
+
+public class USCorePatientTest {
+	private static final String RACE_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+	private static final String ETHNICITY_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
+	private static final String CDC_RACE = "urn:oid:2.16.840.1.113883.6.238";
+
+	static Patient patient() {
+		Patient patient = new Patient();
+		patient.setId("example");
+		patient.addIdentifier().setSystem("http://hospital.example.org").setValue("12345");
+		patient.addName().setFamily("Doe").addGiven("Jane");
+		patient.setGender(AdministrativeGender.FEMALE);
+		patient.setBirthDateElement(new DateType("1970-01-01"));
+		patient.addAddress().setCity("Atlanta").setState("GA").setPostalCode("30332");
+
+		Extension race = patient.addExtension().setUrl(RACE_URL);
+		race.addExtension("ombCategory", new Coding(CDC_RACE, "2106-3", "White"));
+		race.addExtension("detailed", new Coding(CDC_RACE, "2108-9", "European"));
+		race.addExtension("text", new StringType("White"));
+
+		Extension ethnicity = patient.addExtension().setUrl(ETHNICITY_URL);
+		ethnicity.addExtension("ombCategory", new Coding(CDC_RACE, "2186-5", "Not Hispanic or Latino"));
+		ethnicity.addExtension("text", new StringType("Not Hispanic or Latino"));
+
+		return patient;
+	}
+
+	@Test
+	public void fromPatientEncodesLikeTheParsePath() {
+		IParser parser = JsonParserCache.acquire(OperationUtil.MyFhirContext);
+		Patient patient = patient();
+
+		USCorePatient parsed = parser.parseResource(USCorePatient.class, parser.encodeResourceToString(patient));
+
+		assertEquals(parser.encodeResourceToString(parsed),
+				parser.encodeResourceToString(USCorePatient.fromPatient(patient)));
+	}
+
+	@Test
+	public void copyDoesNotShareRaceOrEthnicity() {
+		USCorePatient original = USCorePatient.fromPatient(patient());
+		USCorePatient copy = original.copy();
+
+		assertNotSame(original.getRace().getCategory(), copy.getRace().getCategory());
+		assertNotSame(original.getRace().getCategory().get(0), copy.getRace().getCategory().get(0));
+
+		copy.getRace().getCategory().get(0).setCode("2054-5");
+		copy.getRace().getCategory().add(new Coding(CDC_RACE, "2028-9", "Asian"));
+		copy.getRace().getDetailed().clear();
+		copy.getRace().getText().get(0).setValue("changed");
+		copy.getEthnicity().getCategory().get(0).setCode("2135-2");
+		copy.getEthnicity().getText().add(new StringType("extra"));
+
+		assertEquals(1, original.getRace().getCategory().size());
+		assertEquals("2106-3", original.getRace().getCategory().get(0).getCode());
+		assertEquals(1, original.getRace().getDetailed().size());
+		assertEquals("White", original.getRace().getText().get(0).getValue());
+		assertEquals("2186-5", original.getEthnicity().getCategory().get(0).getCode());
+		assertEquals(1, original.getEthnicity().getText().size());
+	}
+
+	@Test
+	public void copyEncodesLikeTheOriginal() {
+		IParser parser = JsonParserCache.acquire(OperationUtil.MyFhirContext);
+		USCorePatient original = USCorePatient.fromPatient(patient());
+
+		assertEquals(parser.encodeResourceToString(original), parser.encodeResourceToString(original.copy()));
+	}
+}
@@ -0,0 +1,70 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BoundSqlTest {
+
+	@Test
+	public void valuesStayOutOfTheText() {
+		BoundSql sql = BoundSql.of("o.resource->>'status' = ?", "x' OR '1'='1");
+
+		assertEquals("o.resource->>'status' = ?", sql.getSql());
+		assertEquals(Collections.singletonList("x' OR '1'='1"), sql.getParams());
+	}
+
+	@Test
+	public void joinParenthesizesPartsInOrder() {
+		BoundSql sql = BoundSql.join(" OR ", Arrays.asList(BoundSql.of("a = ?", "1"), BoundSql.of("b = ? and c = ?", "2", "3")));
+
+		assertEquals("(a = ?) OR (b = ? and c = ?)", sql.getSql());
+		assertEquals(Arrays.asList("1", "2", "3"), sql.getParams());
+	}
+
+	@Test
+	public void joinSkipsEmptyParts() {
+		BoundSql part = BoundSql.of("a = ?", "1");
+
+		assertSame(part, BoundSql.join(" OR ", Arrays.asList(null, BoundSql.empty(), part)));
+		assertTrue(BoundSql.join(" OR ", Arrays.asList(BoundSql.empty())).isEmpty());
+		assertTrue(BoundSql.join(" OR ", Collections.emptyList()).isEmpty());
+	}
+
+	@Test
+	public void bindSetsParametersInOrder() throws Exception {
+		List<Object[]> calls = new ArrayList<Object[]>();
+		PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+					if ("setObject".equals(method.getName())) {
+						calls.add(args);
+					}
+					return null;
+				});
+
+		int next = BoundSql.of("a = ? and b > ?", "x", 3).bind(stmt, 2);
+
+		assertEquals(4, next);
+		assertEquals(2, calls.size());
+		assertEquals(Arrays.asList(2, "x", Types.OTHER), Arrays.asList(calls.get(0)));
+		assertEquals(Arrays.asList(3, 3), Arrays.asList(calls.get(1)));
+	}
+
+	@Test
+	public void equalTextAndValuesAreEqual() {
+		assertEquals(BoundSql.of("a = ?", "1"), BoundSql.of("a = ?", "1"));
+		assertEquals(BoundSql.of("a = ?", "1").hashCode(), BoundSql.of("a = ?", "1").hashCode());
+		assertNotEquals(BoundSql.of("a = ?", "1"), BoundSql.of("a = ?", "2"));
+	}
+}
@@ -0,0 +1,106 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
+
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfigurationImpl;
+
+/**
+ * Sends a real NOTIFY and checks that the listener evicts the entry and
+ * advances the write sequence. Runs against the PostgreSQL in
+ * FHIRBASE_TEST_JDBC_URL (with FHIRBASE_TEST_JDBC_USER and
+ * FHIRBASE_TEST_JDBC_PASSWORD), and needs FHIRBASE_NOTIFY=true and
+ * FHIRBASE_CACHE_TYPES set for the listener to start. Skipped otherwise.
+ */
+public class CacheInvalidationListenerIntegrationTest {
+	private static final long TIMEOUT_MILLIS = 15000L;
+
+	private PGSimpleDataSource dataSource;
+	private DatabaseConfigurationImpl databaseConfiguration;
+	private FhirbaseMapping mapping;
+	private CacheInvalidationListener listener;
+
+	@Before
+	public void setUp() {
+		String url = System.getenv("FHIRBASE_TEST_JDBC_URL");
+		assumeNotNull(url);
+		assumeTrue(ChangeNotifications.isEnabled() && System.getenv("FHIRBASE_CACHE_TYPES") != null);
+
+		dataSource = new PGSimpleDataSource();
+		dataSource.setURL(url);
+		dataSource.setUser(System.getenv("FHIRBASE_TEST_JDBC_USER"));
+		dataSource.setPassword(System.getenv("FHIRBASE_TEST_JDBC_PASSWORD"));
+
+		databaseConfiguration = new DatabaseConfigurationImpl();
+		databaseConfiguration.setDataSource(dataSource);
+
+		mapping = new FhirbaseMapping();
+		mapping.databaseConfiguration = databaseConfiguration;
+		mapping.setResourceCache(new ResourceCache(Collections.singleton("Practitioner"), 100, 300));
+
+		listener = new CacheInvalidationListener();
+		listener.databaseConfiguration = databaseConfiguration;
+		listener.fhirbaseMapping = mapping;
+		listener.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (listener != null) {
+			listener.stop();
+		}
+		if (databaseConfiguration != null) {
+			databaseConfiguration.closePool();
+		}
+	}
+
+	@Test
+	public void notifyFromAnotherNodeEvictsAndAdvancesTheWriteSequence() throws Exception {
+		assertTrue("listener did not connect", waitFor(listener::isConnected));
+
+		mapping.getResourceCache().put("Practitioner", "it-1", new Practitioner().setActive(true));
+		long sequence = mapping.getWriteSequence();
+
+		notify("Practitioner/it-1/7/" + System.currentTimeMillis());
+
+		assertTrue("no notification received", waitFor(() -> listener.getNotifications() == 1));
+		assertNull(mapping.getResourceCache().get("Practitioner", "it-1"));
+		assertEquals(sequence + 1, mapping.getWriteSequence());
+	}
+
+	private void notify(String payload) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+				PreparedStatement stmt = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+			stmt.setString(1, ChangeNotifications.CHANNEL);
+			stmt.setString(2, payload);
+			stmt.execute();
+		}
+	}
+
+	private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(50L);
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheInvalidationListenerTest {
+	private FhirbaseMapping mapping;
+	private CacheInvalidationListener listener;
+
+	@Before
+	public void setUp() {
+		mapping = new FhirbaseMapping();
+		mapping.setResourceCache(new ResourceCache(Collections.singleton("Practitioner"), 100, 300));
+		mapping.getResourceCache().put("Practitioner", "p1", new Practitioner().setActive(true));
+		mapping.getResourceCache().put("Practitioner", "p2", new Practitioner().setActive(true));
+
+		listener = new CacheInvalidationListener();
+		listener.fhirbaseMapping = mapping;
+	}
+
+	@Test
+	public void notificationEvictsTheEntryAndAdvancesTheWriteSequence() {
+		long sequence = mapping.getWriteSequence();
+
+		listener.handle("Practitioner/p1/42/" + System.currentTimeMillis());
+
+		assertNull(mapping.getResourceCache().get("practitioner", "p1"));
+		assertNotNull(mapping.getResourceCache().get("practitioner", "p2"));
+		// A read that started before the notification must not fill the cache.
+		assertEquals(sequence + 1, mapping.getWriteSequence());
+		assertEquals(1, listener.getNotifications());
+	}
+
+	@Test
+	public void malformedNotificationIsIgnored() {
+		long sequence = mapping.getWriteSequence();
+
+		listener.handle("Practitioner/p1");
+
+		assertNotNull(mapping.getResourceCache().get("practitioner", "p1"));
+		assertEquals(sequence, mapping.getWriteSequence());
+		assertEquals(0, listener.getNotifications());
+	}
+}
@@ -0,0 +1,36 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ChangeNotificationsTest {
+
+	@Test
+	public void parseSplitsTypeIdVersionAndTime() {
+		assertArrayEquals(new String[] { "Practitioner", "p1", "42", "1700000000000" },
+				ChangeNotifications.parse("Practitioner/p1/42/1700000000000"));
+	}
+
+	@Test
+	public void parseKeepsAMissingVersion() {
+		assertArrayEquals(new String[] { "Practitioner", "p1", "null", "1700000000000" },
+				ChangeNotifications.parse("Practitioner/p1/null/1700000000000"));
+	}
+
+	@Test
+	public void parseLeavesExtraSlashesInTheTime() {
+		// Only the first three slashes split, so a bad timestamp is left for the caller.
+		assertArrayEquals(new String[] { "Practitioner", "p1", "42", "17/00" },
+				ChangeNotifications.parse("Practitioner/p1/42/17/00"));
+	}
+
+	@Test
+	public void parseRejectsMalformedPayloads() {
+		assertNull(ChangeNotifications.parse(null));
+		assertNull(ChangeNotifications.parse(""));
+		assertNull(ChangeNotifications.parse("Practitioner/p1"));
+		assertNull(ChangeNotifications.parse("Practitioner/p1/42"));
+	}
+}
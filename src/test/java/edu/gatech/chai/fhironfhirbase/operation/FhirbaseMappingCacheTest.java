@@ -0,0 +1,124 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+
+public class FhirbaseMappingCacheTest {
+	private static final String PRACTITIONER = "{\"resourceType\":\"Practitioner\",\"id\":\"p1\"}";
+
+	private FhirbaseMapping mapping;
+	// Run while the DELETE statement executes, as a concurrent request would.
+	private Runnable duringDelete = () -> {
+	};
+
+	@Before
+	public void setUp() {
+		mapping = new FhirbaseMapping();
+		mapping.setCtx(FhirContext.forR4Cached());
+		DataSource dataSource = dataSource();
+		mapping.databaseConfiguration = (DatabaseConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatabaseConfiguration.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "getDataSource", "getReaderDataSource" -> dataSource;
+				default -> null;
+				});
+	}
+
+	@Test
+	public void readDuringADeleteIsNotLeftCached() throws Exception {
+		mapping.setResourceCache(new ResourceCache(Collections.singleton("Practitioner"), 100, 300));
+		duringDelete = () -> {
+			try {
+				assertNotNull(mapping.read(new IdType("Practitioner", "p1"), Practitioner.class, "practitioner"));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		};
+
+		IBaseResource deleted = mapping.delete(new IdType("Practitioner", "p1"), Practitioner.class, "practitioner");
+
+		assertEquals("p1", deleted.getIdElement().getIdPart());
+		assertNull(mapping.getResourceCache().get("practitioner", "p1"));
+	}
+
+	@Test
+	public void writeBetweenTheCheckAndThePutIsNotLeftCached() throws Exception {
+		mapping.setResourceCache(new ResourceCache(Collections.singleton("Practitioner"), 100, 300) {
+			@Override
+			public void put(String resourceType, String id, IBaseResource resource) {
+				// A write lands after read checked the sequence but before it puts.
+				mapping.invalidateRemoteChange(resourceType, id);
+				super.put(resourceType, id, resource);
+			}
+		});
+
+		assertNotNull(mapping.read(new IdType("Practitioner", "p1"), Practitioner.class, "practitioner"));
+		assertNull(mapping.getResourceCache().get("practitioner", "p1"));
+	}
+
+	@Test
+	public void readWithoutWritesIsCached() throws Exception {
+		mapping.setResourceCache(new ResourceCache(Collections.singleton("Practitioner"), 100, 300));
+
+		mapping.read(new IdType("Practitioner", "p1"), Practitioner.class, "practitioner");
+		assertNotNull(mapping.getResourceCache().get("practitioner", "p1"));
+	}
+
+	/**
+	 * A DataSource whose reads and deletes find PRACTITIONER.
+	 */
+	private DataSource dataSource() {
+		Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "prepareStatement" -> statement((String) args[0]);
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+				(proxy, method, args) -> "getConnection".equals(method.getName()) ? connection : null);
+	}
+
+	private PreparedStatement statement(String sql) {
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+					if (!"executeQuery".equals(method.getName())) {
+						return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+					if (sql.contains("fhirbase_delete")) {
+						duringDelete.run();
+					}
+					return resultSet();
+				});
+	}
+
+	private ResultSet resultSet() {
+		AtomicBoolean read = new AtomicBoolean();
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> switch (method.getName()) {
+				case "next" -> !read.getAndSet(true);
+				case "getString" -> PRACTITIONER;
+				case "getBinaryStream" -> new ByteArrayInputStream(PRACTITIONER.getBytes(StandardCharsets.UTF_8));
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+	}
+}
@@ -0,0 +1,68 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+
+public class FhirbaseMappingReadDataSourceTest {
+	private final DataSource writer = dataSource();
+	private final DataSource reader = dataSource();
+	private final DataSource unpooledWriter = dataSource();
+	private final DataSource unpooledReader = dataSource();
+
+	private FhirbaseMapping mapping;
+
+	@Before
+	public void setUp() {
+		mapping = new FhirbaseMapping();
+		mapping.databaseConfiguration = (DatabaseConfiguration) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { DatabaseConfiguration.class },
+				(proxy, method, args) -> switch (method.getName()) {
+				case "getDataSource" -> writer;
+				case "getReaderDataSource" -> reader;
+				case "getUnpooledDataSource" -> unpooledWriter;
+				case "getUnpooledReaderDataSource" -> unpooledReader;
+				default -> null;
+				});
+		mapping.setResourceCache(new ResourceCache(Collections.singleton("Practitioner"), 100, 300));
+		mapping.setReadYourWritesMillis(0);
+	}
+
+	private static DataSource dataSource() {
+		return (DataSource) Proxy.newProxyInstance(FhirbaseMappingReadDataSourceTest.class.getClassLoader(),
+				new Class<?>[] { DataSource.class }, (proxy, method, args) -> null);
+	}
+
+	@Test
+	public void cachedTypesAreReadFromTheWriter() {
+		assertSame(writer, mapping.instanceReadDataSource("practitioner"));
+		assertSame(writer, mapping.instanceReadDataSource("Practitioner"));
+	}
+
+	@Test
+	public void otherTypesAreReadFromAReader() {
+		assertSame(reader, mapping.instanceReadDataSource("observation"));
+	}
+
+	@Test
+	public void cursorsOpenOnAReaderWithoutThePool() {
+		assertSame(unpooledReader, mapping.cursorDataSource("observation"));
+	}
+
+	@Test
+	public void cursorsStayOnTheWriterAfterAWrite() {
+		mapping.setReadYourWritesMillis(60000);
+		mapping.recordWrite("observation");
+
+		assertSame(unpooledWriter, mapping.cursorDataSource("observation"));
+		assertSame(unpooledReader, mapping.cursorDataSource("patient"));
+	}
+}
@@ -0,0 +1,94 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+
+public class FhirbaseMappingWriteAllTest {
+
+	@Test
+	public void batchIsStreamedAsOneJsonArrayAndRecorded() throws Exception {
+		AtomicReference<String> sent = new AtomicReference<String>();
+		FhirbaseMapping mapping = new FhirbaseMapping();
+		mapping.setCtx(FhirContext.forR4Cached());
+		DataSource dataSource = dataSource(sent);
+		mapping.databaseConfiguration = (DatabaseConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatabaseConfiguration.class },
+				(proxy, method, args) -> "getDataSource".equals(method.getName()) ? dataSource : null);
+
+		Observation observation = new Observation();
+		observation.setId("o1");
+		Practitioner practitioner = new Practitioner();
+		practitioner.setId("p1");
+		List<IBaseResource> written = mapping.createAll(Arrays.asList(observation, practitioner));
+
+		JsonArray array = JsonParser.parseString(sent.get()).getAsJsonArray();
+		assertEquals(2, array.size());
+		assertEquals("Observation", array.get(0).getAsJsonObject().get("resourceType").getAsString());
+		assertEquals("Practitioner", array.get(1).getAsJsonObject().get("resourceType").getAsString());
+
+		assertEquals(2, written.size());
+		assertEquals("p1", written.get(1).getIdElement().getIdPart());
+		assertEquals(1, mapping.getWriteMetrics().getWrites());
+		assertEquals(sent.get().getBytes(StandardCharsets.UTF_8).length, mapping.getWriteMetrics().getPayloadBytes());
+	}
+
+	/**
+	 * A DataSource that keeps the streamed parameter in sent and returns each
+	 * element of it as a created resource.
+	 */
+	private DataSource dataSource(AtomicReference<String> sent) {
+		PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "setBinaryStream":
+						sent.set(new String(((InputStream) args[1]).readAllBytes(), StandardCharsets.UTF_8));
+						return null;
+					case "executeQuery":
+						return resultSet(JsonParser.parseString(sent.get()).getAsJsonArray());
+					default:
+						return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+				});
+		Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "prepareStatement" -> statement;
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+				(proxy, method, args) -> "getConnection".equals(method.getName()) ? connection : null);
+	}
+
+	private ResultSet resultSet(JsonArray rows) {
+		AtomicInteger row = new AtomicInteger(-1);
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> switch (method.getName()) {
+				case "next" -> row.incrementAndGet() < rows.size();
+				case "getString" -> rows.get(row.get()).toString();
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+	}
+}
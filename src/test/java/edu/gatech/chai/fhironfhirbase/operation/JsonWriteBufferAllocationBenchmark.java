@@ -0,0 +1,132 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+
+/**
+ * Bytes allocated per write on the client side, before and after the write
+ * buffer. Before: encodeResourceToString, then setString, which pgjdbc encodes
+ * with String.getBytes(UTF_8) when it sends the bind. After: encode into the
+ * per-thread JsonWriteBuffer and bind it as a stream, which pgjdbc copies to
+ * the socket through its own reused buffer (modelled here by draining the
+ * stream into one reused array).
+ * <p>
+ * Allocation comes from the per-thread allocation counter, the same one JMH's
+ * -prof gc reads for gc.alloc.rate.norm. The numbers depend on the JIT and the
+ * machine, so this only reports them. It is not run by the build; run it with
+ * mvn test -Pbenchmark.
+ */
+public class JsonWriteBufferAllocationBenchmark {
+	private static final int WARMUP = 300;
+	private static final int ITERATIONS = 500;
+
+	private static IParser parser;
+	private static Bundle document;
+
+	@BeforeClass
+	public static void setUp() {
+		parser = JsonParserCache.acquire(FhirContext.forR4Cached());
+
+		// A document of the size the MDI workflows write: 60 Observations.
+		document = new Bundle().setType(BundleType.DOCUMENT);
+		for (int i = 0; i < 60; i++) {
+			Observation observation = new Observation();
+			observation.setId("obs-" + i);
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			CodeableConcept code = new CodeableConcept();
+			code.addCoding().setSystem("http://loinc.org").setCode("81956-" + i)
+					.setDisplay("Cause of death " + i + " with a display text of a realistic length");
+			observation.setCode(code);
+			observation.setSubject(new Reference("Patient/example-" + i));
+			observation.setValue(new Quantity().setValue(i).setUnit("mg").setSystem("http://unitsofmeasure.org"));
+			document.addEntry().setFullUrl("Observation/obs-" + i).setResource(observation);
+		}
+	}
+
+	@Test
+	public void allocationPerWrite() throws IOException {
+		assertTrue("per-thread allocation counter unavailable", WriteMetrics.currentThreadAllocatedBytes() >= 0);
+
+		byte[] socketBuffer = new byte[8192];
+		long stringBytes = measure(() -> writeAsString(socketBuffer));
+		long bufferBytes = measure(() -> writeFromBuffer(socketBuffer));
+
+		System.out.println("JsonWriteBufferAllocationBenchmark: payload=" + payloadSize()
+				+ " bytes, allocated per write: string=" + stringBytes + " bytes, buffer=" + bufferBytes + " bytes");
+	}
+
+	private interface Write {
+		long run() throws IOException;
+	}
+
+	private static long measure(Write write) throws IOException {
+		long sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += write.run();
+		}
+
+		long start = WriteMetrics.currentThreadAllocatedBytes();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += write.run();
+		}
+		long allocated = WriteMetrics.currentThreadAllocatedBytes() - start;
+
+		assertTrue(sink > 0);
+		return allocated / ITERATIONS;
+	}
+
+	private static long writeAsString(byte[] socketBuffer) {
+		String serialized = parser.encodeResourceToString(document);
+		byte[] sent = serialized.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(sent, 0, socketBuffer, 0, Math.min(sent.length, socketBuffer.length));
+
+		return sent.length;
+	}
+
+	private static long writeFromBuffer(byte[] socketBuffer) throws IOException {
+		JsonWriteBuffer buffer = encode();
+		try {
+			long sent = 0;
+			try (InputStream stream = buffer.toInputStream()) {
+				int read;
+				while ((read = stream.read(socketBuffer)) > 0) {
+					sent += read;
+				}
+			}
+
+			return sent;
+		} finally {
+			buffer.release();
+		}
+	}
+
+	private static JsonWriteBuffer encode() throws IOException {
+		JsonWriteBuffer buffer = JsonWriteBuffer.acquire();
+		Writer writer = buffer.writer();
+		parser.encodeResourceToWriter(document, writer);
+		writer.flush();
+
+		return buffer;
+	}
+
+	private static long payloadSize() {
+		return parser.encodeResourceToString(document).getBytes(StandardCharsets.UTF_8).length;
+	}
+}
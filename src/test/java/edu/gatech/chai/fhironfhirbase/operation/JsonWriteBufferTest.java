@@ -0,0 +1,59 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.fhironfhirbase.utilities.JsonParserCache;
+
+public class JsonWriteBufferTest {
+
+	private static Observation observation() {
+		Observation observation = new Observation();
+		observation.setId("obs-1");
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("81956-5").setDisplay("Cause of death ü");
+		observation.setSubject(new Reference("Patient/example"));
+		return observation;
+	}
+
+	private static JsonWriteBuffer encode(IParser parser, Observation observation) throws IOException {
+		JsonWriteBuffer buffer = JsonWriteBuffer.acquire();
+		Writer writer = buffer.writer();
+		parser.encodeResourceToWriter(observation, writer);
+		writer.flush();
+
+		return buffer;
+	}
+
+	@Test
+	public void bufferHoldsTheSameBytesAsTheString() throws IOException {
+		IParser parser = JsonParserCache.acquire(FhirContext.forR4Cached());
+		Observation observation = observation();
+		byte[] expected = parser.encodeResourceToString(observation).getBytes(StandardCharsets.UTF_8);
+
+		JsonWriteBuffer buffer = encode(parser, observation);
+		try {
+			assertEquals(expected.length, buffer.size());
+			assertEquals(new String(expected, StandardCharsets.UTF_8), buffer.toString(StandardCharsets.UTF_8));
+
+			ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+			try (InputStream stream = buffer.toInputStream()) {
+				stream.transferTo(streamed);
+			}
+			assertEquals(new String(expected, StandardCharsets.UTF_8), streamed.toString(StandardCharsets.UTF_8));
+		} finally {
+			buffer.release();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+import edu.gatech.chai.fhironfhirbase.provider.FhirbaseBundleProvider;
+
+public class SearchCursorsTest {
+	private static final BoundSql SQL = BoundSql.of("SELECT resource FROM observation");
+
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger maxOpen = new AtomicInteger();
+
+	/**
+	 * A DataSource whose connections accept the DECLARE and track how many are
+	 * open at once. Opening one is slowed down to widen any race.
+	 */
+	private DataSource dataSource(boolean failing) {
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+				(proxy, method, args) -> {
+					if (!method.getName().equals("getConnection")) {
+						return null;
+					}
+					if (failing) {
+						throw new SQLException("no connection");
+					}
+
+					maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+					Thread.sleep(20L);
+					return connection();
+				});
+	}
+
+	private Connection connection() {
+		PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class },
+				(proxy, method, args) -> method.getReturnType() == boolean.class ? Boolean.FALSE : null);
+
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "prepareStatement":
+						return statement;
+					case "createStatement":
+						return failingStatement();
+					case "close":
+						open.decrementAndGet();
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * A statement whose MOVE and FETCH fail, as on a dropped connection.
+	 */
+	private Statement failingStatement() {
+		return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Statement.class },
+				(proxy, method, args) -> {
+					if (method.getName().startsWith("execute")) {
+						throw new SQLException("connection reset");
+					}
+					return null;
+				});
+	}
+
+	@Test
+	public void neverOpensMoreThanTheCapUnderConcurrentSearches() throws Exception {
+		SearchCursors searchCursors = new SearchCursors(true, 1, 2, 300000L);
+		DataSource dataSource = dataSource(false);
+
+		int threads = 16;
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicInteger opened = new AtomicInteger();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			String searchId = "search-" + i;
+			Thread worker = new Thread(() -> {
+				try {
+					start.await();
+					if (searchCursors.acquire(dataSource, searchId, SQL, 5000) != null) {
+						opened.incrementAndGet();
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(2, opened.get());
+		assertEquals(2, maxOpen.get());
+		assertEquals(2, searchCursors.getOpenCount());
+		assertEquals(0, searchCursors.getAvailablePermits());
+
+		searchCursors.closeAll();
+		assertEquals(0, open.get());
+		assertEquals(2, searchCursors.getAvailablePermits());
+	}
+
+	@Test
+	public void closedCursorsFreeTheirPermit() throws SQLException {
+		SearchCursors searchCursors = new SearchCursors(true, 1, 1, 300000L);
+		DataSource dataSource = dataSource(false);
+
+		SearchCursors.SearchCursor first = searchCursors.acquire(dataSource, "a", SQL, 5000);
+		assertNotNull(first);
+		assertNull(searchCursors.acquire(dataSource, "b", SQL, 5000));
+
+		searchCursors.discard("a", first);
+		// Closing twice must not hand out a second permit.
+		first.close();
+		assertEquals(1, searchCursors.getAvailablePermits());
+
+		assertNotNull(searchCursors.acquire(dataSource, "b", SQL, 5000));
+		assertEquals(1, open.get());
+	}
+
+	@Test
+	public void failedConnectionGivesThePermitBack() {
+		SearchCursors searchCursors = new SearchCursors(true, 1, 1, 300000L);
+
+		try {
+			searchCursors.acquire(dataSource(true), "a", SQL, 5000);
+			fail("expected the connection failure");
+		} catch (SQLException e) {
+			assertTrue(e.getMessage().contains("no connection"));
+		}
+
+		assertEquals(1, searchCursors.getAvailablePermits());
+		assertEquals(0, searchCursors.getOpenCount());
+	}
+
+	@Test
+	public void failedFetchReadsThePageWithAQuery() throws SQLException {
+		FhirbaseMapping mapping = new FhirbaseMapping();
+		mapping.setCtx(FhirContext.forR4Cached());
+		mapping.setSearchCursors(new SearchCursors(true, 1, 1, 300000L));
+		DataSource cursorDataSource = dataSource(false);
+		DataSource queryDataSource = queryDataSource("{\"resourceType\":\"Observation\",\"id\":\"o1\"}");
+		mapping.databaseConfiguration = (DatabaseConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatabaseConfiguration.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "getUnpooledReaderDataSource" -> cursorDataSource;
+				case "getReaderDataSource", "getDataSource" -> queryDataSource;
+				default -> null;
+				});
+
+		PagedBundle bundle = new PagedBundle();
+		bundle.setUuid("search-1");
+		bundle.setTotalSize(5000);
+		List<IBaseResource> page = bundle.read(mapping, 10, 20);
+
+		assertEquals(1, page.size());
+		assertEquals("o1", page.get(0).getIdElement().getIdPart());
+		// The failed cursor was closed and its permit given back.
+		assertEquals(0, mapping.getSearchCursors().getOpenCount());
+		assertEquals(1, mapping.getSearchCursors().getAvailablePermits());
+		assertEquals(0, open.get());
+	}
+
+	private static class PagedBundle extends FhirbaseBundleProvider {
+		PagedBundle() {
+			super(SqlQuery.from("observation o"));
+		}
+
+		List<IBaseResource> read(FhirbaseMapping mapping, int fromIndex, int toIndex) throws SQLException {
+			return searchPage(mapping, pageQuery(fromIndex, toIndex), fromIndex, toIndex, null,
+					Observation.class);
+		}
+
+		@Override
+		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+			return new ArrayList<IBaseResource>();
+		}
+	}
+
+	/**
+	 * A DataSource whose queries return one row holding resource.
+	 */
+	private DataSource queryDataSource(String resource) {
+		AtomicBoolean read = new AtomicBoolean();
+		ResultSet rs = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> switch (method.getName()) {
+				case "next" -> !read.getAndSet(true);
+				case "getBytes" -> "resource".equals(args[0]) ? resource.getBytes(StandardCharsets.UTF_8) : null;
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+		PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "executeQuery" -> rs;
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+		Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> switch (method.getName()) {
+				case "prepareStatement" -> statement;
+				default -> method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				});
+
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+				(proxy, method, args) -> "getConnection".equals(method.getName()) ? connection : null);
+	}
+}
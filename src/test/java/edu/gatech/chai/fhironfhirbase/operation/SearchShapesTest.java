@@ -0,0 +1,126 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+import edu.gatech.chai.fhironfhirbase.database.DatabaseConfiguration;
+
+public class SearchShapesTest {
+
+	@Test
+	public void normalizeCollapsesWhitespace() {
+		assertEquals("SELECT * FROM observation o WHERE o.id = ?",
+				SearchShapes.normalize("  SELECT *\n\tFROM observation o\n  WHERE o.id   = ?  "));
+	}
+
+	@Test
+	public void normalizeWritesBindListsAsOne() {
+		String one = SearchShapes.normalize("SELECT * FROM observation o WHERE o.id IN (?, ?)");
+		String many = SearchShapes.normalize("SELECT * FROM observation o WHERE o.id IN (?,?, ?,  ?)");
+
+		assertEquals("SELECT * FROM observation o WHERE o.id IN (?, ...)", one);
+		assertEquals(one, many);
+	}
+
+	@Test
+	public void normalizeReplacesComparedNumbers() {
+		assertEquals("SELECT * FROM observation o WHERE o.version = ? AND o.rank > ? AND o.score <= ?",
+				SearchShapes.normalize("SELECT * FROM observation o WHERE o.version = 3 AND o.rank > -2 AND o.score <= 1.5"));
+	}
+
+	@Test
+	public void normalizeKeepsJsonPathIndexes() {
+		String sql = "SELECT * FROM bundle b WHERE b.resource->'entry'->0->'resource'->>'id' = ? AND b.resource #> '{entry,0}' IS NOT NULL";
+
+		assertEquals(sql, SearchShapes.normalize(sql));
+	}
+
+	@Test
+	public void sameShapeWithOtherValuesIsOneShape() {
+		SearchShapes searchShapes = new SearchShapes(10);
+		searchShapes.record(BoundSql.of("SELECT * FROM observation o WHERE o.id IN (?, ?)", "a", "b"), 1000000L, 2);
+		searchShapes.record(BoundSql.of("SELECT * FROM observation o WHERE o.id IN (?, ?, ?)", "c", "d", "e"), 3000000L, 3);
+
+		assertEquals(1, searchShapes.size());
+		// One value is not a list, so it is another shape.
+		SearchShapes.Shape shape = searchShapes.get(BoundSql.of("SELECT * FROM observation o WHERE o.id IN (?)", "f"));
+		assertNull(shape);
+
+		shape = searchShapes.costliest(1).get(0);
+		assertEquals(2, shape.getExecutions());
+		assertEquals(5, shape.getRows());
+		assertEquals(2.0, shape.getMeanMillis(), 0.001);
+	}
+
+	@Test
+	public void zeroMaximumDisablesIt() {
+		SearchShapes searchShapes = new SearchShapes(0);
+		searchShapes.record(BoundSql.of("SELECT 1"), 1000L, 1);
+
+		assertFalse(searchShapes.isEnabled());
+		assertEquals(0, searchShapes.getExecutions());
+		assertEquals(0, searchShapes.costliest(10).size());
+	}
+
+	@Test
+	public void countsRecordTheCountedValue() throws Exception {
+		FhirbaseMapping mapping = new FhirbaseMapping();
+		DataSource dataSource = dataSource(42);
+		mapping.databaseConfiguration = (DatabaseConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatabaseConfiguration.class }, (proxy, method, args) -> dataSource);
+
+		BoundSql count = BoundSql.of("SELECT count(*) FROM observation o WHERE o.resource->>'status' = ?", "final");
+		assertEquals(42, mapping.getSize(count));
+
+		SearchShapes.Shape shape = mapping.getSearchShapes().get(count);
+		assertEquals(1, shape.getExecutions());
+		assertEquals(42, shape.getRows());
+	}
+
+	/**
+	 * A DataSource whose queries return one row with count.
+	 */
+	private static DataSource dataSource(int count) {
+		AtomicBoolean read = new AtomicBoolean();
+		ResultSet rs = proxy(ResultSet.class, (name, args) -> switch (name) {
+		case "next" -> !read.getAndSet(true);
+		case "getInt" -> count;
+		default -> null;
+		});
+		PreparedStatement stmt = proxy(PreparedStatement.class,
+				(name, args) -> "executeQuery".equals(name) ? rs : null);
+		Connection connection = proxy(Connection.class,
+				(name, args) -> "prepareStatement".equals(name) ? stmt : null);
+
+		return proxy(DataSource.class, (name, args) -> "getConnection".equals(name) ? connection : null);
+	}
+
+	private interface Answer {
+		Object answer(String methodName, Object[] args);
+	}
+
+	private static <T> T proxy(Class<T> type, Answer answer) {
+		return type.cast(Proxy.newProxyInstance(SearchShapesTest.class.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> {
+					Object value = answer.answer(method.getName(), args);
+					if (value == null && method.getReturnType() == boolean.class) {
+						return false;
+					}
+					if (value == null && method.getReturnType() == int.class) {
+						return 0;
+					}
+					return value;
+				}));
+	}
+}
@@ -0,0 +1,137 @@
+package edu.gatech.chai.fhironfhirbase.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
+
+public class SqlQueryTest {
+
+	@Test
+	public void conditionsFollowTheJoins() {
+		BoundSql sql = SqlQuery.from("observation o")
+				.join(Join.arrayElements("o.resource->'code'->'coding'", "codings"))
+				.join(Join.inner("patient", "p", "o.resource->'subject'->>'reference' = concat('Patient/', p.id)"))
+				.where("o.resource->>'status' = ?", "final")
+				.where("p.id = ?", "1")
+				.build();
+
+		assertEquals("SELECT * FROM observation o, jsonb_array_elements(o.resource->'code'->'coding') codings"
+				+ " JOIN patient p ON o.resource->'subject'->>'reference' = concat('Patient/', p.id)"
+				+ " WHERE (o.resource->>'status' = ?) AND (p.id = ?)", sql.getSql());
+		assertEquals(Arrays.asList("final", "1"), sql.getParams());
+	}
+
+	@Test
+	public void definitionsComeFirstAndCountUsesThem() {
+		SqlQuery search = SqlQuery.from("filtered fc").select("fc.resource")
+				.with("filtered_patients", BoundSql.of("SELECT p.id FROM patient p WHERE p.id = ?", "1"))
+				.with("filtered", BoundSql.of("SELECT c.id, c.resource FROM composition c WHERE c.id = ?", "2"))
+				.where("fc.id > ?", "0");
+
+		assertEquals("WITH filtered_patients AS (SELECT p.id FROM patient p WHERE p.id = ?),"
+				+ " filtered AS (SELECT c.id, c.resource FROM composition c WHERE c.id = ?)"
+				+ " SELECT fc.resource FROM filtered fc WHERE fc.id > ?", search.build().getSql());
+		assertEquals(Arrays.asList("1", "2", "0"), search.build().getParams());
+
+		BoundSql count = search.buildCount();
+		assertTrue(count.getSql().startsWith("WITH filtered_patients AS ("));
+		assertTrue(count.getSql().endsWith(" SELECT count(*) FROM filtered fc WHERE fc.id > ?"));
+		assertEquals(Arrays.asList("1", "2", "0"), count.getParams());
+	}
+
+	@Test
+	public void sameConditionIsAddedOnce() {
+		SqlQuery search = SqlQuery.from("observation o")
+				.where("o.id = ?", "1")
+				.where("o.id = ?", "1")
+				.where("o.id = ?", "2")
+				.where(BoundSql.empty())
+				.where((BoundSql) null);
+
+		assertEquals("SELECT * FROM observation o WHERE (o.id = ?) AND (o.id = ?)", search.build().getSql());
+	}
+
+	@Test
+	public void anAliasIsJoinedOnce() {
+		SqlQuery search = SqlQuery.from("observation o")
+				.join(Join.arrayElements("o.resource->'code'->'coding'", "codings"))
+				.join(Join.arrayElements("o.resource->'category'->'coding'", "codings"))
+				.join(Join.inner("observation", "o", "true"));
+
+		assertTrue(search.isJoined("codings"));
+		assertTrue(search.isJoined("o"));
+		assertEquals("SELECT * FROM observation o, jsonb_array_elements(o.resource->'code'->'coding') codings",
+				search.build().getSql());
+	}
+
+	@Test
+	public void copyLeavesTheOriginal() {
+		SqlQuery search = SqlQuery.from("observation o").where("o.id = ?", "1");
+		SqlQuery page = search.copy().orderBy("o.id").where("o.id > ?", "0").limit(10);
+
+		assertEquals("SELECT * FROM observation o WHERE o.id = ?", search.build().getSql());
+		assertEquals(Collections.singletonList("1"), search.build().getParams());
+		assertFalse(search.hasOrder());
+		assertEquals("SELECT * FROM observation o WHERE (o.id = ?) AND (o.id > ?) ORDER BY o.id LIMIT ?",
+				page.build().getSql());
+		assertEquals(Arrays.asList("1", "0", 10), page.build().getParams());
+	}
+
+	@Test
+	public void blankOrderByAddsNothing() {
+		SqlQuery search = SqlQuery.from("observation o").orderBy("").orderBy(null).orderBy("  ");
+
+		assertFalse(search.hasOrder());
+		assertEquals("SELECT * FROM observation o", search.build().getSql());
+	}
+
+	@Test
+	public void limitAndOffsetAreBound() {
+		assertEquals("SELECT * FROM observation o LIMIT ? OFFSET ?",
+				SqlQuery.from("observation o").limit(20).offset(40).build().getSql());
+		assertEquals(Arrays.asList(20, 40), SqlQuery.from("observation o").limit(20).offset(40).build().getParams());
+		assertEquals("SELECT * FROM observation o LIMIT ?",
+				SqlQuery.from("observation o").limit(20).offset(0).build().getSql());
+	}
+
+	@Test
+	public void fromDeclaresItsAlias() {
+		assertTrue(SqlQuery.from("observation o").isJoined("o"));
+		assertTrue(SqlQuery.from("observation AS o").isJoined("o"));
+		assertTrue(SqlQuery.from("observation").isJoined("observation"));
+
+		assertFalse(SqlQuery.from("observation obs").isJoined("o"));
+		assertFalse(SqlQuery.from("observation o").isJoined("obs"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fromTakesOneTable() {
+		SqlQuery.from("observation o, jsonb_array_elements(o.resource->'code'->'coding') codings");
+	}
+
+	@Test
+	public void arrayJoinsMayRepeatRows() {
+		assertFalse(SqlQuery.from("observation o")
+				.join(Join.inner("patient", "p", "o.resource->'subject'->>'reference' = concat('Patient/', p.id)"))
+				.mayRepeatRows());
+		assertFalse(SqlQuery.from("filtered_compositions fc")
+				.with("filtered_compositions", BoundSql.of("SELECT DISTINCT ON (comp.id) comp.id, comp.resource"
+						+ " FROM composition comp CROSS JOIN LATERAL jsonb_array_elements(comp.resource->'section') sections"))
+				.mayRepeatRows());
+
+		assertTrue(SqlQuery.from("observation o")
+				.join(Join.arrayElements("o.resource->'code'->'coding'", "codings")).mayRepeatRows());
+		assertTrue(SqlQuery.from("composition comp")
+				.join(Join.lateralArrayElements("comp.resource->'section'", "sections"))
+				.mayRepeatRows());
+		assertTrue(SqlQuery.from("observation o")
+				.join(Join.jsonArrayElements("o.resource::json->'category'", "categories")).mayRepeatRows());
+	}
+}
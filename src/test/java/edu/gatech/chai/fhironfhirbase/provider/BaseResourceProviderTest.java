@@ -0,0 +1,106 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.utilities.ResourceCountRegistry;
+
+public class BaseResourceProviderTest {
+	private static final String INJECTION = "x' OR '1'='1";
+
+	private final BaseResourceProvider provider = new BaseResourceProvider(null) {
+		@Override
+		public Class<? extends IBaseResource> getResourceType() {
+			return Observation.class;
+		}
+	};
+
+	@Test
+	public void searchValuesAreBound() {
+		BoundSql sql = SqlQuery.from("observation o")
+				.where("o.resource->>'status' = ?", INJECTION)
+				.where(BaseResourceProvider.constructArrayContainsWhere("o.resource->'identifier'", "value", INJECTION))
+				.where(provider.constructIdWhereParameter("o.id", new TokenOrListParam(null, INJECTION)))
+				.build();
+
+		assertFalse(sql.getSql().contains(INJECTION));
+		assertEquals(Arrays.asList(INJECTION, "[{\"value\":\"x' OR '1'='1\"}]", INJECTION), sql.getParams());
+	}
+
+	@Test
+	public void patientReferenceIsBound() {
+		BoundSql sql = provider.constructPatientWhereParameter(new ReferenceParam("Patient/" + INJECTION));
+
+		assertEquals("p.resource->>'id' like ?", sql.getSql());
+		assertEquals(Collections.singletonList(INJECTION), sql.getParams());
+	}
+
+	@Test
+	public void containsLeavesOutNullValues() {
+		BoundSql sql = BaseResourceProvider.constructContainsWhere("codings", "system", null, "code", "1234-5");
+
+		assertEquals("codings @> ?::jsonb", sql.getSql());
+		assertEquals(Collections.singletonList("{\"code\":\"1234-5\"}"), sql.getParams());
+	}
+
+	@Test
+	public void sortNamesAreChecked() {
+		assertEquals("date DESC", provider.constructOrderParams(new SortSpec("date", SortOrderEnum.DESC)));
+	}
+
+	@Test(expected = InvalidRequestException.class)
+	public void sortExpressionsAreRejected() {
+		provider.constructOrderParams(new SortSpec("id; drop table patient"));
+	}
+
+	@Test
+	public void deletingAMissingIdKeepsTheCount() {
+		ObservationResourceProvider observations = new ObservationResourceProvider(FhirContext.forR4Cached());
+		observations.setFhirbaseMapping(new FhirbaseMapping() {
+			@Override
+			public IBaseResource delete(IdType id, Class<? extends Resource> fhirClass, String tableName) {
+				// No row had the id.
+				return null;
+			}
+		});
+		ResourceCountRegistry.getInstance().set("Observation", 3L);
+
+		observations.deleteObservation(new IdType("Observation", "missing"));
+
+		assertEquals(3L, ResourceCountRegistry.getInstance().get("Observation"));
+	}
+
+	@Test
+	public void failedOrMissingEstimateLeavesNoTotal() {
+		provider.setFhirbaseMapping(new FhirbaseMapping() {
+			@Override
+			public Integer getEstimatedSize(BoundSql sql) throws SQLException {
+				throw new SQLException("canceling statement");
+			}
+		});
+
+		assertNull(provider.getEstimatedSize(BoundSql.of("SELECT * FROM observation o")));
+		assertNull(provider.getEstimatedSize(BoundSql.empty()));
+		assertNull(provider.getEstimatedSize(null));
+	}
+}
@@ -0,0 +1,118 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Test;
+
+import edu.gatech.chai.fhironfhirbase.operation.BoundSql;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery;
+import edu.gatech.chai.fhironfhirbase.operation.SqlQuery.Join;
+
+public class FhirbaseBundleProviderTest {
+
+	private static FhirbaseBundleProvider bundleProvider() {
+		return bundleProvider(SqlQuery.from("observation o"));
+	}
+
+	private static FhirbaseBundleProvider bundleProvider(SqlQuery search) {
+		return new FhirbaseBundleProvider(search) {
+			@Override
+			public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+				return Collections.emptyList();
+			}
+		};
+	}
+
+	private static List<IBaseResource> page(Class<? extends IBaseResource> type, String... ids) throws Exception {
+		List<IBaseResource> page = new ArrayList<IBaseResource>();
+		for (String id : ids) {
+			IBaseResource resource = type.getDeclaredConstructor().newInstance();
+			resource.setId(id);
+			page.add(resource);
+		}
+		return page;
+	}
+
+	@Test
+	public void sizeWaitsForThePendingCount() {
+		FhirbaseBundleProvider bundleProvider = bundleProvider();
+		bundleProvider.setPendingTotalSize(CompletableFuture.completedFuture(42));
+
+		assertEquals(Integer.valueOf(42), bundleProvider.size());
+	}
+
+	@Test
+	public void failedCountLeavesNoTotal() {
+		FhirbaseBundleProvider bundleProvider = bundleProvider();
+		bundleProvider.setPendingTotalSize(CompletableFuture.failedFuture(new SQLException("canceling statement")));
+
+		assertNull(bundleProvider.size());
+		assertNull(bundleProvider.size());
+	}
+
+	@Test
+	public void nextPageSeeksPastTheLastKey() throws Exception {
+		FhirbaseBundleProvider bundleProvider = bundleProvider(
+				SqlQuery.from("observation o").where("o.resource->>'status' = ?", "final"));
+		bundleProvider.setKeyset("o.id");
+		bundleProvider.rememberPage(0, page(Observation.class, "a", "b"), Observation.class);
+
+		BoundSql next = bundleProvider.pageQuery(2, 4);
+		assertEquals("SELECT * FROM observation o WHERE (o.resource->>'status' = ?) AND (o.id > ?) ORDER BY o.id LIMIT ?",
+				next.getSql());
+		assertEquals(Arrays.asList("final", "b", 2), next.getParams());
+	}
+
+	@Test
+	public void keyPredicateGoesIntoTheOuterQueryOfACte() throws Exception {
+		SqlQuery search = SqlQuery.from("filtered_compositions fc").select("fc.resource as resource")
+				.with("filtered_compositions", BoundSql.of("SELECT DISTINCT ON (comp.id) comp.id, comp.resource"
+						+ " FROM composition comp CROSS JOIN LATERAL jsonb_array_elements(comp.resource->'section') sections"
+						+ " WHERE sections->>'title' = ?", "x"));
+		FhirbaseBundleProvider bundleProvider = bundleProvider(search);
+		bundleProvider.setKeyset("fc.id");
+		bundleProvider.rememberPage(0, page(Composition.class, "a", "b"), Composition.class);
+
+		BoundSql next = bundleProvider.pageQuery(2, 4);
+		assertTrue(next.getSql().endsWith(
+				" SELECT fc.resource as resource FROM filtered_compositions fc WHERE fc.id > ? ORDER BY fc.id LIMIT ?"));
+		assertEquals(Arrays.asList("x", "b", 2), next.getParams());
+	}
+
+	@Test
+	public void repeatingJoinsPageWithOffset() throws Exception {
+		FhirbaseBundleProvider bundleProvider = bundleProvider(SqlQuery.from("observation o")
+				.join(Join.arrayElements("o.resource->'code'->'coding'", "codings")));
+		bundleProvider.setKeyset("o.id");
+		bundleProvider.rememberPage(0, page(Observation.class, "a", "b"), Observation.class);
+
+		assertFalse(bundleProvider.keysetEnabled());
+		BoundSql next = bundleProvider.pageQuery(2, 4);
+		assertEquals("SELECT * FROM observation o, jsonb_array_elements(o.resource->'code'->'coding') codings"
+				+ " LIMIT ? OFFSET ?", next.getSql());
+		assertEquals(Arrays.asList(2, 2), next.getParams());
+	}
+
+	@Test
+	public void sortedSearchesPageWithOffset() {
+		FhirbaseBundleProvider bundleProvider = bundleProvider(SqlQuery.from("observation o").orderBy("date DESC"));
+		bundleProvider.setKeyset("o.id");
+
+		assertFalse(bundleProvider.keysetEnabled());
+		assertEquals("SELECT * FROM observation o ORDER BY date DESC LIMIT ? OFFSET ?",
+				bundleProvider.pageQuery(2, 4).getSql());
+	}
+}
@@ -0,0 +1,29 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import edu.gatech.chai.fhironfhirbase.operation.FhirbaseMapping;
+
+public class HistoryBundleProviderTest {
+
+	@Test(expected = InternalErrorException.class)
+	public void failedHistoryIsAnErrorNotAnEmptyPage() {
+		FhirbaseMapping failing = new FhirbaseMapping() {
+			@Override
+			public List<IBaseResource> history(Class<? extends Resource> fhirClass, String tableName, String id,
+					Date since, Long afterTxid, String afterId, int offset, int count) throws SQLException {
+				throw new SQLException("canceling statement due to statement timeout");
+			}
+		};
+
+		new HistoryBundleProvider(failing, Observation.class, "observation", null, null).getResources(0, 10);
+	}
+}
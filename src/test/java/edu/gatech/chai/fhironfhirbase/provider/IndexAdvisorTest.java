@@ -0,0 +1,194 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
+import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceAndListParam;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+public class IndexAdvisorTest {
+
+	private static IndexAdvisor.Index index(String method, String expression) {
+		return new IndexAdvisor.Index("observation", method, expression);
+	}
+
+	@Test
+	public void isInByName() {
+		IndexAdvisor.Index index = index("btree", "resource->'subject'->>'reference'");
+		Map<String, String> indexes = new HashMap<String, String>();
+		indexes.put("observation_subject_reference_idx", "CREATE INDEX observation_subject_reference_idx ON public.observation USING btree (id)");
+
+		assertEquals("observation_subject_reference_idx", index.getName());
+		assertTrue(index.isIn(indexes));
+	}
+
+	@Test
+	public void isInByDefinitionAsPostgresWritesIt() {
+		Map<String, String> indexes = new HashMap<String, String>();
+		indexes.put("obs_subject", "CREATE INDEX obs_subject ON public.observation USING btree"
+				+ " (((resource -> 'subject'::text) ->> 'reference'::text))");
+		indexes.put("obs_identifier", "CREATE INDEX obs_identifier ON public.observation USING gin"
+				+ " (((resource -> 'identifier'::text)) jsonb_path_ops)");
+
+		assertTrue(index("btree", "resource->'subject'->>'reference'").isIn(indexes));
+		assertTrue(index("gin", "resource->'identifier'").isIn(indexes));
+	}
+
+	@Test
+	public void isNotInWithAnotherMethodOrExpression() {
+		Map<String, String> indexes = new HashMap<String, String>();
+		indexes.put("observation_pkey", "CREATE UNIQUE INDEX observation_pkey ON public.observation USING btree (id)");
+		indexes.put("obs_identifier", "CREATE INDEX obs_identifier ON public.observation USING btree"
+				+ " (((resource -> 'identifier'::text)))");
+
+		assertFalse(index("gin", "resource->'identifier'").isIn(indexes));
+		assertFalse(index("btree", "resource->'subject'->>'reference'").isIn(indexes));
+		assertFalse(index("btree", "resource->'subject'->>'reference'").isIn(new HashMap<String, String>()));
+	}
+
+	/**
+	 * Runs every provider's searches with one catalogued parameter at a time, and
+	 * checks the SQL they build filters on each expression the catalog indexes.
+	 */
+	@Test
+	public void catalogMatchesTheSearchSql() throws Exception {
+		FhirContext ctx = FhirContext.forR4Cached();
+		Map<String, Class<?>> providers = IndexAdvisor.providers();
+		Set<String> checked = new TreeSet<String>();
+
+		for (Map.Entry<String, List<IndexAdvisor.Index>> entry : IndexAdvisor.catalog().entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				continue;
+			}
+			String[] typeParam = entry.getKey().split(":");
+			Class<?> providerClass = providers.get(typeParam[0]);
+			assertNotNull("No provider for " + entry.getKey(), providerClass);
+			Object provider = providerClass.getConstructor(FhirContext.class).newInstance(ctx);
+
+			for (Method method : providerClass.getMethods()) {
+				Object[] args = searchArguments(method, typeParam[1]);
+				if (args == null) {
+					continue;
+				}
+
+				Object bundle = method.invoke(provider, args);
+				assertTrue(entry.getKey() + " in " + method.getName() + " builds no search",
+						bundle instanceof FhirbaseBundleProvider);
+				String sql = compact(((FhirbaseBundleProvider) bundle).searchQuery().getSql());
+				for (IndexAdvisor.Index index : entry.getValue()) {
+					assertTrue(entry.getKey() + " in " + method.getName() + " does not filter on "
+							+ index.getExpression() + ": " + sql, sql.contains(compact(index.getExpression())));
+				}
+				checked.add(entry.getKey());
+			}
+		}
+
+		Set<String> catalogued = new TreeSet<String>();
+		for (Map.Entry<String, List<IndexAdvisor.Index>> entry : IndexAdvisor.catalog().entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				catalogued.add(entry.getKey());
+			}
+		}
+		assertEquals(catalogued, checked);
+	}
+
+	private static String compact(String sql) {
+		return sql.replaceAll("\\s", "");
+	}
+
+	/**
+	 * Arguments for a @Search method that takes param, with only param set and
+	 * no total, or null if it does not take param.
+	 */
+	private static Object[] searchArguments(Method method, String param) {
+		if (method.getAnnotation(Search.class) == null) {
+			return null;
+		}
+
+		Class<?>[] types = method.getParameterTypes();
+		Annotation[][] annotations = method.getParameterAnnotations();
+		Object[] args = new Object[types.length];
+		boolean takesParam = false;
+		for (int i = 0; i < types.length; i++) {
+			if (param.equals(paramName(annotations[i]))) {
+				args[i] = value(types[i]);
+				takesParam = true;
+			} else if (types[i] == Set.class) {
+				args[i] = new HashSet<Object>();
+			} else if (types[i] == SearchTotalModeEnum.class) {
+				args[i] = SearchTotalModeEnum.NONE;
+			}
+		}
+
+		return takesParam ? args : null;
+	}
+
+	private static String paramName(Annotation[] annotations) {
+		for (Annotation annotation : annotations) {
+			if (annotation instanceof RequiredParam) {
+				return ((RequiredParam) annotation).name();
+			} else if (annotation instanceof OptionalParam) {
+				return ((OptionalParam) annotation).name();
+			}
+		}
+
+		return null;
+	}
+
+	private static Object value(Class<?> type) {
+		if (type == ReferenceParam.class) {
+			return new ReferenceParam("Patient/1");
+		} else if (type == ReferenceOrListParam.class) {
+			return new ReferenceOrListParam().add(new ReferenceParam("Patient/1"));
+		} else if (type == ReferenceAndListParam.class) {
+			return new ReferenceAndListParam().addAnd(new ReferenceOrListParam().add(new ReferenceParam("Patient/1")));
+		} else if (type == DateParam.class) {
+			return new DateParam("ge2020-01-01");
+		} else if (type == DateOrListParam.class) {
+			return new DateOrListParam().add(new DateParam("ge2020-01-01"));
+		} else if (type == DateRangeParam.class) {
+			return new DateRangeParam(new DateParam("ge2020-01-01"));
+		} else if (type == StringParam.class) {
+			return new StringParam("x");
+		} else if (type == StringOrListParam.class) {
+			return new StringOrListParam().add(new StringParam("x"));
+		} else if (type == TokenParam.class) {
+			return new TokenParam(null, "x");
+		} else if (type == TokenOrListParam.class) {
+			return new TokenOrListParam(null, "x");
+		} else if (type == TokenAndListParam.class) {
+			return new TokenAndListParam().addAnd(new TokenOrListParam(null, "x"));
+		}
+
+		fail("No value for " + type.getName());
+		return null;
+	}
+}
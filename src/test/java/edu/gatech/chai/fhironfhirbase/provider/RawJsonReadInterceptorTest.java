@@ -0,0 +1,29 @@
+package edu.gatech.chai.fhironfhirbase.provider;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.Test;
+
+import edu.gatech.chai.fhironfhirbase.model.MyDevice;
+import edu.gatech.chai.fhironfhirbase.model.MyDeviceUseStatement;
+import edu.gatech.chai.fhironfhirbase.model.USCorePatient;
+
+public class RawJsonReadInterceptorTest {
+
+	@Test
+	public void plainModelsTakeTheRawPath() {
+		assertTrue(RawJsonReadInterceptor.isPlainModel(Observation.class));
+		assertTrue(RawJsonReadInterceptor.isPlainModel(Practitioner.class));
+	}
+
+	@Test
+	public void customProfileClassesDoNot() {
+		assertFalse(RawJsonReadInterceptor.isPlainModel(USCorePatient.class));
+		assertFalse(RawJsonReadInterceptor.isPlainModel(MyDevice.class));
+		assertFalse(RawJsonReadInterceptor.isPlainModel(MyDeviceUseStatement.class));
+		assertFalse(RawJsonReadInterceptor.isPlainModel(null));
+	}
+}
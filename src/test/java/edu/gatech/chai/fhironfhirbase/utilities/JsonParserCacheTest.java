@@ -0,0 +1,66 @@
+package edu.gatech.chai.fhironfhirbase.utilities;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class JsonParserCacheTest {
+
+	@Test
+	public void parserReleasedOnOneVirtualThreadIsReusedOnTheNext() throws Exception {
+		// Its own context, so the pool holds no parsers from other tests.
+		FhirContext ctx = FhirContext.forR4();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			IParser first = executor.submit(() -> {
+				IParser parser = JsonParserCache.acquire(ctx);
+				JsonParserCache.release(ctx, parser);
+				return parser;
+			}).get();
+
+			IParser second = executor.submit(() -> {
+				IParser parser = JsonParserCache.acquire(ctx);
+				JsonParserCache.release(ctx, parser);
+				return parser;
+			}).get();
+
+			assertSame(first, second);
+		}
+	}
+
+	@Test
+	public void leasedParsersAreNotShared() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		IParser first = JsonParserCache.acquire(ctx);
+		IParser second = JsonParserCache.acquire(ctx);
+		try {
+			assertNotSame(first, second);
+		} finally {
+			JsonParserCache.release(ctx, first);
+			JsonParserCache.release(ctx, second);
+		}
+	}
+
+	@Test
+	public void idleParsersAreBounded() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		List<IParser> leased = new ArrayList<IParser>();
+		for (int i = 0; i < 1000; i++) {
+			leased.add(JsonParserCache.acquire(ctx));
+		}
+		for (IParser parser : leased) {
+			JsonParserCache.release(ctx, parser);
+		}
+
+		assertTrue(JsonParserCache.idle(ctx) < leased.size());
+	}
+}
@@ -0,0 +1,146 @@
+package edu.gatech.chai.fhironfhirbase.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ResourceCountRegistryTest {
+
+	@Test
+	public void setAndAdjustNeverGoBelowZero() {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		registry.set("Patient", -5L);
+		assertEquals(0L, registry.get("Patient"));
+
+		registry.set("Patient", 3L);
+		registry.adjust("Patient", -10L);
+		assertEquals(0L, registry.get("Patient"));
+
+		registry.adjust("Patient", 2L);
+		assertEquals(2L, registry.get("Patient"));
+	}
+
+	@Test
+	public void unknownTypesCountZero() {
+		assertEquals(0L, new ResourceCountRegistry().get("Observation"));
+	}
+
+	@Test
+	public void setCountedKeepsAdjustmentsMadeDuringTheCount() {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		// Creates before the count started are part of its result.
+		registry.adjust("Observation", 2L);
+		long adjustments = registry.getAdjustments("Observation");
+
+		// Three creates and a delete while the count of 100 runs.
+		registry.adjust("Observation", 3L);
+		registry.adjust("Observation", -1L);
+		registry.setCounted("Observation", 100L, adjustments);
+
+		assertEquals(102L, registry.get("Observation"));
+	}
+
+	@Test
+	public void setCountedKeepsDeletesThatHitZero() {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		long adjustments = registry.getAdjustments("Observation");
+
+		// The count is still 0, so these deletes cannot lower it, but they are in the database.
+		registry.adjust("Observation", -4L);
+		registry.setCounted("Observation", 10L, adjustments);
+
+		assertEquals(6L, registry.get("Observation"));
+	}
+
+	@Test
+	public void resetReplacesAllCounts() {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		registry.set("Patient", 4L);
+		registry.set("Observation", 7L);
+
+		Map<String, Long> counts = new HashMap<String, Long>();
+		counts.put("Observation", 9L);
+		counts.put("Condition", null);
+		registry.reset(counts);
+
+		assertEquals(2, registry.getResourceNames().size());
+		assertEquals(0L, registry.get("Patient"));
+		assertEquals(9L, registry.get("Observation"));
+		assertEquals(0L, registry.get("Condition"));
+		assertEquals(9L, registry.getTotal());
+	}
+
+	@Test
+	public void snapshotIsSortedAndDoesNotFollowLaterChanges() {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		registry.set("Patient", 1L);
+		registry.set("Condition", 2L);
+		registry.set("Observation", 3L);
+
+		Map<String, Long> snapshot = registry.snapshot();
+		registry.adjust("Patient", 5L);
+
+		assertEquals(List.of("Condition", "Observation", "Patient"), new ArrayList<String>(snapshot.keySet()));
+		assertEquals(Long.valueOf(1L), snapshot.get("Patient"));
+		assertEquals(registry.snapshot(), registry.getCounts());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshotIsReadOnly() {
+		new ResourceCountRegistry().snapshot().put("Patient", 1L);
+	}
+
+	@Test
+	public void concurrentAdjustsAreNotLost() throws InterruptedException {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		int threads = 8;
+		int adjustsPerThread = 10000;
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(() -> {
+				for (int j = 0; j < adjustsPerThread; j++) {
+					registry.adjust("Observation", 1L);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals((long) threads * adjustsPerThread, registry.get("Observation"));
+		assertTrue(registry.getResourceNames().contains("Observation"));
+	}
+
+	@Test
+	public void concurrentAdjustsDuringSetCountedAreKept() throws InterruptedException {
+		ResourceCountRegistry registry = new ResourceCountRegistry();
+		registry.set("Observation", 50L);
+		long adjustments = registry.getAdjustments("Observation");
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread worker = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					registry.adjust("Observation", 1L);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		registry.setCounted("Observation", 100L, adjustments);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(100L + 4 * 10000, registry.get("Observation"));
+	}
+}